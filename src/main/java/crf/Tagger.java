@@ -9,14 +9,48 @@ import cc.mallet.fst.*;
 import cc.mallet.pipe.Pipe;
 import cc.mallet.pipe.iterator.LineGroupIterator;
 import cc.mallet.types.Alphabet;
-import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Instance;
 import cc.mallet.types.InstanceList;
+import cc.mallet.types.ArraySequence;
 import cc.mallet.types.Sequence;
 import cc.mallet.util.MalletLogger;
+import crf.decode.BeamEvaluator;
+import crf.decode.ChunkEvaluator;
+import crf.decode.CloseableIterator;
+import crf.decode.CompiledCRF;
+import crf.decode.MarginalDecoder;
+import crf.decode.NBestDecoder;
+import crf.decode.ParallelDecoder;
+import crf.decode.ViterbiDecoder;
+import crf.eval.DecodeCache;
+import crf.eval.ParallelEvaluator;
+import crf.eval.ViterbiOutputWriter;
 import crf.features.Options;
+import crf.filter.FilterEvaluator;
+import crf.filter.SentenceFilter;
 import crf.features.SimpleTaggerSentence2FeatureVectorSequence;
+import crf.model.BinaryModel;
+import crf.model.QuantizedModel;
+import crf.output.TagWriter;
+import crf.server.ModelHolder;
+import crf.server.ModelRegistry;
+import crf.server.TaggingServer;
+import crf.train.CRFTrainerByBucketedLabelLikelihood;
+import crf.train.InstanceDeduplicator;
+import crf.wiki.Article;
+import crf.wiki.ArticleSentences;
+import crf.wiki.DumpPipeline;
+import crf.wiki.DumpReader;
+import crf.wiki.TokenFeatures;
 
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -90,78 +124,53 @@ public class Tagger
     logger.info("Training on " + training.size() + " instances");
     if (testing != null)
       logger.info("Testing on " + testing.size() + " instances");
+    // Evaluation and Viterbi output after the same iteration share one decoding.
+    DecodeCache decodes = new DecodeCache(Options.numThreads.value);
+    if (eval instanceof ParallelEvaluator)
+      ((ParallelEvaluator) eval).useCache(decodes);
+    ViterbiOutputWriter viterbiWriter = null;
+    if (Options.viterbiOutputOption.value)
+      viterbiWriter = new ViterbiOutputWriter("", new InstanceList[] {training, testing},
+          new String[] {"training", "testing"}, decodes);
+    // Only the likelihood sees collapsed duplicates; evaluation and Viterbi
+    // output still count every training sentence.
+    InstanceList optimized = Options.collapseDuplicatesOption.value
+      ? InstanceDeduplicator.collapse(training) : training;
     
   	assert(Options.numThreads.value > 0);
-    if (Options.numThreads.value > 1) {
+    if (Options.numThreads.value > 1 && Options.featureInductionOption.value)
+      throw new IllegalArgumentException("Multi-threaded feature induction is not yet supported.");
+    if (Options.numThreads.value > 1 && Options.schedulerOption.value.equals("bucketed")) {
+      CRFTrainerByBucketedLabelLikelihood crft = new CRFTrainerByBucketedLabelLikelihood(crf,Options.numThreads.value);
+      crft.setGaussianPriorVariance(var);
+      crft.setEmissionCacheSize(Options.emissionCacheOption.value);
+      crft.setUseSparseWeights(sparseWeights());
+      crft.setUseSomeUnsupportedTrick(someDenseWeights());
+      trainIterations(crft, optimized, eval, viterbiWriter, iterations);
+      crft.shutdown();
+    }
+    else if (Options.numThreads.value > 1) {
       CRFTrainerByThreadedLabelLikelihood crft = new CRFTrainerByThreadedLabelLikelihood(crf,Options.numThreads.value);
       crft.setGaussianPriorVariance(var);
-      
-      if (Options.weightsOption.value.equals("dense")) {
-        crft.setUseSparseWeights(false);
-        crft.setUseSomeUnsupportedTrick(false);
-      }
-      else if (Options.weightsOption.value.equals("some-dense")) {
-        crft.setUseSparseWeights(true);
-        crft.setUseSomeUnsupportedTrick(true);
-      }
-      else if (Options.weightsOption.value.equals("sparse")) {
-        crft.setUseSparseWeights(true);
-        crft.setUseSomeUnsupportedTrick(false);
-      }
-      else {
-        throw new RuntimeException("Unknown weights option: " + Options.weightsOption.value);
-      }
-      
-      if (Options.featureInductionOption.value) {
-      	throw new IllegalArgumentException("Multi-threaded feature induction is not yet supported.");
-      } else {
-      	boolean converged;
-      	for (int i = 1; i <= iterations; i++) {
-      		converged = crft.train (training, 1);
-      		if (i % 1 == 0 && eval != null) // Change the 1 to higher integer to evaluate less often
-      			eval.evaluate(crft);
-      		if (Options.viterbiOutputOption.value && i % 10 == 0)
-      			new ViterbiWriter("", new InstanceList[] {training, testing}, new String[] {"training", "testing"}).evaluate(crft);
-      		if (converged)
-      			break;
-      	}
-      }
+      crft.setUseSparseWeights(sparseWeights());
+      crft.setUseSomeUnsupportedTrick(someDenseWeights());
+      trainIterations(crft, optimized, eval, viterbiWriter, iterations);
       crft.shutdown();
     }
     else {
       CRFTrainerByLabelLikelihood crft = new CRFTrainerByLabelLikelihood(crf);
       crft.setGaussianPriorVariance(var);
-      
-      if (Options.weightsOption.value.equals("dense")) {
-        crft.setUseSparseWeights(false);
-        crft.setUseSomeUnsupportedTrick(false);
-      }
-      else if (Options.weightsOption.value.equals("some-dense")) {
-        crft.setUseSparseWeights(true);
-        crft.setUseSomeUnsupportedTrick(true);
-      }
-      else if (Options.weightsOption.value.equals("sparse")) {
-        crft.setUseSparseWeights(true);
-        crft.setUseSomeUnsupportedTrick(false);
-      }
-      else {
-        throw new RuntimeException("Unknown weights option: " + Options.weightsOption.value);
-      }
-      
-      if (Options.featureInductionOption.value) {
+      crft.setUseSparseWeights(sparseWeights());
+      crft.setUseSomeUnsupportedTrick(someDenseWeights());
+      if (Options.featureInductionOption.value)
       	 crft.trainWithFeatureInduction(training, null, testing, eval, iterations, 10, 20, 500, 0.5, false, null);
-      } else {
-      	boolean converged;
-      	for (int i = 1; i <= iterations; i++) {
-      		converged = crft.train (training, 1);
-      		if (i % 1 == 0 && eval != null) // Change the 1 to higher integer to evaluate less often
-      			eval.evaluate(crft);
-      		if (Options.viterbiOutputOption.value && i % 10 == 0)
-      			new ViterbiWriter("", new InstanceList[] {training, testing}, new String[] {"training", "testing"}).evaluate(crft);
-      		if (converged)
-      			break;
-      	}
-      }
+      else
+        trainIterations(crft, optimized, eval, viterbiWriter, iterations);
+    }
+    if (viterbiWriter != null)
+    {
+      viterbiWriter.close();
+      logger.info(decodes.report());
     }
     
     
@@ -169,6 +178,44 @@ public class Tagger
     return crf;
   }
 
+  /**
+   * Trains one iteration at a time until <code>crft</code> converges or
+   * <code>iterations</code> are done, evaluating after every iteration and
+   * writing Viterbi output (if <code>viterbiWriter</code> is given) after
+   * every tenth.
+   */
+  private static void trainIterations(TransducerTrainer crft, InstanceList training,
+      TransducerEvaluator eval, ViterbiOutputWriter viterbiWriter, int iterations)
+  {
+    boolean converged;
+    for (int i = 1; i <= iterations; i++) {
+      converged = crft.train (training, 1);
+      if (i % 1 == 0 && eval != null) // Change the 1 to higher integer to evaluate less often
+        eval.evaluate(crft);
+      if (viterbiWriter != null && i % 10 == 0)
+        viterbiWriter.evaluate(crft);
+      if (converged)
+        break;
+    }
+  }
+
+  /** Whether the <code>--weights</code> option asks for sparse transition weights. */
+  private static boolean sparseWeights()
+  {
+    String weights = Options.weightsOption.value;
+    if (weights.equals("dense"))
+      return false;
+    if (weights.equals("some-dense") || weights.equals("sparse"))
+      return true;
+    throw new RuntimeException("Unknown weights option: " + weights);
+  }
+
+  /** Whether the <code>--weights</code> option asks for some dense transition weights. */
+  private static boolean someDenseWeights()
+  {
+    return Options.weightsOption.value.equals("some-dense");
+  }
+
   /**
    * Test a transducer on the given test data, evaluating accuracy
    * with the given evaluator
@@ -208,6 +255,389 @@ public class Tagger
     return answers;
   }
 
+  /**
+   * Like {@link #apply(Transducer, Sequence, int)}, but finds the single
+   * best answer with a {@link ViterbiDecoder} compiled from the model
+   * instead of Mallet's lattice objects.
+   *
+   * @param decoder a decoder compiled from <code>model</code>, owned by the calling thread
+   * @param model the <code>Transducer</code>
+   * @param input the input sequence
+   * @param k the number of answers to return
+   * @return array of the k highest-scoring output sequences
+   */
+  public static Sequence[] apply(ViterbiDecoder decoder, Transducer model, Sequence input, int k)
+  {
+    if (k == 1)
+      return new Sequence[] {decoder.decode(input)};
+    return apply(model, input, k);
+  }
+
+  /**
+   * Produce the k highest-scoring output sequences with an
+   * {@link NBestDecoder}: one Viterbi pass and a lazy search over its
+   * columns, instead of a <code>MaxLatticeDefault</code> with a memo cache.
+   *
+   * @param decoder a decoder compiled from the model, owned by the calling thread
+   * @param input the input sequence
+   * @param k the number of answers to return
+   * @return array of the k highest-scoring output sequences
+   */
+  public static Sequence[] apply(NBestDecoder decoder, Sequence input, int k)
+  {
+    return decoder.decodeSequences(input, k);
+  }
+
+  /**
+   * Apply a transducer to a batch of input sequences on
+   * <code>numThreads</code> threads, producing the k highest-scoring output
+   * sequences of each.
+   *
+   * @param model the <code>Transducer</code>, shared read-only by the threads
+   * @param inputs the input sequences
+   * @param k the number of answers to return per input
+   * @param numThreads the number of decoding threads
+   * @param beam the number of states kept per position in 1-best
+   * decoding, or 0 to decode exactly
+   * @param beamThreshold score margin below the best state beyond which
+   * states are dropped from the beam (<code>Double.POSITIVE_INFINITY</code> for none)
+   * @return the answers of each input, in input order; decoding proceeds
+   * (a bounded number of inputs ahead) as the result is iterated
+   */
+  public static Iterable<Sequence[]> applyAll(final Transducer model, final Iterable<Sequence> inputs,
+      final int k, final int numThreads, final int beam, final double beamThreshold)
+  {
+    return new Iterable<Sequence[]>() {
+      public Iterator<Sequence[]> iterator() {
+        return new ParallelDecoder(model, k, numThreads, beam, beamThreshold)
+            .decode(inputs.iterator());
+      }
+    };
+  }
+
+  /**
+   * Like {@link #applyAll(Transducer, Iterable, int, int, int, double)},
+   * decoding exactly.
+   */
+  public static Iterable<Sequence[]> applyAll(Transducer model, Iterable<Sequence> inputs,
+      int k, int numThreads)
+  {
+    return applyAll(model, inputs, k, numThreads, 0, Double.POSITIVE_INFINITY);
+  }
+
+  /**
+   * Like {@link #applyAll(Transducer, Iterable, int, int, int, double)},
+   * with the threads, beam, emission cache and chunking given by the
+   * <code>--threads</code>, <code>--beam</code>,
+   * <code>--beam-threshold</code>, <code>--emission-cache</code>,
+   * <code>--max-chunk</code> and <code>--overlap</code> options.
+   */
+  public static Iterable<Sequence[]> applyAll(final Transducer model, final Iterable<Sequence> inputs,
+      final int k)
+  {
+    return new Iterable<Sequence[]>() {
+      public Iterator<Sequence[]> iterator() {
+        return newParallelDecoder(model, k).decode(inputs.iterator());
+      }
+    };
+  }
+
+  /**
+   * A decoder with the threads, beam, emission cache and chunking given
+   * by the <code>--threads</code>, <code>--beam</code>,
+   * <code>--beam-threshold</code>, <code>--emission-cache</code>,
+   * <code>--max-chunk</code> and <code>--overlap</code> options.
+   */
+  private static ParallelDecoder newParallelDecoder(Transducer model, int k)
+  {
+    return configure(new ParallelDecoder(model, k, Options.numThreads.value,
+        Options.beamOption.value, Options.beamThresholdOption.value));
+  }
+
+  /** Applies the <code>--emission-cache</code>, <code>--max-chunk</code> and <code>--overlap</code> options. */
+  private static ParallelDecoder configure(ParallelDecoder decoder)
+  {
+    decoder.useEmissionCache(Options.emissionCacheOption.value);
+    decoder.useChunking(Options.maxChunkOption.value, Options.overlapOption.value);
+    return decoder;
+  }
+
+  /**
+   * Serves tagging requests with the <code>--model-file</code> model and
+   * the <code>--model-dir</code> models until the JVM is stopped, applying
+   * the <code>--emission-cache</code> option to each model loaded.
+   */
+  private static void serve() throws Exception
+  {
+    if (Options.modelOption.value == null && Options.modelDirOption.value == null)
+    {
+        Options.commandOptions.printUsage(true);
+      throw new IllegalArgumentException("Missing model file or model directory option");
+    }
+    ModelHolder models = null;
+    if (Options.modelOption.value != null)
+    {
+      models = new ModelHolder(Options.modelOption.value) {
+        @Override
+        protected void prepare(TaggerEngine engine)
+        {
+          useEmissionCache(engine);
+        }
+      };
+      if (Options.watchModelOption.value > 0)
+        models.watch(Options.watchModelOption.value);
+    }
+    ModelRegistry registry = null;
+    if (Options.modelDirOption.value != null)
+      registry = new ModelRegistry(Options.modelDirOption.value, Options.modelBudgetOption.value * 1048576L) {
+        @Override
+        protected void prepare(TaggerEngine engine)
+        {
+          useEmissionCache(engine);
+        }
+      };
+    final TaggingServer server = new TaggingServer(models, registry,
+        new InetSocketAddress(Options.serveAddressOption.value, Options.serveOption.value),
+        Options.numThreads.value, Options.batchSizeOption.value, Options.batchDelayOption.value);
+    server.start();
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      public void run() {
+        server.stop(1);
+      }
+    });
+  }
+
+  private static void useEmissionCache(TaggerEngine engine)
+  {
+    engine.useEmissionCache(Options.emissionCacheOption.value);
+  }
+
+  /**
+   * Apply a CRF to a batch of input sequences on <code>numThreads</code>
+   * threads, producing the highest-scoring output sequence of each with
+   * the posterior probability of every token's label and a confidence for
+   * every labeled segment.
+   *
+   * @param model the <code>CRF</code>, shared read-only by the threads
+   * @param inputs the input sequences
+   * @param defaultLabel the label of tokens outside any segment
+   * @param numThreads the number of decoding threads
+   * @return the answer for each input, in input order
+   */
+  public static Iterable<MarginalDecoder.Result> applyAllMarginals(final CRF model,
+      final Iterable<Sequence> inputs, final String defaultLabel, final int numThreads)
+  {
+    return new Iterable<MarginalDecoder.Result>() {
+      public Iterator<MarginalDecoder.Result> iterator() {
+        return new ParallelDecoder(model, 1, numThreads)
+            .decodeMarginals(inputs.iterator(), defaultLabel);
+      }
+    };
+  }
+
+  /**
+   * Writes each sentence's label, the posterior probability of the label
+   * and the confidence of its segment, and optionally its features.
+   */
+  private static void printMarginals(SentenceStream inputs,
+      Iterator<MarginalDecoder.Result> answers, TagWriter writer) throws IOException
+  {
+    for (int i = 0; ; i++)
+    {
+      SentenceStream.Sentence sentence = inputs.take();
+      if (sentence == null)
+        break;
+      Sequence input = sentence.input;
+      MarginalDecoder.Result result = answers.next();
+      if (result.output.size() != input.size())
+      {
+        logger.info("Failed to decode input sequence " + i + ", answer 0");
+        result = null;
+      }
+      writer.writeMarginals(i, input, result);
+    }
+  }
+
+  /**
+   * Decodes the sentences of <code>inputs</code> with the options'
+   * decoder and writes each answer as soon as it and the sentences before
+   * it are ready.
+   *
+   * @return the number of sentences read
+   */
+  private static int tag(SentenceStream inputs, Pipe p, CRF crf, CompiledCRF compiled)
+    throws IOException
+  {
+    TagWriter writer = TagWriter.open(Options.outputFormatOption.value, Options.outputFileOption.value,
+        compiled != null ? compiled.getOutputAlphabet() : crf.getOutputAlphabet(),
+        Options.includeInputOption.value());
+    if (Options.marginalsOption.value)
+    {
+      if (Options.nBestOption.value != 1)
+      {
+        Options.commandOptions.printUsage(true);
+        throw new IllegalArgumentException("--marginals needs --n-best 1");
+      }
+      ParallelDecoder decoder = compiled != null
+        ? new ParallelDecoder(compiled, 1, Options.numThreads.value,
+            0, Double.POSITIVE_INFINITY)
+        : new ParallelDecoder(crf, 1, Options.numThreads.value);
+      decoder.useEmissionCache(Options.emissionCacheOption.value);
+      CloseableIterator<MarginalDecoder.Result> results =
+        decoder.decodeMarginals(inputs, Options.defaultOption.value);
+      try {
+        printMarginals(inputs, results, writer);
+      } finally {
+        results.close();
+      }
+      writer.close();
+      if (decoder.getEmissionCache() != null)
+        logger.info(decoder.getEmissionCache().report());
+      return inputs.size();
+    }
+    ParallelDecoder decoder = compiled != null
+      ? configure(new ParallelDecoder(compiled, Options.nBestOption.value,
+          Options.numThreads.value, Options.beamOption.value, Options.beamThresholdOption.value))
+      : newParallelDecoder(crf, Options.nBestOption.value);
+    CloseableIterator<Sequence[]> answers = decoder.decode(inputs);
+    try {
+      for (int i = 0; ; i++)
+      {
+        SentenceStream.Sentence sentence = inputs.take();
+        if (sentence == null)
+          break;
+        if (sentence.input == null)
+        {
+          writeSkipped(i, sentence.skipped, p, writer);
+          continue;
+        }
+        Sequence[] outputs = answers.next();
+        int k = outputs.length;
+        boolean error = false;
+        for (int a = 0; a < k; a++) {
+          if (outputs[a].size() != sentence.input.size()) {
+            logger.info("Failed to decode input sequence " + i + ", answer " + a);
+            error = true;
+          }
+        }
+        writer.write(i, sentence.input, error ? null : outputs);
+      }
+    } finally {
+      answers.close();
+    }
+    writer.close();
+    if (decoder.getEmissionCache() != null)
+      logger.info(decoder.getEmissionCache().report());
+    if (decoder.getChunkedDecoder() != null)
+      logger.info(decoder.getChunkedDecoder().report());
+    return inputs.size();
+  }
+
+  /**
+   * Pipes raw sentences one at a time as a decoder pulls them, and
+   * remembers the sentences read but not yet written, in input order,
+   * together with those the sentence filter skipped. Only the sentences a
+   * decoder has read ahead are held.
+   */
+  private static class SentenceStream implements Iterator<Sequence>
+  {
+    /** A sentence to write: decoded (<code>input</code>) or skipped. */
+    static class Sentence
+    {
+      final Sequence input;
+      final Instance skipped;
+
+      Sentence(Sequence input, Instance skipped)
+      {
+        this.input = input;
+        this.skipped = skipped;
+      }
+    }
+
+    private final Iterator<Instance> sentences;
+    private final Pipe pipe;
+    private final SentenceFilter.Selection selection;
+    private final ArrayDeque<Sentence> unwritten = new ArrayDeque<Sentence>();
+    private Sequence next;
+    private int size;
+
+    /**
+     * @param selection the filter <code>sentences</code> comes from, or
+     * <code>null</code>
+     */
+    SentenceStream(Iterator<Instance> sentences, Pipe pipe, SentenceFilter.Selection selection)
+    {
+      this.sentences = sentences;
+      this.pipe = pipe;
+      this.selection = selection;
+    }
+
+    private void takeSkipped()
+    {
+      if (selection == null)
+        return;
+      for (Instance skipped; (skipped = selection.pollSkipped()) != null; size++)
+        unwritten.add(new Sentence(null, skipped));
+    }
+
+    public boolean hasNext()
+    {
+      if (next == null && sentences.hasNext()) {
+        Instance raw = sentences.next();
+        takeSkipped();
+        next = (Sequence) pipe.instanceFrom(raw).getData();
+        unwritten.add(new Sentence(next, null));
+        size++;
+      }
+      takeSkipped();
+      return next != null;
+    }
+
+    public Sequence next()
+    {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      Sequence input = next;
+      next = null;
+      return input;
+    }
+
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    /** The next sentence to write, or <code>null</code> after the last. */
+    Sentence take()
+    {
+      if (unwritten.isEmpty())
+        hasNext();
+      return unwritten.poll();
+    }
+
+    /** Number of sentences read so far. */
+    int size() { return size; }
+  }
+
+  /**
+   * Writes sentence <code>i</code>, which the sentence filter skipped, as
+   * all default labels. It is only featurized if its features are written.
+   */
+  private static void writeSkipped(int i, Instance raw, Pipe p, TagWriter writer)
+    throws IOException
+  {
+    Object data = raw.getData();
+    int n = data instanceof String[][] ? ((String[][]) data).length : ((String) data).split("\n").length;
+    Sequence input;
+    if (Options.includeInputOption.value())
+      input = (Sequence) p.instanceFrom(raw).getData();
+    else
+      input = new ArraySequence<Object>(new Object[n]);
+    Object[] labels = new Object[n];
+    Arrays.fill(labels, Options.defaultOption.value);
+    writer.write(i, input, new Sequence[] { new ArraySequence<Object>(labels) });
+  }
+
   /**
    * Command-line wrapper to train, test, or run a generic crf-based tagger.
    *
@@ -224,11 +654,11 @@ public class Tagger
    *<dt><code>--iterations</code> <em>positive-integer</em></dt>
    *<dd>Number of training iterations. Default is 500.</dd>
    *<dt><code>--test</code> <code>lab</code> or <code>seg=</code><em>start-1</em><code>.</code><em>continue-1</em><code>,</code>...<code>,</code><em>start-n</em><code>.</code><em>continue-n</em></dt>
-   *<dd>Test measuring labeling or segmentation (<em>start-i</em>, <em>continue-i</em>) accuracy. Default is no testing.</dd>
+   *<dd>Test measuring labeling or segmentation (<em>start-i</em>, <em>continue-i</em>) accuracy. Either way, each sentence is decoded once on <code>--threads</code> threads, and token accuracy, per-label precision, recall and F1 and the confusion matrix are logged, with segment precision, recall and F1 for each pair for <code>seg=</code>; see <code>crf.eval.ParallelEvaluator</code>. Default is no testing.</dd>
    *<dt><code>--training-proportion</code> <em>number-between-0-and-1</em></dt>
    *<dd>Fraction of data to use for training in a random split. Default is 0.5.</dd>
    *<dt><code>--model-file</code> <em>filename</em></dt>
-   *<dd>The filename for reading (train/run) or saving (train) the model. Default is null.</dd>
+   *<dd>The filename for reading (train/run) or saving (train) the model. For running, this may also be a quantized model written by <code>crf.model.Quantize</code>, or a binary model written by <code>crf.model.BinaryModel</code>, which is memory-mapped for tagging and imported as a full model for training and testing. Default is null.</dd>
    *<dt><code>--random-seed</code> <em>integer</em></dt>
    *<dd>The random seed for randomly selecting a proportion of the instance list for training Default is 0.</dd>
    *<dt><code>--orders</code> <em>comma-separated-integers</em></dt>
@@ -240,7 +670,7 @@ public class Tagger
    *<dt><code>--default-label</code> <em>string</em></dt>
    *<dd>Label for initial context and uninteresting tokens. Default is <code>O</code>.</dd>
    *<dt><code>--viterbi-output</code> <em>boolean</em></dt>
-   *<dd>Print Viterbi periodically during training. Default is <code>false</code>.</dd>
+   *<dd>Print Viterbi periodically during training: every 10 iterations, the Viterbi path of each training and testing instance is written to <code>training</code><em>N</em><code>.viterbi.gz</code> and <code>testing</code><em>N</em><code>.viterbi.gz</code> in the background. Paths decoded for <code>--test</code> on the same iteration are reused. Default is <code>false</code>.</dd>
    *<dt><code>--fully-connected</code> <em>boolean</em></dt>
    *<dd>Include all allowed transitions, even those not in training data. Default is <code>true</code>.</dd>
    *<dt><code>--weights</code> <em>sparse|some-dense|dense</em></dt>
@@ -250,7 +680,49 @@ public class Tagger
    *<dt><code>--include-input</code> <em>boolean</em></dt>
    *<dd>Whether to include input crf.features when printing decoding output. Default is <code>false</code>.</dd>
    *<dt><code>--threads</code> <em>positive-integer</em></dt>
-   *<dd>Number of threads for crf training. Default is 1.</dd>
+   *<dd>Number of threads for crf training and for tagging. Default is 1.</dd>
+   *<dt><code>--scheduler</code> <em>bucketed|contiguous</em></dt>
+   *<dd>How multi-threaded training splits the instances: length-bucketed work units handed out dynamically, or one contiguous slice per thread. Default is <code>contiguous</code>.</dd>
+   *<dt><code>--collapse-duplicates</code> <em>boolean</em></dt>
+   *<dd>Merge identical labeled training sentences into one instance weighted by its count; the training objective is unchanged and evaluation still counts every sentence. Default is <code>false</code>.</dd>
+   *<dt><code>--beam</code> <em>integer</em></dt>
+   *<dd>Keep only this many best states per position when tagging (approximate 1-best decoding). With <code>--test</code>, also report the accuracy loss and speedup against exact decoding. Default is 0 (exact).</dd>
+   *<dt><code>--beam-threshold</code> <em>number</em></dt>
+   *<dd>With <code>--beam</code>, also drop states scoring more than this below the best state at their position. Default is no threshold.</dd>
+   *<dt><code>--marginals</code> <em>boolean</em></dt>
+   *<dd>After each token's label, print the posterior probability of that label and the confidence of the segment it belongs to (the probability that all of the segment's tokens carry their labels). Decodes exactly, one answer per sentence. Default is <code>false</code>.</dd>
+   *<dt><code>--emission-cache</code> <em>integer</em></dt>
+   *<dd>Remember the weight scores of up to this many distinct tokens (feature vectors), so tokens that recur across sentences are scored once; the hit rate and memory use are logged. In multi-threaded training the cache is emptied every pass. Not used with <code>--beam</code>. Default is 0 (off).</dd>
+   *<dt><code>--max-chunk</code> <em>integer</em></dt>
+   *<dd>Decode sequences longer than this many tokens as overlapping windows of this size, in parallel on the <code>--threads</code> threads, and stitch the window paths where they agree in the overlap; sequences whose windows never agree are decoded whole. Applies to 1-best tagging; with <code>--test</code>, also report agreement with full decoding. Default is 0 (off).</dd>
+   *<dt><code>--overlap</code> <em>integer</em></dt>
+   *<dd>With <code>--max-chunk</code>, the number of tokens shared by adjacent windows; at most half the chunk size. Default is 32.</dd>
+   *<dt><code>--output-format</code> <em>string</em></dt>
+   *<dd>How tagged sentences are written: <code>conll</code>, one line per token with its labels (and features with <code>--include-input</code>) and a blank line after each sentence; <code>json</code>, one JSON object per sentence; or <code>binary</code>, compact label ids (see <code>crf.output.BinaryTagWriter</code>). Default is <code>conll</code>.</dd>
+   *<dt><code>--output-file</code> <em>filename</em></dt>
+   *<dd>Write tagged sentences to this file instead of standard output; a name ending in <code>.gz</code> is gzipped. Default is standard output.</dd>
+   *<dt><code>--wiki-dump</code> <em>boolean</em></dt>
+   *<dd>When tagging, the input data file is a Wikipedia XML dump, optionally <code>.bz2</code> or <code>.gz</code>: its articles are stripped of markup, split into sentences and tokenized on <code>--threads</code> threads, and each token gets the features of <code>crf.wiki.TokenFeatures</code>, which the model must have been trained with. Default is <code>false</code>.</dd>
+   *<dt><code>--filter-file</code> <em>filename</em></dt>
+   *<dd>A sentence filter (see <code>crf.filter.SentenceFilter</code>). With <code>--train</code>, one is trained on the training data after the model and written to this file. When tagging, sentences it predicts have no values are labeled all <code>--default-label</code> without being featurized or decoded, and the number skipped is logged; with <code>--test</code>, the sentences skipped, the values missed and the speedup are also reported. Not used with <code>--marginals</code>. Default is none.</dd>
+   *<dt><code>--filter-recall</code> <em>number-between-0-and-1</em></dt>
+   *<dd>With <code>--train</code> and <code>--filter-file</code>, the fraction of training sentences with values that the filter must keep; its threshold is set to the highest that does. Lower values skip more sentences. Default is 0.99.</dd>
+   *<dt><code>--filter-threshold</code> <em>number</em></dt>
+   *<dd>With <code>--filter-file</code>, skip the sentences the filter gives a probability of having values below this, instead of the trained threshold: lower keeps more sentences, higher skips more. Default is the trained threshold.</dd>
+   *<dt><code>--serve</code> <em>integer</em></dt>
+   *<dd>Instead of tagging files, load the model once and serve tagging requests over HTTP on this port until stopped; see <code>crf.server.TaggingServer</code>. Sentences are decoded on <code>--threads</code> threads. No data files are read. Default is 0, not serving.</dd>
+   *<dt><code>--serve-address</code> <em>string</em></dt>
+   *<dd>With <code>--serve</code>, the address to listen on. Default is localhost.</dd>
+   *<dt><code>--batch-size</code> <em>integer</em></dt>
+   *<dd>With <code>--serve</code>, the most sentences, from one or more requests, decoded together in one micro-batch. Default is 64.</dd>
+   *<dt><code>--batch-delay</code> <em>integer</em></dt>
+   *<dd>With <code>--serve</code>, how many milliseconds a sentence may wait for others to join its micro-batch. Default is 2.</dd>
+   *<dt><code>--watch-model</code> <em>integer</em></dt>
+   *<dd>With <code>--serve</code>, check the model file this many seconds apart and swap in a changed model without stopping; decodes in flight finish on the old model. Default is 0, not watching; <code>POST /reload</code> reloads either way.</dd>
+   *<dt><code>--model-dir</code> <em>filename</em></dt>
+   *<dd>With <code>--serve</code>, also serve the models in this directory by name: <code>POST /tag?model=NAME</code> tags with the file <code>NAME</code>, <code>NAME.bin</code> or <code>NAME.crf</code>, loaded on first use; see <code>crf.server.ModelRegistry</code>. <code>--model-file</code> may then be left out, and every request must name a model. Default is none.</dd>
+   *<dt><code>--model-budget</code> <em>integer</em></dt>
+   *<dd>With <code>--model-dir</code>, how many megabytes, on and off the heap by estimate, the loaded models may take before the least recently used are evicted. Default is 1024.</dd>
    *</dl>
    * Remaining arguments:
    *<ul>
@@ -269,6 +741,11 @@ public class Tagger
     int numEvaluations = 0;
     int iterationsBetweenEvals = 16;
     int restArgs = Options.commandOptions.processOptions(args);
+    if (Options.serveOption.value > 0)
+    {
+      serve();
+      return;
+    }
     if (restArgs == args.length)
     {
         Options.commandOptions.printUsage(true);
@@ -279,11 +756,12 @@ public class Tagger
       trainingFile = new FileReader(new File(args[restArgs]));
       if (Options.testOption.value != null && restArgs < args.length - 1)
         testFile = new FileReader(new File(args[restArgs+1]));
-    } else 
+    } else if (!Options.wikiDumpOption.value)
       testFile = new FileReader(new File(args[restArgs]));
 
     Pipe p = null;
     CRF crf = null;
+    CompiledCRF compiled = null;
     TransducerEvaluator eval = null;
     if (Options.continueTrainingOption.value || !Options.trainOption.value) {
       if (Options.modelOption.value == null)
@@ -291,16 +769,63 @@ public class Tagger
           Options.commandOptions.printUsage(true);
         throw new IllegalArgumentException("Missing model file option");
       }
-      ObjectInputStream s =
-        new ObjectInputStream(new FileInputStream(Options.modelOption.value));
-      crf = (CRF) s.readObject();
-      s.close();
-      p = crf.getInputPipe();
+      File modelFile = Options.modelOption.value;
+      Object model;
+      if (BinaryModel.isBinaryModel(modelFile))
+      {
+        BinaryModel binary = BinaryModel.open(modelFile);
+        model = Options.trainOption.value || Options.testOption.value != null
+          ? binary.toCRF() : binary;
+      }
+      else
+      {
+        ObjectInputStream s =
+          new ObjectInputStream(new FileInputStream(modelFile));
+        model = s.readObject();
+        s.close();
+      }
+      if (model instanceof QuantizedModel)
+      {
+        if (Options.trainOption.value || Options.testOption.value != null)
+        {
+            Options.commandOptions.printUsage(true);
+          throw new IllegalArgumentException(
+              "A quantized model can only tag; training and testing need the full model");
+        }
+        compiled = ((QuantizedModel) model).getModel();
+        p = ((QuantizedModel) model).getInputPipe();
+      }
+      else if (model instanceof BinaryModel)
+      {
+        compiled = ((BinaryModel) model).getModel();
+        p = ((BinaryModel) model).getInputPipe();
+      }
+      else
+      {
+        crf = (CRF) model;
+        p = crf.getInputPipe();
+      }
     }
     else {
       p = new SimpleTaggerSentence2FeatureVectorSequence();
       p.getTargetAlphabet().lookupIndex(Options.defaultOption.value);
     }
+    SentenceFilter filter = null;
+    SentenceFilter.Selection selection = null;
+    Iterator<Instance> toTag = null;
+    DumpReader dump = null;
+    DumpPipeline<Article> pages = null;
+    if (Options.filterOption.value != null && !Options.trainOption.value)
+    {
+      if (Options.marginalsOption.value)
+        logger.info("--marginals decodes every sentence; not using " + Options.filterOption.value);
+      else
+      {
+        filter = SentenceFilter.read(Options.filterOption.value);
+        if (Options.filterThresholdOption.value >= 0)
+          filter.setThreshold(Options.filterThresholdOption.value);
+      }
+    }
 
 
     if (Options.trainOption.value)
@@ -317,9 +842,11 @@ public class Tagger
         if (testFile != null)
         {
           testData = new InstanceList(p);
-          testData.addThruPipe(
-              new LineGroupIterator(testFile,
-                Pattern.compile("^\\s*$"), true));
+          Iterator<Instance> sentences = new LineGroupIterator(testFile,
+              Pattern.compile("^\\s*$"), true);
+          if (Options.filterOption.value != null)
+            sentences = SentenceFilter.keepInput(sentences);
+          testData.addThruPipe(sentences);
         } else
         {
           Random r = new Random (Options.randomSeedOption.value);
@@ -335,16 +862,27 @@ public class Tagger
     {
       p.setTargetProcessing(true);
       testData = new InstanceList(p);
-      testData.addThruPipe(
-          new LineGroupIterator(testFile,
-            Pattern.compile("^\\s*$"), true));
+      Iterator<Instance> sentences = new LineGroupIterator(testFile,
+          Pattern.compile("^\\s*$"), true);
+      if (filter != null)
+        sentences = SentenceFilter.keepInput(sentences);
+      testData.addThruPipe(sentences);
     } else
     {
+      // Sentences to tag are read, piped and decoded as the output is
+      // written, so memory does not grow with the input.
       p.setTargetProcessing(false);
-      testData = new InstanceList(p);
-      testData.addThruPipe(
-          new LineGroupIterator(testFile,
-            Pattern.compile("^\\s*$"), true));
+      if (Options.wikiDumpOption.value)
+      {
+        dump = DumpReader.open(new File(args[restArgs]));
+        pages = new DumpPipeline<Article>(dump,
+            new ArticleSentences(new TokenFeatures(), 256), Options.numThreads.value);
+        toTag = Article.instances(pages);
+      }
+      else
+        toTag = new LineGroupIterator(testFile, Pattern.compile("^\\s*$"), true);
+      if (filter != null)
+        toTag = selection = new SentenceFilter.Selection(filter, toTag, false);
     }
     logger.info ("Number of predicates: "+p.getDataAlphabet().size());
     
@@ -352,7 +890,8 @@ public class Tagger
     if (Options.testOption.value != null)
     {
       if (Options.testOption.value.startsWith("lab"))
-        eval = new TokenAccuracyEvaluator(new InstanceList[] {trainingData, testData}, new String[] {"Training", "Testing"});
+        eval = new ParallelEvaluator(new InstanceList[] {trainingData, testData}, new String[] {"Training", "Testing"},
+            new String[0], new String[0], Options.numThreads.value);
       else if (Options.testOption.value.startsWith("seg="))
       {
         String[] pairs = Options.testOption.value.substring(4).split(",");
@@ -378,8 +917,8 @@ public class Tagger
           startTags[i] = pair[0];
           continueTags[i] = pair[1];
         }
-        eval = new MultiSegmentationEvaluator(new InstanceList[] {trainingData, testData}, new String[] {"Training", "Testing"},
-        		startTags, continueTags);
+        eval = new ParallelEvaluator(new InstanceList[] {trainingData, testData}, new String[] {"Training", "Testing"},
+            startTags, continueTags, Options.numThreads.value);
       }
       else
       {
@@ -413,10 +952,19 @@ public class Tagger
         s.writeObject(crf);
         s.close();
       }
+      if (Options.filterOption.value != null)
+      {
+        filter = SentenceFilter.train(trainingData, Options.defaultOption.value,
+            Options.filterRecallOption.value, 5, Options.randomSeedOption.value);
+        filter.write(Options.filterOption.value);
+        if (eval != null && testData != null)
+          test(new NoopTransducerTrainer(crf), new FilterEvaluator(testData, "Testing",
+              filter, Options.defaultOption.value), testData);
+      }
     }
     else
     {
-      if (crf == null)
+      if (crf == null && compiled == null)
       {
         if (Options.modelOption.value == null)
         {
@@ -428,38 +976,35 @@ public class Tagger
         crf = (CRF) s.readObject();
         s.close();
       }
-      if (eval != null)
+      if (eval != null) {
         test(new NoopTransducerTrainer(crf), eval, testData);
+        if (Options.beamOption.value > 0)
+          test(new NoopTransducerTrainer(crf), new BeamEvaluator(testData, "Testing",
+              Options.beamOption.value, Options.beamThresholdOption.value), testData);
+        if (Options.maxChunkOption.value > 0)
+          test(new NoopTransducerTrainer(crf), new ChunkEvaluator(testData, "Testing",
+              Options.maxChunkOption.value, Options.overlapOption.value,
+              Options.numThreads.value), testData);
+        if (filter != null)
+          test(new NoopTransducerTrainer(crf), new FilterEvaluator(testData, "Testing",
+              filter, Options.defaultOption.value), testData);
+      }
       else
       {
-        boolean includeInput = Options.includeInputOption.value();
-        for (int i = 0; i < testData.size(); i++)
-        {
-          Sequence input = (Sequence)testData.get(i).getData();
-          Sequence[] outputs = apply(crf, input, Options.nBestOption.value);
-          int k = outputs.length;
-          boolean error = false;
-          for (int a = 0; a < k; a++) {
-            if (outputs[a].size() != input.size()) {
-              logger.info("Failed to decode input sequence " + i + ", answer " + a);
-              error = true;
-            }
-          }
-          if (!error) {
-            for (int j = 0; j < input.size(); j++)
-            {
-               StringBuffer buf = new StringBuffer();
-              for (int a = 0; a < k; a++)
-                 buf.append(outputs[a].get(j).toString()).append(" ");
-              if (includeInput) {
-                FeatureVector fv = (FeatureVector)input.get(j);
-                buf.append(fv.toString(true));                
-              }
-              System.out.println(buf.toString());
-            }
-            System.out.println();
-          }
+        int numSentences;
+        try {
+          numSentences = tag(new SentenceStream(toTag, p, selection), p, crf, compiled);
+        } finally {
+          if (pages != null)
+            pages.close();
+          if (dump != null)
+            dump.close();
         }
+        if (dump != null)
+          logger.info("Read " + numSentences + " sentences from " + dump.pagesRead() + " pages");
+        if (selection != null)
+          logger.info("Sentence filter skipped " + selection.numSkipped() + " of "
+              + selection.size() + " sentences");
       }
     }
   }
@@ -0,0 +1,144 @@
+package crf;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.pipe.Pipe;
+import cc.mallet.types.Instance;
+import cc.mallet.types.Sequence;
+import crf.decode.CompiledCRF;
+import crf.decode.ViterbiDecoder;
+import crf.lattice.EmissionCache;
+import crf.model.BinaryModel;
+import crf.model.QuantizedModel;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+
+/**
+ * Thread-safe tagger over one loaded model, for serving: any number of
+ * threads may call {@link #tag} at once, sharing a single copy of the
+ * weights and alphabets.
+ * <p>
+ * The engine freezes the model's pipe when it is built: alphabet growth
+ * is stopped, so unknown tokens are ignored instead of added, and target
+ * processing is turned off, so input lines hold features only. Neither
+ * should be changed afterwards. Decoding is exact Viterbi on a
+ * {@link CompiledCRF}; each thread gets its own decoder scratch on first
+ * use.
+ */
+public class TaggerEngine
+{
+  private final Pipe pipe;
+  private final CompiledCRF model;
+  private final ThreadLocal<ViterbiDecoder> decoders;
+  private volatile EmissionCache emissionCache;
+
+  public TaggerEngine(CRF crf)
+  {
+    this(crf.getInputPipe(), new CompiledCRF(crf));
+  }
+
+  /**
+   * @param pipe the input pipe <code>model</code> was trained with
+   */
+  public TaggerEngine(Pipe pipe, final CompiledCRF model)
+  {
+    this.pipe = pipe;
+    this.model = model;
+    if (pipe.getDataAlphabet() != null)
+      pipe.getDataAlphabet().stopGrowth();
+    if (pipe.getTargetAlphabet() != null)
+      pipe.getTargetAlphabet().stopGrowth();
+    pipe.setTargetProcessing(false);
+    decoders = new ThreadLocal<ViterbiDecoder>() {
+      protected ViterbiDecoder initialValue() {
+        ViterbiDecoder decoder = model.newViterbiDecoder();
+        decoder.setEmissionCache(emissionCache);
+        return decoder;
+      }
+    };
+  }
+
+  /**
+   * An engine over the model in <code>file</code>: a serialized
+   * {@link CRF}, a {@link QuantizedModel} or a {@link BinaryModel}, which
+   * is memory-mapped.
+   */
+  public static TaggerEngine load(File file) throws IOException, ClassNotFoundException
+  {
+    if (BinaryModel.isBinaryModel(file)) {
+      BinaryModel binary = BinaryModel.open(file);
+      return new TaggerEngine(binary.getInputPipe(), binary.getModel());
+    }
+    ObjectInputStream s = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+    Object model;
+    try {
+      model = s.readObject();
+    } finally {
+      s.close();
+    }
+    if (model instanceof QuantizedModel)
+      return new TaggerEngine(((QuantizedModel) model).getInputPipe(), ((QuantizedModel) model).getModel());
+    return new TaggerEngine((CRF) model);
+  }
+
+  public Pipe getPipe() { return pipe; }
+
+  public CompiledCRF getModel() { return model; }
+
+  /**
+   * Shares a cache of up to <code>capacity</code> tokens' weight-set
+   * scores between the threads tagging with this engine; 0 turns caching
+   * off. The model is not modified. Call before tagging.
+   *
+   * @return the cache, for its metrics, or <code>null</code> if off
+   */
+  public EmissionCache useEmissionCache(int capacity)
+  {
+    emissionCache = capacity > 0 ? new EmissionCache(capacity, model.numWeights()) : null;
+    return emissionCache;
+  }
+
+  /** The cache set by {@link #useEmissionCache}, or <code>null</code>. */
+  public EmissionCache getEmissionCache() { return emissionCache; }
+
+  /**
+   * Tags a sentence in the format read by {@link Tagger}, without labels:
+   * one token per line, its features separated by spaces.
+   *
+   * @return one label per token, or <code>null</code> if the model admits
+   * no labeling of the sentence
+   */
+  public String[] tag(String sentence)
+  {
+    return decode(sentence);
+  }
+
+  /**
+   * Tags a tokenized sentence: <code>tokens[t]</code> holds the features of
+   * token <code>t</code>.
+   *
+   * @return one label per token, or <code>null</code> if the model admits
+   * no labeling of the sentence
+   */
+  public String[] tag(String[][] tokens)
+  {
+    if (tokens.length == 0)
+      return new String[0];
+    return decode(tokens);
+  }
+
+  private String[] decode(Object data)
+  {
+    Sequence input = (Sequence) pipe.instanceFrom(new Instance(data, null, null, null)).getData();
+    int[] path = new int[input.size()];
+    if (!decoders.get().decode(input, path))
+      return null;
+    String[] labels = new String[path.length];
+    for (int t = 0; t < path.length; t++)
+      labels[t] = model.labelName(path[t]);
+    return labels;
+  }
+}
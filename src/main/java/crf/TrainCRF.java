@@ -2,8 +2,6 @@ package crf;
 
 import cc.mallet.fst.CRF;
 import cc.mallet.fst.CRFTrainerByLabelLikelihood;
-import cc.mallet.fst.PerClassAccuracyEvaluator;
-import cc.mallet.fst.TokenAccuracyEvaluator;
 import cc.mallet.pipe.Pipe;
 import cc.mallet.pipe.SerialPipes;
 import cc.mallet.pipe.SimpleTaggerSentence2TokenSequence;
@@ -14,6 +12,7 @@ import cc.mallet.pipe.tsf.RegexMatches;
 import cc.mallet.pipe.tsf.TokenFirstPosition;
 import cc.mallet.pipe.tsf.TokenTextCharSuffix;
 import cc.mallet.types.InstanceList;
+import crf.eval.ParallelEvaluator;
 
 import java.io.BufferedReader;
 import java.io.FileInputStream;
@@ -69,9 +68,9 @@ public class TrainCRF {
         //CRFTrainerByL1LabelLikelihood trainer =
         //	new CRFTrainerByL1LabelLikelihood(crf, 0.75);
 
-        //trainer.addEvaluator(new PerClassAccuracyEvaluator(trainingInstances, "training"));
-        trainer.addEvaluator(new PerClassAccuracyEvaluator(testingInstances, "testing"));
-        trainer.addEvaluator(new TokenAccuracyEvaluator(testingInstances, "testing"));
+        // Per-class and token accuracy from one decoding of the testing instances.
+        trainer.addEvaluator(new ParallelEvaluator(testingInstances, "testing",
+                Runtime.getRuntime().availableProcessors()));
         trainer.train(trainingInstances);
 
     }
@@ -0,0 +1,142 @@
+package crf.decode;
+
+import cc.mallet.fst.Transducer;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Sequence;
+
+import java.util.Arrays;
+
+/**
+ * Approximate Viterbi decoding that keeps only the best states at each
+ * position.
+ * <p>
+ * After each position the surviving states are cut to the
+ * <code>width</code> highest-scoring ones, and, if a threshold is given,
+ * to those within <code>threshold</code> of the best. The next column is
+ * then built by pushing along the outgoing transitions of the survivors
+ * only, and only the weight sets those transitions use are scored, so
+ * the cost per token is proportional to the beam width times the
+ * out-degree instead of to all transitions and weight sets. Surviving sources are
+ * visited in state order and ties keep the first candidate, so with a
+ * beam at least as wide as the state space the result is that of
+ * {@link ViterbiDecoder}.
+ */
+public class BeamDecoder extends ViterbiDecoder
+{
+  private final int width;
+  private final double threshold;
+  private final int[] active;
+  private final int[] touched;
+  private final boolean[] isTouched;
+  private final double[] cutoffScratch;
+  private final TokenScorer scorer;
+
+  /**
+   * @param width maximum number of states kept per position
+   * @param threshold states scoring more than this below the best state
+   * at their position are dropped; <code>Double.POSITIVE_INFINITY</code>
+   * disables the threshold
+   */
+  BeamDecoder(CompiledCRF model, int width, double threshold)
+  {
+    super(model);
+    if (width < 1)
+      throw new IllegalArgumentException("Beam width must be positive: " + width);
+    this.width = width;
+    this.threshold = threshold;
+    this.active = new int[numStates];
+    this.touched = new int[numStates];
+    this.isTouched = new boolean[numStates];
+    this.cutoffScratch = new double[numStates];
+    this.scorer = new TokenScorer(model);
+  }
+
+  public int getWidth() { return width; }
+
+  public double getThreshold() { return threshold; }
+
+  @Override
+  public boolean decode(Sequence input, int[] labels)
+  {
+    int length = input.size();
+    ensureCapacity(length);
+    int numActive = 0;
+    for (int s = 0; s < numStates; s++) {
+      delta[s] = model.initialWeight(s);
+      if (delta[s] != Transducer.IMPOSSIBLE_WEIGHT)
+        active[numActive++] = s;
+    }
+    numActive = prune(delta, active, numActive, width, threshold, cutoffScratch);
+    Arrays.fill(next, Transducer.IMPOSSIBLE_WEIGHT);
+    for (int t = 0; t < length; t++) {
+      scorer.setToken((FeatureVector) input.get(t));
+      int bp = t * numStates;
+      int numTouched = 0;
+      for (int a = 0; a < numActive; a++) {
+        int s = active[a];
+        double from = delta[s];
+        for (int o = model.outgoingStart(s); o < model.outgoingStart(s + 1); o++) {
+          int tr = model.outgoing(o);
+          int d = model.destination(tr);
+          double w = from + scorer.transitionScore(tr);
+          if (!isTouched[d]) {
+            isTouched[d] = true;
+            touched[numTouched++] = d;
+          }
+          if (w > next[d]) {
+            next[d] = w;
+            backpointers[bp + d] = tr;
+          }
+        }
+      }
+      for (int a = 0; a < numActive; a++)
+        delta[active[a]] = Transducer.IMPOSSIBLE_WEIGHT;
+      numActive = 0;
+      for (int i = 0; i < numTouched; i++) {
+        int d = touched[i];
+        isTouched[d] = false;
+        if (next[d] != Transducer.IMPOSSIBLE_WEIGHT)
+          active[numActive++] = d;
+      }
+      Arrays.sort(active, 0, numActive);
+      numActive = prune(next, active, numActive, width, threshold, cutoffScratch);
+      double[] swap = delta;
+      delta = next;
+      next = swap;
+    }
+    return backtrace(length, labels);
+  }
+
+  /**
+   * Cuts <code>states[0..n)</code> (sorted by index) down to the
+   * <code>width</code> best within <code>threshold</code> of the best,
+   * resetting the scores of the dropped states to impossible.
+   *
+   * @param scratch room for <code>n</code> scores
+   * @return the number of states kept, still sorted by index
+   */
+  static int prune(double[] scores, int[] states, int n, int width, double threshold, double[] scratch)
+  {
+    if (n == 0)
+      return 0;
+    double best = Transducer.IMPOSSIBLE_WEIGHT;
+    for (int i = 0; i < n; i++)
+      best = Math.max(best, scores[states[i]]);
+    double cutoff = best - threshold;
+    if (n > width) {
+      for (int i = 0; i < n; i++)
+        scratch[i] = scores[states[i]];
+      Arrays.sort(scratch, 0, n);
+      cutoff = Math.max(cutoff, scratch[n - width]);
+    }
+    int kept = 0;
+    for (int i = 0; i < n; i++) {
+      int s = states[i];
+      if (scores[s] >= cutoff && kept < width)
+        states[kept++] = s;
+      else
+        scores[s] = Transducer.IMPOSSIBLE_WEIGHT;
+    }
+    return kept;
+  }
+}
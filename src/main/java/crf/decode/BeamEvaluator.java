@@ -0,0 +1,100 @@
+package crf.decode;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.TransducerEvaluator;
+import cc.mallet.fst.TransducerTrainer;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import cc.mallet.util.MalletLogger;
+
+import java.util.logging.Logger;
+
+/**
+ * Measures what a beam costs in accuracy and buys in speed: decodes each
+ * instance list with exact Viterbi and with a {@link BeamDecoder}, and
+ * logs the token accuracy of both, the accuracy loss, the fraction of
+ * tokens on which they agree and the decoding speedup.
+ */
+public class BeamEvaluator extends TransducerEvaluator
+{
+  private static Logger logger =
+    MalletLogger.getLogger(BeamEvaluator.class.getName());
+
+  private final int width;
+  private final double threshold;
+
+  public BeamEvaluator(InstanceList[] instanceLists, String[] descriptions,
+      int width, double threshold)
+  {
+    super(instanceLists, descriptions);
+    this.width = width;
+    this.threshold = threshold;
+  }
+
+  public BeamEvaluator(InstanceList instanceList, String description,
+      int width, double threshold)
+  {
+    this(new InstanceList[] {instanceList}, new String[] {description}, width, threshold);
+  }
+
+  @Override
+  public void evaluateInstanceList(TransducerTrainer tt, InstanceList data, String description)
+  {
+    if (!(tt.getTransducer() instanceof CRF)) {
+      logger.warning("Beam evaluation needs a CRF; skipping " + description);
+      return;
+    }
+    CompiledCRF model = new CompiledCRF((CRF) tt.getTransducer());
+    ViterbiDecoder exact = model.newViterbiDecoder();
+    BeamDecoder beam = model.newBeamDecoder(width, threshold);
+
+    int[][] exactLabels = new int[data.size()][];
+    int[][] beamLabels = new int[data.size()][];
+    // Warm both decoders up on a prefix so the timings compare compiled code.
+    int warmup = Math.min(data.size(), 200);
+    decodeAll(exact, data, exactLabels, warmup);
+    decodeAll(beam, data, beamLabels, warmup);
+    long exactTime = decodeAll(exact, data, exactLabels, data.size());
+    long beamTime = decodeAll(beam, data, beamLabels, data.size());
+
+    long tokens = 0, exactCorrect = 0, beamCorrect = 0, agree = 0;
+    for (int i = 0; i < data.size(); i++) {
+      Sequence target = (Sequence) data.get(i).getTarget();
+      for (int t = 0; t < target.size(); t++) {
+        String gold = target.get(t).toString();
+        String e = exactLabels[i] == null ? null : model.labelName(exactLabels[i][t]);
+        String b = beamLabels[i] == null ? null : model.labelName(beamLabels[i][t]);
+        tokens++;
+        if (gold.equals(e))
+          exactCorrect++;
+        if (gold.equals(b))
+          beamCorrect++;
+        if (e != null && e.equals(b))
+          agree++;
+      }
+    }
+    double exactAccuracy = exactCorrect / (double) Math.max(1, tokens);
+    double beamAccuracy = beamCorrect / (double) Math.max(1, tokens);
+    logger.info(String.format(
+        "%s beam %d%s: accuracy %.4f (exact %.4f, loss %.4f), %.2f%% of tokens agree, speedup %.2fx",
+        description, width,
+        threshold == Double.POSITIVE_INFINITY ? "" : " threshold " + threshold,
+        beamAccuracy, exactAccuracy, exactAccuracy - beamAccuracy,
+        100.0 * agree / Math.max(1, tokens), exactTime / (double) Math.max(1, beamTime)));
+  }
+
+  /** @return nanoseconds spent decoding; failed sequences get <code>null</code> labels */
+  private static long decodeAll(ViterbiDecoder decoder, InstanceList data, int[][] labels, int n)
+  {
+    long start = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      Instance instance = data.get(i);
+      Sequence input = (Sequence) instance.getData();
+      labels[i] = new int[input.size()];
+      if (!decoder.decode(input, labels[i]))
+        labels[i] = null;
+    }
+    return System.nanoTime() - start;
+  }
+}
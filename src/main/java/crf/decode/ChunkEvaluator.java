@@ -0,0 +1,77 @@
+package crf.decode;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.TransducerEvaluator;
+import cc.mallet.fst.TransducerTrainer;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import cc.mallet.util.MalletLogger;
+
+import java.util.logging.Logger;
+
+/**
+ * Checks that chunked decoding matches full decoding: decodes each
+ * instance list with exact Viterbi and with a {@link ChunkedDecoder}, and
+ * logs the token accuracy of both, the fraction of tokens on which they
+ * agree and how many sequences were chunked or fell back to exact
+ * decoding.
+ */
+public class ChunkEvaluator extends TransducerEvaluator
+{
+  private static Logger logger =
+    MalletLogger.getLogger(ChunkEvaluator.class.getName());
+
+  private final int maxChunk;
+  private final int overlap;
+  private final int numThreads;
+
+  public ChunkEvaluator(InstanceList[] instanceLists, String[] descriptions,
+      int maxChunk, int overlap, int numThreads)
+  {
+    super(instanceLists, descriptions);
+    this.maxChunk = maxChunk;
+    this.overlap = overlap;
+    this.numThreads = numThreads;
+  }
+
+  public ChunkEvaluator(InstanceList instanceList, String description,
+      int maxChunk, int overlap, int numThreads)
+  {
+    this(new InstanceList[] {instanceList}, new String[] {description}, maxChunk, overlap, numThreads);
+  }
+
+  @Override
+  public void evaluateInstanceList(TransducerTrainer tt, InstanceList data, String description)
+  {
+    if (!(tt.getTransducer() instanceof CRF)) {
+      logger.warning("Chunk evaluation needs a CRF; skipping " + description);
+      return;
+    }
+    CompiledCRF model = new CompiledCRF((CRF) tt.getTransducer());
+    ViterbiDecoder exact = model.newViterbiDecoder();
+    ChunkedDecoder chunked = new ChunkedDecoder(model, maxChunk, overlap, numThreads);
+
+    long tokens = 0, exactCorrect = 0, chunkedCorrect = 0, agree = 0;
+    for (int i = 0; i < data.size(); i++) {
+      Sequence input = (Sequence) data.get(i).getData();
+      Sequence target = (Sequence) data.get(i).getTarget();
+      int[] e = new int[input.size()], c = new int[input.size()];
+      boolean exactFound = exact.decode(input, e);
+      boolean chunkedFound = chunked.decode(input, c);
+      for (int t = 0; t < target.size(); t++) {
+        String gold = target.get(t).toString();
+        tokens++;
+        if (exactFound && gold.equals(model.labelName(e[t])))
+          exactCorrect++;
+        if (chunkedFound && gold.equals(model.labelName(c[t])))
+          chunkedCorrect++;
+        if (exactFound && chunkedFound && e[t] == c[t])
+          agree++;
+      }
+    }
+    logger.info(String.format("%s chunked accuracy %.4f (exact %.4f), %.2f%% of tokens agree",
+        description, chunkedCorrect / (double) Math.max(1, tokens),
+        exactCorrect / (double) Math.max(1, tokens), 100.0 * agree / Math.max(1, tokens)));
+    logger.info(chunked.report());
+  }
+}
@@ -0,0 +1,219 @@
+package crf.decode;
+
+import cc.mallet.types.ArraySequence;
+import cc.mallet.types.Sequence;
+import crf.lattice.EmissionCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 1-best decoding of very long sequences (list and table "sentences"
+ * thousands of tokens long) in bounded memory and on several threads.
+ * <p>
+ * A sequence longer than <code>maxChunk</code> tokens is cut into windows
+ * of <code>maxChunk</code> tokens, each overlapping the next by
+ * <code>overlap</code> tokens, and the windows are decoded independently
+ * and concurrently. Adjacent windows are stitched at the position of
+ * their overlap nearest its middle where both paths are in the same
+ * state: the earlier window's path up to there, the later one's after.
+ * Away from its edges a window's path is almost always the full Viterbi
+ * path, so with a reasonable overlap the stitched path is too. If the
+ * paths share no state anywhere in some overlap, the whole sequence is
+ * decoded exactly instead and counted in {@link #report()}.
+ * <p>
+ * Backpointer memory per thread is bounded by <code>maxChunk</code>
+ * positions, except on fallback. Instances are thread-safe; windows are
+ * decoded on a small pool whose threads exit when idle, and the calling
+ * thread decodes the first window itself.
+ */
+public class ChunkedDecoder
+{
+  private final CompiledCRF model;
+  private final int maxChunk;
+  private final int overlap;
+  private final ThreadLocal<ViterbiDecoder> decoders;
+  private final ThreadPoolExecutor executor;
+  private final AtomicLong sequences = new AtomicLong();
+  private final AtomicLong chunked = new AtomicLong();
+  private final AtomicLong windows = new AtomicLong();
+  private final AtomicLong fallbacks = new AtomicLong();
+  private volatile EmissionCache cache;
+
+  /**
+   * @param maxChunk longest sequence decoded in one piece, and the window size
+   * @param overlap tokens shared by adjacent windows; at least 1 and at
+   * most <code>maxChunk / 2</code>
+   * @param numThreads threads decoding the windows of one sequence; 1
+   * decodes them one after another on the calling thread
+   */
+  public ChunkedDecoder(final CompiledCRF model, int maxChunk, int overlap, int numThreads)
+  {
+    if (overlap < 1 || 2 * overlap > maxChunk)
+      throw new IllegalArgumentException("Overlap must be between 1 and half the chunk size, not "
+          + overlap + " of " + maxChunk);
+    if (numThreads < 1)
+      throw new IllegalArgumentException("numThreads must be positive");
+    this.model = model;
+    this.maxChunk = maxChunk;
+    this.overlap = overlap;
+    this.decoders = new ThreadLocal<ViterbiDecoder>() {
+      protected ViterbiDecoder initialValue() {
+        ViterbiDecoder decoder = model.newViterbiDecoder();
+        decoder.setEmissionCache(cache);
+        return decoder;
+      }
+    };
+    if (numThreads == 1)
+      executor = null;
+    else {
+      executor = new ThreadPoolExecutor(numThreads, numThreads, 1, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "crf-chunk-" + count.getAndIncrement());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      executor.allowCoreThreadTimeOut(true);
+    }
+  }
+
+  public CompiledCRF getModel() { return model; }
+
+  /**
+   * Scores the windows through <code>cache</code>, see
+   * {@link ViterbiDecoder#setEmissionCache}. Call before decoding.
+   */
+  public void setEmissionCache(EmissionCache cache) { this.cache = cache; }
+
+  /**
+   * Finds the best label sequence for <code>input</code>, in windows if
+   * it is longer than the chunk size.
+   *
+   * @see ViterbiDecoder#decode(Sequence, int[])
+   */
+  public boolean decode(Sequence input, int[] labels)
+  {
+    sequences.incrementAndGet();
+    int length = input.size();
+    if (length <= maxChunk)
+      return decoders.get().decode(input, labels);
+    chunked.incrementAndGet();
+
+    int stride = maxChunk - overlap;
+    int numWindows = (length - overlap + stride - 1) / stride;
+    windows.addAndGet(numWindows);
+    int[][] paths = decodeWindows(input, numWindows, stride);
+
+    int[] transitions = paths[0];
+    int[] path = new int[length];
+    if (transitions != null)
+      System.arraycopy(transitions, 0, path, 0, transitions.length);
+    for (int i = 1; i < numWindows && transitions != null; i++) {
+      int start = i * stride;
+      transitions = paths[i];
+      int at = transitions == null ? -1 : meet(path, transitions, start, start + overlap);
+      if (at < 0)
+        transitions = null;
+      else
+        System.arraycopy(transitions, at + 1 - start, path, at + 1, transitions.length - (at + 1 - start));
+    }
+    if (transitions == null) {
+      fallbacks.incrementAndGet();
+      return decoders.get().decode(input, labels);
+    }
+    for (int t = 0; t < length; t++)
+      labels[t] = model.label(path[t]);
+    return true;
+  }
+
+  /**
+   * Position in <code>[from, to)</code>, nearest the middle, after which
+   * the stitched path so far and the path of the window starting at
+   * <code>from</code> are in the same state; -1 if there is none.
+   */
+  private int meet(int[] path, int[] window, int from, int to)
+  {
+    int middle = (from + to - 1) / 2;
+    for (int d = 0; d <= to - from; d++) {
+      int t = middle - d;
+      if (t >= from && model.destination(path[t]) == model.destination(window[t - from]))
+        return t;
+      t = middle + d + 1;
+      if (t < to && model.destination(path[t]) == model.destination(window[t - from]))
+        return t;
+    }
+    return -1;
+  }
+
+  /** Each window's transitions, or <code>null</code> for windows without a path. */
+  private int[][] decodeWindows(final Sequence input, int numWindows, int stride)
+  {
+    final int[][] paths = new int[numWindows][];
+    List<Future<?>> futures = new ArrayList<Future<?>>(numWindows);
+    for (int i = executor == null ? numWindows : 1; i < numWindows; i++) {
+      final int window = i, from = i * stride, to = Math.min(from + maxChunk, input.size());
+      futures.add(executor.submit(new Callable<Void>() {
+        public Void call() {
+          paths[window] = decodeWindow(input, from, to);
+          return null;
+        }
+      }));
+    }
+    paths[0] = decodeWindow(input, 0, maxChunk);
+    if (executor == null)
+      for (int i = 1; i < numWindows; i++)
+        paths[i] = decodeWindow(input, i * stride, Math.min(i * stride + maxChunk, input.size()));
+    try {
+      for (Future<?> future : futures)
+        future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+    return paths;
+  }
+
+  private int[] decodeWindow(Sequence input, int from, int to)
+  {
+    int[] transitions = new int[to - from];
+    return decoders.get().decodeWindow(input, from, to, transitions) ? transitions : null;
+  }
+
+  /**
+   * Finds the best output sequence for <code>input</code>, as
+   * {@link ViterbiDecoder#decode(Sequence)} does.
+   */
+  public Sequence decode(Sequence input)
+  {
+    int[] labels = new int[input.size()];
+    if (!decode(input, labels))
+      return new ArraySequence<String>(new String[0]);
+    String[] output = new String[labels.length];
+    for (int t = 0; t < labels.length; t++)
+      output[t] = model.labelName(labels[t]);
+    return new ArraySequence<String>(output);
+  }
+
+  /** Number of sequences decoded in windows, and how often stitching failed. */
+  public String report()
+  {
+    return String.format("Chunked decoding: %d of %d sequences longer than %d tokens, %d windows (overlap %d), %d exact fallbacks",
+        chunked.get(), sequences.get(), maxChunk, windows.get(), overlap, fallbacks.get());
+  }
+
+  public long fallbacks() { return fallbacks.get(); }
+}
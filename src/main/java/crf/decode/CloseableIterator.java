@@ -0,0 +1,14 @@
+package crf.decode;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * An iterator whose producer holds threads. Iterating to the end releases
+ * them; a consumer that stops early calls {@link #close()} instead.
+ */
+public interface CloseableIterator<T> extends Iterator<T>, Closeable
+{
+  /** Stops producing; elements not yet returned are dropped. */
+  void close();
+}
@@ -0,0 +1,366 @@
+package crf.decode;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.Transducer;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureVector;
+import crf.lattice.EmissionCache;
+import crf.lattice.EmissionKernel;
+import crf.lattice.QuantizedEmissionKernel;
+import crf.lattice.TransitionTable;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Read-only, array-based snapshot of a trained {@link CRF} for decoding.
+ * <p>
+ * The weights of every weight set are laid out densely per feature in an
+ * {@link EmissionKernel}, so scoring a token is a gather over its active
+ * features followed by stride-one adds; models too large or too sparse
+ * for dense rows keep only their stored weights per feature. Transitions are grouped by destination
+ * state for pull-style Viterbi, and states that cannot lie on a complete
+ * path (unreachable from an initial state, or unable to reach a final
+ * state) are dropped together with their transitions.
+ * <p>
+ * Scores are summed in the same order as Mallet's
+ * <code>CRF.TransitionIterator</code>, so decoders built on this class
+ * reproduce <code>Transducer.transduce</code>. Instances are
+ * immutable and may be shared by any number of threads; the per-thread
+ * scratch lives in the decoders. They are serializable, so a compiled (and
+ * possibly {@link #quantize}d) model can be stored without its source CRF.
+ */
+public class CompiledCRF implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  private final Alphabet inputAlphabet;
+  private final Alphabet outputAlphabet;
+
+  private final EmissionKernel kernel;
+  private final int numWeights;
+  private final double[] defaultWeights;
+
+  private final int numStates;
+  private final String[] stateNames;
+  private final double[] initialWeights;
+  private final double[] finalWeights;
+
+  private final int[] incomingStart;
+  private final int[] source;
+  private final int[] destination;
+  private final int[] outgoingStart;
+  private final int[] outgoing;
+  private final int[] label;
+  private final int[] weightsStart;
+  private final int[] weightsIndex;
+  private final String[] labelNames;
+
+  public CompiledCRF(CRF crf)
+  {
+    inputAlphabet = crf.getInputAlphabet();
+    outputAlphabet = crf.getOutputAlphabet();
+    TransitionTable table = new TransitionTable(crf);
+    CRF.Factors parameters = crf.getParameters();
+
+    // Emission rows, one per feature that has a nonzero weight somewhere.
+    numWeights = table.numWeights();
+    kernel = EmissionKernel.create(parameters, inputAlphabet.size(), false);
+    defaultWeights = parameters.defaultWeights.clone();
+
+    // Keep only states on some initial-to-final path.
+    int allStates = table.numStates();
+    double[] init = new double[allStates], fin = new double[allStates];
+    for (int s = 0; s < allStates; s++) {
+      init[s] = crf.getState(s).getInitialWeight();
+      fin[s] = crf.getState(s).getFinalWeight();
+    }
+    boolean[] live = liveStates(table, init, fin);
+    int[] newIndex = new int[allStates];
+    int n = 0;
+    for (int s = 0; s < allStates; s++)
+      newIndex[s] = live[s] ? n++ : -1;
+    numStates = n;
+    stateNames = new String[n];
+    initialWeights = new double[n];
+    finalWeights = new double[n];
+    for (int s = 0; s < allStates; s++)
+      if (live[s]) {
+        stateNames[newIndex[s]] = table.stateName(s);
+        initialWeights[newIndex[s]] = init[s];
+        finalWeights[newIndex[s]] = fin[s];
+      }
+
+    // Incoming transitions per destination, ordered by source then by the
+    // source's own transition order (Mallet's tie-breaking order).
+    incomingStart = new int[n + 1];
+    int numTransitions = 0, numRefs = 0;
+    for (int s = 0; s < allStates; s++)
+      for (int tr = table.transitionStart(s); tr < table.transitionStart(s + 1); tr++)
+        if (keep(table, live, s, tr)) {
+          incomingStart[newIndex[table.destination(tr)] + 1]++;
+          numTransitions++;
+          numRefs += table.weightsStart(tr + 1) - table.weightsStart(tr);
+        }
+    for (int d = 0; d < n; d++)
+      incomingStart[d + 1] += incomingStart[d];
+    source = new int[numTransitions];
+    destination = new int[numTransitions];
+    outgoingStart = new int[n + 1];
+    outgoing = new int[numTransitions];
+    label = new int[numTransitions];
+    weightsStart = new int[numTransitions + 1];
+    int[][] refs = new int[numTransitions][];
+    int[] fill = Arrays.copyOf(incomingStart, n);
+    int o = 0;
+    for (int s = 0; s < allStates; s++)
+      for (int tr = table.transitionStart(s); tr < table.transitionStart(s + 1); tr++)
+        if (keep(table, live, s, tr)) {
+          int i = fill[newIndex[table.destination(tr)]]++;
+          outgoing[o++] = i;
+          outgoingStart[newIndex[s] + 1] = o;
+          source[i] = newIndex[s];
+          destination[i] = newIndex[table.destination(tr)];
+          label[i] = table.label(tr);
+          refs[i] = new int[table.weightsStart(tr + 1) - table.weightsStart(tr)];
+          for (int r = 0; r < refs[i].length; r++)
+            refs[i][r] = table.weightsIndex(table.weightsStart(tr) + r);
+        }
+    weightsIndex = new int[numRefs];
+    int r = 0;
+    for (int i = 0; i < numTransitions; i++) {
+      weightsStart[i] = r;
+      for (int w : refs[i])
+        weightsIndex[r++] = w;
+    }
+    weightsStart[numTransitions] = r;
+    for (int d = 0; d < n; d++)
+      outgoingStart[d + 1] = Math.max(outgoingStart[d + 1], outgoingStart[d]);
+
+    labelNames = new String[outputAlphabet.size()];
+    for (int l = 0; l < labelNames.length; l++)
+      labelNames[l] = outputAlphabet.lookupObject(l).toString();
+  }
+
+  /** A copy of <code>model</code> that scores tokens with <code>kernel</code>. */
+  private CompiledCRF(CompiledCRF model, EmissionKernel kernel)
+  {
+    inputAlphabet = model.inputAlphabet;
+    outputAlphabet = model.outputAlphabet;
+    this.kernel = kernel;
+    numWeights = model.numWeights;
+    defaultWeights = model.defaultWeights;
+    numStates = model.numStates;
+    stateNames = model.stateNames;
+    initialWeights = model.initialWeights;
+    finalWeights = model.finalWeights;
+    incomingStart = model.incomingStart;
+    source = model.source;
+    destination = model.destination;
+    outgoingStart = model.outgoingStart;
+    outgoing = model.outgoing;
+    label = model.label;
+    weightsStart = model.weightsStart;
+    weightsIndex = model.weightsIndex;
+    labelNames = model.labelNames;
+  }
+
+  /**
+   * This model with its emission weights stored at <code>precision</code>,
+   * see {@link QuantizedEmissionKernel}; the state graph is shared.
+   */
+  public CompiledCRF quantize(QuantizedEmissionKernel.Precision precision)
+  {
+    return new CompiledCRF(this, new QuantizedEmissionKernel(kernel, precision));
+  }
+
+  private boolean keep(TransitionTable table, boolean[] live, int s, int tr)
+  {
+    if (!live[s] || !live[table.destination(tr)])
+      return false;
+    for (int r = table.weightsStart(tr); r < table.weightsStart(tr + 1); r++)
+      if (defaultWeights[table.weightsIndex(r)] == Transducer.IMPOSSIBLE_WEIGHT)
+        return false;
+    return true;
+  }
+
+  private static boolean[] liveStates(TransitionTable table, double[] init, double[] fin)
+  {
+    int n = table.numStates();
+    boolean[] forward = new boolean[n], backward = new boolean[n];
+    ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+    for (int s = 0; s < n; s++)
+      if (init[s] != Transducer.IMPOSSIBLE_WEIGHT) {
+        forward[s] = true;
+        queue.add(s);
+      }
+    while (!queue.isEmpty()) {
+      int s = queue.poll();
+      for (int tr = table.transitionStart(s); tr < table.transitionStart(s + 1); tr++)
+        if (!forward[table.destination(tr)]) {
+          forward[table.destination(tr)] = true;
+          queue.add(table.destination(tr));
+        }
+    }
+    // Reverse reachability from the final states, by fixpoint over the
+    // (small) state graph.
+    for (int s = 0; s < n; s++)
+      backward[s] = fin[s] != Transducer.IMPOSSIBLE_WEIGHT;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int s = 0; s < n; s++) {
+        if (backward[s])
+          continue;
+        for (int tr = table.transitionStart(s); tr < table.transitionStart(s + 1); tr++)
+          if (backward[table.destination(tr)]) {
+            backward[s] = changed = true;
+            break;
+          }
+      }
+    }
+    boolean[] live = new boolean[n];
+    for (int s = 0; s < n; s++)
+      live[s] = forward[s] && backward[s];
+    return live;
+  }
+
+  public Alphabet getInputAlphabet() { return inputAlphabet; }
+
+  public Alphabet getOutputAlphabet() { return outputAlphabet; }
+
+  public int numStates() { return numStates; }
+
+  public int numTransitions() { return source.length; }
+
+  public int numWeights() { return numWeights; }
+
+  public String stateName(int s) { return stateNames[s]; }
+
+  public double initialWeight(int s) { return initialWeights[s]; }
+
+  public double finalWeight(int s) { return finalWeights[s]; }
+
+  /** First incoming transition of destination <code>d</code>; they end at <code>incomingStart(d+1)</code>. */
+  public int incomingStart(int d) { return incomingStart[d]; }
+
+  public int source(int tr) { return source[tr]; }
+
+  public int destination(int tr) { return destination[tr]; }
+
+  /**
+   * Position of the first outgoing transition of source <code>s</code> in
+   * the {@link #outgoing} list; they end at <code>outgoingStart(s+1)</code>.
+   */
+  public int outgoingStart(int s) { return outgoingStart[s]; }
+
+  /** The transition at position <code>i</code> of the outgoing list, in the source's own order. */
+  public int outgoing(int i) { return outgoing[i]; }
+
+  /** Output alphabet index of the label emitted by transition <code>tr</code>. */
+  public int label(int tr) { return label[tr]; }
+
+  public String labelName(int label) { return labelNames[label]; }
+
+  public int numLabels() { return labelNames.length; }
+
+  /**
+   * Computes each weight set's score on one token: the sum of its weights
+   * over the token's active features, plus its default weight.
+   *
+   * @param out receives {@link #numWeights()} scores
+   * @see EmissionKernel#score
+   */
+  public void weightScores(FeatureVector fv, double[] out)
+  {
+    kernel.score(fv, out);
+  }
+
+  /**
+   * {@link #weightScores(FeatureVector, double[])} through a cache owned
+   * by the caller, or uncached if <code>cache</code> is <code>null</code>.
+   */
+  public void weightScores(FeatureVector fv, double[] out, EmissionCache cache)
+  {
+    kernel.score(fv, out, cache);
+  }
+
+  /** @see EmissionKernel#gatherRows */
+  public int gatherRows(FeatureVector fv, int[] rows, double[] values)
+  {
+    return kernel.gatherRows(fv, rows, values);
+  }
+
+  /** @see EmissionKernel#weightScore */
+  public double weightScore(int w, int[] rows, double[] values, int n)
+  {
+    return kernel.weightScore(w, rows, values, n);
+  }
+
+  public EmissionKernel getEmissionKernel() { return kernel; }
+
+  /** Number of weight sets summed into transition <code>tr</code>; see {@link #weightIndex}. */
+  public int numTransitionWeights(int tr) { return weightsStart[tr + 1] - weightsStart[tr]; }
+
+  /** The <code>i</code>-th weight set of transition <code>tr</code>. */
+  public int weightIndex(int tr, int i) { return weightsIndex[weightsStart[tr] + i]; }
+
+  /**
+   * Sums weight-set scores into transition scores.
+   *
+   * @param weightScores output of {@link #weightScores}
+   * @param out receives {@link #numTransitions()} scores at <code>offset</code>
+   */
+  public void transitionScores(double[] weightScores, double[] out, int offset)
+  {
+    for (int tr = 0; tr < source.length; tr++) {
+      double score = 0;
+      for (int r = weightsStart[tr]; r < weightsStart[tr + 1]; r++)
+        score += weightScores[weightsIndex[r]];
+      out[offset + tr] = score;
+    }
+  }
+
+  /** Score of transition <code>tr</code> given the output of {@link #weightScores}. */
+  public double transitionScore(double[] weightScores, int tr)
+  {
+    double score = 0;
+    for (int r = weightsStart[tr]; r < weightsStart[tr + 1]; r++)
+      score += weightScores[weightsIndex[r]];
+    return score;
+  }
+
+  /**
+   * A new beam decoder with its own scratch buffers, for use by one thread.
+   *
+   * @see BeamDecoder#BeamDecoder(CompiledCRF, int, double)
+   */
+  public BeamDecoder newBeamDecoder(int width, double threshold)
+  {
+    return new BeamDecoder(this, width, threshold);
+  }
+
+  /**
+   * A new n-best decoder with its own scratch buffers, for use by one
+   * thread; a positive <code>beamWidth</code> restricts it to a beam.
+   *
+   * @see NBestDecoder#NBestDecoder(CompiledCRF, int, double)
+   */
+  public NBestDecoder newNBestDecoder(int beamWidth, double beamThreshold)
+  {
+    return new NBestDecoder(this, beamWidth, beamThreshold);
+  }
+
+  /** A new marginal-computing decoder with its own scratch buffers, for use by one thread. */
+  public MarginalDecoder newMarginalDecoder()
+  {
+    return new MarginalDecoder(this);
+  }
+
+  /** A new decoder with its own scratch buffers, for use by one thread. */
+  public ViterbiDecoder newViterbiDecoder()
+  {
+    return new ViterbiDecoder(this);
+  }
+}
@@ -0,0 +1,69 @@
+package crf.decode;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.iterator.LineGroupIterator;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.ObjectInputStream;
+import java.util.regex.Pattern;
+
+/**
+ * Times Mallet's <code>CRF.transduce</code> against {@link ViterbiDecoder}
+ * on the same model and data, and checks that both find the same paths.
+ * <p>
+ * Usage: <code>DecodeBenchmark model-file data-file [rounds]</code>, where
+ * the data file is in the (unlabeled) format read by {@link crf.Tagger}.
+ */
+public class DecodeBenchmark
+{
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 2)
+      throw new IllegalArgumentException("Usage: DecodeBenchmark model-file data-file [rounds]");
+    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+    ObjectInputStream s = new ObjectInputStream(new FileInputStream(args[0]));
+    CRF crf = (CRF) s.readObject();
+    s.close();
+    Pipe p = crf.getInputPipe();
+    p.setTargetProcessing(false);
+    p.getDataAlphabet().stopGrowth();
+    InstanceList data = new InstanceList(p);
+    data.addThruPipe(new LineGroupIterator(new FileReader(args[1]), Pattern.compile("^\\s*$"), true));
+    long tokens = 0;
+    for (int i = 0; i < data.size(); i++)
+      tokens += ((Sequence) data.get(i).getData()).size();
+
+    long start = System.nanoTime();
+    CompiledCRF compiled = new CompiledCRF(crf);
+    System.out.printf("Compiled %d states, %d transitions, %d weight sets in %.1f ms%n",
+        compiled.numStates(), compiled.numTransitions(), compiled.numWeights(),
+        (System.nanoTime() - start) / 1e6);
+    ViterbiDecoder decoder = compiled.newViterbiDecoder();
+
+    int mismatches = 0;
+    for (int i = 0; i < data.size(); i++) {
+      Sequence input = (Sequence) data.get(i).getData();
+      if (!crf.transduce(input).toString().equals(decoder.decode(input).toString()))
+        mismatches++;
+    }
+    System.out.println("Sequences with differing paths: " + mismatches + " of " + data.size());
+
+    for (int r = 0; r < rounds; r++) {
+      start = System.nanoTime();
+      for (int i = 0; i < data.size(); i++)
+        crf.transduce((Sequence) data.get(i).getData());
+      long mallet = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int i = 0; i < data.size(); i++)
+        decoder.decode((Sequence) data.get(i).getData());
+      long flat = System.nanoTime() - start;
+      System.out.printf("Round %d: transduce %.0f tokens/s, compiled %.0f tokens/s, speedup %.2fx%n",
+          r, tokens / (mallet / 1e9), tokens / (flat / 1e9), mallet / (double) flat);
+    }
+  }
+}
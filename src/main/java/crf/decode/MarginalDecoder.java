@@ -0,0 +1,273 @@
+package crf.decode;
+
+import cc.mallet.fst.Transducer;
+import cc.mallet.types.ArraySequence;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Sequence;
+
+import java.util.Arrays;
+
+/**
+ * Viterbi decoding that also reports how confident the model is in the
+ * answer: the posterior probability of each token's chosen label and a
+ * confidence for each labeled segment.
+ * <p>
+ * Transition scores are computed once per position and shared by the
+ * Viterbi pass and a forward-backward pass. Forward-backward runs in
+ * probability space on <code>exp</code>'d scores, shifted by their
+ * per-position maximum and with alpha and beta renormalized per position,
+ * so the inner loops are multiply-adds instead of log-sums; the cost is
+ * one exponential per transition and position plus two passes shaped like
+ * Viterbi's. All buffers are kept and grown on demand; one instance
+ * serves one thread.
+ * <p>
+ * A segment's confidence is the probability that all of its tokens carry
+ * the chosen labels, computed by a forward pass restricted to those labels
+ * over the segment (constrained forward-backward).
+ */
+public class MarginalDecoder extends ViterbiDecoder
+{
+  /** The answer for one sequence, with its confidence scores. */
+  public static class Result
+  {
+    /** The chosen labels; empty if no path exists. */
+    public final Sequence output;
+    /** Posterior probability of each token's chosen label. */
+    public final double[] posteriors;
+    /**
+     * Confidence of the segment each token belongs to; for tokens with
+     * the default label, the token's own posterior.
+     */
+    public final double[] spanConfidences;
+
+    Result(Sequence output, double[] posteriors, double[] spanConfidences)
+    {
+      this.output = output;
+      this.posteriors = posteriors;
+      this.spanConfidences = spanConfidences;
+    }
+  }
+
+  private int capacity = -1;
+  private int length;
+  private double[] potentials;
+  private double[] alpha;
+  private double[] beta;
+  private double[] scale;
+  private final double[] constrained;
+  private final double[] constrainedNext;
+
+  MarginalDecoder(CompiledCRF model)
+  {
+    super(model);
+    constrained = new double[numStates];
+    constrainedNext = new double[numStates];
+    ensureMarginalCapacity(16);
+  }
+
+  private void ensureMarginalCapacity(int maxLength)
+  {
+    if (maxLength <= capacity)
+      return;
+    capacity = maxLength;
+    potentials = new double[capacity * numTransitions];
+    alpha = new double[(capacity + 1) * numStates];
+    beta = new double[(capacity + 1) * numStates];
+    scale = new double[capacity + 1];
+  }
+
+  /**
+   * Finds the best label sequence for <code>input</code> and computes the
+   * marginals that {@link #posterior} and {@link #spanConfidence} read.
+   *
+   * @see ViterbiDecoder#decode(Sequence, int[])
+   */
+  @Override
+  public boolean decode(Sequence input, int[] labels)
+  {
+    length = input.size();
+    ensureCapacity(length);
+    ensureMarginalCapacity(length);
+    start();
+    for (int t = 0; t < length; t++) {
+      model.weightScores((FeatureVector) input.get(t), weightScores, cache);
+      model.transitionScores(weightScores, potentials, t * numTransitions);
+      step(t, potentials, t * numTransitions);
+    }
+    if (!backtrace(length, labels))
+      return false;
+    forwardBackward();
+    return true;
+  }
+
+  private void forwardBackward()
+  {
+    for (int t = 0; t < length; t++) {
+      int offset = t * numTransitions;
+      double max = Transducer.IMPOSSIBLE_WEIGHT;
+      for (int tr = 0; tr < numTransitions; tr++)
+        max = Math.max(max, potentials[offset + tr]);
+      if (max == Transducer.IMPOSSIBLE_WEIGHT)
+        max = 0;
+      for (int tr = 0; tr < numTransitions; tr++)
+        potentials[offset + tr] = Math.exp(potentials[offset + tr] - max);
+    }
+
+    double max = Transducer.IMPOSSIBLE_WEIGHT;
+    for (int s = 0; s < numStates; s++)
+      max = Math.max(max, model.initialWeight(s));
+    for (int s = 0; s < numStates; s++)
+      alpha[s] = Math.exp(model.initialWeight(s) - max);
+    scale[0] = normalize(alpha, 0);
+    for (int t = 0; t < length; t++) {
+      int from = t * numStates, to = from + numStates, offset = t * numTransitions;
+      for (int d = 0; d < numStates; d++) {
+        double sum = 0;
+        for (int tr = model.incomingStart(d); tr < model.incomingStart(d + 1); tr++)
+          sum += alpha[from + model.source(tr)] * potentials[offset + tr];
+        alpha[to + d] = sum;
+      }
+      scale[t + 1] = normalize(alpha, to);
+    }
+
+    int last = length * numStates;
+    max = Transducer.IMPOSSIBLE_WEIGHT;
+    for (int s = 0; s < numStates; s++)
+      max = Math.max(max, model.finalWeight(s));
+    for (int s = 0; s < numStates; s++)
+      beta[last + s] = Math.exp(model.finalWeight(s) - max);
+    normalize(beta, last);
+    for (int t = length - 1; t >= 0; t--) {
+      int from = t * numStates, to = from + numStates, offset = t * numTransitions;
+      Arrays.fill(beta, from, to, 0);
+      for (int d = 0; d < numStates; d++) {
+        double b = beta[to + d];
+        if (b == 0)
+          continue;
+        for (int tr = model.incomingStart(d); tr < model.incomingStart(d + 1); tr++)
+          beta[from + model.source(tr)] += potentials[offset + tr] * b;
+      }
+      normalize(beta, from);
+    }
+  }
+
+  /** Scales <code>column</code> to sum to one and returns the old sum. */
+  private double normalize(double[] column, int offset)
+  {
+    double sum = 0;
+    for (int s = 0; s < numStates; s++)
+      sum += column[offset + s];
+    if (sum > 0)
+      for (int s = 0; s < numStates; s++)
+        column[offset + s] /= sum;
+    return sum;
+  }
+
+  /** Sum over states of alpha times beta at position <code>t</code>, up to the alpha scales. */
+  private double mass(int t)
+  {
+    int offset = t * numStates;
+    double sum = 0;
+    for (int s = 0; s < numStates; s++)
+      sum += alpha[offset + s] * beta[offset + s];
+    return sum;
+  }
+
+  /**
+   * Posterior probability that token <code>t</code> of the last decoded
+   * sequence carries output label <code>label</code>.
+   */
+  public double posterior(int t, int label)
+  {
+    int from = t * numStates, to = from + numStates, offset = t * numTransitions;
+    double sum = 0;
+    for (int d = 0; d < numStates; d++) {
+      double b = beta[to + d];
+      if (b == 0)
+        continue;
+      for (int tr = model.incomingStart(d); tr < model.incomingStart(d + 1); tr++)
+        if (model.label(tr) == label)
+          sum += alpha[from + model.source(tr)] * potentials[offset + tr] * b;
+    }
+    double total = scale[t + 1] * mass(t + 1);
+    return total > 0 ? sum / total : 0;
+  }
+
+  /**
+   * Probability that tokens <code>start</code> to <code>end-1</code> of
+   * the last decoded sequence all carry the given labels.
+   */
+  public double spanConfidence(int[] labels, int start, int end)
+  {
+    double[] v = constrained, w = constrainedNext;
+    System.arraycopy(alpha, start * numStates, v, 0, numStates);
+    for (int t = start; t < end; t++) {
+      int offset = t * numTransitions;
+      for (int d = 0; d < numStates; d++) {
+        double sum = 0;
+        for (int tr = model.incomingStart(d); tr < model.incomingStart(d + 1); tr++)
+          if (model.label(tr) == labels[t])
+            sum += v[model.source(tr)] * potentials[offset + tr];
+        w[d] = scale[t + 1] > 0 ? sum / scale[t + 1] : 0;
+      }
+      double[] swap = v;
+      v = w;
+      w = swap;
+    }
+    int offset = end * numStates;
+    double sum = 0;
+    for (int s = 0; s < numStates; s++)
+      sum += v[s] * beta[offset + s];
+    double total = mass(end);
+    return total > 0 ? Math.min(1, sum / total) : 0;
+  }
+
+  /**
+   * Decodes <code>input</code> and scores the answer.
+   * <p>
+   * Segments are maximal runs of tokens whose labels continue each other:
+   * <code>I-X</code> continues <code>B-X</code> or <code>I-X</code>, and a
+   * label without a <code>B-</code>/<code>I-</code> prefix continues
+   * itself. Tokens labeled <code>defaultLabel</code> are never part of a
+   * segment.
+   */
+  public Result decodeMarginals(Sequence input, String defaultLabel)
+  {
+    int[] labels = new int[input.size()];
+    if (!decode(input, labels))
+      return new Result(new ArraySequence<String>(new String[0]), new double[0], new double[0]);
+    String[] output = new String[length];
+    double[] posteriors = new double[length];
+    double[] spans = new double[length];
+    for (int t = 0; t < length; t++) {
+      output[t] = model.labelName(labels[t]);
+      posteriors[t] = posterior(t, labels[t]);
+    }
+    int t = 0;
+    while (t < length) {
+      if (output[t].equals(defaultLabel)) {
+        spans[t] = posteriors[t];
+        t++;
+        continue;
+      }
+      int end = t + 1;
+      while (end < length && continues(output[end - 1], output[end]))
+        end++;
+      double confidence = spanConfidence(labels, t, end);
+      Arrays.fill(spans, t, end, confidence);
+      t = end;
+    }
+    return new Result(new ArraySequence<String>(output), posteriors, spans);
+  }
+
+  private static boolean continues(String previous, String label)
+  {
+    if (label.startsWith("I-"))
+      return (previous.startsWith("B-") || previous.startsWith("I-"))
+          && previous.regionMatches(2, label, 2, label.length() - 2)
+          && previous.length() == label.length();
+    if (label.startsWith("B-"))
+      return false;
+    return label.equals(previous);
+  }
+}
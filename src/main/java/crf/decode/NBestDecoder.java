@@ -0,0 +1,334 @@
+package crf.decode;
+
+import cc.mallet.fst.Transducer;
+import cc.mallet.types.ArraySequence;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Sequence;
+import crf.lattice.EmissionCache;
+
+import java.util.Arrays;
+
+/**
+ * Finds the k best label sequences over a {@link CompiledCRF} with one
+ * Viterbi forward pass followed by a lazy A* search backwards over the
+ * lattice.
+ * <p>
+ * The forward pass keeps every Viterbi column, which is an exact
+ * completion estimate for the backward search: a partial path from the
+ * end back to position <code>t</code> in state <code>s</code> is ranked
+ * by its weight plus <code>delta[t][s]</code>, so essentially only nodes
+ * on the first k answers are expanded. Their predecessors are scored on
+ * demand with a {@link TokenScorer}.
+ * <p>
+ * Since the estimate is exact, every node on the frontier below the end
+ * completes to a path of its own with weight equal to its priority, and
+ * that path is found before any path through a node of lower priority;
+ * with r answers still to find, such a node ranked below the r best of
+ * them (ties kept) can never be among them. The frontier is cut back to
+ * those whenever it grows past twice that, and the nodes cut are reused.
+ * The seeds at the end are never cut: as in Mallet, their priority
+ * includes the final weight, and the priorities of the nodes after them
+ * do not. So apart from the
+ * <code>(length+1) &times; states</code> columns, memory is bounded by
+ * the nodes expanded, about k &times; length (the answers themselves),
+ * and a frontier of O(k + in-degree) nodes. The search seeds, priorities
+ * and goal test are those of
+ * <code>MaxLatticeDefault.bestOutputSequences</code> (see
+ * {@link ViterbiDecoder}), so the answers come out in the same order.
+ * <p>
+ * All buffers are kept and grown on demand across sequences; one instance
+ * serves one thread.
+ */
+public class NBestDecoder
+{
+  private final CompiledCRF model;
+  private final int numStates;
+  private final int beamWidth;
+  private final double beamThreshold;
+  private final double[] weightScores;
+  private EmissionCache cache;
+  private final double[] scores;
+  private final TokenScorer scorer;
+  private final int[] active;
+  private final double[] pruneScratch;
+
+  private double[] delta = new double[0];
+
+  // Search nodes, pooled: the state at a position, the transition taken
+  // from it towards the parent (one position later), the parent node and
+  // the weight of the partial path from the end back to this node.
+  private int[] nodeState = new int[64];
+  private int[] nodePosition = new int[64];
+  private int[] nodeTransition = new int[64];
+  private int[] nodeParent = new int[64];
+  private double[] nodeWeight = new double[64];
+  private double[] nodePriority = new double[64];
+  private int numNodes;
+
+  // Binary max-heap of node indices, by priority.
+  private int[] heap = new int[64];
+  private int heapSize;
+
+  // Nodes cut from the frontier, for reuse.
+  private int[] free = new int[64];
+  private int numFree;
+  private double[] trimScratch = new double[64];
+
+  private int[] answers = new int[4];
+  private double[] answerWeights = new double[4];
+  private int numAnswers;
+  private int length;
+
+  /**
+   * @param beamWidth if positive, Viterbi columns are cut to this many
+   * states (see {@link BeamDecoder}) and the answers are the best paths
+   * through the surviving states
+   * @param beamThreshold score margin for the beam
+   */
+  NBestDecoder(CompiledCRF model, int beamWidth, double beamThreshold)
+  {
+    this.model = model;
+    this.numStates = model.numStates();
+    this.beamWidth = beamWidth;
+    this.beamThreshold = beamThreshold;
+    this.weightScores = new double[model.numWeights()];
+    this.scores = new double[model.numTransitions()];
+    this.scorer = new TokenScorer(model);
+    this.active = new int[numStates];
+    this.pruneScratch = new double[numStates];
+  }
+
+  public CompiledCRF getModel() { return model; }
+
+  /** @see ViterbiDecoder#setEmissionCache */
+  public void setEmissionCache(EmissionCache cache) { this.cache = cache; }
+
+  /**
+   * Searches for the <code>k</code> best paths through <code>input</code>.
+   *
+   * @return the number of paths found, at most <code>k</code>; read them
+   * with {@link #path} and {@link #pathWeight}
+   */
+  public int decode(Sequence input, int k)
+  {
+    length = input.size();
+    forward(input);
+    numNodes = 0;
+    heapSize = 0;
+    numFree = 0;
+    numAnswers = 0;
+    if (answers.length < k) {
+      answers = new int[k];
+      answerWeights = new double[k];
+    }
+
+    int last = length * numStates;
+    for (int s = 0; s < numStates; s++) {
+      double priority = delta[last + s] + model.finalWeight(s);
+      if (priority != Transducer.IMPOSSIBLE_WEIGHT)
+        push(newNode(s, length, -1, -1, 0), priority);
+    }
+    while (numAnswers < k && heapSize > 0) {
+      double priority = nodePriority[heap[0]];
+      int node = pop();
+      int t = nodePosition[node];
+      if (t == 0) {
+        answers[numAnswers] = node;
+        answerWeights[numAnswers++] = priority;
+        continue;
+      }
+      int s = nodeState[node];
+      int column = (t - 1) * numStates;
+      scorer.setToken((FeatureVector) input.get(t - 1));
+      for (int tr = model.incomingStart(s); tr < model.incomingStart(s + 1); tr++) {
+        int source = model.source(tr);
+        double completion = delta[column + source];
+        if (completion == Transducer.IMPOSSIBLE_WEIGHT)
+          continue;
+        double weight = nodeWeight[node] + scorer.transitionScore(tr);
+        push(newNode(source, t - 1, tr, node, weight), weight + completion);
+      }
+      int remaining = k - numAnswers;
+      if (heapSize > 2 * remaining + numStates + 16)
+        trim(remaining);
+    }
+    return numAnswers;
+  }
+
+  /**
+   * Cuts the frontier below the end to the nodes ranked among the
+   * <code>remaining</code> best, keeping those tied with the last, and
+   * frees the rest.
+   */
+  private void trim(int remaining)
+  {
+    if (trimScratch.length < heapSize)
+      trimScratch = new double[heap.length];
+    int ranked = 0;
+    for (int i = 0; i < heapSize; i++)
+      if (nodePosition[heap[i]] < length)
+        trimScratch[ranked++] = nodePriority[heap[i]];
+    if (ranked <= remaining)
+      return;
+    Arrays.sort(trimScratch, 0, ranked);
+    double cutoff = trimScratch[ranked - remaining];
+    int n = heapSize;
+    heapSize = 0;
+    for (int i = 0; i < n; i++) {
+      int node = heap[i];
+      if (nodePosition[node] == length || nodePriority[node] >= cutoff)
+        push(node, nodePriority[node]);
+      else {
+        if (numFree == free.length)
+          free = Arrays.copyOf(free, 2 * numFree);
+        free[numFree++] = node;
+      }
+    }
+  }
+
+  /** Fills <code>delta</code> column by column, without final weights. */
+  private void forward(Sequence input)
+  {
+    int size = (length + 1) * numStates;
+    if (delta.length < size)
+      delta = new double[Math.max(size, 2 * delta.length)];
+    for (int s = 0; s < numStates; s++)
+      delta[s] = model.initialWeight(s);
+    prune(0);
+    for (int t = 0; t < length; t++) {
+      model.weightScores((FeatureVector) input.get(t), weightScores, cache);
+      model.transitionScores(weightScores, scores, 0);
+      int from = t * numStates, to = from + numStates;
+      for (int d = 0; d < numStates; d++) {
+        double best = Transducer.IMPOSSIBLE_WEIGHT;
+        for (int tr = model.incomingStart(d); tr < model.incomingStart(d + 1); tr++) {
+          double w = delta[from + model.source(tr)];
+          if (w == Transducer.IMPOSSIBLE_WEIGHT)
+            continue;
+          w += scores[tr];
+          if (w > best)
+            best = w;
+        }
+        delta[to + d] = best;
+      }
+      prune(to);
+    }
+  }
+
+  private void prune(int column)
+  {
+    if (beamWidth <= 0)
+      return;
+    int n = 0;
+    for (int s = 0; s < numStates; s++)
+      if (delta[column + s] != Transducer.IMPOSSIBLE_WEIGHT)
+        active[n++] = column + s;
+    BeamDecoder.prune(delta, active, n, beamWidth, beamThreshold, pruneScratch);
+  }
+
+  private int newNode(int state, int position, int transition, int parent, double weight)
+  {
+    if (numFree > 0) {
+      int node = free[--numFree];
+      setNode(node, state, position, transition, parent, weight);
+      return node;
+    }
+    if (numNodes == nodeState.length) {
+      int capacity = 2 * numNodes;
+      nodeState = Arrays.copyOf(nodeState, capacity);
+      nodePosition = Arrays.copyOf(nodePosition, capacity);
+      nodeTransition = Arrays.copyOf(nodeTransition, capacity);
+      nodeParent = Arrays.copyOf(nodeParent, capacity);
+      nodeWeight = Arrays.copyOf(nodeWeight, capacity);
+      nodePriority = Arrays.copyOf(nodePriority, capacity);
+    }
+    setNode(numNodes, state, position, transition, parent, weight);
+    return numNodes++;
+  }
+
+  private void setNode(int node, int state, int position, int transition, int parent, double weight)
+  {
+    nodeState[node] = state;
+    nodePosition[node] = position;
+    nodeTransition[node] = transition;
+    nodeParent[node] = parent;
+    nodeWeight[node] = weight;
+  }
+
+  private void push(int node, double priority)
+  {
+    nodePriority[node] = priority;
+    if (heapSize == heap.length)
+      heap = Arrays.copyOf(heap, 2 * heapSize);
+    int i = heapSize++;
+    while (i > 0) {
+      int parent = (i - 1) >> 1;
+      if (nodePriority[heap[parent]] >= priority)
+        break;
+      heap[i] = heap[parent];
+      i = parent;
+    }
+    heap[i] = node;
+  }
+
+  private int pop()
+  {
+    int top = heap[0];
+    int node = heap[--heapSize];
+    double priority = nodePriority[node];
+    int i = 0;
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= heapSize)
+        break;
+      if (child + 1 < heapSize && nodePriority[heap[child + 1]] > nodePriority[heap[child]])
+        child++;
+      if (nodePriority[heap[child]] <= priority)
+        break;
+      heap[i] = heap[child];
+      i = child;
+    }
+    if (heapSize > 0)
+      heap[i] = node;
+    return top;
+  }
+
+  /**
+   * Copies the labels of answer <code>i</code> of the last {@link #decode}
+   * as output alphabet indices.
+   */
+  public void path(int i, int[] labels)
+  {
+    int node = answers[i];
+    for (int t = 0; t < length; t++) {
+      labels[t] = model.label(nodeTransition[node]);
+      node = nodeParent[node];
+    }
+  }
+
+  /**
+   * Weight of answer <code>i</code> of the last {@link #decode}, without
+   * its final-state weight (as {@link ViterbiDecoder#bestWeight()}).
+   */
+  public double pathWeight(int i) { return answerWeights[i]; }
+
+  /**
+   * Finds the <code>k</code> best output sequences for <code>input</code>,
+   * as label strings like <code>MaxLatticeDefault.bestOutputSequences</code>
+   * returns them; fewer if fewer paths exist.
+   */
+  public Sequence[] decodeSequences(Sequence input, int k)
+  {
+    int n = decode(input, k);
+    Sequence[] outputs = new Sequence[n];
+    int[] labels = new int[length];
+    for (int i = 0; i < n; i++) {
+      path(i, labels);
+      String[] output = new String[length];
+      for (int t = 0; t < length; t++)
+        output[t] = model.labelName(labels[t]);
+      outputs[i] = new ArraySequence<String>(output);
+    }
+    return outputs;
+  }
+}
@@ -0,0 +1,118 @@
+package crf.decode;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a {@link Task} over a stream of inputs on a pool of threads and
+ * hands the results back in input order.
+ * <p>
+ * At most <code>window</code> inputs are in flight at once: the pool keeps
+ * a FIFO of pending results, tops it up from the input as the head is
+ * consumed, and blocks on the head only. This bounds memory on
+ * arbitrarily long inputs while letting a slow input overlap with the ones
+ * behind it. Inputs are read on the consuming thread. The threads exit
+ * once the input is drained, when a task fails, or on {@link #close()}.
+ */
+public class OrderedPool<I, O> implements CloseableIterator<O>
+{
+  /** Work done on one input; must be safe to call from several threads. */
+  public interface Task<I, O>
+  {
+    O apply(I input);
+  }
+
+  private final Iterator<I> inputs;
+  private final Task<I, O> task;
+  private final int window;
+  private final ArrayDeque<Future<O>> pending = new ArrayDeque<Future<O>>();
+  private ExecutorService executor;
+
+  /**
+   * @param window most inputs read ahead of the consumer
+   * @param threadName prefix of the names of the daemon worker threads
+   */
+  public OrderedPool(Iterator<I> inputs, Task<I, O> task, int numThreads, int window,
+      final String threadName)
+  {
+    if (numThreads < 1 || window < 1)
+      throw new IllegalArgumentException("numThreads and window must be positive");
+    this.inputs = inputs;
+    this.task = task;
+    this.window = window;
+    executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, threadName + "-" + count.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    fill();
+  }
+
+  private void fill()
+  {
+    while (pending.size() < window && inputs.hasNext()) {
+      final I input = inputs.next();
+      pending.add(executor.submit(new Callable<O>() {
+        public O call() {
+          return task.apply(input);
+        }
+      }));
+    }
+    if (pending.isEmpty() && executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
+  public boolean hasNext()
+  {
+    return !pending.isEmpty();
+  }
+
+  public O next()
+  {
+    if (pending.isEmpty())
+      throw new NoSuchElementException();
+    Future<O> head = pending.poll();
+    O result;
+    try {
+      result = head.get();
+    } catch (InterruptedException e) {
+      close();
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      close();
+      throw new RuntimeException(e.getCause());
+    }
+    fill();
+    return result;
+  }
+
+  public void remove()
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  public void close()
+  {
+    for (Future<O> future : pending)
+      future.cancel(true);
+    pending.clear();
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+}
@@ -0,0 +1,265 @@
+package crf.decode;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.Transducer;
+import cc.mallet.types.Sequence;
+import crf.Tagger;
+import crf.lattice.EmissionCache;
+
+import java.util.Iterator;
+
+/**
+ * Decodes a stream of input sequences on a pool of threads and hands the
+ * answers back in input order.
+ * <p>
+ * At most <code>window</code> sequences are in flight at once, see
+ * {@link OrderedPool}, so memory stays bounded on arbitrarily long inputs
+ * while a slow (long) sentence overlaps with the ones behind it.
+ * <p>
+ * The model is shared read-only. For a {@link CRF} each thread gets its
+ * own {@link ViterbiDecoder} (or {@link BeamDecoder}, given a beam width),
+ * or {@link NBestDecoder} for more than one answer, over one
+ * {@link CompiledCRF}; other transducers go through
+ * {@link Tagger#apply(Transducer, Sequence, int)}.
+ */
+public class ParallelDecoder
+{
+  private final Transducer model;
+  private final int k;
+  private final int numThreads;
+  private final int window;
+  private final int beamWidth;
+  private final double beamThreshold;
+  private final CompiledCRF compiled;
+  private final ThreadLocal<ViterbiDecoder> decoders;
+  private final ThreadLocal<NBestDecoder> nBestDecoders;
+  private final ThreadLocal<MarginalDecoder> marginalDecoders;
+  private ChunkedDecoder chunker;
+  private EmissionCache emissionCache;
+
+  /**
+   * @param model the model to decode with; it is not modified
+   * @param k number of answers per sequence
+   * @param numThreads number of decoding threads; 1 decodes on the
+   * caller's thread
+   * @param window maximum number of sequences decoded ahead of the consumer
+   * @param beamWidth states kept per position for CRF decoding; 0 decodes
+   * exactly
+   * @param beamThreshold score margin for the beam, see
+   * {@link BeamDecoder#BeamDecoder(CompiledCRF, int, double)}
+   */
+  public ParallelDecoder(Transducer model, int k, int numThreads, int window,
+      int beamWidth, double beamThreshold)
+  {
+    this(model, model instanceof CRF ? new CompiledCRF((CRF) model) : null,
+        k, numThreads, window, beamWidth, beamThreshold);
+  }
+
+  /**
+   * Decodes with an already compiled (for instance quantized) CRF, without
+   * its source model.
+   *
+   * @see #ParallelDecoder(Transducer, int, int, int, int, double)
+   */
+  public ParallelDecoder(CompiledCRF model, int k, int numThreads, int window,
+      int beamWidth, double beamThreshold)
+  {
+    this(null, model, k, numThreads, window, beamWidth, beamThreshold);
+  }
+
+  private ParallelDecoder(Transducer model, CompiledCRF compiled, int k, int numThreads,
+      int window, int beamWidth, double beamThreshold)
+  {
+    if (numThreads < 1 || window < 1)
+      throw new IllegalArgumentException("numThreads and window must be positive");
+    this.model = model;
+    this.k = k;
+    this.numThreads = numThreads;
+    this.window = window;
+    this.beamWidth = beamWidth;
+    this.beamThreshold = beamThreshold;
+    this.compiled = compiled;
+    this.decoders = new ThreadLocal<ViterbiDecoder>() {
+      protected ViterbiDecoder initialValue() {
+        return newDecoder();
+      }
+    };
+    this.nBestDecoders = new ThreadLocal<NBestDecoder>() {
+      protected NBestDecoder initialValue() {
+        return newNBestDecoder();
+      }
+    };
+    this.marginalDecoders = new ThreadLocal<MarginalDecoder>() {
+      protected MarginalDecoder initialValue() {
+        return newMarginalDecoder();
+      }
+    };
+  }
+
+  private MarginalDecoder newMarginalDecoder()
+  {
+    if (compiled == null)
+      return null;
+    MarginalDecoder decoder = compiled.newMarginalDecoder();
+    decoder.setEmissionCache(emissionCache);
+    return decoder;
+  }
+
+  private ViterbiDecoder newDecoder()
+  {
+    if (compiled == null)
+      return null;
+    ViterbiDecoder decoder = beamWidth > 0 ? compiled.newBeamDecoder(beamWidth, beamThreshold)
+        : compiled.newViterbiDecoder();
+    decoder.setEmissionCache(emissionCache);
+    return decoder;
+  }
+
+  private NBestDecoder newNBestDecoder()
+  {
+    if (compiled == null)
+      return null;
+    NBestDecoder decoder = compiled.newNBestDecoder(beamWidth, beamThreshold);
+    decoder.setEmissionCache(emissionCache);
+    return decoder;
+  }
+
+  /**
+   * As {@link #ParallelDecoder(Transducer, int, int, int, int, double)},
+   * with a window of 64 sequences per thread.
+   */
+  public ParallelDecoder(Transducer model, int k, int numThreads, int beamWidth, double beamThreshold)
+  {
+    this(model, k, numThreads, 64 * numThreads, beamWidth, beamThreshold);
+  }
+
+  /** Exact decoding with a window of 64 sequences per thread. */
+  public ParallelDecoder(Transducer model, int k, int numThreads)
+  {
+    this(model, k, numThreads, 0, Double.POSITIVE_INFINITY);
+  }
+
+  /**
+   * As {@link #ParallelDecoder(CompiledCRF, int, int, int, int, double)},
+   * with a window of 64 sequences per thread.
+   */
+  public ParallelDecoder(CompiledCRF model, int k, int numThreads, int beamWidth, double beamThreshold)
+  {
+    this(model, k, numThreads, 64 * numThreads, beamWidth, beamThreshold);
+  }
+
+  /**
+   * Shares a cache of up to <code>capacity</code> tokens' weight-set
+   * scores between this decoder's threads, so tokens recurring across
+   * sentences are scored once; 0 turns caching off. The cache belongs to
+   * this decoder, not to the model, which other decoders may share. Exact,
+   * n-best and marginal decoding use it; beam decoding scores weight sets
+   * lazily and bypasses it. Call before decoding.
+   *
+   * @return the cache, for its metrics, or <code>null</code> if off or the
+   * model is not a CRF
+   */
+  public EmissionCache useEmissionCache(int capacity)
+  {
+    if (compiled == null)
+      return null;
+    emissionCache = capacity > 0 ? new EmissionCache(capacity, compiled.numWeights()) : null;
+    if (chunker != null)
+      chunker.setEmissionCache(emissionCache);
+    return emissionCache;
+  }
+
+  /** The cache set by {@link #useEmissionCache}, or <code>null</code>. */
+  public EmissionCache getEmissionCache()
+  {
+    return emissionCache;
+  }
+
+  /**
+   * Decodes sequences longer than <code>maxChunk</code> tokens in
+   * overlapping windows on this decoder's number of threads, see
+   * {@link ChunkedDecoder}; 0 turns chunking off. Applies to 1-best
+   * decoding of CRFs only, and the windows are decoded exactly even with a
+   * beam. Call before decoding.
+   *
+   * @return the chunked decoder, for its report, or <code>null</code> if
+   * off or the model is not a CRF
+   */
+  public ChunkedDecoder useChunking(int maxChunk, int overlap)
+  {
+    chunker = compiled != null && maxChunk > 0
+        ? new ChunkedDecoder(compiled, maxChunk, overlap, numThreads) : null;
+    if (chunker != null)
+      chunker.setEmissionCache(emissionCache);
+    return chunker;
+  }
+
+  /** The decoder set by {@link #useChunking}, or <code>null</code>. */
+  public ChunkedDecoder getChunkedDecoder() { return chunker; }
+
+  /** Decodes one sequence on the calling thread. */
+  public Sequence[] apply(Sequence input)
+  {
+    if (compiled == null)
+      return Tagger.apply(model, input, k);
+    if (k == 1 && chunker != null)
+      return new Sequence[] {chunker.decode(input)};
+    if (k == 1)
+      return Tagger.apply(decoders.get(), model, input, k);
+    return Tagger.apply(nBestDecoders.get(), input, k);
+  }
+
+  /**
+   * Decodes one sequence on the calling thread with exact 1-best Viterbi
+   * and scores the answer, see {@link MarginalDecoder#decodeMarginals}.
+   * Only available for CRFs.
+   */
+  public MarginalDecoder.Result applyMarginals(Sequence input, String defaultLabel)
+  {
+    if (compiled == null)
+      throw new UnsupportedOperationException("Marginals need a CRF, not a "
+          + model.getClass().getName());
+    return marginalDecoders.get().decodeMarginals(input, defaultLabel);
+  }
+
+  /**
+   * Starts decoding <code>inputs</code>. The returned iterator yields the
+   * answers of each input in order; the worker threads exit once it is
+   * exhausted, when a sequence fails to decode, or when it is closed.
+   */
+  public CloseableIterator<Sequence[]> decode(Iterator<Sequence> inputs)
+  {
+    return map(inputs, new OrderedPool.Task<Sequence, Sequence[]>() {
+      public Sequence[] apply(Sequence input) {
+        return ParallelDecoder.this.apply(input);
+      }
+    });
+  }
+
+  /**
+   * Like {@link #decode}, but yields each input's 1-best answer with its
+   * marginal confidences.
+   */
+  public CloseableIterator<MarginalDecoder.Result> decodeMarginals(Iterator<Sequence> inputs,
+      final String defaultLabel)
+  {
+    return map(inputs, new OrderedPool.Task<Sequence, MarginalDecoder.Result>() {
+      public MarginalDecoder.Result apply(Sequence input) {
+        return applyMarginals(input, defaultLabel);
+      }
+    });
+  }
+
+  private <T> CloseableIterator<T> map(final Iterator<Sequence> inputs,
+      final OrderedPool.Task<Sequence, T> task)
+  {
+    if (numThreads == 1)
+      return new CloseableIterator<T>() {
+        public boolean hasNext() { return inputs.hasNext(); }
+        public T next() { return task.apply(inputs.next()); }
+        public void remove() { throw new UnsupportedOperationException(); }
+        public void close() { }
+      };
+    return new OrderedPool<Sequence, T>(inputs, task, numThreads, window, "crf-decode");
+  }
+}
@@ -0,0 +1,61 @@
+package crf.decode;
+
+import cc.mallet.types.FeatureVector;
+
+import java.util.Arrays;
+
+/**
+ * Scores individual transitions on one token, computing each weight set
+ * at most once and only when a transition needs it.
+ * <p>
+ * Used by decoders that touch a small part of the transition set per
+ * token (beams, backward n-best expansion), where filling all weight sets
+ * with {@link CompiledCRF#weightScores} would dominate.
+ */
+class TokenScorer
+{
+  private final CompiledCRF model;
+  private final double[] cache;
+  private final int[] cacheStamp;
+  private int stamp = 0;
+  private int[] rows = new int[16];
+  private double[] values = new double[16];
+  private int numRows;
+
+  TokenScorer(CompiledCRF model)
+  {
+    this.model = model;
+    this.cache = new double[model.numWeights()];
+    this.cacheStamp = new int[model.numWeights()];
+  }
+
+  /** Makes <code>fv</code> the token scored by {@link #transitionScore}. */
+  void setToken(FeatureVector fv)
+  {
+    if (rows.length < fv.numLocations()) {
+      rows = new int[fv.numLocations()];
+      values = new double[fv.numLocations()];
+    }
+    numRows = model.gatherRows(fv, rows, values);
+    if (++stamp == 0) {
+      Arrays.fill(cacheStamp, 0);
+      stamp = 1;
+    }
+  }
+
+  /** Same value as {@link CompiledCRF#transitionScore} on the current token. */
+  double transitionScore(int tr)
+  {
+    double score = 0;
+    int n = model.numTransitionWeights(tr);
+    for (int i = 0; i < n; i++) {
+      int w = model.weightIndex(tr, i);
+      if (cacheStamp[w] != stamp) {
+        cacheStamp[w] = stamp;
+        cache[w] = model.weightScore(w, rows, values, numRows);
+      }
+      score += cache[w];
+    }
+    return score;
+  }
+}
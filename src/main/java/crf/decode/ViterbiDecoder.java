@@ -0,0 +1,238 @@
+package crf.decode;
+
+import cc.mallet.fst.Transducer;
+import cc.mallet.types.ArraySequence;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Sequence;
+import crf.lattice.EmissionCache;
+
+import java.util.Arrays;
+
+/**
+ * Exact Viterbi decoding over a {@link CompiledCRF}.
+ * <p>
+ * Holds the scratch for one thread: per-position transition scores,
+ * the current and next Viterbi columns and a backpointer table, all grown
+ * on demand and reused across sequences. Produces the same path as
+ * <code>Transducer.transduce</code> on the source CRF (see
+ * {@link #selectEndState}).
+ */
+public class ViterbiDecoder
+{
+  final CompiledCRF model;
+  final int numStates;
+  final int numTransitions;
+  final double[] weightScores;
+  private final double[] scores;
+  double[] delta;
+  double[] next;
+  int[] backpointers = new int[0];
+  private final boolean[] considered;
+  private double bestWeight;
+  EmissionCache cache;
+
+  ViterbiDecoder(CompiledCRF model)
+  {
+    this.model = model;
+    this.numStates = model.numStates();
+    this.numTransitions = model.numTransitions();
+    this.weightScores = new double[model.numWeights()];
+    this.scores = new double[numTransitions];
+    this.delta = new double[numStates];
+    this.next = new double[numStates];
+    this.considered = new boolean[numStates];
+  }
+
+  public CompiledCRF getModel() { return model; }
+
+  /**
+   * Looks tokens up in <code>cache</code>, which decoders of the same
+   * model on other threads may share, before scoring them; <code>null</code>
+   * turns caching off. The model itself is left untouched.
+   */
+  public void setEmissionCache(EmissionCache cache) { this.cache = cache; }
+
+  /**
+   * Weight of the path found by the last call to {@link #decode}, without
+   * its final-state weight (as <code>MaxLatticeDefault.bestWeight</code>).
+   */
+  public double bestWeight() { return bestWeight; }
+
+  void ensureCapacity(int length)
+  {
+    if (backpointers.length < length * numStates)
+      backpointers = new int[length * numStates];
+  }
+
+  /**
+   * Finds the best label sequence for <code>input</code>.
+   *
+   * @param input a sequence of {@link FeatureVector}s
+   * @param labels receives the output alphabet index of each position's label
+   * @return whether some path exists; if not, <code>labels</code> is untouched
+   */
+  public boolean decode(Sequence input, int[] labels)
+  {
+    int length = input.size();
+    ensureCapacity(length);
+    start();
+    for (int t = 0; t < length; t++) {
+      model.weightScores((FeatureVector) input.get(t), weightScores, cache);
+      model.transitionScores(weightScores, scores, 0);
+      step(t, scores, 0);
+    }
+    return backtrace(length, labels);
+  }
+
+  /**
+   * Decodes tokens <code>from</code> to <code>to-1</code> of
+   * <code>input</code> as one window of a longer sequence, for
+   * {@link ChunkedDecoder}. Only the window that starts the sequence uses
+   * the initial weights, and only the one that ends it picks its end state
+   * as {@link #decode} does; other windows may start and end in any state.
+   *
+   * @param transitions receives the transition taken at each position of
+   * the window, position <code>from</code> at index 0
+   * @return whether some path exists
+   */
+  boolean decodeWindow(Sequence input, int from, int to, int[] transitions)
+  {
+    int length = to - from;
+    ensureCapacity(length);
+    if (from == 0)
+      start();
+    else
+      Arrays.fill(delta, 0);
+    for (int t = 0; t < length; t++) {
+      model.weightScores((FeatureVector) input.get(from + t), weightScores, cache);
+      model.transitionScores(weightScores, scores, 0);
+      step(t, scores, 0);
+    }
+    int s = -1;
+    if (to == input.size())
+      s = selectEndState(delta);
+    else {
+      double best = Transducer.IMPOSSIBLE_WEIGHT;
+      for (int d = 0; d < numStates; d++)
+        if (delta[d] > best) {
+          best = delta[d];
+          s = d;
+        }
+    }
+    if (s < 0)
+      return false;
+    for (int t = length - 1; t >= 0; t--) {
+      int tr = backpointers[t * numStates + s];
+      transitions[t] = tr;
+      s = model.source(tr);
+    }
+    return true;
+  }
+
+  /** Sets the Viterbi column to the initial weights. */
+  void start()
+  {
+    for (int s = 0; s < numStates; s++)
+      delta[s] = model.initialWeight(s);
+  }
+
+  /**
+   * Advances the Viterbi column over position <code>t</code>, given its
+   * transition scores at <code>scores[offset..]</code>.
+   */
+  void step(int t, double[] scores, int offset)
+  {
+    int bp = t * numStates;
+    for (int d = 0; d < numStates; d++) {
+      double best = Transducer.IMPOSSIBLE_WEIGHT;
+      int arg = -1;
+      for (int tr = model.incomingStart(d); tr < model.incomingStart(d + 1); tr++) {
+        double from = delta[model.source(tr)];
+        if (from == Transducer.IMPOSSIBLE_WEIGHT)
+          continue;
+        double w = from + scores[offset + tr];
+        if (w > best) {
+          best = w;
+          arg = tr;
+        }
+      }
+      next[d] = best;
+      backpointers[bp + d] = arg;
+    }
+    double[] swap = delta;
+    delta = next;
+    next = swap;
+  }
+
+  /**
+   * Follows the backpointers from the end state chosen over the last
+   * column, <code>delta</code>.
+   */
+  boolean backtrace(int length, int[] labels)
+  {
+    int end = selectEndState(delta);
+    if (end < 0)
+      return false;
+    int s = end;
+    for (int t = length - 1; t >= 0; t--) {
+      int tr = backpointers[t * numStates + s];
+      labels[t] = model.label(tr);
+      s = model.source(tr);
+    }
+    return true;
+  }
+
+  /**
+   * Picks the end state the way <code>MaxLatticeDefault</code> does.
+   * <p>
+   * Mallet's A* backtrace seeds its queue with the final-column nodes,
+   * prioritized by their Viterbi weight <em>including</em> the final-state
+   * weight, but ranks the completed paths by their weight <em>without</em>
+   * it. An end state is therefore only considered if its weight with final
+   * weight beats the best path weight found so far, and among those the
+   * path weight without final weight wins. Replaying that here keeps the
+   * output identical to <code>Transducer.transduce</code>.
+   *
+   * @return the end state, or -1 if no complete path exists
+   */
+  private int selectEndState(double[] last)
+  {
+    int end = -1;
+    bestWeight = Transducer.IMPOSSIBLE_WEIGHT;
+    Arrays.fill(considered, false);
+    while (true) {
+      int next = -1;
+      double nextPriority = Transducer.IMPOSSIBLE_WEIGHT;
+      for (int s = 0; s < numStates; s++) {
+        double priority = last[s] + model.finalWeight(s);
+        if (!considered[s] && priority > nextPriority) {
+          nextPriority = priority;
+          next = s;
+        }
+      }
+      if (next < 0 || (end >= 0 && nextPriority < bestWeight))
+        return end;
+      considered[next] = true;
+      if (last[next] > bestWeight) {
+        bestWeight = last[next];
+        end = next;
+      }
+    }
+  }
+
+  /**
+   * Finds the best output sequence for <code>input</code>, as label
+   * strings like <code>Transducer.transduce</code> returns them; an empty
+   * sequence if no path exists.
+   */
+  public Sequence decode(Sequence input)
+  {
+    int[] labels = new int[input.size()];
+    if (!decode(input, labels))
+      return new ArraySequence<String>(new String[0]);
+    String[] output = new String[labels.length];
+    for (int t = 0; t < labels.length; t++)
+      output[t] = model.labelName(labels[t]);
+    return new ArraySequence<String>(output);
+  }
+}
@@ -0,0 +1,170 @@
+package crf.eval;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.TransducerTrainer;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import crf.decode.CompiledCRF;
+import crf.decode.ViterbiDecoder;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The Viterbi labels of instances under the current weights, shared by
+ * the evaluators and writers that run after a training iteration, so each
+ * instance is decoded once per iteration however many of them look at it.
+ * <p>
+ * Entries are keyed by instance and weights version: the CRF, its weight
+ * value and structure change stamps, and the trainer's iteration. When
+ * the version changes, the model is compiled again and the old labels are
+ * dropped. Missing instances are decoded on a pool of daemon threads.
+ */
+public class DecodeCache
+{
+  /** Instances a thread takes at a time. */
+  private static final int BLOCK = 16;
+  /** Marks an instance that could not be decoded. */
+  private static final int[] FAILED = new int[0];
+
+  private final int numThreads;
+  private ExecutorService executor;
+
+  private CRF crf;
+  private int valueStamp, structureStamp, iteration;
+  private CompiledCRF model;
+  private final Map<Instance, int[]> labels = new IdentityHashMap<Instance, int[]>();
+  private long hits, decodes, compiles;
+
+  public DecodeCache(int numThreads)
+  {
+    this.numThreads = Math.max(1, numThreads);
+  }
+
+  /** The compiled model for the trainer's current weights. */
+  public synchronized CompiledCRF model(TransducerTrainer tt)
+  {
+    CRF current = (CRF) tt.getTransducer();
+    if (model == null || current != crf || current.getWeightsValueChangeStamp() != valueStamp
+        || current.getWeightsStructureChangeStamp() != structureStamp || tt.getIteration() != iteration) {
+      crf = current;
+      valueStamp = current.getWeightsValueChangeStamp();
+      structureStamp = current.getWeightsStructureChangeStamp();
+      iteration = tt.getIteration();
+      model = new CompiledCRF(current);
+      labels.clear();
+      compiles++;
+    }
+    return model;
+  }
+
+  /**
+   * The Viterbi labels of each instance of <code>data</code> under the
+   * trainer's current weights, decoding those not decoded yet; an
+   * instance that could not be decoded gets <code>null</code>. The arrays
+   * are shared and must not be changed.
+   */
+  public synchronized int[][] decode(TransducerTrainer tt, InstanceList data)
+  {
+    final CompiledCRF compiled = model(tt);
+    final int[][] result = new int[data.size()][];
+    final List<Integer> missing = new ArrayList<Integer>();
+    for (int i = 0; i < data.size(); i++) {
+      result[i] = labels.get(data.get(i));
+      if (result[i] == null)
+        missing.add(i);
+    }
+    hits += data.size() - missing.size();
+    decodes += missing.size();
+    if (!missing.isEmpty()) {
+      final InstanceList list = data;
+      final AtomicInteger next = new AtomicInteger();
+      int workers = Math.min(numThreads, (missing.size() + BLOCK - 1) / BLOCK);
+      Callable<Void> worker = new Callable<Void>() {
+        public Void call() {
+          ViterbiDecoder decoder = compiled.newViterbiDecoder();
+          int start;
+          while ((start = next.getAndAdd(BLOCK)) < missing.size()) {
+            int end = Math.min(missing.size(), start + BLOCK);
+            for (int k = start; k < end; k++) {
+              int i = missing.get(k);
+              Sequence input = (Sequence) list.get(i).getData();
+              int[] path = new int[input.size()];
+              result[i] = decoder.decode(input, path) ? path : FAILED;
+            }
+          }
+          return null;
+        }
+      };
+      if (workers <= 1)
+        call(worker);
+      else {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(workers);
+        for (int w = 0; w < workers; w++)
+          futures.add(executor().submit(worker));
+        for (Future<Void> future : futures)
+          get(future);
+      }
+      for (int i : missing)
+        labels.put(data.get(i), result[i]);
+    }
+    for (int i = 0; i < result.length; i++)
+      if (result[i] == FAILED)
+        result[i] = null;
+    return result;
+  }
+
+  /** Hit and decode counts, for logging. */
+  public synchronized String report()
+  {
+    return String.format("Decode cache: %d decodes, %d hits (%.1f%%), %d weight versions",
+        decodes, hits, 100.0 * hits / Math.max(1, hits + decodes), compiles);
+  }
+
+  private static void call(Callable<Void> task)
+  {
+    try {
+      task.call();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void get(Future<Void> future)
+  {
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private synchronized ExecutorService executor()
+  {
+    if (executor == null)
+      executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "crf-eval-" + count.getAndIncrement());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    return executor;
+  }
+}
@@ -0,0 +1,251 @@
+package crf.eval;
+
+/**
+ * The counts behind token accuracy, per-label precision, recall and F1,
+ * segment F1 and the confusion matrix, for the sequences added so far.
+ * Each thread of an evaluation fills its own counts, and they are then
+ * merged; nothing here is synchronized.
+ * <p>
+ * Labels are ids in the model's output alphabet; the id
+ * <code>numLabels</code> stands for gold labels the model does not know.
+ * A segment of type <em>k</em> starts at a token labeled start tag
+ * <em>k</em> and takes in the tokens labeled continue tag <em>k</em> that
+ * follow it; continue tags outside a segment of their type start nothing.
+ * A predicted segment is correct when a gold segment has the same type,
+ * start and end.
+ */
+public class EvaluationCounts
+{
+  private final int numLabels;
+  private final int numTypes;
+  /** The segment type each label starts or continues, or -1. */
+  private final int[] startType, continueType;
+
+  /** Gold label by predicted label, gold unknown labels last. */
+  private final long[] confusion;
+  private long sequences, failed, tokens, correct;
+  private final long[] goldSegments, predictedSegments, correctSegments;
+
+  // Scratch segments as start, end, type triples.
+  private int[] goldScratch = new int[48], predictedScratch = new int[48];
+
+  /**
+   * @param startType the segment type each label starts, or -1, by label id
+   * @param continueType the segment type each label continues, or -1
+   * @param numTypes the number of segment types
+   */
+  public EvaluationCounts(int numLabels, int[] startType, int[] continueType, int numTypes)
+  {
+    this.numLabels = numLabels;
+    this.startType = startType;
+    this.continueType = continueType;
+    this.numTypes = numTypes;
+    confusion = new long[(numLabels + 1) * numLabels];
+    goldSegments = new long[numTypes];
+    predictedSegments = new long[numTypes];
+    correctSegments = new long[numTypes];
+  }
+
+  /** Empty counts of the same labels and segment types. */
+  public EvaluationCounts newEmpty()
+  {
+    return new EvaluationCounts(numLabels, startType, continueType, numTypes);
+  }
+
+  /**
+   * Counts one sequence.
+   *
+   * @param gold its gold label ids
+   * @param predicted its predicted label ids, or <code>null</code> if it
+   * could not be decoded, which counts every token wrong
+   */
+  public void add(int[] gold, int[] predicted)
+  {
+    sequences++;
+    tokens += gold.length;
+    if (predicted == null) {
+      failed++;
+      goldScratch = segments(gold, goldScratch);
+      int n = goldScratch[goldScratch.length - 1];
+      for (int s = 0; s < n; s++)
+        goldSegments[goldScratch[3 * s + 2]]++;
+      return;
+    }
+    for (int t = 0; t < gold.length; t++) {
+      confusion[gold[t] * numLabels + predicted[t]]++;
+      if (gold[t] == predicted[t])
+        correct++;
+    }
+    if (numTypes == 0)
+      return;
+    goldScratch = segments(gold, goldScratch);
+    predictedScratch = segments(predicted, predictedScratch);
+    int[] g = goldScratch, p = predictedScratch;
+    int ng = g[g.length - 1], np = p[p.length - 1];
+    for (int s = 0; s < ng; s++)
+      goldSegments[g[3 * s + 2]]++;
+    for (int s = 0; s < np; s++)
+      predictedSegments[p[3 * s + 2]]++;
+    // Both lists are in order of start; segments of one labeling do not overlap.
+    for (int i = 0, j = 0; i < ng && j < np; ) {
+      if (g[3 * i] < p[3 * j])
+        i++;
+      else if (g[3 * i] > p[3 * j])
+        j++;
+      else {
+        if (g[3 * i + 1] == p[3 * j + 1] && g[3 * i + 2] == p[3 * j + 2])
+          correctSegments[g[3 * i + 2]]++;
+        i++;
+        j++;
+      }
+    }
+  }
+
+  /**
+   * Fills <code>buffer</code>, grown if need be, with the segments of
+   * <code>labels</code>, and stores their number in its last element.
+   */
+  private int[] segments(int[] labels, int[] buffer)
+  {
+    int n = 0, open = -1;
+    for (int t = 0; t <= labels.length; t++) {
+      int label = t < labels.length ? labels[t] : -1;
+      if (open >= 0 && label >= 0 && label < numLabels && continueType[label] == open)
+        continue;
+      if (open >= 0) {
+        buffer[3 * n + 1] = t;
+        n++;
+        open = -1;
+      }
+      if (label >= 0 && label < numLabels && startType[label] >= 0) {
+        if (3 * n + 4 > buffer.length) {
+          int[] grown = new int[2 * buffer.length];
+          System.arraycopy(buffer, 0, grown, 0, buffer.length);
+          buffer = grown;
+        }
+        open = startType[label];
+        buffer[3 * n] = t;
+        buffer[3 * n + 2] = open;
+      }
+    }
+    buffer[buffer.length - 1] = n;
+    return buffer;
+  }
+
+  /** Adds <code>other</code>'s counts to these. */
+  public void merge(EvaluationCounts other)
+  {
+    for (int i = 0; i < confusion.length; i++)
+      confusion[i] += other.confusion[i];
+    sequences += other.sequences;
+    failed += other.failed;
+    tokens += other.tokens;
+    correct += other.correct;
+    for (int k = 0; k < numTypes; k++) {
+      goldSegments[k] += other.goldSegments[k];
+      predictedSegments[k] += other.predictedSegments[k];
+      correctSegments[k] += other.correctSegments[k];
+    }
+  }
+
+  public int numLabels() { return numLabels; }
+
+  public int numSegmentTypes() { return numTypes; }
+
+  public long sequences() { return sequences; }
+
+  /** Sequences that could not be decoded. */
+  public long failed() { return failed; }
+
+  public long tokens() { return tokens; }
+
+  public long correctTokens() { return correct; }
+
+  public double accuracy()
+  {
+    return tokens == 0 ? 0 : correct / (double) tokens;
+  }
+
+  /** Tokens with gold label <code>gold</code> (or unknown, <code>numLabels</code>) predicted <code>predicted</code>. */
+  public long confusion(int gold, int predicted)
+  {
+    return confusion[gold * numLabels + predicted];
+  }
+
+  /** Tokens predicted <code>label</code>. */
+  public long predicted(int label)
+  {
+    long n = 0;
+    for (int g = 0; g <= numLabels; g++)
+      n += confusion[g * numLabels + label];
+    return n;
+  }
+
+  /** Decoded tokens whose gold label is <code>label</code>. */
+  public long gold(int label)
+  {
+    long n = 0;
+    for (int p = 0; p < numLabels; p++)
+      n += confusion[label * numLabels + p];
+    return n;
+  }
+
+  public double precision(int label)
+  {
+    return ratio(confusion(label, label), predicted(label));
+  }
+
+  public double recall(int label)
+  {
+    return ratio(confusion(label, label), gold(label));
+  }
+
+  public double f1(int label)
+  {
+    return f1(precision(label), recall(label));
+  }
+
+  public long goldSegments(int type) { return goldSegments[type]; }
+
+  public long predictedSegments(int type) { return predictedSegments[type]; }
+
+  public long correctSegments(int type) { return correctSegments[type]; }
+
+  public double segmentPrecision(int type)
+  {
+    return ratio(correctSegments[type], predictedSegments[type]);
+  }
+
+  public double segmentRecall(int type)
+  {
+    return ratio(correctSegments[type], goldSegments[type]);
+  }
+
+  public double segmentF1(int type)
+  {
+    return f1(segmentPrecision(type), segmentRecall(type));
+  }
+
+  /** Segment precision, recall and F1 over all types together, micro-averaged. */
+  public double[] overallSegments()
+  {
+    long gold = 0, predicted = 0, right = 0;
+    for (int k = 0; k < numTypes; k++) {
+      gold += goldSegments[k];
+      predicted += predictedSegments[k];
+      right += correctSegments[k];
+    }
+    double p = ratio(right, predicted), r = ratio(right, gold);
+    return new double[] { p, r, f1(p, r) };
+  }
+
+  static double ratio(long a, long b)
+  {
+    return b == 0 ? 0 : a / (double) b;
+  }
+
+  static double f1(double p, double r)
+  {
+    return p + r == 0 ? 0 : 2 * p * r / (p + r);
+  }
+}
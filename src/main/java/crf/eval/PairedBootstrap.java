@@ -0,0 +1,402 @@
+package crf.eval;
+
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.iterator.LineGroupIterator;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import crf.TaggerEngine;
+import crf.decode.CompiledCRF;
+import crf.decode.ViterbiDecoder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Paired bootstrap comparison of two models' segment F1 on the same
+ * labeled sentences: confidence intervals for each model's F1 and for
+ * their difference, and the significance of the difference.
+ * <p>
+ * Each model decodes the data once, and the gold, predicted and correct
+ * segments of every sentence under each are kept side by side as a tuple
+ * of six counts. Few sentences have counts no other sentence has, so each
+ * distinct tuple is stored once, in one <code>int</code> array, with the
+ * tuple of each sentence in another. A resample draws as many sentences
+ * as there are, with replacement, tallies how often each tuple is drawn
+ * and sums the counts, so both models are scored on the same draw.
+ * Resamples are run in blocks on a pool of threads; each block has its
+ * own random stream, seeded from the block number, so the result depends
+ * on the seed but not on the number of threads.
+ * <p>
+ * The p-value is two-sided: the share of resamples whose difference lies
+ * at least as far from the observed difference as the observed difference
+ * lies from zero (Berg-Kirkpatrick et al., 2012). Intervals are
+ * percentile intervals.
+ * <p>
+ * Usage: <code>PairedBootstrap model-a model-b test-file
+ * start-1.continue-1,...,start-n.continue-n [resamples [threads [seed]]]</code>,
+ * where the models are in any format {@link crf.Tagger} reads and the test
+ * file is in its format with a gold label ending each line.
+ */
+public class PairedBootstrap
+{
+  /** Sentences a decoding thread takes at a time. */
+  private static final int BLOCK = 16;
+  /** Resamples a thread takes at a time, each block with its own random stream. */
+  private static final int RESAMPLE_BLOCK = 32;
+  /** Fields per sentence: gold, predicted and correct segments under model a, then under model b. */
+  private static final int FIELDS = 6;
+  private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+  /** The result of {@link PairedBootstrap#resample}. */
+  public static class Result
+  {
+    public final int resamples;
+    /** F1 on the whole data. */
+    public final double f1A, f1B;
+    /** Resampled F1 of each model and of b minus a, sorted. */
+    private final double[] sampledA, sampledB, sampledDelta;
+    private final double pValue;
+
+    Result(double f1A, double f1B, double[] sampledA, double[] sampledB, double[] sampledDelta)
+    {
+      this.resamples = sampledDelta.length;
+      this.f1A = f1A;
+      this.f1B = f1B;
+      this.sampledA = sampledA;
+      this.sampledB = sampledB;
+      this.sampledDelta = sampledDelta;
+      double delta = f1B - f1A;
+      int extreme = 0;
+      for (double d : sampledDelta)
+        if (Math.abs(d - delta) >= Math.abs(delta))
+          extreme++;
+      pValue = (extreme + 1) / (double) (resamples + 1);
+      Arrays.sort(sampledA);
+      Arrays.sort(sampledB);
+      Arrays.sort(sampledDelta);
+    }
+
+    public double delta() { return f1B - f1A; }
+
+    /** Two-sided p-value of the difference. */
+    public double pValue() { return pValue; }
+
+    /** Lower and upper bound of model a's F1 at confidence <code>level</code>. */
+    public double[] intervalA(double level) { return interval(sampledA, level); }
+
+    public double[] intervalB(double level) { return interval(sampledB, level); }
+
+    /** Lower and upper bound of b's F1 minus a's. */
+    public double[] intervalDelta(double level) { return interval(sampledDelta, level); }
+
+    private static double[] interval(double[] sorted, double level)
+    {
+      double tail = (1 - level) / 2;
+      int low = (int) Math.floor(tail * sorted.length);
+      int high = (int) Math.ceil((1 - tail) * sorted.length) - 1;
+      return new double[] { sorted[Math.max(0, low)], sorted[Math.min(sorted.length - 1, high)] };
+    }
+  }
+
+  /** Each distinct tuple of a sentence's counts, <code>FIELDS</code> per tuple. */
+  private final int[] tuples;
+  /** Each sentence's tuple. */
+  private final int[] tupleOf;
+  private final int size;
+  private final int numThreads;
+
+  /**
+   * @param a the gold, predicted and correct segments of each sentence
+   * under model a, three per sentence, as from {@link #sentenceCounts}
+   * @param b the same under model b, for the same sentences
+   */
+  public PairedBootstrap(int[] a, int[] b, int numThreads)
+  {
+    if (a.length != b.length || a.length % 3 != 0)
+      throw new IllegalArgumentException("The two models' counts are not for the same sentences");
+    size = a.length / 3;
+    tupleOf = new int[size];
+    Map<List<Integer>, Integer> ids = new HashMap<List<Integer>, Integer>();
+    List<Integer> distinct = new ArrayList<Integer>();
+    for (int i = 0; i < size; i++) {
+      List<Integer> tuple = Arrays.asList(a[3 * i], a[3 * i + 1], a[3 * i + 2],
+          b[3 * i], b[3 * i + 1], b[3 * i + 2]);
+      Integer id = ids.get(tuple);
+      if (id == null) {
+        id = ids.size();
+        ids.put(tuple, id);
+        distinct.addAll(tuple);
+      }
+      tupleOf[i] = id;
+    }
+    tuples = new int[distinct.size()];
+    for (int k = 0; k < tuples.length; k++)
+      tuples[k] = distinct.get(k);
+    this.numThreads = Math.max(1, numThreads);
+  }
+
+  public int size() { return size; }
+
+  /** Runs <code>resamples</code> paired resamples, the random draws fixed by <code>seed</code>. */
+  public Result resample(final int resamples, final long seed)
+  {
+    final long[] total = new long[FIELDS];
+    sum(histogram(), total);
+    final double[] sampledA = new double[resamples], sampledB = new double[resamples];
+    final double[] sampledDelta = new double[resamples];
+    final AtomicInteger next = new AtomicInteger();
+    Callable<Void> worker = new Callable<Void>() {
+      public Void call() {
+        int[] drawn = new int[tuples.length / FIELDS];
+        long[] sums = new long[FIELDS];
+        int start;
+        while ((start = next.getAndAdd(RESAMPLE_BLOCK)) < resamples) {
+          long state = mix(seed + mix(start / RESAMPLE_BLOCK + 1));
+          for (int r = start; r < Math.min(resamples, start + RESAMPLE_BLOCK); r++) {
+            state = draw(state, drawn);
+            sum(drawn, sums);
+            sampledA[r] = f1(sums[0], sums[1], sums[2]);
+            sampledB[r] = f1(sums[3], sums[4], sums[5]);
+            sampledDelta[r] = sampledB[r] - sampledA[r];
+          }
+        }
+        return null;
+      }
+    };
+    run(worker, Math.min(numThreads, (resamples + RESAMPLE_BLOCK - 1) / RESAMPLE_BLOCK), "crf-bootstrap-");
+    return new Result(f1(total[0], total[1], total[2]), f1(total[3], total[4], total[5]),
+        sampledA, sampledB, sampledDelta);
+  }
+
+  /** How many sentences have each tuple. */
+  private int[] histogram()
+  {
+    int[] histogram = new int[tuples.length / FIELDS];
+    for (int i = 0; i < size; i++)
+      histogram[tupleOf[i]]++;
+    return histogram;
+  }
+
+  /**
+   * Draws <code>size</code> sentences with replacement from the SplitMix64
+   * stream at <code>state</code>, counting how often each tuple is drawn
+   * into <code>drawn</code>, and returns the new state. Sentences that
+   * share counts share a tuple, so the table counted into stays small.
+   */
+  private long draw(long state, int[] drawn)
+  {
+    Arrays.fill(drawn, 0);
+    final int[] tupleOf = this.tupleOf;
+    final long n = size;
+    // Each 64-bit value gives two draws, scaled from its halves.
+    for (int k = 0; k < size; k += 2) {
+      state += GOLDEN_GAMMA;
+      long z = mix(state);
+      drawn[tupleOf[(int) (((z >>> 32) * n) >>> 32)]]++;
+      if (k + 1 < size)
+        drawn[tupleOf[(int) (((z & 0xFFFFFFFFL) * n) >>> 32)]]++;
+    }
+    return state;
+  }
+
+  /** The counts of the sentences tallied in <code>drawn</code>, field by field. */
+  private void sum(int[] drawn, long[] sums)
+  {
+    Arrays.fill(sums, 0);
+    for (int j = 0; j < drawn.length; j++)
+      for (int f = 0; f < FIELDS; f++)
+        sums[f] += (long) drawn[j] * tuples[FIELDS * j + f];
+  }
+
+  private static long mix(long z)
+  {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  private static double f1(long gold, long predicted, long correct)
+  {
+    return EvaluationCounts.f1(EvaluationCounts.ratio(correct, predicted),
+        EvaluationCounts.ratio(correct, gold));
+  }
+
+  /**
+   * Decodes every instance of <code>data</code> with <code>model</code> on
+   * <code>numThreads</code> threads and returns the gold, predicted and
+   * correct segments of each, over all segment types, three per instance.
+   */
+  public static int[] sentenceCounts(final CompiledCRF model, final InstanceList data,
+      String[] startTags, String[] continueTags, int numThreads)
+  {
+    final int n = model.numLabels();
+    int[] startType = new int[n], continueType = new int[n];
+    final Map<String, Integer> labelIds = new HashMap<String, Integer>();
+    for (int l = 0; l < n; l++) {
+      startType[l] = indexOf(startTags, model.labelName(l));
+      continueType[l] = indexOf(continueTags, model.labelName(l));
+      labelIds.put(model.labelName(l), l);
+    }
+    final EvaluationCounts empty = new EvaluationCounts(n, startType, continueType, startTags.length);
+    final int[] result = new int[3 * data.size()];
+    final AtomicInteger next = new AtomicInteger();
+    Callable<Void> worker = new Callable<Void>() {
+      public Void call() {
+        ViterbiDecoder decoder = model.newViterbiDecoder();
+        EvaluationCounts counts = empty.newEmpty();
+        long[] before = new long[3], after = new long[3];
+        int start;
+        while ((start = next.getAndAdd(BLOCK)) < data.size()) {
+          for (int i = start; i < Math.min(data.size(), start + BLOCK); i++) {
+            Sequence input = (Sequence) data.get(i).getData();
+            Sequence target = (Sequence) data.get(i).getTarget();
+            int[] gold = new int[target.size()];
+            for (int t = 0; t < gold.length; t++) {
+              Integer id = labelIds.get(target.get(t).toString());
+              gold[t] = id == null ? n : id;
+            }
+            int[] path = new int[input.size()];
+            totals(counts, before);
+            counts.add(gold, decoder.decode(input, path) ? path : null);
+            totals(counts, after);
+            for (int f = 0; f < 3; f++)
+              result[3 * i + f] = (int) (after[f] - before[f]);
+          }
+        }
+        return null;
+      }
+    };
+    run(worker, Math.min(Math.max(1, numThreads), (data.size() + BLOCK - 1) / BLOCK), "crf-decode-");
+    return result;
+  }
+
+  /** Gold, predicted and correct segments over all types. */
+  private static void totals(EvaluationCounts counts, long[] totals)
+  {
+    Arrays.fill(totals, 0);
+    for (int k = 0; k < counts.numSegmentTypes(); k++) {
+      totals[0] += counts.goldSegments(k);
+      totals[1] += counts.predictedSegments(k);
+      totals[2] += counts.correctSegments(k);
+    }
+  }
+
+  private static int indexOf(String[] tags, String label)
+  {
+    for (int k = 0; k < tags.length; k++)
+      if (tags[k].equals(label))
+        return k;
+    return -1;
+  }
+
+  /** Runs <code>workers</code> copies of <code>worker</code>, on a pool of daemon threads if more than one. */
+  private static void run(Callable<Void> worker, int workers, final String threadName)
+  {
+    try {
+      if (workers <= 1) {
+        worker.call();
+        return;
+      }
+      ExecutorService executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, threadName + count.getAndIncrement());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      try {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(workers);
+        for (int w = 0; w < workers; w++)
+          futures.add(executor.submit(worker));
+        for (Future<Void> future : futures)
+          future.get();
+      } finally {
+        executor.shutdown();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static int[] decode(File modelFile, String testFile, String[] startTags, String[] continueTags,
+      int numThreads) throws IOException, ClassNotFoundException
+  {
+    TaggerEngine model = TaggerEngine.load(modelFile);
+    Pipe pipe = model.getPipe();
+    pipe.setTargetProcessing(true);
+    pipe.getDataAlphabet().stopGrowth();
+    InstanceList data = new InstanceList(pipe);
+    Reader in = new InputStreamReader(new FileInputStream(testFile), "UTF-8");
+    try {
+      data.addThruPipe(new LineGroupIterator(in, Pattern.compile("^\\s*$"), true));
+    } finally {
+      in.close();
+    }
+    return sentenceCounts(model.getModel(), data, startTags, continueTags, numThreads);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 4)
+      throw new IllegalArgumentException("Usage: PairedBootstrap model-a model-b test-file"
+          + " start-1.continue-1,...,start-n.continue-n [resamples [threads [seed]]]");
+    String[] pairs = args[3].split(",");
+    String[] startTags = new String[pairs.length], continueTags = new String[pairs.length];
+    for (int k = 0; k < pairs.length; k++) {
+      String[] pair = pairs[k].split("\\.");
+      if (pair.length != 2)
+        throw new IllegalArgumentException("Incorrectly-specified segment pair: " + pairs[k]);
+      startTags[k] = pair[0];
+      continueTags[k] = pair[1];
+    }
+    int resamples = args.length > 4 ? Integer.parseInt(args[4]) : 10000;
+    int threads = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+    long seed = args.length > 6 ? Long.parseLong(args[6]) : 1;
+    if (resamples < 1)
+      throw new IllegalArgumentException("Resamples must be positive: " + resamples);
+
+    long start = System.nanoTime();
+    int[] a = decode(new File(args[0]), args[2], startTags, continueTags, threads);
+    int[] b = decode(new File(args[1]), args[2], startTags, continueTags, threads);
+    PairedBootstrap bootstrap = new PairedBootstrap(a, b, threads);
+    System.out.printf("Decoded %d sentences with both models in %.1f s%n",
+        bootstrap.size(), (System.nanoTime() - start) / 1e9);
+
+    start = System.nanoTime();
+    Result result = bootstrap.resample(resamples, seed);
+    System.out.printf("%d paired resamples on %d threads in %.2f s%n",
+        resamples, threads, (System.nanoTime() - start) / 1e9);
+    double[] ciA = result.intervalA(0.95), ciB = result.intervalB(0.95);
+    double[] ciDelta = result.intervalDelta(0.95);
+    System.out.printf("Model a (%s): segment F1 %.4f, 95%% CI [%.4f, %.4f]%n",
+        args[0], result.f1A, ciA[0], ciA[1]);
+    System.out.printf("Model b (%s): segment F1 %.4f, 95%% CI [%.4f, %.4f]%n",
+        args[1], result.f1B, ciB[0], ciB[1]);
+    System.out.printf("Difference b - a: %+.4f, 95%% CI [%+.4f, %+.4f], p = %.4f (two-sided)%n",
+        result.delta(), ciDelta[0], ciDelta[1], result.pValue());
+  }
+}
@@ -0,0 +1,249 @@
+package crf.eval;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.TransducerEvaluator;
+import cc.mallet.fst.TransducerTrainer;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import cc.mallet.util.MalletLogger;
+import crf.decode.CompiledCRF;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Token accuracy, per-label precision, recall and F1, segment precision,
+ * recall and F1 for any number of start/continue tag pairs, and the
+ * confusion matrix, from one Viterbi decoding of each instance.
+ * <p>
+ * This takes the place of Mallet's <code>TokenAccuracyEvaluator</code>,
+ * <code>MultiSegmentationEvaluator</code> and
+ * <code>PerClassAccuracyEvaluator</code>, which each decode every instance
+ * again. Instances are decoded through a {@link DecodeCache}, on its
+ * threads, so other evaluators and writers given the same cache reuse the
+ * decodes of the same iteration. They are then counted on a pool of
+ * threads that take them in small blocks; each thread counts into its own
+ * {@link EvaluationCounts}, and these are merged at the end. The pools are
+ * kept for the evaluator's lifetime, as it runs every training iteration.
+ */
+public class ParallelEvaluator extends TransducerEvaluator
+{
+  private static Logger logger =
+    MalletLogger.getLogger(ParallelEvaluator.class.getName());
+
+  /** Instances a thread takes at a time. */
+  private static final int BLOCK = 16;
+
+  private final String[] startTags;
+  private final String[] continueTags;
+  private final int numThreads;
+  private ExecutorService executor;
+  private DecodeCache cache;
+  private final Map<String, EvaluationCounts> results = new HashMap<String, EvaluationCounts>();
+
+  /**
+   * @param startTags the tag that starts each segment type; none for token measures only
+   * @param continueTags the tag that continues each segment type
+   */
+  public ParallelEvaluator(InstanceList[] instanceLists, String[] descriptions,
+      String[] startTags, String[] continueTags, int numThreads)
+  {
+    super(instanceLists, descriptions);
+    if (startTags.length != continueTags.length)
+      throw new IllegalArgumentException("Start and continue tags differ in number");
+    this.startTags = startTags;
+    this.continueTags = continueTags;
+    this.numThreads = Math.max(1, numThreads);
+    this.cache = new DecodeCache(numThreads);
+  }
+
+  public ParallelEvaluator(InstanceList instanceList, String description, int numThreads)
+  {
+    this(new InstanceList[] {instanceList}, new String[] {description}, new String[0], new String[0],
+        numThreads);
+  }
+
+  /** Decodes through <code>cache</code>, shared with other evaluators, instead of a cache of its own. */
+  public void useCache(DecodeCache cache)
+  {
+    this.cache = cache;
+  }
+
+  /** The counts of the last evaluation of the list <code>description</code>, or <code>null</code>. */
+  public synchronized EvaluationCounts getCounts(String description)
+  {
+    return results.get(description);
+  }
+
+  @Override
+  public void evaluateInstanceList(TransducerTrainer tt, InstanceList data, String description)
+  {
+    if (!(tt.getTransducer() instanceof CRF)) {
+      logger.warning("Evaluation needs a CRF; skipping " + description);
+      return;
+    }
+    int[][] decoded = cache.decode(tt, data);
+    CompiledCRF model = cache.model(tt);
+    EvaluationCounts counts = count(model, data, decoded);
+    synchronized (this) {
+      results.put(description, counts);
+    }
+    log(model, counts, description);
+  }
+
+  /**
+   * Counts every instance of <code>data</code> against its labels in
+   * <code>decoded</code>, <code>null</code> for those that could not be decoded.
+   */
+  public EvaluationCounts count(final CompiledCRF model, final InstanceList data, final int[][] decoded)
+  {
+    final EvaluationCounts empty = newCounts(model);
+    final Map<String, Integer> labelIds = labelIds(model);
+    final AtomicInteger next = new AtomicInteger();
+    int workers = Math.min(numThreads, (data.size() + BLOCK - 1) / BLOCK);
+    if (workers <= 1)
+      return countBlocks(model, data, decoded, labelIds, empty.newEmpty(), next);
+    List<Future<EvaluationCounts>> futures = new ArrayList<Future<EvaluationCounts>>(workers);
+    for (int w = 0; w < workers; w++)
+      futures.add(executor().submit(new Callable<EvaluationCounts>() {
+        public EvaluationCounts call() {
+          return countBlocks(model, data, decoded, labelIds, empty.newEmpty(), next);
+        }
+      }));
+    EvaluationCounts total = empty;
+    for (Future<EvaluationCounts> future : futures) {
+      try {
+        total.merge(future.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+    return total;
+  }
+
+  private static EvaluationCounts countBlocks(CompiledCRF model, InstanceList data, int[][] decoded,
+      Map<String, Integer> labelIds, EvaluationCounts counts, AtomicInteger next)
+  {
+    int unknown = model.numLabels();
+    int start;
+    while ((start = next.getAndAdd(BLOCK)) < data.size()) {
+      int end = Math.min(data.size(), start + BLOCK);
+      for (int i = start; i < end; i++) {
+        Sequence target = (Sequence) data.get(i).getTarget();
+        int[] gold = new int[target.size()];
+        for (int t = 0; t < gold.length; t++) {
+          Integer id = labelIds.get(target.get(t).toString());
+          gold[t] = id == null ? unknown : id;
+        }
+        counts.add(gold, decoded[i]);
+      }
+    }
+    return counts;
+  }
+
+  private EvaluationCounts newCounts(CompiledCRF model)
+  {
+    int n = model.numLabels();
+    int[] startType = new int[n], continueType = new int[n];
+    for (int l = 0; l < n; l++) {
+      startType[l] = indexOf(startTags, model.labelName(l));
+      continueType[l] = indexOf(continueTags, model.labelName(l));
+    }
+    return new EvaluationCounts(n, startType, continueType, startTags.length);
+  }
+
+  private static Map<String, Integer> labelIds(CompiledCRF model)
+  {
+    Map<String, Integer> ids = new HashMap<String, Integer>();
+    for (int l = 0; l < model.numLabels(); l++)
+      ids.put(model.labelName(l), l);
+    return ids;
+  }
+
+  private static int indexOf(String[] tags, String label)
+  {
+    for (int k = 0; k < tags.length; k++)
+      if (tags[k].equals(label))
+        return k;
+    return -1;
+  }
+
+  private void log(CompiledCRF model, EvaluationCounts counts, String description)
+  {
+    logger.info(String.format("%s accuracy=%.4f (%d of %d tokens; %d of %d sequences not decoded)",
+        description, counts.accuracy(), counts.correctTokens(), counts.tokens(), counts.failed(),
+        counts.sequences()));
+    for (int l = 0; l < counts.numLabels(); l++)
+      logger.info(String.format("%s label %s precision=%.4f recall=%.4f f1=%.4f (gold %d, predicted %d)",
+          description, model.labelName(l), counts.precision(l), counts.recall(l), counts.f1(l),
+          counts.gold(l), counts.predicted(l)));
+    for (int k = 0; k < counts.numSegmentTypes(); k++)
+      logger.info(String.format("%s segments %s.%s precision=%.4f recall=%.4f f1=%.4f"
+          + " (gold %d, predicted %d, correct %d)", description, startTags[k], continueTags[k],
+          counts.segmentPrecision(k), counts.segmentRecall(k), counts.segmentF1(k),
+          counts.goldSegments(k), counts.predictedSegments(k), counts.correctSegments(k)));
+    if (counts.numSegmentTypes() > 0) {
+      double[] overall = counts.overallSegments();
+      logger.info(String.format("%s segmentation precision=%.4f recall=%.4f f1=%.4f",
+          description, overall[0], overall[1], overall[2]));
+    }
+    logger.info(description + " confusion matrix (rows gold, columns predicted):\n"
+        + confusionTable(model, counts));
+  }
+
+  private static String confusionTable(CompiledCRF model, EvaluationCounts counts)
+  {
+    int n = counts.numLabels();
+    boolean unknown = false;
+    for (int p = 0; p < n && !unknown; p++)
+      unknown = counts.confusion(n, p) > 0;
+    int rows = unknown ? n + 1 : n;
+    String[] names = new String[rows];
+    int width = 1;
+    for (int l = 0; l < rows; l++) {
+      names[l] = l < n ? model.labelName(l) : "(unknown)";
+      width = Math.max(width, names[l].length());
+    }
+    for (int g = 0; g < rows; g++)
+      for (int p = 0; p < n; p++)
+        width = Math.max(width, Long.toString(counts.confusion(g, p)).length());
+    String cell = " %" + width + "s";
+    StringBuilder table = new StringBuilder();
+    table.append(String.format("%" + width + "s", ""));
+    for (int p = 0; p < n; p++)
+      table.append(String.format(cell, names[p]));
+    for (int g = 0; g < rows; g++) {
+      table.append('\n').append(String.format("%" + width + "s", names[g]));
+      for (int p = 0; p < n; p++)
+        table.append(String.format(cell, counts.confusion(g, p)));
+    }
+    return table.toString();
+  }
+
+  private synchronized ExecutorService executor()
+  {
+    if (executor == null)
+      executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "crf-count-" + count.getAndIncrement());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    return executor;
+  }
+}
@@ -0,0 +1,142 @@
+package crf.eval;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.TransducerEvaluator;
+import cc.mallet.fst.TransducerTrainer;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import cc.mallet.types.TokenSequence;
+import cc.mallet.util.MalletLogger;
+import crf.decode.CompiledCRF;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the Viterbi path of every instance, in the format of Mallet's
+ * <code>ViterbiWriter</code>, to
+ * <em>prefix</em><em>description</em><em>iteration</em><code>.viterbi.gz</code>.
+ * <p>
+ * The paths come from a {@link DecodeCache}, so when an evaluator sharing
+ * the cache has run on the same iteration nothing is decoded again. The
+ * gzipped file is written on a background thread while training goes on;
+ * at most one file is in progress, so a write still running when the
+ * next is due is waited for. Call {@link #close()} to finish the last.
+ */
+public class ViterbiOutputWriter extends TransducerEvaluator
+{
+  private static Logger logger =
+    MalletLogger.getLogger(ViterbiOutputWriter.class.getName());
+
+  private final String prefix;
+  private final DecodeCache cache;
+  private final ExecutorService executor;
+  private Future<?> pending;
+
+  public ViterbiOutputWriter(String prefix, InstanceList[] instanceLists, String[] descriptions,
+      DecodeCache cache)
+  {
+    super(instanceLists, descriptions);
+    this.prefix = prefix;
+    this.cache = cache;
+    executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "crf-viterbi-writer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  @Override
+  public void evaluateInstanceList(TransducerTrainer tt, final InstanceList data, String description)
+  {
+    if (data == null)
+      return;
+    if (!(tt.getTransducer() instanceof CRF)) {
+      logger.warning("Viterbi output needs a CRF; skipping " + description);
+      return;
+    }
+    final int[][] paths = cache.decode(tt, data);
+    final CompiledCRF model = cache.model(tt);
+    final String file = prefix + description + tt.getIteration() + ".viterbi.gz";
+    final String name = description;
+    finish();
+    pending = executor.submit(new Runnable() {
+      public void run() {
+        try {
+          write(file, name, data, paths, model);
+        } catch (IOException e) {
+          logger.warning("Couldn't write Viterbi output file '" + file + "': " + e);
+        }
+      }
+    });
+  }
+
+  private static void write(String file, String description, InstanceList data, int[][] paths,
+      CompiledCRF model) throws IOException
+  {
+    Writer out = new BufferedWriter(new OutputStreamWriter(
+        new GZIPOutputStream(new FileOutputStream(file), 1 << 16), "UTF-8"), 1 << 16);
+    try {
+      for (int i = 0; i < data.size(); i++) {
+        out.write("Viterbi path for " + description + " instance #" + i + "\n");
+        Instance instance = data.get(i);
+        Sequence input = (Sequence) instance.getData();
+        Sequence target = (Sequence) instance.getTarget();
+        TokenSequence tokens = instance.getSource() instanceof TokenSequence
+          ? (TokenSequence) instance.getSource() : null;
+        if (paths[i] == null)
+          continue;
+        for (int t = 0; t < input.size(); t++) {
+          if (tokens != null)
+            out.write(tokens.get(t).getText() + ": ");
+          out.write(target.get(t).toString());
+          out.write('/');
+          out.write(model.labelName(paths[i][t]));
+          out.write("  ");
+          out.write(((FeatureVector) input.get(t)).toString(true));
+          out.write('\n');
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /** Waits for the file in progress, if any. */
+  private void finish()
+  {
+    if (pending == null)
+      return;
+    try {
+      pending.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      pending = null;
+    }
+  }
+
+  /** Finishes the file in progress and stops the writing thread. */
+  public void close()
+  {
+    finish();
+    executor.shutdown();
+  }
+}
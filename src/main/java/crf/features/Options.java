@@ -78,7 +78,7 @@ public class Options {
 
     public static final CommandOption.Integer cacheSizeOption = new CommandOption.Integer(
             cc.mallet.fst.SimpleTagger.class, "cache-size", "INTEGER", true, 100000,
-            "How much state information to memoize in n-best decoding", null);
+            "How much state information to memoize in n-best decoding with transducers other than CRFs", null);
 
     public static final CommandOption.Boolean includeInputOption = new CommandOption.Boolean(
             cc.mallet.fst.SimpleTagger.class, "include-input", "true|false", true, false,
@@ -90,7 +90,91 @@ public class Options {
 
     public static final CommandOption.Integer numThreads = new CommandOption.Integer(
             cc.mallet.fst.SimpleTagger.class, "threads", "INTEGER", true, 1,
-            "Number of threads to use for crf training.", null);
+            "Number of threads to use for crf training and tagging.", null);
+
+    public static final CommandOption.String schedulerOption = new CommandOption.String(
+            cc.mallet.fst.SimpleTagger.class, "scheduler", "bucketed|contiguous", true, "contiguous",
+            "How multi-threaded training hands instances to threads: length-bucketed work units or contiguous slices.", null);
+
+    public static final CommandOption.Boolean collapseDuplicatesOption = new CommandOption.Boolean(
+            cc.mallet.fst.SimpleTagger.class, "collapse-duplicates", "true|false", true, false,
+            "Whether to merge identical labeled training sentences into one weighted instance before training.", null);
+
+    public static final CommandOption.Integer beamOption = new CommandOption.Integer(
+            cc.mallet.fst.SimpleTagger.class, "beam", "INTEGER", true, 0,
+            "Keep only this many best states per position when tagging (approximate decoding); 0 decodes exactly.", null);
+
+    public static final CommandOption.Double beamThresholdOption = new CommandOption.Double(
+            cc.mallet.fst.SimpleTagger.class, "beam-threshold", "DECIMAL", true, Double.POSITIVE_INFINITY,
+            "With --beam, also drop states scoring more than this below the best state at their position.", null);
+
+    public static final CommandOption.Boolean marginalsOption = new CommandOption.Boolean(
+            cc.mallet.fst.SimpleTagger.class, "marginals", "true|false", true, false,
+            "Whether to print, after each token's label, the posterior probability of that label and the confidence of its segment.", null);
+
+    public static final CommandOption.Integer emissionCacheOption = new CommandOption.Integer(
+            cc.mallet.fst.SimpleTagger.class, "emission-cache", "INTEGER", true, 0,
+            "Cache the weight scores of up to this many distinct tokens across sentences when tagging and within each training pass; 0 disables.", null);
+
+    public static final CommandOption.Integer maxChunkOption = new CommandOption.Integer(
+            cc.mallet.fst.SimpleTagger.class, "max-chunk", "INTEGER", true, 0,
+            "Decode sequences longer than this many tokens in overlapping windows, in parallel; 0 decodes every sequence whole.", null);
+
+    public static final CommandOption.Integer overlapOption = new CommandOption.Integer(
+            cc.mallet.fst.SimpleTagger.class, "overlap", "INTEGER", true, 32,
+            "With --max-chunk, the number of tokens shared by adjacent windows (at most half the chunk size).", null);
+
+    public static final CommandOption.String outputFormatOption = new CommandOption.String(
+            cc.mallet.fst.SimpleTagger.class, "output-format", "FORMAT", true, "conll",
+            "How tagged sentences are written: conll (one line of labels per token), json (one JSON object per sentence) or binary (compact label ids).", null);
+
+    public static final CommandOption.File outputFileOption = new CommandOption.File(
+            cc.mallet.fst.SimpleTagger.class, "output-file", "FILENAME", true, null,
+            "Write tagged sentences to this file instead of standard output; a name ending in .gz is gzipped.", null);
+
+    public static final CommandOption.Boolean wikiDumpOption = new CommandOption.Boolean(
+            cc.mallet.fst.SimpleTagger.class, "wiki-dump", "true|false", true, false,
+            "When tagging, read the input as a Wikipedia XML dump (optionally .bz2 or .gz) and tag the sentences of its articles.", null);
+
+    public static final CommandOption.Integer serveOption = new CommandOption.Integer(
+            cc.mallet.fst.SimpleTagger.class, "serve", "PORT", true, 0,
+            "Instead of tagging files, load --model-file once and serve tagging requests over HTTP on this port until stopped; 0 does not serve.", null);
+
+    public static final CommandOption.String serveAddressOption = new CommandOption.String(
+            cc.mallet.fst.SimpleTagger.class, "serve-address", "HOST", true, "localhost",
+            "With --serve, the address to listen on.", null);
+
+    public static final CommandOption.Integer batchSizeOption = new CommandOption.Integer(
+            cc.mallet.fst.SimpleTagger.class, "batch-size", "INTEGER", true, 64,
+            "With --serve, the most sentences (from one or more requests) decoded together in one micro-batch.", null);
+
+    public static final CommandOption.Integer batchDelayOption = new CommandOption.Integer(
+            cc.mallet.fst.SimpleTagger.class, "batch-delay", "MILLISECONDS", true, 2,
+            "With --serve, how long a sentence may wait for others to join its micro-batch.", null);
+
+    public static final CommandOption.Integer watchModelOption = new CommandOption.Integer(
+            cc.mallet.fst.SimpleTagger.class, "watch-model", "SECONDS", true, 0,
+            "With --serve, check --model-file this often and swap in a changed model without stopping; 0 does not watch (POST /reload still reloads).", null);
+
+    public static final CommandOption.File modelDirOption = new CommandOption.File(
+            cc.mallet.fst.SimpleTagger.class, "model-dir", "DIRECTORY", true, null,
+            "With --serve, also serve the models in this directory by name (POST /tag?model=NAME), loading them on demand.", null);
+
+    public static final CommandOption.Integer modelBudgetOption = new CommandOption.Integer(
+            cc.mallet.fst.SimpleTagger.class, "model-budget", "MEGABYTES", true, 1024,
+            "With --model-dir, the estimated memory the loaded models may take before the least recently used are evicted.", null);
+
+    public static final CommandOption.File filterOption = new CommandOption.File(
+            cc.mallet.fst.SimpleTagger.class, "filter-file", "FILENAME", true, null,
+            "With --train, also train a sentence filter and write it here; when testing or tagging, skip the sentences it predicts have no values.", null);
+
+    public static final CommandOption.Double filterRecallOption = new CommandOption.Double(
+            cc.mallet.fst.SimpleTagger.class, "filter-recall", "DECIMAL", true, 0.99,
+            "With --train and --filter-file, the fraction of training sentences with values the filter must keep.", null);
+
+    public static final CommandOption.Double filterThresholdOption = new CommandOption.Double(
+            cc.mallet.fst.SimpleTagger.class, "filter-threshold", "DECIMAL", true, -1.0,
+            "With --filter-file, skip sentences the filter gives a lower probability than this; negative uses the trained threshold.", null);
 
     public static final CommandOption.List commandOptions =
             new CommandOption.List (
@@ -115,6 +199,27 @@ public class Options {
                             cacheSizeOption,
                             includeInputOption,
                             featureInductionOption,
-                            numThreads
+                            numThreads,
+                            schedulerOption,
+                            collapseDuplicatesOption,
+                            beamOption,
+                            beamThresholdOption,
+                            marginalsOption,
+                            emissionCacheOption,
+                            maxChunkOption,
+                            overlapOption,
+                            outputFormatOption,
+                            outputFileOption,
+                            wikiDumpOption,
+                            serveOption,
+                            serveAddressOption,
+                            batchSizeOption,
+                            batchDelayOption,
+                            watchModelOption,
+                            modelDirOption,
+                            modelBudgetOption,
+                            filterOption,
+                            filterRecallOption,
+                            filterThresholdOption
                     });
 }
@@ -0,0 +1,116 @@
+package crf.filter;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.TransducerEvaluator;
+import cc.mallet.fst.TransducerTrainer;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import cc.mallet.util.MalletLogger;
+import crf.decode.CompiledCRF;
+import crf.decode.ViterbiDecoder;
+
+import java.util.logging.Logger;
+
+/**
+ * Measures what a {@link SentenceFilter} costs in accuracy and buys in
+ * speed: decodes each instance list in full, and again with the filter
+ * labeling the sentences it rejects all default, and logs how many
+ * sentences were skipped, how many of the sentences and tokens with
+ * values were skipped, the token accuracy with and without the filter,
+ * and the decoding speedup.
+ * <p>
+ * Instances read through {@link SentenceFilter#keepInput} are scored from
+ * their text, as {@link SentenceFilter.Selection} scores sentences when
+ * tagging; others from their feature vectors, which score the same.
+ */
+public class FilterEvaluator extends TransducerEvaluator
+{
+  private static Logger logger =
+    MalletLogger.getLogger(FilterEvaluator.class.getName());
+
+  private final SentenceFilter filter;
+  private final String defaultLabel;
+
+  public FilterEvaluator(InstanceList[] instanceLists, String[] descriptions,
+      SentenceFilter filter, String defaultLabel)
+  {
+    super(instanceLists, descriptions);
+    this.filter = filter;
+    this.defaultLabel = defaultLabel;
+  }
+
+  public FilterEvaluator(InstanceList instanceList, String description,
+      SentenceFilter filter, String defaultLabel)
+  {
+    this(new InstanceList[] {instanceList}, new String[] {description}, filter, defaultLabel);
+  }
+
+  @Override
+  public void evaluateInstanceList(TransducerTrainer tt, InstanceList data, String description)
+  {
+    if (!(tt.getTransducer() instanceof CRF)) {
+      logger.warning("Filter evaluation needs a CRF; skipping " + description);
+      return;
+    }
+    CompiledCRF model = new CompiledCRF((CRF) tt.getTransducer());
+    ViterbiDecoder decoder = model.newViterbiDecoder();
+    int n = data.size();
+
+    int[][] labels = new int[n][];
+    long start = System.nanoTime();
+    for (int i = 0; i < n; i++)
+      labels[i] = decode(decoder, (Sequence) data.get(i).getData());
+    long fullTime = System.nanoTime() - start;
+
+    boolean[] skipped = new boolean[n];
+    for (int i = 0; i < n; i++)
+      skipped[i] = !filter.accepts(data.get(i), true);
+    start = System.nanoTime();
+    for (int i = 0; i < n; i++)
+      if (!skipped[i])
+        decode(decoder, (Sequence) data.get(i).getData());
+    long filteredTime = System.nanoTime() - start;
+
+    int numSkipped = 0, withValues = 0, withValuesSkipped = 0;
+    long tokens = 0, valueTokens = 0, valueTokensSkipped = 0, fullCorrect = 0, filteredCorrect = 0;
+    for (int i = 0; i < n; i++) {
+      Sequence target = (Sequence) data.get(i).getTarget();
+      boolean hasValue = SentenceFilter.hasValue(target, defaultLabel);
+      if (skipped[i])
+        numSkipped++;
+      if (hasValue) {
+        withValues++;
+        if (skipped[i])
+          withValuesSkipped++;
+      }
+      for (int t = 0; t < target.size(); t++) {
+        String gold = target.get(t).toString();
+        boolean correct = labels[i] != null && gold.equals(model.labelName(labels[i][t]));
+        tokens++;
+        if (!gold.equals(defaultLabel)) {
+          valueTokens++;
+          if (skipped[i])
+            valueTokensSkipped++;
+        }
+        if (correct)
+          fullCorrect++;
+        if (skipped[i] ? gold.equals(defaultLabel) : correct)
+          filteredCorrect++;
+      }
+    }
+    logger.info(String.format(
+        "%s filter threshold %.4f: skipped %d of %d sentences (%.1f%%); skipped %d of %d sentences"
+        + " with values (recall %.4f) and %d of %d value tokens", description, filter.getThreshold(),
+        numSkipped, n, 100.0 * numSkipped / Math.max(1, n), withValuesSkipped, withValues,
+        1 - withValuesSkipped / (double) Math.max(1, withValues), valueTokensSkipped, valueTokens));
+    logger.info(String.format("%s filtered accuracy %.4f (unfiltered %.4f), decoding speedup %.2fx",
+        description, filteredCorrect / (double) Math.max(1, tokens),
+        fullCorrect / (double) Math.max(1, tokens), fullTime / (double) Math.max(1, filteredTime)));
+  }
+
+  private static int[] decode(ViterbiDecoder decoder, Sequence input)
+  {
+    int[] labels = new int[input.size()];
+    return decoder.decode(input, labels) ? labels : null;
+  }
+}
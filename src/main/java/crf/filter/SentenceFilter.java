@@ -0,0 +1,556 @@
+package crf.filter;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import cc.mallet.util.MalletLogger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * A cheap first stage in front of the CRF: a logistic regression over the
+ * bag of a sentence's feature names that predicts whether any of its
+ * tokens has a label other than the default. Sentences it rejects are
+ * labeled all default without being featurized or decoded.
+ * <p>
+ * Feature names are hashed into a fixed number of weights, so a sentence
+ * is scored straight from its text, with no alphabet lookups and no
+ * strings made; a name hashes the same whether it comes from a data line,
+ * a feature row or a featurized {@link Sequence}. A sentence counts what
+ * featurizing it would keep: each name once per token, and only names in
+ * the model's data alphabet, which the filter holds as a table of 64-bit
+ * name hashes. So a sentence scores the same before piping, when it is
+ * filtered, and after, when the filter is trained and its threshold set.
+ * Counts are scaled by one over the square root of the sentence's feature
+ * count, so long and short sentences score on the same scale.
+ * <p>
+ * The filter is trained on the CRF's training data, and its threshold
+ * then set to the highest that keeps a given fraction (the recall) of the
+ * sentences that have a value; a lower threshold skips fewer sentences
+ * and misses fewer values, a higher one skips more.
+ */
+public class SentenceFilter implements Serializable
+{
+  private static final long serialVersionUID = 2L;
+
+  private static Logger logger = MalletLogger.getLogger(SentenceFilter.class.getName());
+
+  public static final int DEFAULT_BITS = 18;
+
+  /**
+   * The instance property that {@link #keepInput} stores an instance's
+   * data in as read, so the filter can score it after piping as it did
+   * before.
+   */
+  public static final String INPUT_PROPERTY = "SentenceFilter.input";
+
+  private static final int FNV_BASIS = 0x811C9DC5, FNV_PRIME = 0x01000193;
+
+  private final float[] weights;
+  private final int mask;
+  private float bias;
+  private double threshold = 0.5;
+  /** The 64-bit hashes of the model's feature names, by open addressing; 0 marks an empty slot. */
+  private long[] features;
+
+  public SentenceFilter(int bits)
+  {
+    weights = new float[1 << bits];
+    mask = weights.length - 1;
+  }
+
+  /** The probability below which a sentence is skipped. */
+  public double getThreshold() { return threshold; }
+
+  public void setThreshold(double threshold)
+  {
+    this.threshold = threshold;
+  }
+
+  /**
+   * Counts only the feature names in <code>dataAlphabet</code>, the
+   * model's, as featurizing does once its growth is stopped. Until this is
+   * set, every name counts.
+   */
+  public void setFeatures(Alphabet dataAlphabet)
+  {
+    int size = Integer.highestOneBit(Math.max(1, dataAlphabet.size()) * 2) * 2;
+    features = new long[size];
+    for (int i = 0; i < dataAlphabet.size(); i++) {
+      long key = key(dataAlphabet.lookupObject(i).toString());
+      int slot = spread(key) & (size - 1);
+      while (features[slot] != 0 && features[slot] != key)
+        slot = (slot + 1) & (size - 1);
+      features[slot] = key;
+    }
+  }
+
+  /**
+   * The probability that the sentence in <code>text</code>, data lines of
+   * space-separated features, has a value. Lines and fields are split as
+   * {@link crf.features.SimpleTaggerSentence2FeatureVectorSequence} splits
+   * them.
+   *
+   * @param labeled whether the last field of each line is a label, not a feature
+   */
+  public double probability(String text, boolean labeled)
+  {
+    Tally tally = new Tally();
+    int n = text.length();
+    while (n > 0 && text.charAt(n - 1) == '\n')
+      n--;
+    int i = 0;
+    while (i < n) {
+      int lineEnd = text.indexOf('\n', i);
+      if (lineEnd < 0 || lineEnd > n)
+        lineEnd = n;
+      // Trailing spaces end no fields; spaces in a row between fields make empty ones.
+      int end = lineEnd;
+      while (end > i && text.charAt(end - 1) == ' ')
+        end--;
+      tally.startToken();
+      int j = i;
+      while (j < end) {
+        int hash = 0, fnv = FNV_BASIS;
+        while (j < end && text.charAt(j) != ' ') {
+          char c = text.charAt(j++);
+          hash = 31 * hash + c;
+          fnv = (fnv ^ c) * FNV_PRIME;
+        }
+        if (!labeled || j < end)
+          tally.add(hash, key(hash, fnv));
+        j++;
+      }
+      i = lineEnd + 1;
+    }
+    return sigmoid(tally.sum, tally.count);
+  }
+
+  /**
+   * The probability that a sentence with these feature rows, one per
+   * token, has a value.
+   *
+   * @param labeled whether the last element of each row is a label, not a feature
+   */
+  public double probability(String[][] rows, boolean labeled)
+  {
+    Tally tally = new Tally();
+    for (String[] row : rows) {
+      tally.startToken();
+      for (int f = 0; f < (labeled ? row.length - 1 : row.length); f++)
+        tally.add(row[f].hashCode(), key(row[f]));
+    }
+    return sigmoid(tally.sum, tally.count);
+  }
+
+  /** The probability that the featurized sentence <code>input</code> has a value. */
+  public double probability(Sequence input)
+  {
+    Tally tally = new Tally();
+    for (int t = 0; t < input.size(); t++) {
+      FeatureVector fv = (FeatureVector) input.get(t);
+      Alphabet alphabet = fv.getAlphabet();
+      tally.startToken();
+      for (int k = 0; k < fv.numLocations(); k++) {
+        String name = alphabet.lookupObject(fv.indexAtLocation(k)).toString();
+        tally.add(name.hashCode(), key(name));
+      }
+    }
+    return sigmoid(tally.sum, tally.count);
+  }
+
+  /**
+   * The probability for an instance holding a data string, feature rows
+   * or a sequence. An instance read through {@link #keepInput} is scored
+   * from its data as read, whether or not it has been piped since.
+   */
+  public double probability(Instance instance, boolean labeled)
+  {
+    Object data = instance.getProperty(INPUT_PROPERTY);
+    if (data == null)
+      data = instance.getData();
+    if (data instanceof String)
+      return probability((String) data, labeled);
+    else if (data instanceof String[][])
+      return probability((String[][]) data, labeled);
+    else
+      return probability((Sequence) data);
+  }
+
+  /** Whether the sentence is kept; see {@link #probability(Instance, boolean)}. */
+  public boolean accepts(Instance instance, boolean labeled)
+  {
+    return probability(instance, labeled) >= threshold;
+  }
+
+  /**
+   * Passes on the instances of a stream with their data also stored in
+   * the {@link #INPUT_PROPERTY} property, for a filter to score the
+   * instances later as it would have before they were piped.
+   */
+  public static Iterator<Instance> keepInput(final Iterator<Instance> instances)
+  {
+    return new Iterator<Instance>() {
+      public boolean hasNext() { return instances.hasNext(); }
+
+      public Instance next()
+      {
+        Instance instance = instances.next();
+        instance.setProperty(INPUT_PROPERTY, instance.getData());
+        return instance;
+      }
+
+      public void remove() { throw new UnsupportedOperationException(); }
+    };
+  }
+
+  /** The weighted sum and count of a sentence's features, each counted once per token. */
+  private class Tally
+  {
+    double sum;
+    int count;
+    private long[] seen = new long[16];
+    private int numSeen;
+
+    void startToken()
+    {
+      numSeen = 0;
+    }
+
+    /** Counts the feature whose name has these hashes, unless the model lacks it or the token has it. */
+    void add(int hash, long key)
+    {
+      if (!isFeature(key))
+        return;
+      for (int k = 0; k < numSeen; k++)
+        if (seen[k] == key)
+          return;
+      if (numSeen == seen.length)
+        seen = Arrays.copyOf(seen, 2 * numSeen);
+      seen[numSeen++] = key;
+      sum += weights[bucket(hash)];
+      count++;
+    }
+  }
+
+  private boolean isFeature(long key)
+  {
+    if (features == null)
+      return true;
+    int size = features.length;
+    for (int slot = spread(key) & (size - 1); features[slot] != 0; slot = (slot + 1) & (size - 1))
+      if (features[slot] == key)
+        return true;
+    return false;
+  }
+
+  /** The name's <code>String</code> hash and 32-bit FNV-1a hash, together; never 0. */
+  private static long key(int hash, int fnv)
+  {
+    long key = (long) hash << 32 | (fnv & 0xFFFFFFFFL);
+    return key == 0 ? 1 : key;
+  }
+
+  private static long key(String name)
+  {
+    int fnv = FNV_BASIS;
+    for (int i = 0; i < name.length(); i++)
+      fnv = (fnv ^ name.charAt(i)) * FNV_PRIME;
+    return key(name.hashCode(), fnv);
+  }
+
+  private static int spread(long key)
+  {
+    int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private double sigmoid(double sum, int count)
+  {
+    double z = bias + (count == 0 ? 0 : sum / Math.sqrt(count));
+    return 1 / (1 + Math.exp(-z));
+  }
+
+  private int bucket(int hash)
+  {
+    int h = hash * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  /**
+   * Trains a filter on featurized, labeled <code>data</code> by
+   * stochastic gradient descent on the L2-regularized log loss, and sets
+   * its threshold to keep <code>recall</code> of the sentences with a
+   * value. With enough data, a fifth of it is held out of training to set
+   * the threshold on, since on the training sentences themselves the
+   * filter's recall is optimistic. The filter counts only the feature
+   * names in the alphabet of <code>data</code>, which should be the model's.
+   *
+   * @param defaultLabel the label of tokens without a value
+   */
+  public static SentenceFilter train(InstanceList data, String defaultLabel, double recall,
+      int epochs, long seed)
+  {
+    SentenceFilter filter = new SentenceFilter(DEFAULT_BITS);
+    filter.setFeatures(data.getDataAlphabet());
+    int n = data.size();
+    int[][] buckets = new int[n][];
+    boolean[] positive = new boolean[n];
+    double[] instanceWeight = new double[n];
+    int positives = 0;
+    for (int i = 0; i < n; i++) {
+      Instance instance = data.get(i);
+      buckets[i] = filter.buckets((Sequence) instance.getData());
+      positive[i] = hasValue((Sequence) instance.getTarget(), defaultLabel);
+      instanceWeight[i] = data.getInstanceWeight(i);
+      if (positive[i])
+        positives++;
+    }
+    Random random = new Random(seed);
+    boolean[] heldOut = new boolean[n];
+    int numHeldOut = 0;
+    if (n >= 100)
+      for (int i = 0; i < n; i++)
+        if (heldOut[i] = random.nextInt(5) == 0)
+          numHeldOut++;
+    if (positives == 0 || positives == n) {
+      logger.warning("Sentence filter: training sentences are all " + (positives == 0 ? "without" : "with")
+          + " values; it will keep every sentence");
+      filter.threshold = 0;
+      return filter;
+    }
+    // Weigh the classes equally, since sentences without values are the great majority.
+    double positiveWeight = n / (2.0 * positives), negativeWeight = n / (2.0 * (n - positives));
+    double lambda = 1e-6;
+    int[] order = new int[n - numHeldOut];
+    for (int i = 0, k = 0; i < n; i++)
+      if (!heldOut[i])
+        order[k++] = i;
+    for (int epoch = 0; epoch < epochs; epoch++) {
+      double rate = 0.5 / (1 + epoch);
+      for (int i = order.length - 1; i > 0; i--) {
+        int j = random.nextInt(i + 1);
+        int swap = order[i];
+        order[i] = order[j];
+        order[j] = swap;
+      }
+      double loss = 0;
+      for (int k = 0; k < order.length; k++) {
+        int i = order[k];
+        int[] b = buckets[i];
+        double scale = b.length == 0 ? 0 : 1 / Math.sqrt(b.length);
+        double sum = 0;
+        for (int f : b)
+          sum += filter.weights[f];
+        double p = 1 / (1 + Math.exp(-(filter.bias + sum * scale)));
+        double weight = instanceWeight[i] * (positive[i] ? positiveWeight : negativeWeight);
+        double gradient = weight * ((positive[i] ? 1 : 0) - p);
+        loss -= weight * Math.log(Math.max(1e-12, positive[i] ? p : 1 - p));
+        filter.bias += rate * gradient;
+        float step = (float) (rate * gradient * scale);
+        for (int f : b)
+          filter.weights[f] += step - rate * lambda * filter.weights[f];
+      }
+      logger.fine(String.format("Sentence filter epoch %d: loss %.4f", epoch, loss / order.length));
+    }
+    boolean[] calibration = new boolean[n];
+    for (int i = 0; i < n; i++)
+      calibration[i] = numHeldOut == 0 || heldOut[i];
+    double[] probabilities = new double[n];
+    for (int i = 0; i < n; i++)
+      if (calibration[i])
+        probabilities[i] = filter.probability((Sequence) data.get(i).getData());
+    filter.calibrate(probabilities, positive, instanceWeight, calibration, recall);
+    return filter;
+  }
+
+  /**
+   * Sets the threshold to the highest that keeps at least
+   * <code>recall</code> of the sentences of <code>data</code> that have a
+   * value, and logs the fraction of sentences it skips.
+   */
+  public void calibrate(InstanceList data, String defaultLabel, double recall)
+  {
+    int n = data.size();
+    double[] probabilities = new double[n];
+    boolean[] positive = new boolean[n];
+    double[] weights = new double[n];
+    boolean[] used = new boolean[n];
+    for (int i = 0; i < n; i++) {
+      Instance instance = data.get(i);
+      probabilities[i] = probability((Sequence) instance.getData());
+      positive[i] = hasValue((Sequence) instance.getTarget(), defaultLabel);
+      weights[i] = data.getInstanceWeight(i);
+      used[i] = true;
+    }
+    calibrate(probabilities, positive, weights, used, recall);
+  }
+
+  private void calibrate(double[] probabilities, boolean[] positive, double[] weights, boolean[] used,
+      double recall)
+  {
+    // The positive sentences by probability, with their cumulative weight.
+    int numPositive = 0;
+    for (int i = 0; i < used.length; i++)
+      if (used[i] && positive[i])
+        numPositive++;
+    if (numPositive == 0)
+      return;
+    Integer[] order = new Integer[numPositive];
+    double total = 0;
+    for (int i = 0, k = 0; i < used.length; i++)
+      if (used[i] && positive[i]) {
+        order[k++] = i;
+        total += weights[i];
+      }
+    final double[] p = probabilities;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Double.compare(p[a], p[b]);
+      }
+    });
+    // Raise the threshold past the least likely positives while they weigh less than 1 - recall.
+    double allowed = (1 - recall) * total, missed = 0;
+    int k = 0;
+    while (k < numPositive - 1 && missed + weights[order[k]] <= allowed)
+      missed += weights[order[k++]];
+    threshold = p[order[k]];
+    double skipped = 0, all = 0;
+    for (int i = 0; i < used.length; i++)
+      if (used[i]) {
+        all += weights[i];
+        if (p[i] < threshold)
+          skipped += weights[i];
+      }
+    logger.info(String.format("Sentence filter threshold %.4f keeps %.2f%% of the sentences with values"
+        + " and skips %.1f%% of all sentences", threshold, 100 * (1 - missed / total), 100 * skipped / all));
+  }
+
+  /**
+   * The weight indices of the features of <code>input</code>, one per
+   * token that has the feature, as {@link #probability(Sequence)} counts them.
+   */
+  private int[] buckets(Sequence input)
+  {
+    int count = 0;
+    for (int t = 0; t < input.size(); t++)
+      count += ((FeatureVector) input.get(t)).numLocations();
+    int[] b = new int[count];
+    int k = 0;
+    for (int t = 0; t < input.size(); t++) {
+      FeatureVector fv = (FeatureVector) input.get(t);
+      for (int l = 0; l < fv.numLocations(); l++)
+        b[k++] = bucket(fv.getAlphabet().lookupObject(fv.indexAtLocation(l)).hashCode());
+    }
+    return b;
+  }
+
+  /** Whether <code>target</code> has a label other than <code>defaultLabel</code>. */
+  public static boolean hasValue(Sequence target, String defaultLabel)
+  {
+    for (int t = 0; t < target.size(); t++)
+      if (!defaultLabel.equals(target.get(t).toString()))
+        return true;
+    return false;
+  }
+
+  public void write(File file) throws IOException
+  {
+    ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+    try {
+      out.writeObject(this);
+    } finally {
+      out.close();
+    }
+  }
+
+  public static SentenceFilter read(File file) throws IOException, ClassNotFoundException
+  {
+    ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
+    try {
+      return (SentenceFilter) in.readObject();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Passes on the instances of a stream that the filter accepts, before
+   * they are piped. The skipped instances, unpiped, wait in input order
+   * until {@link #pollSkipped} takes them, so their output can be written
+   * in place; only those read ahead of the next kept instance are held.
+   */
+  public static class Selection implements Iterator<Instance>
+  {
+    private final SentenceFilter filter;
+    private final Iterator<Instance> instances;
+    private final boolean labeled;
+    private final ArrayDeque<Instance> skipped = new ArrayDeque<Instance>();
+    private Instance next;
+    private int count, numSkipped;
+
+    public Selection(SentenceFilter filter, Iterator<Instance> instances, boolean labeled)
+    {
+      this.filter = filter;
+      this.instances = instances;
+      this.labeled = labeled;
+    }
+
+    public boolean hasNext()
+    {
+      while (next == null && instances.hasNext()) {
+        Instance instance = instances.next();
+        if (filter.accepts(instance, labeled))
+          next = instance;
+        else {
+          skipped.add(instance);
+          numSkipped++;
+        }
+        count++;
+      }
+      return next != null;
+    }
+
+    public Instance next()
+    {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      Instance instance = next;
+      next = null;
+      return instance;
+    }
+
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    /** How many sentences were read, kept or skipped. */
+    public int size() { return count; }
+
+    /** How many of those sentences were skipped. */
+    public int numSkipped() { return numSkipped; }
+
+    /**
+     * The oldest skipped sentence, unpiped, not yet taken, or
+     * <code>null</code>. Sentences skipped before an instance returned by
+     * {@link #next} come before it in input order.
+     */
+    public Instance pollSkipped() { return skipped.poll(); }
+  }
+}
@@ -0,0 +1,106 @@
+package crf.lattice;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.iterator.LineGroupIterator;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import cc.mallet.types.SparseVector;
+
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Times the ways of scoring a token's weight sets on a real model and
+ * data: Mallet's per-weight-set <code>SparseVector.dotProduct</code>, and
+ * {@link EmissionKernel}'s one-row-at-a-time and four-rows-at-a-time
+ * kernels. Also checks that all three produce identical scores.
+ * <p>
+ * Usage: <code>EmissionBenchmark model-file data-file [rounds]</code>,
+ * where the data file is in the format read by {@link crf.Tagger}.
+ */
+public class EmissionBenchmark
+{
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 2)
+      throw new IllegalArgumentException("Usage: EmissionBenchmark model-file data-file [rounds]");
+    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+    ObjectInputStream s = new ObjectInputStream(new FileInputStream(args[0]));
+    CRF crf = (CRF) s.readObject();
+    s.close();
+    Pipe p = crf.getInputPipe();
+    p.setTargetProcessing(false);
+    p.getDataAlphabet().stopGrowth();
+    InstanceList data = new InstanceList(p);
+    data.addThruPipe(new LineGroupIterator(new FileReader(args[1]), Pattern.compile("^\\s*$"), true));
+    List<FeatureVector> tokens = new ArrayList<FeatureVector>();
+    long locations = 0;
+    for (int i = 0; i < data.size(); i++) {
+      Sequence input = (Sequence) data.get(i).getData();
+      for (int t = 0; t < input.size(); t++) {
+        tokens.add((FeatureVector) input.get(t));
+        locations += ((FeatureVector) input.get(t)).numLocations();
+      }
+    }
+
+    CRF.Factors parameters = crf.getParameters();
+    EmissionKernel kernel = new EmissionKernel(parameters, crf.getInputAlphabet().size(), true);
+    int numWeights = kernel.numWeights();
+    System.out.printf("%d tokens, %.1f active features per token, %d weight sets, %d feature rows%n",
+        tokens.size(), locations / (double) Math.max(1, tokens.size()), numWeights, kernel.numRows());
+
+    double[] a = new double[numWeights], b = new double[numWeights], c = new double[numWeights];
+    int mismatches = 0;
+    for (FeatureVector fv : tokens) {
+      sparse(parameters, fv, a);
+      kernel.scoreScalar(fv, b);
+      kernel.score(fv, c);
+      if (!Arrays.equals(a, b) || !Arrays.equals(b, c))
+        mismatches++;
+    }
+    System.out.println("Tokens with differing scores: " + mismatches + " of " + tokens.size());
+
+    double sink = 0;
+    for (int r = 0; r < rounds; r++) {
+      long start = System.nanoTime();
+      for (FeatureVector fv : tokens) {
+        sparse(parameters, fv, a);
+        sink += a[0];
+      }
+      long sparse = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (FeatureVector fv : tokens) {
+        kernel.scoreScalar(fv, a);
+        sink += a[0];
+      }
+      long scalar = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (FeatureVector fv : tokens) {
+        kernel.score(fv, a);
+        sink += a[0];
+      }
+      long unrolled = System.nanoTime() - start;
+      int n = Math.max(1, tokens.size());
+      System.out.printf("Round %d: sparse %.0f ns/token, scalar %.0f ns/token, unrolled %.0f ns/token (%.2fx over scalar, %.2fx over sparse)%n",
+          r, sparse / (double) n, scalar / (double) n, unrolled / (double) n,
+          scalar / (double) unrolled, sparse / (double) unrolled);
+    }
+    if (sink == 42)
+      System.out.println();
+  }
+
+  private static void sparse(CRF.Factors parameters, FeatureVector fv, double[] out)
+  {
+    SparseVector[] weights = parameters.weights;
+    for (int w = 0; w < weights.length; w++)
+      out[w] = weights[w].dotProduct(fv) + parameters.defaultWeights[w];
+  }
+}
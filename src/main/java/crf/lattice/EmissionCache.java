@@ -0,0 +1,241 @@
+package crf.lattice;
+
+import cc.mallet.types.FeatureVector;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread-safe map from a token's {@link FeatureVector} to its
+ * weight-set scores, so tokens that recur across sentences (function
+ * words, punctuation, infobox field names) are scored once.
+ * <p>
+ * Keys are the feature indices and values of the vector, compared
+ * exactly; lookups wrap the vector's own arrays, and only inserts copy
+ * them. Entries live in a fixed number of segments, each a
+ * least-recently-used {@link LinkedHashMap} under its own lock, so
+ * threads decoding different tokens rarely contend. Hits, misses and
+ * evictions are counted so the cache can be sized from
+ * {@link #report()}.
+ */
+public class EmissionCache
+{
+  private static final int SEGMENTS = 16;
+
+  private final int numWeights;
+  private final int capacity;
+  private final Segment[] segments;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong keyBytes = new AtomicLong();
+
+  /**
+   * @param capacity maximum number of feature vectors kept
+   * @param numWeights length of each cached score array
+   */
+  public EmissionCache(int capacity, int numWeights)
+  {
+    if (capacity < 1)
+      throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+    this.capacity = capacity;
+    this.numWeights = numWeights;
+    int numSegments = Math.min(SEGMENTS, capacity);
+    segments = new Segment[numSegments];
+    for (int i = 0; i < numSegments; i++)
+      segments[i] = new Segment(capacity / numSegments + (i < capacity % numSegments ? 1 : 0));
+  }
+
+  private Segment segmentFor(int hash)
+  {
+    return segments[((hash ^ (hash >>> 16)) & 0x7fffffff) % segments.length];
+  }
+
+  /**
+   * Copies the cached scores of <code>fv</code> into <code>out</code>.
+   *
+   * @return whether <code>fv</code> was cached
+   */
+  public boolean get(FeatureVector fv, double[] out)
+  {
+    Key probe = Key.wrap(fv);
+    Segment segment = segmentFor(probe.hash);
+    double[] scores;
+    synchronized (segment) {
+      scores = segment.get(probe);
+      if (scores != null)
+        System.arraycopy(scores, 0, out, 0, numWeights);
+    }
+    if (scores == null) {
+      misses.incrementAndGet();
+      return false;
+    }
+    hits.incrementAndGet();
+    return true;
+  }
+
+  /** Caches a copy of <code>scores</code> as the scores of <code>fv</code>. */
+  public void put(FeatureVector fv, double[] scores)
+  {
+    Key key = Key.copy(fv);
+    Segment segment = segmentFor(key.hash);
+    double[] copy = Arrays.copyOf(scores, numWeights);
+    synchronized (segment) {
+      if (segment.put(key, copy) == null)
+        keyBytes.addAndGet(key.bytes());
+    }
+  }
+
+  /** Drops all entries, e.g. because the weights changed. Counters are kept. */
+  public void clear()
+  {
+    for (Segment segment : segments)
+      synchronized (segment) {
+        segment.clear();
+      }
+    keyBytes.set(0);
+  }
+
+  public int capacity() { return capacity; }
+
+  public int size()
+  {
+    int size = 0;
+    for (Segment segment : segments)
+      synchronized (segment) {
+        size += segment.size();
+      }
+    return size;
+  }
+
+  public long hits() { return hits.get(); }
+
+  public long misses() { return misses.get(); }
+
+  public long evictions() { return evictions.get(); }
+
+  public double hitRate()
+  {
+    long h = hits.get(), total = h + misses.get();
+    return total == 0 ? 0 : h / (double) total;
+  }
+
+  /**
+   * Approximate heap footprint of the entries: score arrays, key arrays
+   * and per-entry object overhead.
+   */
+  public long memoryBytes()
+  {
+    int size = size();
+    return size * (16L + 8L * numWeights + 32 + 48) + keyBytes.get();
+  }
+
+  public String report()
+  {
+    return String.format("Emission cache: %d/%d entries, %.1f%% hit rate (%d hits, %d misses), %d evictions, ~%.1f MB",
+        size(), capacity, 100 * hitRate(), hits(), misses(), evictions(), memoryBytes() / 1048576.0);
+  }
+
+  private class Segment extends LinkedHashMap<Key, double[]>
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final int limit;
+
+    Segment(int limit)
+    {
+      super(16, 0.75f, true);
+      this.limit = limit;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, double[]> eldest)
+    {
+      if (size() <= limit)
+        return false;
+      evictions.incrementAndGet();
+      keyBytes.addAndGet(-eldest.getKey().bytes());
+      return true;
+    }
+  }
+
+  /** Feature indices and values of a vector, hashed and compared exactly. */
+  private static class Key
+  {
+    final int[] indices;
+    /** <code>null</code> for binary vectors, whose values are all one. */
+    final double[] values;
+    final int length;
+    final int hash;
+
+    private Key(int[] indices, double[] values, int length, int hash)
+    {
+      this.indices = indices;
+      this.values = values;
+      this.length = length;
+      this.hash = hash;
+    }
+
+    static Key wrap(FeatureVector fv)
+    {
+      int length = fv.numLocations();
+      int[] indices = fv.getIndices();
+      if (indices == null) {
+        // Dense vectors keep no index array; their locations are the indices.
+        indices = new int[length];
+        for (int i = 0; i < length; i++)
+          indices[i] = fv.indexAtLocation(i);
+      }
+      double[] values = fv.getValues();
+      int h = length;
+      for (int i = 0; i < length; i++) {
+        h = 31 * h + indices[i];
+        if (values != null) {
+          long bits = Double.doubleToLongBits(values[i]);
+          h = 31 * h + (int) (bits ^ (bits >>> 32));
+        }
+      }
+      return new Key(indices, values, length, h);
+    }
+
+    static Key copy(FeatureVector fv)
+    {
+      Key probe = wrap(fv);
+      return new Key(Arrays.copyOf(probe.indices, probe.length),
+          probe.values == null ? null : Arrays.copyOf(probe.values, probe.length),
+          probe.length, probe.hash);
+    }
+
+    long bytes()
+    {
+      return 16 + 4L * length + (values == null ? 0 : 16 + 8L * length);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof Key))
+        return false;
+      Key other = (Key) o;
+      if (hash != other.hash || length != other.length
+          || (values == null) != (other.values == null))
+        return false;
+      for (int i = 0; i < length; i++)
+        if (indices[i] != other.indices[i])
+          return false;
+      if (values != null)
+        for (int i = 0; i < length; i++)
+          if (values[i] != other.values[i])
+            return false;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,346 @@
+package crf.lattice;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.SparseVector;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Dense, feature-major copy of a CRF's weight sets for scoring tokens.
+ * <p>
+ * Row <code>r</code> holds one input feature's weight in every weight set
+ * contiguously, so a token's weight-set scores are the sum of its active
+ * features' rows (times the feature values) plus the default weights: a
+ * gather over the token's features and stride-one adds over the weight
+ * sets, instead of one binary-searching sparse dot product per weight set.
+ * {@link #score} adds four rows per pass over the output, which cuts the
+ * loads and stores of the output four-fold and gives the JIT independent
+ * multiplies to vectorize, while adding the terms of each output in the
+ * same order as {@link #scoreScalar} and Mallet's
+ * <code>SparseVector.dotProduct</code>, so all three agree bit for bit.
+ * <p>
+ * Features with no weight in any weight set get no row and are skipped.
+ * {@link #refresh} copies new weight values into the existing rows, for
+ * training, where the values change every iteration but the structure
+ * does not. Reads are thread-safe; refreshing is not.
+ * <p>
+ * An optional {@link EmissionCache} short-circuits {@link #score} for
+ * feature vectors seen before; {@link #refresh} empties it.
+ * <p>
+ * The dense rows hold every feature's weight in every weight set, zero or
+ * not. {@link #create} stores the rows sparsely instead
+ * ({@link SparseEmissionKernel}) when they would not fit in one array or
+ * would be mostly zeros, as with <code>--weights sparse</code>.
+ */
+public class EmissionKernel implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  /** Most entries a Java array can hold. */
+  static final long MAX_ENTRIES = Integer.MAX_VALUE - 8;
+
+  /**
+   * Dense rows at least this many entries (32 MB) long are replaced by
+   * sparse ones when less than {@link #MIN_DENSITY} of them are stored
+   * weights.
+   */
+  static final long SPARSE_MIN_ENTRIES = 1 << 22;
+
+  static final double MIN_DENSITY = 0.125;
+
+  final int numWeights;
+  final int[] rowOf;
+  private final double[] emission;
+  final double[] defaultWeights;
+  final int numRows;
+  private transient volatile EmissionCache cache;
+
+  /**
+   * A kernel over <code>parameters</code>, dense unless its rows would be
+   * too large or too sparse for one array.
+   *
+   * @see #EmissionKernel(CRF.Factors, int, boolean)
+   */
+  public static EmissionKernel create(CRF.Factors parameters, int numFeatures, boolean keepZeroRows)
+  {
+    int[] rowOf = rowMap(parameters, numFeatures, keepZeroRows);
+    long entries = (long) numRows(rowOf) * parameters.weights.length;
+    if (entries > MAX_ENTRIES
+        || entries >= SPARSE_MIN_ENTRIES && storedWeights(parameters, rowOf) < MIN_DENSITY * entries)
+      return new SparseEmissionKernel(parameters, rowOf);
+    return new EmissionKernel(parameters, rowOf);
+  }
+
+  /**
+   * A dense kernel.
+   *
+   * @param parameters the weights to copy
+   * @param numFeatures lower bound on the input alphabet size
+   * @param keepZeroRows whether features whose weights are all zero get a
+   * row anyway, as needed when the weights will be {@link #refresh}ed
+   * @throws IllegalArgumentException if the rows have more entries than
+   * an array can hold; {@link #create} stores such rows sparsely
+   */
+  public EmissionKernel(CRF.Factors parameters, int numFeatures, boolean keepZeroRows)
+  {
+    this(parameters, rowMap(parameters, numFeatures, keepZeroRows));
+  }
+
+  private EmissionKernel(CRF.Factors parameters, int[] rowOf)
+  {
+    numWeights = parameters.weights.length;
+    this.rowOf = rowOf;
+    numRows = numRows(rowOf);
+    long entries = (long) numRows * numWeights;
+    if (entries > MAX_ENTRIES)
+      throw new IllegalArgumentException("Too many weights for dense emission rows: "
+          + numRows + " rows of " + numWeights);
+    emission = new double[(int) entries];
+    defaultWeights = new double[numWeights];
+    refresh(parameters);
+  }
+
+  /**
+   * The row of each input feature: features with a weight (a nonzero one
+   * unless <code>keepZeroRows</code>) get rows in order of first
+   * appearance, the others -1.
+   */
+  static int[] rowMap(CRF.Factors parameters, int numFeatures, boolean keepZeroRows)
+  {
+    for (SparseVector weights : parameters.weights)
+      for (int loc = 0; loc < weights.numLocations(); loc++)
+        numFeatures = Math.max(numFeatures, weights.indexAtLocation(loc) + 1);
+    int[] rowOf = new int[numFeatures];
+    Arrays.fill(rowOf, -1);
+    int rows = 0;
+    for (SparseVector weights : parameters.weights)
+      for (int loc = 0; loc < weights.numLocations(); loc++) {
+        int f = weights.indexAtLocation(loc);
+        if (rowOf[f] < 0 && (keepZeroRows || weights.valueAtLocation(loc) != 0))
+          rowOf[f] = rows++;
+      }
+    return rowOf;
+  }
+
+  static int numRows(int[] rowOf)
+  {
+    int rows = 0;
+    for (int row : rowOf)
+      rows = Math.max(rows, row + 1);
+    return rows;
+  }
+
+  /** Number of weights, zero or not, of the features with a row. */
+  static long storedWeights(CRF.Factors parameters, int[] rowOf)
+  {
+    long stored = 0;
+    for (SparseVector weights : parameters.weights)
+      for (int loc = 0; loc < weights.numLocations(); loc++)
+        if (rowOf[weights.indexAtLocation(loc)] >= 0)
+          stored++;
+    return stored;
+  }
+
+  /**
+   * For subclasses that store the rows of <code>dense</code> in another
+   * form: shares its feature-to-row map and default weights, but not its
+   * rows.
+   */
+  EmissionKernel(EmissionKernel dense)
+  {
+    numWeights = dense.numWeights;
+    rowOf = dense.rowMap();
+    numRows = dense.numRows;
+    defaultWeights = dense.defaultWeights.clone();
+    emission = null;
+  }
+
+  /** A kernel over the given rows, which it takes ownership of. */
+  EmissionKernel(int numWeights, int numRows, int[] rowOf, double[] emission, double[] defaultWeights)
+  {
+    this.numWeights = numWeights;
+    this.rowOf = rowOf;
+    this.numRows = numRows;
+    this.emission = emission;
+    this.defaultWeights = defaultWeights;
+  }
+
+  /** The row of each input feature, -1 for features without one. */
+  int[] rowMap() { return rowOf; }
+
+  /**
+   * Copies the current values of <code>parameters</code>, which must have
+   * the structure the kernel was built from.
+   */
+  public void refresh(CRF.Factors parameters)
+  {
+    for (int w = 0; w < numWeights; w++) {
+      SparseVector weights = parameters.weights[w];
+      for (int loc = 0; loc < weights.numLocations(); loc++) {
+        int row = rowOf[weights.indexAtLocation(loc)];
+        if (row >= 0)
+          emission[row * numWeights + w] = weights.valueAtLocation(loc);
+      }
+    }
+    System.arraycopy(parameters.defaultWeights, 0, defaultWeights, 0, numWeights);
+    EmissionCache c = cache;
+    if (c != null)
+      c.clear();
+  }
+
+  /**
+   * Makes {@link #score} look tokens up in <code>cache</code> before
+   * computing them, and remember the ones it computes; <code>null</code>
+   * turns caching off. Set it before sharing the kernel between threads.
+   */
+  public void setCache(EmissionCache cache) { this.cache = cache; }
+
+  public EmissionCache getCache() { return cache; }
+
+  public int numWeights() { return numWeights; }
+
+  /** Number of features with a row. */
+  public int numRows() { return numRows; }
+
+  /** Default weight of weight set <code>w</code>. */
+  public double defaultWeight(int w) { return defaultWeights[w]; }
+
+  /** Row of input feature <code>f</code>, or -1 if it has none. */
+  public int row(int f) { return f < rowOf.length ? rowOf[f] : -1; }
+
+  /** Weight of the feature with row <code>row</code> in weight set <code>w</code>. */
+  public double weight(int row, int w) { return emission[row * numWeights + w]; }
+
+  /** Approximate heap footprint of the rows, in bytes. */
+  public long rowBytes() { return 8L * numRows * numWeights; }
+
+  /**
+   * Computes each weight set's score on one token: the sum of its weights
+   * over the token's active features, plus its default weight.
+   *
+   * @param out receives {@link #numWeights()} scores
+   */
+  public void score(FeatureVector fv, double[] out)
+  {
+    score(fv, out, cache);
+  }
+
+  /**
+   * {@link #score} through <code>c</code> instead of the kernel's own
+   * cache, so decoders sharing a read-only kernel can each bring their
+   * own; <code>null</code> computes the scores directly.
+   */
+  public void score(FeatureVector fv, double[] out, EmissionCache c)
+  {
+    if (c == null) {
+      compute(fv, out);
+      return;
+    }
+    if (c.get(fv, out))
+      return;
+    compute(fv, out);
+    c.put(fv, out);
+  }
+
+  /** {@link #score} without the cache. */
+  void compute(FeatureVector fv, double[] out)
+  {
+    final int n = numWeights;
+    final double[] e = emission;
+    Arrays.fill(out, 0, n, 0);
+    int numLocations = fv.numLocations();
+    int loc = 0;
+    int b0 = 0, b1 = 0, b2 = 0, b3 = 0;
+    double v0 = 0, v1 = 0, v2 = 0, v3 = 0;
+    while (true) {
+      int found = 0;
+      while (found < 4 && loc < numLocations) {
+        int f = fv.indexAtLocation(loc);
+        double v = fv.valueAtLocation(loc);
+        loc++;
+        if (f >= rowOf.length || rowOf[f] < 0)
+          continue;
+        int b = rowOf[f] * n;
+        switch (found++) {
+          case 0: b0 = b; v0 = v; break;
+          case 1: b1 = b; v1 = v; break;
+          case 2: b2 = b; v2 = v; break;
+          default: b3 = b; v3 = v; break;
+        }
+      }
+      if (found < 4) {
+        if (found > 0)
+          addRow(out, b0, v0);
+        if (found > 1)
+          addRow(out, b1, v1);
+        if (found > 2)
+          addRow(out, b2, v2);
+        break;
+      }
+      for (int w = 0; w < n; w++)
+        out[w] = out[w] + e[b0 + w] * v0 + e[b1 + w] * v1 + e[b2 + w] * v2 + e[b3 + w] * v3;
+    }
+    for (int w = 0; w < n; w++)
+      out[w] += defaultWeights[w];
+  }
+
+  void addRow(double[] out, int base, double value)
+  {
+    for (int w = 0; w < numWeights; w++)
+      out[w] += emission[base + w] * value;
+  }
+
+  /**
+   * Reference version of {@link #score} that adds one feature row at a
+   * time, bypassing the cache.
+   */
+  public void scoreScalar(FeatureVector fv, double[] out)
+  {
+    Arrays.fill(out, 0, numWeights, 0);
+    int numLocations = fv.numLocations();
+    for (int loc = 0; loc < numLocations; loc++) {
+      int f = fv.indexAtLocation(loc);
+      if (f >= rowOf.length || rowOf[f] < 0)
+        continue;
+      addRow(out, rowOf[f] * numWeights, fv.valueAtLocation(loc));
+    }
+    for (int w = 0; w < numWeights; w++)
+      out[w] += defaultWeights[w];
+  }
+
+  /**
+   * Collects the row offsets and values of a token's active features, for
+   * scoring single weight sets with {@link #weightScore}.
+   *
+   * @param rows receives row offsets; needs room for <code>fv.numLocations()</code>
+   * @param values receives the matching feature values
+   * @return the number of features with rows
+   */
+  public int gatherRows(FeatureVector fv, int[] rows, double[] values)
+  {
+    int n = 0;
+    int numLocations = fv.numLocations();
+    for (int loc = 0; loc < numLocations; loc++) {
+      int f = fv.indexAtLocation(loc);
+      if (f >= rowOf.length || rowOf[f] < 0)
+        continue;
+      rows[n] = rowOf[f] * numWeights;
+      values[n++] = fv.valueAtLocation(loc);
+    }
+    return n;
+  }
+
+  /**
+   * Score of weight set <code>w</code> alone on a token gathered by
+   * {@link #gatherRows}; equal to entry <code>w</code> of {@link #score}.
+   */
+  public double weightScore(int w, int[] rows, double[] values, int n)
+  {
+    double score = 0;
+    for (int i = 0; i < n; i++)
+      score += emission[rows[i] + w] * values[i];
+    return score + defaultWeights[w];
+  }
+}
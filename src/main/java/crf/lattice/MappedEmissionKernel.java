@@ -0,0 +1,202 @@
+package crf.lattice;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.types.FeatureVector;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * {@link EmissionKernel} whose feature-to-row map and rows are
+ * memory-mapped from a model file instead of copied onto the heap, so
+ * opening a model costs a few system calls whatever its size, pages are
+ * read in as tokens touch them, and processes mapping the same file share
+ * one copy in the page cache.
+ * <p>
+ * The map is <code>numFeatures</code> big-endian ints and the rows are
+ * <code>numRows</code> times <code>numWeights</code> big-endian doubles,
+ * row-major as in the heap kernel. Rows are mapped in chunks of whole rows
+ * below 2 GB, the limit of a single mapping. Scores are summed in the same
+ * order as {@link EmissionKernel#score}, so both agree bit for bit. The
+ * weights are fixed: {@link #refresh} is not supported. Serializing the
+ * kernel copies it onto the heap.
+ */
+public class MappedEmissionKernel extends EmissionKernel
+{
+  private static final long serialVersionUID = 1L;
+
+  private final int numFeatures;
+  private final transient IntBuffer featureRows;
+  private final transient DoubleBuffer[] chunks;
+  private final int chunkSize;
+
+  /**
+   * Maps the kernel's arrays from <code>channel</code>, which may be closed
+   * afterwards.
+   *
+   * @param rowOfOffset file position of the feature-to-row map
+   * @param rowsOffset file position of the rows
+   * @param defaultWeights the default weight of each weight set
+   */
+  public MappedEmissionKernel(FileChannel channel, long rowOfOffset, int numFeatures,
+      long rowsOffset, int numRows, double[] defaultWeights) throws IOException
+  {
+    super(defaultWeights.length, numRows, new int[0], null, defaultWeights);
+    int n = defaultWeights.length;
+    if ((long) numRows * n > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Too many weights to address: " + numRows + " rows of " + n);
+    this.numFeatures = numFeatures;
+    featureRows = channel.map(FileChannel.MapMode.READ_ONLY, rowOfOffset, 4L * numFeatures).asIntBuffer();
+    int rowsPerChunk = Math.max(1, (Integer.MAX_VALUE / 8) / Math.max(1, n));
+    chunkSize = rowsPerChunk * Math.max(1, n);
+    chunks = new DoubleBuffer[Math.max(1, (numRows + rowsPerChunk - 1) / rowsPerChunk)];
+    for (int c = 0; c < chunks.length; c++) {
+      int rows = Math.min(rowsPerChunk, numRows - c * rowsPerChunk);
+      chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY,
+          rowsOffset + 8L * c * chunkSize, 8L * Math.max(0, rows) * n).asDoubleBuffer();
+    }
+  }
+
+  /** Number of input features covered by the feature-to-row map. */
+  public int numFeatures() { return numFeatures; }
+
+  /** Bytes of the model file the rows and map occupy. */
+  public long mappedBytes() { return 4L * numFeatures + 8L * numRows * numWeights; }
+
+  @Override
+  public void refresh(CRF.Factors parameters)
+  {
+    throw new UnsupportedOperationException("Memory-mapped weights are read-only");
+  }
+
+  @Override
+  public int row(int f) { return f < numFeatures ? featureRows.get(f) : -1; }
+
+  @Override
+  int[] rowMap()
+  {
+    int[] map = new int[numFeatures];
+    for (int f = 0; f < numFeatures; f++)
+      map[f] = featureRows.get(f);
+    return map;
+  }
+
+  @Override
+  public double weight(int row, int w)
+  {
+    int i = row * numWeights + w;
+    return chunks[i / chunkSize].get(i % chunkSize);
+  }
+
+  /** The rows are not on the heap; see {@link #mappedBytes}. */
+  @Override
+  public long rowBytes() { return 0; }
+
+  @Override
+  void compute(FeatureVector fv, double[] out)
+  {
+    final int n = numWeights;
+    Arrays.fill(out, 0, n, 0);
+    int numLocations = fv.numLocations();
+    int loc = 0;
+    if (chunks.length == 1) {
+      // Four rows per pass, as in the heap kernel.
+      final DoubleBuffer e = chunks[0];
+      int b0 = 0, b1 = 0, b2 = 0, b3 = 0;
+      double v0 = 0, v1 = 0, v2 = 0, v3 = 0;
+      while (true) {
+        int found = 0;
+        while (found < 4 && loc < numLocations) {
+          int f = fv.indexAtLocation(loc);
+          double v = fv.valueAtLocation(loc);
+          loc++;
+          int r = f < numFeatures ? featureRows.get(f) : -1;
+          if (r < 0)
+            continue;
+          switch (found++) {
+            case 0: b0 = r * n; v0 = v; break;
+            case 1: b1 = r * n; v1 = v; break;
+            case 2: b2 = r * n; v2 = v; break;
+            default: b3 = r * n; v3 = v; break;
+          }
+        }
+        if (found < 4) {
+          if (found > 0)
+            addRow(out, b0, v0);
+          if (found > 1)
+            addRow(out, b1, v1);
+          if (found > 2)
+            addRow(out, b2, v2);
+          break;
+        }
+        for (int w = 0; w < n; w++)
+          out[w] = out[w] + e.get(b0 + w) * v0 + e.get(b1 + w) * v1
+              + e.get(b2 + w) * v2 + e.get(b3 + w) * v3;
+      }
+    }
+    for (; loc < numLocations; loc++) {
+      int f = fv.indexAtLocation(loc);
+      int r = f < numFeatures ? featureRows.get(f) : -1;
+      if (r >= 0)
+        addRow(out, r * n, fv.valueAtLocation(loc));
+    }
+    for (int w = 0; w < n; w++)
+      out[w] += defaultWeights[w];
+  }
+
+  @Override
+  void addRow(double[] out, int base, double value)
+  {
+    final DoubleBuffer rows = chunks[base / chunkSize];
+    final int offset = base % chunkSize;
+    for (int w = 0; w < numWeights; w++)
+      out[w] += rows.get(offset + w) * value;
+  }
+
+  @Override
+  public void scoreScalar(FeatureVector fv, double[] out)
+  {
+    compute(fv, out);
+  }
+
+  @Override
+  public int gatherRows(FeatureVector fv, int[] rows, double[] values)
+  {
+    int n = 0;
+    int numLocations = fv.numLocations();
+    for (int loc = 0; loc < numLocations; loc++) {
+      int f = fv.indexAtLocation(loc);
+      int r = f < numFeatures ? featureRows.get(f) : -1;
+      if (r < 0)
+        continue;
+      rows[n] = r * numWeights;
+      values[n++] = fv.valueAtLocation(loc);
+    }
+    return n;
+  }
+
+  @Override
+  public double weightScore(int w, int[] rows, double[] values, int n)
+  {
+    double score = 0;
+    for (int i = 0; i < n; i++) {
+      int base = rows[i];
+      score += chunks[base / chunkSize].get(base % chunkSize + w) * values[i];
+    }
+    return score + defaultWeights[w];
+  }
+
+  /** Serializes as a heap kernel with the same rows. */
+  private Object writeReplace() throws ObjectStreamException
+  {
+    double[] emission = new double[numRows * numWeights];
+    for (int row = 0; row < numRows; row++)
+      for (int w = 0; w < numWeights; w++)
+        emission[row * numWeights + w] = weight(row, w);
+    return new EmissionKernel(numWeights, numRows, rowMap(), emission, defaultWeights.clone());
+  }
+}
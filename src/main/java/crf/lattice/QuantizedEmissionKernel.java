@@ -0,0 +1,233 @@
+package crf.lattice;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.types.FeatureVector;
+
+import java.util.Arrays;
+
+/**
+ * {@link EmissionKernel} whose rows are stored at reduced precision and
+ * widened to <code>double</code> as they are added up.
+ * <p>
+ * {@link Precision#INT8} keeps each row as signed bytes times a per-row
+ * scale (the row's largest magnitude over 127), folded into the feature
+ * value so dequantizing costs nothing extra; {@link Precision#FLOAT16}
+ * keeps IEEE half floats, widened through a 64K-entry table. Rows take an
+ * eighth or a quarter of the dense kernel's memory. Default weights stay
+ * at full precision, so forbidden (infinite-weight) transitions remain
+ * forbidden; feature weights must be finite, and for half floats at most
+ * 65504 in magnitude rather than overflow to infinity. The weights are fixed:
+ * {@link #refresh} is not supported.
+ */
+public class QuantizedEmissionKernel extends EmissionKernel
+{
+  private static final long serialVersionUID = 1L;
+
+  public enum Precision { INT8, FLOAT16 }
+
+  /** Largest finite half float; larger weights would round to infinity. */
+  static final double HALF_MAX = 65504;
+
+  private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+  static {
+    for (int h = 0; h < HALF_TO_FLOAT.length; h++)
+      HALF_TO_FLOAT[h] = halfToFloat((short) h);
+  }
+
+  private final Precision precision;
+  private final byte[] bytes;
+  private final float[] scales;
+  private final short[] halves;
+
+  /**
+   * Quantizes the rows of <code>dense</code>.
+   *
+   * @throws IllegalArgumentException if some feature weight is infinite
+   * or NaN, which no row scale can represent, or for
+   * {@link Precision#FLOAT16} beyond the largest half float, 65504; or if
+   * the rows have more entries than an array can hold
+   */
+  public QuantizedEmissionKernel(EmissionKernel dense, Precision precision)
+  {
+    super(dense);
+    this.precision = precision;
+    int n = numWeights;
+    if ((long) numRows * n > MAX_ENTRIES)
+      throw new IllegalArgumentException("Too many weights to quantize: " + numRows + " rows of " + n);
+    for (int row = 0; row < numRows; row++)
+      for (int w = 0; w < n; w++)
+        if (Double.isInfinite(dense.weight(row, w)) || Double.isNaN(dense.weight(row, w))
+            || precision == Precision.FLOAT16 && Math.abs(dense.weight(row, w)) > HALF_MAX)
+          throw new IllegalArgumentException("Cannot quantize emission row " + row + " to " + precision
+              + ": its weight in weight set " + w + " is " + dense.weight(row, w));
+    if (precision == Precision.INT8) {
+      bytes = new byte[numRows * n];
+      scales = new float[numRows];
+      halves = null;
+      for (int row = 0; row < numRows; row++) {
+        double max = 0;
+        for (int w = 0; w < n; w++)
+          max = Math.max(max, Math.abs(dense.weight(row, w)));
+        if (max == 0)
+          continue;
+        scales[row] = (float) (max / 127);
+        for (int w = 0; w < n; w++)
+          bytes[row * n + w] = (byte) Math.round(dense.weight(row, w) / scales[row]);
+      }
+    }
+    else {
+      bytes = null;
+      scales = null;
+      halves = new short[numRows * n];
+      for (int row = 0; row < numRows; row++)
+        for (int w = 0; w < n; w++)
+          halves[row * n + w] = floatToHalf((float) dense.weight(row, w));
+    }
+  }
+
+  public Precision getPrecision() { return precision; }
+
+  @Override
+  public void refresh(CRF.Factors parameters)
+  {
+    throw new UnsupportedOperationException("Quantized weights are read-only");
+  }
+
+  @Override
+  public double weight(int row, int w)
+  {
+    int i = row * numWeights + w;
+    return precision == Precision.INT8 ? bytes[i] * (double) scales[row]
+        : HALF_TO_FLOAT[halves[i] & 0xffff];
+  }
+
+  @Override
+  public long rowBytes()
+  {
+    return precision == Precision.INT8 ? (long) numRows * numWeights + 4L * numRows
+        : 2L * numRows * numWeights;
+  }
+
+  @Override
+  void compute(FeatureVector fv, double[] out)
+  {
+    final int n = numWeights;
+    Arrays.fill(out, 0, n, 0);
+    int numLocations = fv.numLocations();
+    int loc = 0;
+    int b0 = 0, b1 = 0;
+    double v0 = 0, v1 = 0;
+    while (true) {
+      int found = 0;
+      while (found < 2 && loc < numLocations) {
+        int f = fv.indexAtLocation(loc);
+        double v = fv.valueAtLocation(loc);
+        loc++;
+        if (f >= rowOf.length || rowOf[f] < 0)
+          continue;
+        if (found++ == 0) {
+          b0 = rowOf[f];
+          v0 = v;
+        }
+        else {
+          b1 = rowOf[f];
+          v1 = v;
+        }
+      }
+      if (found < 2) {
+        if (found > 0)
+          addRow(out, b0 * n, v0);
+        break;
+      }
+      if (precision == Precision.INT8) {
+        final byte[] q = bytes;
+        double s0 = v0 * scales[b0], s1 = v1 * scales[b1];
+        b0 *= n;
+        b1 *= n;
+        for (int w = 0; w < n; w++)
+          out[w] = out[w] + q[b0 + w] * s0 + q[b1 + w] * s1;
+      }
+      else {
+        final short[] h = halves;
+        b0 *= n;
+        b1 *= n;
+        for (int w = 0; w < n; w++)
+          out[w] = out[w] + HALF_TO_FLOAT[h[b0 + w] & 0xffff] * v0
+              + HALF_TO_FLOAT[h[b1 + w] & 0xffff] * v1;
+      }
+    }
+    for (int w = 0; w < n; w++)
+      out[w] += defaultWeights[w];
+  }
+
+  @Override
+  void addRow(double[] out, int base, double value)
+  {
+    if (precision == Precision.INT8) {
+      double scaled = value * scales[base / numWeights];
+      for (int w = 0; w < numWeights; w++)
+        out[w] += bytes[base + w] * scaled;
+    }
+    else
+      for (int w = 0; w < numWeights; w++)
+        out[w] += HALF_TO_FLOAT[halves[base + w] & 0xffff] * value;
+  }
+
+  @Override
+  public double weightScore(int w, int[] rows, double[] values, int n)
+  {
+    double score = 0;
+    if (precision == Precision.INT8)
+      for (int i = 0; i < n; i++)
+        score += bytes[rows[i] + w] * (values[i] * scales[rows[i] / numWeights]);
+    else
+      for (int i = 0; i < n; i++)
+        score += HALF_TO_FLOAT[halves[rows[i] + w] & 0xffff] * values[i];
+    return score + defaultWeights[w];
+  }
+
+  /** IEEE 754 binary16 bits of <code>f</code>, rounded to nearest even. */
+  static short floatToHalf(float f)
+  {
+    int bits = Float.floatToIntBits(f);
+    int sign = (bits >>> 16) & 0x8000;
+    int exponent = (bits >>> 23) & 0xff;
+    int mantissa = bits & 0x7fffff;
+    if (exponent == 0xff)
+      return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+    int e = exponent - 127 + 15;
+    if (e >= 0x1f)
+      return (short) (sign | 0x7c00);
+    if (e <= 0) {
+      if (e < -10)
+        return (short) sign;
+      mantissa |= 0x800000;
+      int shift = 14 - e;
+      int half = mantissa >> shift;
+      int rest = mantissa & ((1 << shift) - 1), midpoint = 1 << (shift - 1);
+      if (rest > midpoint || (rest == midpoint && (half & 1) != 0))
+        half++;
+      return (short) (sign | half);
+    }
+    int half = (e << 10) | (mantissa >> 13);
+    int rest = mantissa & 0x1fff;
+    if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0))
+      half++;
+    return (short) (sign | half);
+  }
+
+  static float halfToFloat(short h)
+  {
+    int bits = h & 0xffff;
+    int sign = (bits & 0x8000) << 16;
+    int exponent = (bits >>> 10) & 0x1f;
+    int mantissa = bits & 0x3ff;
+    if (exponent == 0x1f)
+      return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+    if (exponent == 0) {
+      float value = mantissa * 0x1p-24f;
+      return sign == 0 ? value : -value;
+    }
+    return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+  }
+}
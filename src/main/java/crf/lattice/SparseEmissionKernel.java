@@ -0,0 +1,145 @@
+package crf.lattice;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.SparseVector;
+
+import java.util.Arrays;
+
+/**
+ * {@link EmissionKernel} whose rows hold only the weights the CRF stores,
+ * as (weight set, value) pairs in weight-set order, for models whose
+ * dense rows would not fit in an array or would be mostly zeros.
+ * <p>
+ * A token's scores add each active feature's stored weights in feature
+ * order, which adds the same nonzero terms in the same order as the dense
+ * kernel and Mallet's <code>SparseVector.dotProduct</code>, so all agree
+ * bit for bit. {@link #weightScore} finds a weight set in a row by binary
+ * search. {@link #refresh} works as for the dense kernel.
+ */
+public class SparseEmissionKernel extends EmissionKernel
+{
+  private static final long serialVersionUID = 1L;
+
+  /** Row <code>r</code> is entries <code>rowStart[r]</code> up to <code>rowStart[r + 1]</code>. */
+  private final int[] rowStart;
+  private final int[] weightSet;
+  private final double[] values;
+
+  SparseEmissionKernel(CRF.Factors parameters, int[] rowOf)
+  {
+    super(parameters.weights.length, numRows(rowOf), rowOf, null, new double[parameters.weights.length]);
+    long entries = storedWeights(parameters, rowOf);
+    if (entries > MAX_ENTRIES)
+      throw new IllegalArgumentException("Too many weights for emission rows: " + entries);
+    rowStart = new int[numRows + 1];
+    for (SparseVector weights : parameters.weights)
+      for (int loc = 0; loc < weights.numLocations(); loc++) {
+        int row = rowOf[weights.indexAtLocation(loc)];
+        if (row >= 0)
+          rowStart[row + 1]++;
+      }
+    for (int row = 0; row < numRows; row++)
+      rowStart[row + 1] += rowStart[row];
+    weightSet = new int[(int) entries];
+    values = new double[(int) entries];
+    int[] next = Arrays.copyOf(rowStart, numRows);
+    for (int w = 0; w < numWeights; w++) {
+      SparseVector weights = parameters.weights[w];
+      for (int loc = 0; loc < weights.numLocations(); loc++) {
+        int row = rowOf[weights.indexAtLocation(loc)];
+        if (row >= 0)
+          weightSet[next[row]++] = w;
+      }
+    }
+    refresh(parameters);
+  }
+
+  /** Number of stored weights. */
+  public int numEntries() { return values.length; }
+
+  /** Entry of weight set <code>w</code> in row <code>row</code>, or a negative number. */
+  private int entry(int row, int w)
+  {
+    return Arrays.binarySearch(weightSet, rowStart[row], rowStart[row + 1], w);
+  }
+
+  @Override
+  public void refresh(CRF.Factors parameters)
+  {
+    for (int w = 0; w < numWeights; w++) {
+      SparseVector weights = parameters.weights[w];
+      for (int loc = 0; loc < weights.numLocations(); loc++) {
+        int row = rowOf[weights.indexAtLocation(loc)];
+        if (row >= 0)
+          values[entry(row, w)] = weights.valueAtLocation(loc);
+      }
+    }
+    System.arraycopy(parameters.defaultWeights, 0, defaultWeights, 0, numWeights);
+    EmissionCache c = getCache();
+    if (c != null)
+      c.clear();
+  }
+
+  @Override
+  public double weight(int row, int w)
+  {
+    int e = entry(row, w);
+    return e >= 0 ? values[e] : 0;
+  }
+
+  @Override
+  public long rowBytes() { return 12L * values.length + 4L * rowStart.length; }
+
+  @Override
+  void compute(FeatureVector fv, double[] out)
+  {
+    scoreScalar(fv, out);
+  }
+
+  @Override
+  public void scoreScalar(FeatureVector fv, double[] out)
+  {
+    Arrays.fill(out, 0, numWeights, 0);
+    int numLocations = fv.numLocations();
+    for (int loc = 0; loc < numLocations; loc++) {
+      int f = fv.indexAtLocation(loc);
+      if (f >= rowOf.length || rowOf[f] < 0)
+        continue;
+      int row = rowOf[f];
+      double v = fv.valueAtLocation(loc);
+      for (int e = rowStart[row]; e < rowStart[row + 1]; e++)
+        out[weightSet[e]] += values[e] * v;
+    }
+    for (int w = 0; w < numWeights; w++)
+      out[w] += defaultWeights[w];
+  }
+
+  /** Collects row numbers, rather than offsets, for {@link #weightScore}. */
+  @Override
+  public int gatherRows(FeatureVector fv, int[] rows, double[] values)
+  {
+    int n = 0;
+    int numLocations = fv.numLocations();
+    for (int loc = 0; loc < numLocations; loc++) {
+      int f = fv.indexAtLocation(loc);
+      if (f >= rowOf.length || rowOf[f] < 0)
+        continue;
+      rows[n] = rowOf[f];
+      values[n++] = fv.valueAtLocation(loc);
+    }
+    return n;
+  }
+
+  @Override
+  public double weightScore(int w, int[] rows, double[] values, int n)
+  {
+    double score = 0;
+    for (int i = 0; i < n; i++) {
+      int e = entry(rows[i], w);
+      if (e >= 0)
+        score += this.values[e] * values[i];
+    }
+    return score + defaultWeights[w];
+  }
+}
@@ -0,0 +1,148 @@
+package crf.lattice;
+
+import cc.mallet.fst.Transducer;
+
+import java.util.Arrays;
+
+/**
+ * Forward-backward over a {@link TransitionTable} using primitive buffers
+ * that are reused from one sequence to the next.
+ * <p>
+ * Mallet's <code>SumLatticeDefault</code> allocates a node object per state
+ * and position for every sequence. These buffers instead hold
+ * <code>(length+1) x states</code> alpha/beta arrays and a
+ * <code>length x transitions</code> score array, grown on demand and never
+ * shrunk, so a thread that is handed sequences of similar length (see
+ * {@link crf.train.LengthBuckets}) allocates once. Scores are in Mallet's
+ * log-weight convention: higher is better and
+ * {@link Transducer#IMPOSSIBLE_WEIGHT} marks forbidden paths.
+ * <p>
+ * Not thread-safe; keep one instance per thread.
+ */
+public class SumLatticeBuffers
+{
+  private final TransitionTable table;
+  private final int numStates;
+  private final int numTransitions;
+
+  private int capacity;
+  private int length;
+  private double[] scores;
+  private double[] alpha;
+  private double[] beta;
+  private final double[] weightScores;
+
+  public SumLatticeBuffers(TransitionTable table)
+  {
+    this.table = table;
+    this.numStates = table.numStates();
+    this.numTransitions = table.numTransitions();
+    this.weightScores = new double[table.numWeights()];
+    ensureCapacity(16);
+  }
+
+  public TransitionTable getTable() { return table; }
+
+  /** Longest sequence the buffers can hold without growing. */
+  public int capacity() { return capacity; }
+
+  /** Grows the buffers so that sequences of <code>maxLength</code> fit. */
+  public void ensureCapacity(int maxLength)
+  {
+    if (maxLength <= capacity)
+      return;
+    capacity = maxLength;
+    scores = new double[capacity * numTransitions];
+    alpha = new double[(capacity + 1) * numStates];
+    beta = new double[(capacity + 1) * numStates];
+  }
+
+  /**
+   * Starts a new sequence. Callers then fill {@link #scores()} for each
+   * position, e.g. through {@link TransitionTable#score}.
+   */
+  public void reset(int length)
+  {
+    ensureCapacity(length);
+    this.length = length;
+  }
+
+  public int length() { return length; }
+
+  /** Transition scores, position-major: entry <code>t * numTransitions + tr</code>. */
+  public double[] scores() { return scores; }
+
+  /** Scratch for {@link TransitionTable#score}. */
+  public double[] weightScores() { return weightScores; }
+
+  /**
+   * Runs the forward pass.
+   *
+   * @param initialWeights per-state initial weights
+   * @param finalWeights per-state final weights
+   * @param labels if non-null, only transitions whose output label index
+   * equals <code>labels[t]</code> are allowed at position <code>t</code>
+   * @return the log of the total weight of all (allowed) paths
+   */
+  public double forward(double[] initialWeights, double[] finalWeights, int[] labels)
+  {
+    Arrays.fill(alpha, 0, (length + 1) * numStates, Transducer.IMPOSSIBLE_WEIGHT);
+    System.arraycopy(initialWeights, 0, alpha, 0, numStates);
+    for (int t = 0; t < length; t++) {
+      int from = t * numStates, to = from + numStates, sc = t * numTransitions;
+      for (int s = 0; s < numStates; s++) {
+        double a = alpha[from + s];
+        if (a == Transducer.IMPOSSIBLE_WEIGHT)
+          continue;
+        for (int tr = table.transitionStart(s); tr < table.transitionStart(s + 1); tr++) {
+          if (labels != null && table.label(tr) != labels[t])
+            continue;
+          int d = to + table.destination(tr);
+          alpha[d] = Transducer.sumLogProb(alpha[d], a + scores[sc + tr]);
+        }
+      }
+    }
+    double total = Transducer.IMPOSSIBLE_WEIGHT;
+    int last = length * numStates;
+    for (int s = 0; s < numStates; s++)
+      total = Transducer.sumLogProb(total, alpha[last + s] + finalWeights[s]);
+    return total;
+  }
+
+  /**
+   * Runs the backward pass. Must follow {@link #forward} with the same
+   * arguments.
+   */
+  public void backward(double[] finalWeights, int[] labels)
+  {
+    Arrays.fill(beta, 0, length * numStates, Transducer.IMPOSSIBLE_WEIGHT);
+    System.arraycopy(finalWeights, 0, beta, length * numStates, numStates);
+    for (int t = length - 1; t >= 0; t--) {
+      int from = t * numStates, to = from + numStates, sc = t * numTransitions;
+      for (int s = 0; s < numStates; s++) {
+        double b = Transducer.IMPOSSIBLE_WEIGHT;
+        for (int tr = table.transitionStart(s); tr < table.transitionStart(s + 1); tr++) {
+          if (labels != null && table.label(tr) != labels[t])
+            continue;
+          b = Transducer.sumLogProb(b, scores[sc + tr] + beta[to + table.destination(tr)]);
+        }
+        beta[from + s] = b;
+      }
+    }
+  }
+
+  public double alpha(int t, int s) { return alpha[t * numStates + s]; }
+
+  public double beta(int t, int s) { return beta[t * numStates + s]; }
+
+  /**
+   * Log posterior weight of taking transition <code>tr</code> out of state
+   * <code>s</code> at position <code>t</code>, before normalization by the
+   * total weight.
+   */
+  public double transitionWeight(int t, int s, int tr)
+  {
+    return alpha[t * numStates + s] + scores[t * numTransitions + tr]
+        + beta[(t + 1) * numStates + table.destination(tr)];
+  }
+}
@@ -0,0 +1,141 @@
+package crf.lattice;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.SparseVector;
+
+/**
+ * Flattened view of the transition structure of a {@link CRF}.
+ * <p>
+ * Mallet keeps transitions as a graph of <code>CRF.State</code> objects
+ * and recomputes them through a freshly allocated
+ * <code>TransitionIterator</code> per state and token. This table lays the
+ * same information out in parallel primitive arrays (transitions grouped by
+ * source state) so lattices can be computed without touching the object
+ * graph. The table only captures structure; weights stay in the
+ * <code>CRF.Factors</code> and are read at scoring time, so a table stays
+ * valid for as long as the CRF's weights structure stamp does not change.
+ */
+public class TransitionTable
+{
+  private final int numStates;
+  private final int numWeights;
+  private final int[] transitionStart;
+  private final int[] destination;
+  private final int[] label;
+  private final int[] weightsStart;
+  private final int[] weightsIndex;
+  private final String[] stateNames;
+  private final Alphabet outputAlphabet;
+  private final int structureStamp;
+
+  public TransitionTable(CRF crf)
+  {
+    numStates = crf.numStates();
+    numWeights = crf.getWeights().length;
+    outputAlphabet = crf.getOutputAlphabet();
+    structureStamp = crf.getWeightsStructureChangeStamp();
+    Alphabet weightAlphabet = crf.getParameters().weightAlphabet;
+
+    stateNames = new String[numStates];
+    transitionStart = new int[numStates + 1];
+    int numTransitions = 0, numWeightRefs = 0;
+    for (int s = 0; s < numStates; s++) {
+      CRF.State state = (CRF.State) crf.getState(s);
+      stateNames[s] = state.getName();
+      transitionStart[s] = numTransitions;
+      numTransitions += state.numDestinations();
+      for (int d = 0; d < state.numDestinations(); d++)
+        numWeightRefs += state.getWeightNames(d).length;
+    }
+    transitionStart[numStates] = numTransitions;
+
+    destination = new int[numTransitions];
+    label = new int[numTransitions];
+    weightsStart = new int[numTransitions + 1];
+    weightsIndex = new int[numWeightRefs];
+    int tr = 0, w = 0;
+    for (int s = 0; s < numStates; s++) {
+      CRF.State state = (CRF.State) crf.getState(s);
+      for (int d = 0; d < state.numDestinations(); d++, tr++) {
+        destination[tr] = state.getDestinationState(d).getIndex();
+        label[tr] = outputAlphabet.lookupIndex(state.getLabelName(d), false);
+        weightsStart[tr] = w;
+        for (String name : state.getWeightNames(d))
+          weightsIndex[w++] = weightAlphabet.lookupIndex(name, false);
+      }
+    }
+    weightsStart[numTransitions] = w;
+  }
+
+  public int numStates() { return numStates; }
+
+  public int numTransitions() { return destination.length; }
+
+  /** Number of weight sets (rows of <code>CRF.Factors.weights</code>). */
+  public int numWeights() { return numWeights; }
+
+  /** First transition leaving state <code>s</code>; transitions of <code>s</code> end at <code>transitionStart(s+1)</code>. */
+  public int transitionStart(int s) { return transitionStart[s]; }
+
+  public int destination(int tr) { return destination[tr]; }
+
+  /** Index of the transition's output label in the CRF's output alphabet. */
+  public int label(int tr) { return label[tr]; }
+
+  public int weightsStart(int tr) { return weightsStart[tr]; }
+
+  public int weightsIndex(int ref) { return weightsIndex[ref]; }
+
+  public String stateName(int s) { return stateNames[s]; }
+
+  public Alphabet getOutputAlphabet() { return outputAlphabet; }
+
+  /** Whether this table still describes <code>crf</code>'s current weights structure. */
+  public boolean matches(CRF crf)
+  {
+    return crf.getWeightsStructureChangeStamp() == structureStamp
+        && crf.numStates() == numStates;
+  }
+
+  /**
+   * Scores every transition on one token with the current weights.
+   *
+   * @param parameters the CRF's parameters
+   * @param fv the token's features
+   * @param weightScores scratch of length {@link #numWeights()}
+   * @param out receives the transition scores at <code>offset</code>
+   */
+  public void score(CRF.Factors parameters, FeatureVector fv,
+      double[] weightScores, double[] out, int offset)
+  {
+    SparseVector[] weights = parameters.weights;
+    double[] defaultWeights = parameters.defaultWeights;
+    for (int wi = 0; wi < numWeights; wi++)
+      weightScores[wi] = weights[wi].dotProduct(fv) + defaultWeights[wi];
+    sumWeightScores(weightScores, out, offset);
+  }
+
+  /**
+   * Like {@link #score(CRF.Factors, FeatureVector, double[], double[], int)},
+   * reading the weights from a kernel built from (and refreshed with) the
+   * CRF's parameters.
+   */
+  public void score(EmissionKernel kernel, FeatureVector fv,
+      double[] weightScores, double[] out, int offset)
+  {
+    kernel.score(fv, weightScores);
+    sumWeightScores(weightScores, out, offset);
+  }
+
+  private void sumWeightScores(double[] weightScores, double[] out, int offset)
+  {
+    for (int tr = 0; tr < destination.length; tr++) {
+      double score = 0;
+      for (int r = weightsStart[tr]; r < weightsStart[tr + 1]; r++)
+        score += weightScores[weightsIndex[r]];
+      out[offset + tr] = score;
+    }
+  }
+}
@@ -0,0 +1,441 @@
+package crf.model;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.pipe.Pipe;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSelection;
+import cc.mallet.types.SparseVector;
+import crf.decode.CompiledCRF;
+import crf.lattice.EmissionKernel;
+import crf.lattice.MappedEmissionKernel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.rmi.dgc.VMID;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A tagging model in a versioned binary format that opens by
+ * memory-mapping instead of deserializing: the input alphabet is a sorted
+ * string arena ({@link MappedAlphabet}) and the emission weights are
+ * contiguous rows ({@link MappedEmissionKernel}), both used in place, so
+ * opening even a large model reads a header and a small descriptor, and
+ * the rest is paged in as tagging touches it.
+ * <p>
+ * The file is big-endian throughout:
+ * <ol>
+ * <li>header: magic <code>CRFB</code>, version, feature, row and weight
+ * set counts, flags, then the offset (and where needed length) of each
+ * section;</li>
+ * <li>descriptor: the input pipe, the state graph of the
+ * {@link CompiledCRF} and the weight set names, Java-serialized with the
+ * input alphabet and emission kernel left out as placeholders;</li>
+ * <li>the arena index: the start of each feature's UTF-8 bytes in the
+ * arena, plus its end;</li>
+ * <li>the arena: the features' bytes, sorted, so a feature's index is its
+ * rank;</li>
+ * <li>the row of each feature, -1 for features without weights;</li>
+ * <li>the default weight of each weight set, then the rows, one double
+ * per weight set each, aligned to 8 bytes.</li>
+ * </ol>
+ * Features are renumbered by sorted order on export; everything that
+ * refers to them (the rows and any feature selection in the pipe) is
+ * renumbered with them.
+ * <p>
+ * {@link #open} gives a tag-only model, like a {@link QuantizedModel};
+ * {@link #toCRF} imports it back as a Mallet {@link CRF} for training or
+ * evaluation. States that cannot lie on a complete path were dropped when
+ * the model was compiled and are missing from the import; it decodes the
+ * same. Weight set freezing is not kept.
+ * <p>
+ * Usage: <code>BinaryModel export model-file binary-file [held-out-file
+ * [labeled]]</code> to convert a serialized CRF, reporting file size, load
+ * time and, given held-out data in the format read by {@link crf.Tagger},
+ * label agreement and decoding speed; <code>BinaryModel import
+ * binary-file model-file</code> to convert back.
+ */
+public class BinaryModel
+{
+  /** <code>CRFB</code>. */
+  public static final int MAGIC = 0x43524642;
+  public static final int VERSION = 1;
+  private static final int HEADER_BYTES = 6 * 4 + 8 * 8;
+  private static final int GROWTH_STOPPED = 1;
+
+  /** Stand-ins for the mapped parts of the model in the descriptor. */
+  private enum Slot { INPUT_ALPHABET, EMISSION_KERNEL }
+
+  private final int flags;
+  private final byte[] descriptor;
+  private final MappedAlphabet inputAlphabet;
+  private final MappedEmissionKernel kernel;
+  private final Pipe inputPipe;
+  private final CompiledCRF model;
+  private final String[] weightNames;
+  private final long fileBytes;
+
+  private BinaryModel(int flags, byte[] descriptor, MappedAlphabet inputAlphabet,
+      MappedEmissionKernel kernel, long fileBytes) throws IOException, ClassNotFoundException
+  {
+    this.flags = flags;
+    this.descriptor = descriptor;
+    this.inputAlphabet = inputAlphabet;
+    this.kernel = kernel;
+    this.fileBytes = fileBytes;
+    ObjectInputStream in = descriptorStream(inputAlphabet);
+    inputPipe = (Pipe) in.readObject();
+    model = (CompiledCRF) in.readObject();
+    weightNames = (String[]) in.readObject();
+    in.close();
+  }
+
+  public Pipe getInputPipe() { return inputPipe; }
+
+  /** The model, tagging with the mapped alphabet and weights. */
+  public CompiledCRF getModel() { return model; }
+
+  public MappedAlphabet getInputAlphabet() { return inputAlphabet; }
+
+  /** Size of the model file. */
+  public long fileBytes() { return fileBytes; }
+
+  /**
+   * Reads the descriptor with its placeholders resolved to
+   * <code>features</code> and the mapped kernel. Pipes and alphabets get
+   * fresh instance ids, since Mallet resolves deserialized ones to live
+   * objects with the same id, so models opened from the same file share
+   * nothing.
+   */
+  private ObjectInputStream descriptorStream(final Alphabet features) throws IOException
+  {
+    final Map<VMID, VMID> freshIds = new HashMap<VMID, VMID>();
+    return new ObjectInputStream(new ByteArrayInputStream(descriptor)) {
+      {
+        enableResolveObject(true);
+      }
+      @Override
+      protected Object resolveObject(Object obj) {
+        if (obj == Slot.INPUT_ALPHABET)
+          return features;
+        if (obj == Slot.EMISSION_KERNEL)
+          return kernel;
+        if (obj instanceof VMID) {
+          VMID id = freshIds.get(obj);
+          if (id == null)
+            freshIds.put((VMID) obj, id = new VMID());
+          return id;
+        }
+        return obj;
+      }
+    };
+  }
+
+  /**
+   * Imports the model as a Mallet CRF with a heap alphabet and its own copy
+   * of the pipe; see the class comment for what is not kept.
+   */
+  public CRF toCRF() throws IOException, ClassNotFoundException
+  {
+    Alphabet features = inputAlphabet.copy();
+    if ((flags & GROWTH_STOPPED) == 0)
+      features.startGrowth();
+    ObjectInputStream in = descriptorStream(features);
+    Pipe pipe = (Pipe) in.readObject();
+    in.close();
+
+    CRF crf = new CRF(pipe, (Pipe) null);
+    for (String name : weightNames)
+      crf.getWeightsIndex(name);
+    for (int s = 0; s < model.numStates(); s++) {
+      int from = model.outgoingStart(s), to = model.outgoingStart(s + 1);
+      String[] destinations = new String[to - from], labels = new String[to - from];
+      String[][] weights = new String[to - from][];
+      for (int i = from; i < to; i++) {
+        int tr = model.outgoing(i);
+        destinations[i - from] = model.stateName(model.destination(tr));
+        labels[i - from] = model.labelName(model.label(tr));
+        weights[i - from] = new String[model.numTransitionWeights(tr)];
+        for (int j = 0; j < weights[i - from].length; j++)
+          weights[i - from][j] = weightNames[model.weightIndex(tr, j)];
+      }
+      crf.addState(model.stateName(s), model.initialWeight(s), model.finalWeight(s),
+          destinations, labels, weights);
+    }
+
+    // Weight vectors from the rows, in feature order.
+    int numWeights = weightNames.length, numFeatures = inputAlphabet.size();
+    int[] counts = new int[numWeights];
+    for (int f = 0; f < numFeatures; f++) {
+      int row = kernel.row(f);
+      if (row >= 0)
+        for (int w = 0; w < numWeights; w++)
+          if (kernel.weight(row, w) != 0)
+            counts[w]++;
+    }
+    int[][] indices = new int[numWeights][];
+    double[][] values = new double[numWeights][];
+    for (int w = 0; w < numWeights; w++) {
+      indices[w] = new int[counts[w]];
+      values[w] = new double[counts[w]];
+      counts[w] = 0;
+    }
+    for (int f = 0; f < numFeatures; f++) {
+      int row = kernel.row(f);
+      if (row >= 0)
+        for (int w = 0; w < numWeights; w++) {
+          double v = kernel.weight(row, w);
+          if (v != 0) {
+            indices[w][counts[w]] = f;
+            values[w][counts[w]++] = v;
+          }
+        }
+    }
+    for (int w = 0; w < numWeights; w++) {
+      crf.setWeights(w, new SparseVector(indices[w], values[w], false, false, false));
+      crf.setDefaultWeight(w, model.getEmissionKernel().defaultWeight(w));
+    }
+    return crf;
+  }
+
+  /** Whether <code>file</code> starts like a binary model. */
+  public static boolean isBinaryModel(File file) throws IOException
+  {
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      return in.readInt() == MAGIC;
+    } catch (EOFException e) {
+      return false;
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Opens a model written by {@link #export}, mapping its alphabet and weights. */
+  public static BinaryModel open(File file) throws IOException, ClassNotFoundException
+  {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      if (channel.size() < HEADER_BYTES)
+        throw new IOException("Not a binary model: " + file);
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      while (header.hasRemaining() && channel.read(header, header.position()) >= 0)
+        ;
+      header.flip();
+      if (header.getInt() != MAGIC)
+        throw new IOException("Not a binary model: " + file);
+      int version = header.getInt();
+      if (version != VERSION)
+        throw new IOException("Unsupported binary model version " + version + " in " + file);
+      int numFeatures = header.getInt(), numRows = header.getInt(), numWeights = header.getInt();
+      int flags = header.getInt();
+      long descriptorOffset = header.getLong(), descriptorLength = header.getLong();
+      long indexOffset = header.getLong(), arenaOffset = header.getLong(), arenaLength = header.getLong();
+      long rowOfOffset = header.getLong(), defaultsOffset = header.getLong(), rowsOffset = header.getLong();
+
+      byte[] descriptor = new byte[(int) descriptorLength];
+      channel.map(FileChannel.MapMode.READ_ONLY, descriptorOffset, descriptorLength).get(descriptor);
+      double[] defaults = new double[numWeights];
+      channel.map(FileChannel.MapMode.READ_ONLY, defaultsOffset, 8L * numWeights)
+        .asDoubleBuffer().get(defaults);
+      MappedAlphabet features = new MappedAlphabet(channel, indexOffset, numFeatures, arenaOffset, arenaLength);
+      MappedEmissionKernel kernel =
+        new MappedEmissionKernel(channel, rowOfOffset, numFeatures, rowsOffset, numRows, defaults);
+      return new BinaryModel(flags, descriptor, features, kernel, channel.size());
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Writes <code>crf</code>, compiled, in the binary format. Its input
+   * alphabet must hold strings.
+   */
+  public static void export(CRF crf, File file) throws IOException
+  {
+    final Alphabet features = crf.getInputAlphabet();
+    final CompiledCRF compiled = new CompiledCRF(crf);
+    final EmissionKernel kernel = compiled.getEmissionKernel();
+    int numFeatures = features.size(), numWeights = kernel.numWeights(), numRows = kernel.numRows();
+    if ((long) numRows * numWeights > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Too many weights to address: " + numRows + " rows of " + numWeights);
+
+    // Sort the features by their UTF-8 bytes.
+    final byte[][] bytes = new byte[numFeatures][];
+    Integer[] order = new Integer[numFeatures];
+    long arenaLength = 0;
+    for (int f = 0; f < numFeatures; f++) {
+      Object entry = features.lookupObject(f);
+      if (!(entry instanceof String))
+        throw new IllegalArgumentException("Binary models need string features, not " + entry.getClass());
+      bytes[f] = ((String) entry).getBytes(MappedAlphabet.UTF8);
+      arenaLength += bytes[f].length;
+      order[f] = f;
+    }
+    if (arenaLength > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Feature names take more than 2 GB");
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) { return compareBytes(bytes[a], bytes[b]); }
+    });
+    final int[] newIndex = new int[numFeatures];
+    for (int i = 0; i < numFeatures; i++)
+      newIndex[order[i]] = i;
+
+    String[] weightNames = new String[numWeights];
+    for (int w = 0; w < numWeights; w++)
+      weightNames[w] = crf.getWeightsName(w);
+    ByteArrayOutputStream descriptor = new ByteArrayOutputStream();
+    ObjectOutputStream s = new ObjectOutputStream(descriptor) {
+      {
+        enableReplaceObject(true);
+      }
+      @Override
+      protected Object replaceObject(Object obj) {
+        if (obj == kernel)
+          return Slot.EMISSION_KERNEL;
+        if (obj instanceof Alphabet && (obj == features
+            || features.getInstanceId().equals(((Alphabet) obj).getInstanceId())))
+          return Slot.INPUT_ALPHABET;
+        if (obj instanceof FeatureSelection && ((FeatureSelection) obj).getAlphabet() == features) {
+          BitSet selected = ((FeatureSelection) obj).getBitSet(), remapped = new BitSet();
+          for (int f = selected.nextSetBit(0); f >= 0 && f < newIndex.length; f = selected.nextSetBit(f + 1))
+            remapped.set(newIndex[f]);
+          return new FeatureSelection(features, remapped);
+        }
+        return obj;
+      }
+    };
+    s.writeObject(crf.getInputPipe());
+    s.writeObject(compiled);
+    s.writeObject(weightNames);
+    s.close();
+
+    long descriptorOffset = HEADER_BYTES;
+    long indexOffset = descriptorOffset + descriptor.size();
+    long arenaOffset = indexOffset + 4L * (numFeatures + 1);
+    long rowOfOffset = arenaOffset + arenaLength;
+    long defaultsOffset = (rowOfOffset + 4L * numFeatures + 7) & ~7L;
+    long rowsOffset = defaultsOffset + 8L * numWeights;
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(numFeatures);
+      out.writeInt(numRows);
+      out.writeInt(numWeights);
+      out.writeInt(features.growthStopped() ? GROWTH_STOPPED : 0);
+      out.writeLong(descriptorOffset);
+      out.writeLong(descriptor.size());
+      out.writeLong(indexOffset);
+      out.writeLong(arenaOffset);
+      out.writeLong(arenaLength);
+      out.writeLong(rowOfOffset);
+      out.writeLong(defaultsOffset);
+      out.writeLong(rowsOffset);
+      descriptor.writeTo(out);
+      int start = 0;
+      for (int i = 0; i < numFeatures; i++) {
+        out.writeInt(start);
+        start += bytes[order[i]].length;
+      }
+      out.writeInt(start);
+      for (int i = 0; i < numFeatures; i++)
+        out.write(bytes[order[i]]);
+      for (int i = 0; i < numFeatures; i++)
+        out.writeInt(kernel.row(order[i]));
+      for (long pad = rowOfOffset + 4L * numFeatures; pad < defaultsOffset; pad++)
+        out.writeByte(0);
+      for (int w = 0; w < numWeights; w++)
+        out.writeDouble(kernel.defaultWeight(w));
+      for (int row = 0; row < numRows; row++)
+        for (int w = 0; w < numWeights; w++)
+          out.writeDouble(kernel.weight(row, w));
+    } finally {
+      out.close();
+    }
+  }
+
+  /** Unsigned lexicographic order, which for UTF-8 is code point order. */
+  static int compareBytes(byte[] a, byte[] b)
+  {
+    int n = Math.min(a.length, b.length);
+    for (int i = 0; i < n; i++) {
+      int diff = (a[i] & 0xff) - (b[i] & 0xff);
+      if (diff != 0)
+        return diff;
+    }
+    return a.length - b.length;
+  }
+
+  private static CRF readCRF(File file) throws IOException, ClassNotFoundException
+  {
+    ObjectInputStream s = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      return (CRF) s.readObject();
+    } finally {
+      s.close();
+    }
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 3 || !(args[0].equals("export") || args[0].equals("import")))
+      throw new IllegalArgumentException("Usage: BinaryModel export model-file binary-file [held-out-file [labeled]]"
+          + " | BinaryModel import binary-file model-file");
+    if (args[0].equals("import")) {
+      CRF crf = open(new File(args[1])).toCRF();
+      ObjectOutputStream s = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(args[2])));
+      s.writeObject(crf);
+      s.close();
+      System.out.printf("Imported %d features, %d states, %d weight sets%n",
+          crf.getInputAlphabet().size(), crf.numStates(), crf.getWeights().length);
+      return;
+    }
+
+    File modelFile = new File(args[1]), binaryFile = new File(args[2]);
+    CRF crf = readCRF(modelFile);
+    export(crf, binaryFile);
+    // Time both loads once the classes involved are loaded.
+    open(binaryFile);
+    long start = System.nanoTime();
+    readCRF(modelFile);
+    double crfLoad = (System.nanoTime() - start) / 1e6;
+    start = System.nanoTime();
+    BinaryModel binary = open(binaryFile);
+    double binaryLoad = (System.nanoTime() - start) / 1e6;
+
+    System.out.printf("Features: %d, rows: %d of %d weight sets%n", binary.getInputAlphabet().size(),
+        binary.kernel.numRows(), binary.kernel.numWeights());
+    System.out.printf("File: %.2f MB -> %.2f MB; load %.1f ms -> %.1f ms (mapped)%n",
+        modelFile.length() / 1048576.0, binaryFile.length() / 1048576.0, crfLoad, binaryLoad);
+
+    if (args.length < 4)
+      return;
+    HeldOutData data = new HeldOutData(args[3], args.length > 4 && Boolean.parseBoolean(args[4]));
+    HeldOutData.Result before = data.decode(new CompiledCRF(crf), crf.getInputPipe());
+    HeldOutData.Result after = data.decode(binary.getModel(), binary.getInputPipe());
+    System.out.println(HeldOutData.agreement(before, after));
+    System.out.printf("Decoding: %.0f -> %.0f tokens/s%n", before.tokensPerSecond, after.tokensPerSecond);
+    if (data.isLabeled())
+      System.out.printf("Accuracy: %.4f -> %.4f%n", before.accuracy(), after.accuracy());
+  }
+}
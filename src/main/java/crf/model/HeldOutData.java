@@ -0,0 +1,126 @@
+package crf.model;
+
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.iterator.LineGroupIterator;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import crf.decode.CompiledCRF;
+import crf.decode.ViterbiDecoder;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+/**
+ * Held-out sentences in the format read by {@link crf.Tagger}, for the
+ * model tools to compare two versions of a model: the labels each picks,
+ * its decoding speed and, if the data is labeled, its accuracy.
+ */
+class HeldOutData
+{
+  private static final int ROUNDS = 5;
+
+  /** One model's answers on the data. */
+  static class Result
+  {
+    /** Chosen label names per sequence; <code>null</code> where no path exists. */
+    final String[][] labels;
+    final long tokens;
+    final long correct;
+    final double tokensPerSecond;
+
+    Result(String[][] labels, long tokens, long correct, double tokensPerSecond)
+    {
+      this.labels = labels;
+      this.tokens = tokens;
+      this.correct = correct;
+      this.tokensPerSecond = tokensPerSecond;
+    }
+
+    double accuracy() { return correct / (double) Math.max(1, tokens); }
+  }
+
+  private final String file;
+  private final boolean labeled;
+
+  /**
+   * @param labeled whether each line ends with a gold label
+   */
+  HeldOutData(String file, boolean labeled)
+  {
+    this.file = file;
+    this.labeled = labeled;
+  }
+
+  boolean isLabeled() { return labeled; }
+
+  /**
+   * Decodes the data with exact Viterbi, reading it through
+   * <code>pipe</code>, which must be the input pipe <code>model</code> was
+   * trained with. Decoding speed is that of the fastest pass after the
+   * first.
+   */
+  Result decode(CompiledCRF model, Pipe pipe) throws IOException
+  {
+    pipe.setTargetProcessing(labeled);
+    pipe.getDataAlphabet().stopGrowth();
+    InstanceList data = new InstanceList(pipe);
+    data.addThruPipe(new LineGroupIterator(new FileReader(file), Pattern.compile("^\\s*$"), true));
+
+    ViterbiDecoder decoder = model.newViterbiDecoder();
+    int[][] paths = new int[data.size()][];
+    long nanos = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < data.size(); i++) {
+        Sequence input = (Sequence) data.get(i).getData();
+        paths[i] = new int[input.size()];
+        if (!decoder.decode(input, paths[i]))
+          paths[i] = null;
+      }
+      if (round > 0)
+        nanos = Math.min(nanos, System.nanoTime() - start);
+    }
+
+    String[][] labels = new String[data.size()][];
+    long tokens = 0, correct = 0;
+    for (int i = 0; i < data.size(); i++) {
+      int length = ((Sequence) data.get(i).getData()).size();
+      tokens += length;
+      if (paths[i] == null)
+        continue;
+      labels[i] = new String[length];
+      for (int t = 0; t < length; t++) {
+        labels[i][t] = model.labelName(paths[i][t]);
+        if (labeled && labels[i][t].equals(((Sequence) data.get(i).getTarget()).get(t).toString()))
+          correct++;
+      }
+    }
+    return new Result(labels, tokens, correct, tokens / (nanos / 1e9));
+  }
+
+  /**
+   * Describes how often <code>b</code> picks the same labels as
+   * <code>a</code>, by token and by whole sequence.
+   */
+  static String agreement(Result a, Result b)
+  {
+    long agree = 0;
+    int sequencesAgree = 0;
+    for (int i = 0; i < a.labels.length; i++) {
+      boolean same = (a.labels[i] == null) == (b.labels[i] == null);
+      if (a.labels[i] != null && b.labels[i] != null)
+        for (int t = 0; t < a.labels[i].length; t++) {
+          if (a.labels[i][t].equals(b.labels[i][t]))
+            agree++;
+          else
+            same = false;
+        }
+      if (same)
+        sequencesAgree++;
+    }
+    return String.format("Label agreement on %d held-out sequences: %.4f%% of tokens, %.2f%% of sequences",
+        a.labels.length, 100.0 * agree / Math.max(1, a.tokens),
+        100.0 * sequencesAgree / Math.max(1, a.labels.length));
+  }
+}
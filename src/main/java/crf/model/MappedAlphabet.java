@@ -0,0 +1,213 @@
+package crf.model;
+
+import cc.mallet.types.Alphabet;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.PrintWriter;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only alphabet of strings memory-mapped from a model file: the
+ * entries' UTF-8 bytes back to back in an arena, sorted by unsigned byte
+ * order (which is code point order), and an index of where each one
+ * starts. An entry's index is its rank, and lookups binary-search the
+ * arena, so opening the alphabet builds no hash table and reads nothing
+ * but the pages lookups touch.
+ * <p>
+ * Growth is always stopped: entries that are not in the arena look up as
+ * -1, which pipes treat as an unknown feature. Serializing the alphabet
+ * copies it into a plain {@link Alphabet}.
+ */
+public class MappedAlphabet extends Alphabet
+{
+  private static final long serialVersionUID = 1L;
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final int size;
+  private final transient IntBuffer start;
+  private final transient ByteBuffer arena;
+
+  /**
+   * Maps the alphabet from <code>channel</code>, which may be closed
+   * afterwards.
+   *
+   * @param indexOffset file position of <code>size + 1</code> ints, the
+   * offset of each entry in the arena followed by the arena length
+   * @param arenaOffset file position of the arena
+   */
+  public MappedAlphabet(FileChannel channel, long indexOffset, int size, long arenaOffset, long arenaLength)
+    throws IOException
+  {
+    super(String.class);
+    this.size = size;
+    start = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, 4L * (size + 1)).asIntBuffer();
+    arena = channel.map(FileChannel.MapMode.READ_ONLY, arenaOffset, arenaLength);
+    super.stopGrowth();
+  }
+
+  /**
+   * Compares the UTF-8 bytes <code>key</code> with entry <code>i</code>,
+   * by unsigned byte order.
+   */
+  private int compare(byte[] key, int i)
+  {
+    int from = start.get(i), length = start.get(i + 1) - from;
+    int n = Math.min(length, key.length);
+    for (int b = 0; b < n; b++) {
+      int diff = (key[b] & 0xff) - (arena.get(from + b) & 0xff);
+      if (diff != 0)
+        return diff;
+    }
+    return key.length - length;
+  }
+
+  @Override
+  public int lookupIndex(Object entry, boolean addIfNotPresent)
+  {
+    if (entry == null)
+      throw new IllegalArgumentException("Can't lookup \"null\" in an Alphabet.");
+    byte[] key = entry.toString().getBytes(UTF8);
+    int lo = 0, hi = size - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int c = compare(key, mid);
+      if (c == 0)
+        return mid;
+      if (c < 0)
+        hi = mid - 1;
+      else
+        lo = mid + 1;
+    }
+    return -1;
+  }
+
+  @Override
+  public Object lookupObject(int index)
+  {
+    int from = start.get(index), length = start.get(index + 1) - from;
+    byte[] bytes = new byte[length];
+    for (int b = 0; b < length; b++)
+      bytes[b] = arena.get(from + b);
+    return new String(bytes, UTF8);
+  }
+
+  @Override
+  public Object[] toArray()
+  {
+    return toArray(new Object[size]);
+  }
+
+  @Override
+  public Object[] toArray(Object[] a)
+  {
+    if (a.length < size)
+      a = (Object[]) Array.newInstance(a.getClass().getComponentType(), size);
+    for (int i = 0; i < size; i++)
+      a[i] = lookupObject(i);
+    if (a.length > size)
+      a[size] = null;
+    return a;
+  }
+
+  @Override
+  public Iterator iterator()
+  {
+    return new Iterator<Object>() {
+      private int next = 0;
+      public boolean hasNext() { return next < size; }
+      public Object next()
+      {
+        if (next >= size)
+          throw new NoSuchElementException();
+        return lookupObject(next++);
+      }
+      public void remove() { throw new UnsupportedOperationException(); }
+    };
+  }
+
+  @Override
+  public Object[] lookupObjects(int[] indices)
+  {
+    return lookupObjects(indices, new Object[indices.length]);
+  }
+
+  @Override
+  public Object[] lookupObjects(int[] indices, Object[] buf)
+  {
+    for (int i = 0; i < indices.length; i++)
+      buf[i] = lookupObject(indices[i]);
+    return buf;
+  }
+
+  @Override
+  public int[] lookupIndices(Object[] objects, boolean addIfNotPresent)
+  {
+    int[] indices = new int[objects.length];
+    for (int i = 0; i < objects.length; i++)
+      indices[i] = lookupIndex(objects[i], false);
+    return indices;
+  }
+
+  @Override
+  public boolean contains(Object entry)
+  {
+    return lookupIndex(entry, false) >= 0;
+  }
+
+  @Override
+  public int size() { return size; }
+
+  /** Bytes of the model file the index and arena occupy. */
+  public long mappedBytes() { return 4L * (size + 1) + arena.capacity(); }
+
+  @Override
+  public void startGrowth()
+  {
+    throw new UnsupportedOperationException("A memory-mapped alphabet is read-only");
+  }
+
+  @Override
+  public Object clone()
+  {
+    return copy();
+  }
+
+  /** A plain, heap-based {@link Alphabet} with the same entries at the same indices. */
+  public Alphabet copy()
+  {
+    Alphabet copy = new Alphabet(size, String.class);
+    for (int i = 0; i < size; i++)
+      copy.lookupIndex(lookupObject(i));
+    copy.stopGrowth();
+    return copy;
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < size; i++)
+      sb.append(lookupObject(i).toString()).append('\n');
+    return sb.toString();
+  }
+
+  @Override
+  public void dump(PrintWriter out)
+  {
+    for (int i = 0; i < size; i++)
+      out.println(" " + i + " => " + lookupObject(i));
+  }
+
+  private Object writeReplace() throws ObjectStreamException
+  {
+    return copy();
+  }
+}
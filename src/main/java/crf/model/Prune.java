@@ -0,0 +1,184 @@
+package crf.model;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSelection;
+import cc.mallet.types.SparseVector;
+import crf.decode.CompiledCRF;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.rmi.dgc.VMID;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Drops the input features whose weight magnitude is at most a threshold
+ * in every weight set, and renumbers the rest, in the input alphabet
+ * shared by the CRF and its pipe and in every weight vector.
+ * <p>
+ * The pruned model is produced by copying the CRF through serialization
+ * with the input alphabet, the weight vectors and any feature selections
+ * replaced by compacted ones, so every reference to the alphabet
+ * (including those held by the pipe) ends up pointing at the same new
+ * alphabet. Pipes and alphabets also get fresh instance ids, since Mallet
+ * resolves deserialized ones to live objects with the same id; so the copy
+ * shares nothing with the source model, which is left untouched.
+ * <p>
+ * Usage: <code>Prune model-file threshold output-file [held-out-file
+ * [labeled]]</code>. Reports the alphabet and weight counts, file size
+ * and load time before and after, and, given held-out data in the format
+ * read by {@link crf.Tagger}, decoding speed, label agreement and (if
+ * <code>labeled</code> is <code>true</code>) the accuracy delta.
+ */
+public class Prune
+{
+  /**
+   * A copy of <code>crf</code> without the input features whose weights
+   * all have magnitude at most <code>threshold</code>. Features that have
+   * no weight at all are dropped too; the weights of kept features are
+   * unchanged.
+   */
+  public static CRF prune(CRF crf, double threshold) throws IOException, ClassNotFoundException
+  {
+    final Alphabet alphabet = crf.getInputAlphabet();
+    CRF.Factors parameters = crf.getParameters();
+    boolean[] keep = new boolean[alphabet.size()];
+    for (SparseVector weights : parameters.weights)
+      for (int loc = 0; loc < weights.numLocations(); loc++)
+        if (Math.abs(weights.valueAtLocation(loc)) > threshold)
+          keep[weights.indexAtLocation(loc)] = true;
+
+    final Alphabet compact = new Alphabet(alphabet.entryClass());
+    final int[] newIndex = new int[alphabet.size()];
+    for (int f = 0; f < newIndex.length; f++)
+      newIndex[f] = keep[f] ? compact.lookupIndex(alphabet.lookupObject(f)) : -1;
+    if (alphabet.growthStopped())
+      compact.stopGrowth();
+
+    final Map<Object, Object> replacements = new IdentityHashMap<Object, Object>();
+    for (SparseVector weights : parameters.weights)
+      replacements.put(weights, remap(weights, newIndex));
+    final Map<VMID, VMID> freshIds = new HashMap<VMID, VMID>();
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes) {
+      {
+        enableReplaceObject(true);
+      }
+      @Override
+      protected Object replaceObject(Object obj) {
+        Object replacement = replacements.get(obj);
+        if (replacement != null)
+          return replacement;
+        if (obj instanceof VMID) {
+          VMID id = freshIds.get(obj);
+          if (id == null)
+            freshIds.put((VMID) obj, id = new VMID());
+          return id;
+        }
+        if (obj instanceof Alphabet && (obj == alphabet
+            || alphabet.getInstanceId().equals(((Alphabet) obj).getInstanceId())))
+          return compact;
+        if (obj instanceof FeatureSelection && ((FeatureSelection) obj).getAlphabet() == alphabet) {
+          BitSet selected = ((FeatureSelection) obj).getBitSet(), remapped = new BitSet();
+          for (int f = selected.nextSetBit(0); f >= 0; f = selected.nextSetBit(f + 1))
+            if (f < newIndex.length && newIndex[f] >= 0)
+              remapped.set(newIndex[f]);
+          return new FeatureSelection(compact, remapped);
+        }
+        return obj;
+      }
+    };
+    out.writeObject(crf);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    CRF pruned = (CRF) in.readObject();
+    in.close();
+    return pruned;
+  }
+
+  private static SparseVector remap(SparseVector weights, int[] newIndex)
+  {
+    int n = 0;
+    for (int loc = 0; loc < weights.numLocations(); loc++)
+      if (newIndex[weights.indexAtLocation(loc)] >= 0)
+        n++;
+    int[] indices = new int[n];
+    double[] values = new double[n];
+    n = 0;
+    for (int loc = 0; loc < weights.numLocations(); loc++) {
+      int f = newIndex[weights.indexAtLocation(loc)];
+      if (f >= 0) {
+        indices[n] = f;
+        values[n++] = weights.valueAtLocation(loc);
+      }
+    }
+    return new SparseVector(indices, values, false, false, false);
+  }
+
+  private static long numWeights(CRF crf)
+  {
+    long n = 0;
+    for (SparseVector weights : crf.getParameters().weights)
+      n += weights.numLocations();
+    return n;
+  }
+
+  private static CRF read(File file) throws IOException, ClassNotFoundException
+  {
+    ObjectInputStream s = new ObjectInputStream(new FileInputStream(file));
+    try {
+      return (CRF) s.readObject();
+    } finally {
+      s.close();
+    }
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 3)
+      throw new IllegalArgumentException(
+          "Usage: Prune model-file threshold output-file [held-out-file [labeled]]");
+    double threshold = Double.parseDouble(args[1]);
+    File modelFile = new File(args[0]), outputFile = new File(args[2]);
+
+    CRF crf = read(modelFile);
+    CRF pruned = prune(crf, threshold);
+    ObjectOutputStream s = new ObjectOutputStream(new FileOutputStream(outputFile));
+    s.writeObject(pruned);
+    s.close();
+    // Time both loads once the classes involved are loaded.
+    long start = System.nanoTime();
+    read(modelFile);
+    double loadBefore = (System.nanoTime() - start) / 1e6;
+    start = System.nanoTime();
+    pruned = read(outputFile);
+    double loadAfter = (System.nanoTime() - start) / 1e6;
+
+    System.out.printf("Features: %d -> %d; weights: %d -> %d (threshold %g)%n",
+        crf.getInputAlphabet().size(), pruned.getInputAlphabet().size(),
+        numWeights(crf), numWeights(pruned), threshold);
+    System.out.printf("File: %.2f MB -> %.2f MB; load %.0f ms -> %.0f ms%n",
+        modelFile.length() / 1048576.0, outputFile.length() / 1048576.0, loadBefore, loadAfter);
+
+    if (args.length < 4)
+      return;
+    HeldOutData data = new HeldOutData(args[3], args.length > 4 && Boolean.parseBoolean(args[4]));
+    HeldOutData.Result before = data.decode(new CompiledCRF(crf), crf.getInputPipe());
+    HeldOutData.Result after = data.decode(new CompiledCRF(pruned), pruned.getInputPipe());
+    System.out.println(HeldOutData.agreement(before, after));
+    System.out.printf("Decoding: %.0f -> %.0f tokens/s%n", before.tokensPerSecond, after.tokensPerSecond);
+    if (data.isLabeled())
+      System.out.printf("Accuracy: %.4f -> %.4f (%+.4f)%n", before.accuracy(), after.accuracy(),
+          after.accuracy() - before.accuracy());
+  }
+}
@@ -0,0 +1,79 @@
+package crf.model;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.types.SparseVector;
+import crf.decode.CompiledCRF;
+import crf.lattice.QuantizedEmissionKernel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+
+/**
+ * Writes a {@link QuantizedModel} of a trained CRF and reports what it
+ * saves and what it changes: weight memory and file size against the
+ * double-precision model, load time, and how often the quantized model
+ * picks the same labels on held-out data.
+ * <p>
+ * Usage: <code>Quantize model-file int8|float16 output-file
+ * [held-out-file [labeled]]</code>, where the held-out file is in the
+ * format read by {@link crf.Tagger}, with a gold label ending each line if
+ * <code>labeled</code> is <code>true</code>; then the accuracy of both
+ * models is reported as well.
+ */
+public class Quantize
+{
+  private static CRF readCRF(File file) throws IOException, ClassNotFoundException
+  {
+    ObjectInputStream s = new ObjectInputStream(new FileInputStream(file));
+    try {
+      return (CRF) s.readObject();
+    } finally {
+      s.close();
+    }
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 3)
+      throw new IllegalArgumentException(
+          "Usage: Quantize model-file int8|float16 output-file [held-out-file [labeled]]");
+    QuantizedEmissionKernel.Precision precision =
+      QuantizedEmissionKernel.Precision.valueOf(args[1].toUpperCase());
+    File modelFile = new File(args[0]), outputFile = new File(args[2]);
+
+    CRF crf = readCRF(modelFile);
+    CompiledCRF exact = new CompiledCRF(crf);
+    QuantizedModel quantized = new QuantizedModel(crf.getInputPipe(), exact, precision);
+    quantized.write(outputFile);
+    // Time both loads once the classes involved are loaded.
+    long start = System.nanoTime();
+    readCRF(modelFile);
+    double crfLoad = (System.nanoTime() - start) / 1e6;
+    start = System.nanoTime();
+    quantized = QuantizedModel.read(outputFile);
+    double quantizedLoad = (System.nanoTime() - start) / 1e6;
+
+    long sparseBytes = 0;
+    for (SparseVector weights : crf.getParameters().weights)
+      sparseBytes += 12L * weights.numLocations();
+    long denseBytes = exact.getEmissionKernel().rowBytes();
+    long quantizedBytes = quantized.getModel().getEmissionKernel().rowBytes();
+    System.out.printf("Weights: CRF %.1f MB sparse, %.1f MB dense rows, %.1f MB %s rows (%.1fx smaller than dense)%n",
+        sparseBytes / 1048576.0, denseBytes / 1048576.0, quantizedBytes / 1048576.0,
+        precision, denseBytes / (double) Math.max(1, quantizedBytes));
+    System.out.printf("File: %.1f MB -> %.1f MB; load %.0f ms -> %.0f ms%n",
+        modelFile.length() / 1048576.0, outputFile.length() / 1048576.0, crfLoad, quantizedLoad);
+
+    if (args.length < 4)
+      return;
+    HeldOutData data = new HeldOutData(args[3], args.length > 4 && Boolean.parseBoolean(args[4]));
+    HeldOutData.Result before = data.decode(exact, crf.getInputPipe());
+    HeldOutData.Result after = data.decode(quantized.getModel(), quantized.getInputPipe());
+    System.out.println(HeldOutData.agreement(before, after));
+    System.out.printf("Decoding: %.0f -> %.0f tokens/s%n", before.tokensPerSecond, after.tokensPerSecond);
+    if (data.isLabeled())
+      System.out.printf("Accuracy: double %.4f, %s %.4f%n", before.accuracy(), precision, after.accuracy());
+  }
+}
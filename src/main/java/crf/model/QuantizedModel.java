@@ -0,0 +1,73 @@
+package crf.model;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.pipe.Pipe;
+import crf.decode.CompiledCRF;
+import crf.lattice.QuantizedEmissionKernel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * A tagging model whose emission weights are stored at reduced precision:
+ * the input pipe of a trained {@link CRF} and a quantized
+ * {@link CompiledCRF}, without the CRF itself. It can tag, but not be
+ * trained further or evaluated with Mallet's evaluators.
+ * <p>
+ * Stored with Java serialization like full models, and recognized by
+ * {@link crf.Tagger} in <code>--model-file</code>.
+ */
+public class QuantizedModel implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  private final Pipe inputPipe;
+  private final CompiledCRF model;
+  private final QuantizedEmissionKernel.Precision precision;
+
+  public QuantizedModel(CRF crf, QuantizedEmissionKernel.Precision precision)
+  {
+    this(crf.getInputPipe(), new CompiledCRF(crf), precision);
+  }
+
+  /** Quantizes <code>compiled</code>, which was compiled from a CRF with <code>inputPipe</code>. */
+  public QuantizedModel(Pipe inputPipe, CompiledCRF compiled, QuantizedEmissionKernel.Precision precision)
+  {
+    this.inputPipe = inputPipe;
+    this.model = compiled.quantize(precision);
+    this.precision = precision;
+  }
+
+  public Pipe getInputPipe() { return inputPipe; }
+
+  public CompiledCRF getModel() { return model; }
+
+  public QuantizedEmissionKernel.Precision getPrecision() { return precision; }
+
+  public void write(File file) throws IOException
+  {
+    ObjectOutputStream s = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      s.writeObject(this);
+    } finally {
+      s.close();
+    }
+  }
+
+  public static QuantizedModel read(File file) throws IOException, ClassNotFoundException
+  {
+    ObjectInputStream s = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      return (QuantizedModel) s.readObject();
+    } finally {
+      s.close();
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package crf.output;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.Sequence;
+import crf.decode.MarginalDecoder;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Compact binary output of label ids, for programs that read the
+ * results back rather than people. All integers but the header's are
+ * unsigned LEB128 varints, so a label id usually takes one byte.
+ * <p>
+ * The header is the magic number {@value #MAGIC} and version
+ * {@value #VERSION} as big-endian ints, then the number of labels and
+ * each label's name as a byte count and UTF-8 bytes; a label's id is its
+ * position in this list. Each sentence follows in input order as a kind
+ * byte and the token count <em>n</em>:
+ * <ul>
+ * <li>{@link #FAILED}: nothing more; the sentence could not be decoded.</li>
+ * <li>{@link #LABELS}: the number of answers <em>k</em>, then
+ * <em>k</em> times <em>n</em> label ids, answer by answer, best
+ * first.</li>
+ * <li>{@link #MARGINALS}: <em>n</em> label ids, then <em>n</em>
+ * big-endian float posteriors and <em>n</em> segment confidences.</li>
+ * </ul>
+ * Input features are not written. {@link Reader} reads the format back.
+ */
+public class BinaryTagWriter extends TagWriter
+{
+  public static final int MAGIC = 0x4352464c;
+  public static final int VERSION = 1;
+
+  public static final int FAILED = 0;
+  public static final int LABELS = 1;
+  public static final int MARGINALS = 2;
+
+  public BinaryTagWriter(OutputBuffer out, Alphabet labels) throws IOException
+  {
+    super(out, labels, false);
+    out.putInt(MAGIC).putInt(VERSION).putVarInt(labels.size());
+    for (int i = 0; i < labels.size(); i++) {
+      byte[] name = labelBytes(labels.lookupObject(i));
+      out.putVarInt(name.length).put(name);
+    }
+  }
+
+  @Override
+  public void write(int index, Sequence input, Sequence[] outputs) throws IOException
+  {
+    if (!decoded(input, outputs)) {
+      out.put((byte) FAILED).putVarInt(input.size());
+      return;
+    }
+    out.put((byte) LABELS).putVarInt(input.size()).putVarInt(outputs.length);
+    for (Sequence output : outputs)
+      for (int j = 0; j < output.size(); j++)
+        out.putVarInt(labelId(output.get(j)));
+  }
+
+  @Override
+  public void writeMarginals(int index, Sequence input, MarginalDecoder.Result result) throws IOException
+  {
+    if (result == null || result.output.size() != input.size()) {
+      out.put((byte) FAILED).putVarInt(input.size());
+      return;
+    }
+    int n = input.size();
+    out.put((byte) MARGINALS).putVarInt(n);
+    for (int j = 0; j < n; j++)
+      out.putVarInt(labelId(result.output.get(j)));
+    for (int j = 0; j < n; j++)
+      out.putFloat((float) result.posteriors[j]);
+    for (int j = 0; j < n; j++)
+      out.putFloat((float) result.spanConfidences[j]);
+  }
+
+  /** Reads sentences written by a {@link BinaryTagWriter}. */
+  public static class Reader
+  {
+    private final DataInputStream in;
+    private final String[] labels;
+    private float[] posteriors;
+    private float[] confidences;
+
+    public Reader(InputStream stream) throws IOException
+    {
+      in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+      if (in.readInt() != MAGIC)
+        throw new IOException("Not a binary tag file");
+      int version = in.readInt();
+      if (version != VERSION)
+        throw new IOException("Unsupported binary tag file version " + version);
+      labels = new String[readVarInt()];
+      for (int i = 0; i < labels.length; i++) {
+        byte[] name = new byte[readVarInt()];
+        in.readFully(name);
+        labels[i] = new String(name, UTF8);
+      }
+    }
+
+    /** The label names, by id. */
+    public String[] getLabels() { return labels; }
+
+    /**
+     * The answers for the next sentence, best first, each with one label
+     * per token; no answers if it could not be decoded, and
+     * <code>null</code> after the last sentence.
+     */
+    public String[][] next() throws IOException
+    {
+      int kind = in.read();
+      if (kind < 0)
+        return null;
+      int n = readVarInt();
+      posteriors = confidences = null;
+      if (kind == FAILED)
+        return new String[0][];
+      int k = kind == MARGINALS ? 1 : readVarInt();
+      String[][] answers = new String[k][n];
+      for (int a = 0; a < k; a++)
+        for (int j = 0; j < n; j++)
+          answers[a][j] = labels[readVarInt()];
+      if (kind == MARGINALS) {
+        posteriors = new float[n];
+        confidences = new float[n];
+        for (int j = 0; j < n; j++)
+          posteriors[j] = in.readFloat();
+        for (int j = 0; j < n; j++)
+          confidences[j] = in.readFloat();
+      }
+      return answers;
+    }
+
+    /** The label posteriors of the sentence last read, if it had marginals. */
+    public float[] posteriors() { return posteriors; }
+
+    /** The segment confidences of the sentence last read, if it had marginals. */
+    public float[] confidences() { return confidences; }
+
+    private int readVarInt() throws IOException
+    {
+      int v = 0;
+      for (int shift = 0; shift < 35; shift += 7) {
+        int b = in.read();
+        if (b < 0)
+          throw new EOFException();
+        v |= (b & 0x7f) << shift;
+        if ((b & 0x80) == 0)
+          return v;
+      }
+      throw new IOException("Malformed varint");
+    }
+
+    public void close() throws IOException
+    {
+      in.close();
+    }
+  }
+}
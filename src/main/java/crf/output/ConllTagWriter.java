@@ -0,0 +1,68 @@
+package crf.output;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Sequence;
+import crf.decode.MarginalDecoder;
+
+import java.io.IOException;
+
+/**
+ * The Tagger's text output: one line per token holding its labels, best
+ * first, each followed by a space, and optionally its features; a blank
+ * line after each sentence. With marginals, each label is followed by its
+ * posterior and its segment's confidence. Sentences that could not be
+ * decoded are left out.
+ */
+public class ConllTagWriter extends TagWriter
+{
+  public ConllTagWriter(OutputBuffer out, Alphabet labels, boolean includeInput)
+  {
+    super(out, labels, includeInput);
+  }
+
+  @Override
+  public void write(int index, Sequence input, Sequence[] outputs) throws IOException
+  {
+    if (!decoded(input, outputs))
+      return;
+    for (int j = 0; j < input.size(); j++) {
+      for (Sequence output : outputs)
+        out.put(labelBytes(output.get(j))).put((byte) ' ');
+      if (includeInput)
+        putFeatures((FeatureVector) input.get(j));
+      out.put((byte) '\n');
+    }
+    out.put((byte) '\n');
+  }
+
+  @Override
+  public void writeMarginals(int index, Sequence input, MarginalDecoder.Result result) throws IOException
+  {
+    if (result == null || result.output.size() != input.size())
+      return;
+    for (int j = 0; j < input.size(); j++) {
+      out.put(labelBytes(result.output.get(j))).put((byte) ' ');
+      out.putFixed(result.posteriors[j], 4).put((byte) ' ');
+      out.putFixed(result.spanConfidences[j], 4).put((byte) ' ');
+      if (includeInput)
+        putFeatures((FeatureVector) input.get(j));
+      out.put((byte) '\n');
+    }
+    out.put((byte) '\n');
+  }
+
+  /** The features as {@link FeatureVector#toString(boolean)} prints them on one line. */
+  private void putFeatures(FeatureVector fv) throws IOException
+  {
+    boolean binary = fv.getValues() == null;
+    for (int l = 0; l < fv.numLocations(); l++) {
+      int index = fv.indexAtLocation(l);
+      out.put(featureBytes(fv, index));
+      if (!binary)
+        out.put((byte) '(').putDecimal(index).put((byte) ')').put((byte) '=')
+            .putUtf8(Double.toString(fv.valueAtLocation(l)));
+      out.put((byte) ' ');
+    }
+  }
+}
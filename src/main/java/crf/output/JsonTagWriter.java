@@ -0,0 +1,149 @@
+package crf.output;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Sequence;
+import crf.decode.MarginalDecoder;
+
+import java.io.IOException;
+
+/**
+ * JSON lines: one object per sentence, in input order, such as
+ * <pre>
+ * {"sentence":0,"labels":["B-birth","I-birth","O"]}
+ * </pre>
+ * where <code>labels</code> is <code>null</code> if the sentence could
+ * not be decoded. With n-best answers the others follow in
+ * <code>alternatives</code>, an array of label arrays; with marginals,
+ * <code>posteriors</code> and <code>confidences</code> hold each token's
+ * label posterior and segment confidence; with the input included,
+ * <code>features</code> holds each token's feature names (as
+ * <code>name=value</code> for features that are not binary).
+ */
+public class JsonTagWriter extends TagWriter
+{
+  private static final byte[] SENTENCE = "{\"sentence\":".getBytes(UTF8);
+  private static final byte[] LABELS = ",\"labels\":".getBytes(UTF8);
+  private static final byte[] ALTERNATIVES = ",\"alternatives\":[".getBytes(UTF8);
+  private static final byte[] POSTERIORS = ",\"posteriors\":[".getBytes(UTF8);
+  private static final byte[] CONFIDENCES = ",\"confidences\":[".getBytes(UTF8);
+  private static final byte[] FEATURES = ",\"features\":[".getBytes(UTF8);
+  private static final byte[] NULL = "null".getBytes(UTF8);
+
+  public JsonTagWriter(OutputBuffer out, Alphabet labels, boolean includeInput)
+  {
+    super(out, labels, includeInput);
+  }
+
+  @Override
+  protected byte[] encodeLabel(String label)
+  {
+    return quote(label).getBytes(UTF8);
+  }
+
+  @Override
+  protected byte[] encodeFeature(String feature)
+  {
+    return quote(feature).getBytes(UTF8);
+  }
+
+  static String quote(String s)
+  {
+    StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\')
+        quoted.append('\\').append(c);
+      else if (c < 0x20)
+        quoted.append(String.format("\\u%04x", (int) c));
+      else
+        quoted.append(c);
+    }
+    return quoted.append('"').toString();
+  }
+
+  @Override
+  public void write(int index, Sequence input, Sequence[] outputs) throws IOException
+  {
+    out.put(SENTENCE).putDecimal(index).put(LABELS);
+    if (!decoded(input, outputs) || outputs.length == 0)
+      out.put(NULL);
+    else {
+      putLabels(outputs[0]);
+      if (outputs.length > 1) {
+        out.put(ALTERNATIVES);
+        for (int a = 1; a < outputs.length; a++) {
+          if (a > 1)
+            out.put((byte) ',');
+          putLabels(outputs[a]);
+        }
+        out.put((byte) ']');
+      }
+    }
+    if (includeInput)
+      putFeatures(input);
+    out.put((byte) '}').put((byte) '\n');
+  }
+
+  @Override
+  public void writeMarginals(int index, Sequence input, MarginalDecoder.Result result) throws IOException
+  {
+    out.put(SENTENCE).putDecimal(index).put(LABELS);
+    if (result == null || result.output.size() != input.size())
+      out.put(NULL);
+    else {
+      putLabels(result.output);
+      out.put(POSTERIORS);
+      putNumbers(result.posteriors);
+      out.put(CONFIDENCES);
+      putNumbers(result.spanConfidences);
+    }
+    if (includeInput)
+      putFeatures(input);
+    out.put((byte) '}').put((byte) '\n');
+  }
+
+  private void putLabels(Sequence output) throws IOException
+  {
+    out.put((byte) '[');
+    for (int j = 0; j < output.size(); j++) {
+      if (j > 0)
+        out.put((byte) ',');
+      out.put(labelBytes(output.get(j)));
+    }
+    out.put((byte) ']');
+  }
+
+  private void putNumbers(double[] values) throws IOException
+  {
+    for (int j = 0; j < values.length; j++) {
+      if (j > 0)
+        out.put((byte) ',');
+      out.putFixed(values[j], 4);
+    }
+    out.put((byte) ']');
+  }
+
+  private void putFeatures(Sequence input) throws IOException
+  {
+    out.put(FEATURES);
+    for (int j = 0; j < input.size(); j++) {
+      if (j > 0)
+        out.put((byte) ',');
+      FeatureVector fv = (FeatureVector) input.get(j);
+      boolean binary = fv.getValues() == null;
+      out.put((byte) '[');
+      for (int l = 0; l < fv.numLocations(); l++) {
+        if (l > 0)
+          out.put((byte) ',');
+        int f = fv.indexAtLocation(l);
+        if (binary)
+          out.put(featureBytes(fv, f));
+        else
+          out.putUtf8(quote(fv.getAlphabet().lookupObject(f) + "=" + fv.valueAtLocation(l)));
+      }
+      out.put((byte) ']');
+    }
+    out.put((byte) ']');
+  }
+}
@@ -0,0 +1,203 @@
+package crf.output;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * A large reusable byte buffer in front of an output stream, with
+ * methods that encode text and numbers straight into it, so writing
+ * output allocates no strings and reaches the stream in big blocks.
+ * Not thread-safe.
+ */
+public class OutputBuffer implements Closeable, Flushable
+{
+  public static final int DEFAULT_SIZE = 1 << 20;
+
+  private final OutputStream out;
+  private final byte[] buffer;
+  private int count;
+
+  public OutputBuffer(OutputStream out)
+  {
+    this(out, DEFAULT_SIZE);
+  }
+
+  public OutputBuffer(OutputStream out, int size)
+  {
+    this.out = out;
+    this.buffer = new byte[Math.max(64, size)];
+  }
+
+  private void ensure(int n) throws IOException
+  {
+    if (count + n > buffer.length)
+      drain();
+  }
+
+  private void drain() throws IOException
+  {
+    if (count > 0)
+      out.write(buffer, 0, count);
+    count = 0;
+  }
+
+  public OutputBuffer put(byte b) throws IOException
+  {
+    if (count == buffer.length)
+      drain();
+    buffer[count++] = b;
+    return this;
+  }
+
+  public OutputBuffer put(byte[] bytes) throws IOException
+  {
+    if (bytes.length > buffer.length / 2) {
+      drain();
+      out.write(bytes);
+      return this;
+    }
+    ensure(bytes.length);
+    System.arraycopy(bytes, 0, buffer, count, bytes.length);
+    count += bytes.length;
+    return this;
+  }
+
+  /** Appends <code>s</code> encoded as UTF-8. */
+  public OutputBuffer putUtf8(CharSequence s) throws IOException
+  {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c < 0x80)
+        put((byte) c);
+      else if (c < 0x800) {
+        ensure(2);
+        buffer[count++] = (byte) (0xc0 | c >> 6);
+        buffer[count++] = (byte) (0x80 | c & 0x3f);
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, s.charAt(++i));
+        ensure(4);
+        buffer[count++] = (byte) (0xf0 | cp >> 18);
+        buffer[count++] = (byte) (0x80 | cp >> 12 & 0x3f);
+        buffer[count++] = (byte) (0x80 | cp >> 6 & 0x3f);
+        buffer[count++] = (byte) (0x80 | cp & 0x3f);
+      }
+      else {
+        if (Character.isSurrogate(c))
+          c = '?';
+        ensure(3);
+        buffer[count++] = (byte) (0xe0 | c >> 12);
+        buffer[count++] = (byte) (0x80 | c >> 6 & 0x3f);
+        buffer[count++] = (byte) (0x80 | c & 0x3f);
+      }
+    }
+    return this;
+  }
+
+  /** Appends the decimal digits of <code>v</code>. */
+  public OutputBuffer putDecimal(long v) throws IOException
+  {
+    ensure(20);
+    if (v < 0) {
+      if (v == Long.MIN_VALUE)
+        return putUtf8(Long.toString(v));
+      buffer[count++] = '-';
+      v = -v;
+    }
+    int end = count + digits(v);
+    count = end;
+    do {
+      buffer[--end] = (byte) ('0' + v % 10);
+      v /= 10;
+    } while (v > 0);
+    return this;
+  }
+
+  private static int digits(long v)
+  {
+    int n = 1;
+    while (v >= 10) {
+      v /= 10;
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Appends <code>v</code> with <code>decimals</code> digits after the
+   * point, as <code>String.format("%.4f")</code> would for 4.
+   */
+  public OutputBuffer putFixed(double v, int decimals) throws IOException
+  {
+    double scale = 1;
+    for (int d = 0; d < decimals; d++)
+      scale *= 10;
+    double scaled = Math.abs(v) * scale;
+    // Ties and huge values need exact decimal rounding.
+    if (Double.isNaN(v) || Double.isInfinite(v) || scaled > 1e15
+        || Math.abs(scaled - Math.floor(scaled) - 0.5) < 1e-6)
+      return putUtf8(String.format(Locale.ROOT, "%." + decimals + "f", v));
+    long units = Math.round(scaled);
+    long whole = units / (long) scale, fraction = units % (long) scale;
+    if (Double.doubleToRawLongBits(v) < 0)
+      put((byte) '-');
+    putDecimal(whole);
+    if (decimals > 0) {
+      ensure(decimals + 1);
+      buffer[count++] = '.';
+      for (int d = count + decimals - 1; d >= count; d--) {
+        buffer[d] = (byte) ('0' + fraction % 10);
+        fraction /= 10;
+      }
+      count += decimals;
+    }
+    return this;
+  }
+
+  /** Appends <code>v</code> as an unsigned LEB128 variable-length integer. */
+  public OutputBuffer putVarInt(int v) throws IOException
+  {
+    ensure(5);
+    while ((v & ~0x7f) != 0) {
+      buffer[count++] = (byte) (v & 0x7f | 0x80);
+      v >>>= 7;
+    }
+    buffer[count++] = (byte) v;
+    return this;
+  }
+
+  /** Appends <code>v</code> as four big-endian bytes. */
+  public OutputBuffer putInt(int v) throws IOException
+  {
+    ensure(4);
+    buffer[count++] = (byte) (v >>> 24);
+    buffer[count++] = (byte) (v >>> 16);
+    buffer[count++] = (byte) (v >>> 8);
+    buffer[count++] = (byte) v;
+    return this;
+  }
+
+  public OutputBuffer putFloat(float v) throws IOException
+  {
+    return putInt(Float.floatToIntBits(v));
+  }
+
+  /** Writes out the buffer and flushes the stream. */
+  public void flush() throws IOException
+  {
+    drain();
+    out.flush();
+  }
+
+  public void close() throws IOException
+  {
+    try {
+      drain();
+    } finally {
+      out.close();
+    }
+  }
+}
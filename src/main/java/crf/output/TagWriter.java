@@ -0,0 +1,165 @@
+package crf.output;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Sequence;
+import crf.decode.MarginalDecoder;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes decoding results, one sentence at a time, in order, through an
+ * {@link OutputBuffer}. Label and feature names are encoded to bytes once
+ * and reused, so writing a token builds no strings.
+ * <p>
+ * The formats are {@link ConllTagWriter plain text} like the Tagger's,
+ * {@link JsonTagWriter JSON lines} and {@link BinaryTagWriter compact
+ * binary label ids}; {@link #open} picks one by name.
+ */
+public abstract class TagWriter implements Closeable
+{
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** Names {@link #open} accepts. */
+  public static final String[] FORMATS = { "conll", "json", "binary" };
+
+  protected final OutputBuffer out;
+  protected final Alphabet labels;
+  protected final boolean includeInput;
+  private final byte[][] labelBytes;
+  private byte[][] featureBytes = new byte[0][];
+
+  /**
+   * @param labels the model's output alphabet; every label written must
+   * be in it
+   * @param includeInput whether to write each token's features after its
+   * labels
+   */
+  protected TagWriter(OutputBuffer out, Alphabet labels, boolean includeInput)
+  {
+    this.out = out;
+    this.labels = labels;
+    this.includeInput = includeInput;
+    labelBytes = new byte[labels.size()][];
+    for (int i = 0; i < labelBytes.length; i++)
+      labelBytes[i] = encodeLabel(labels.lookupObject(i).toString());
+  }
+
+  /**
+   * Opens a writer of <code>format</code> ("conll", "json" or "binary")
+   * on <code>file</code>, or on standard output if it is
+   * <code>null</code>; a file whose name ends in <code>.gz</code> is
+   * gzipped.
+   */
+  public static TagWriter open(String format, File file, Alphabet labels, boolean includeInput)
+    throws IOException
+  {
+    OutputStream stream = file == null
+      ? new FileOutputStream(FileDescriptor.out)
+      : new FileOutputStream(file);
+    if (file != null && file.getName().endsWith(".gz"))
+      stream = new BufferedOutputStream(new GZIPOutputStream(stream, 1 << 16), 1 << 16);
+    OutputBuffer buffer = new OutputBuffer(stream);
+    try {
+      if ("conll".equals(format))
+        return new ConllTagWriter(buffer, labels, includeInput);
+      if ("json".equals(format))
+        return new JsonTagWriter(buffer, labels, includeInput);
+      if ("binary".equals(format))
+        return new BinaryTagWriter(buffer, labels);
+    } catch (IOException e) {
+      buffer.close();
+      throw e;
+    }
+    stream.close();
+    throw new IllegalArgumentException("Unknown output format: " + format);
+  }
+
+  /**
+   * Writes sentence <code>index</code>, the next one.
+   *
+   * @param outputs its n-best answers, best first, or <code>null</code>
+   * if it could not be decoded
+   */
+  public abstract void write(int index, Sequence input, Sequence[] outputs) throws IOException;
+
+  /**
+   * Writes sentence <code>index</code>, the next one, with the posterior
+   * of each label and the confidence of each segment.
+   *
+   * @param result its decoding, or <code>null</code> if it could not be
+   * decoded
+   */
+  public abstract void writeMarginals(int index, Sequence input, MarginalDecoder.Result result)
+    throws IOException;
+
+  /** How a label name is encoded for this format; plain UTF-8 by default. */
+  protected byte[] encodeLabel(String label)
+  {
+    return label.getBytes(UTF8);
+  }
+
+  /** How a feature name is encoded for this format; plain UTF-8 by default. */
+  protected byte[] encodeFeature(String feature)
+  {
+    return feature.getBytes(UTF8);
+  }
+
+  /** The index of <code>label</code> in the output alphabet. */
+  protected int labelId(Object label)
+  {
+    int id = labels.lookupIndex(label, false);
+    if (id < 0)
+      throw new IllegalStateException("Label not in the output alphabet: " + label);
+    return id;
+  }
+
+  /** The encoded name of <code>label</code>. */
+  protected byte[] labelBytes(Object label)
+  {
+    return labelBytes[labelId(label)];
+  }
+
+  /** The encoded name of feature <code>index</code> of <code>fv</code>'s alphabet. */
+  protected byte[] featureBytes(FeatureVector fv, int index)
+  {
+    if (index >= featureBytes.length) {
+      byte[][] grown = new byte[Math.max(index + 1, 2 * featureBytes.length)][];
+      System.arraycopy(featureBytes, 0, grown, 0, featureBytes.length);
+      featureBytes = grown;
+    }
+    byte[] bytes = featureBytes[index];
+    if (bytes == null)
+      bytes = featureBytes[index] = encodeFeature(fv.getAlphabet().lookupObject(index).toString());
+    return bytes;
+  }
+
+  /** Whether <code>outputs</code> all label every token of <code>input</code>. */
+  protected static boolean decoded(Sequence input, Sequence[] outputs)
+  {
+    if (outputs == null)
+      return false;
+    for (Sequence output : outputs)
+      if (output.size() != input.size())
+        return false;
+    return true;
+  }
+
+  public void flush() throws IOException
+  {
+    out.flush();
+  }
+
+  public void close() throws IOException
+  {
+    out.close();
+  }
+}
@@ -0,0 +1,195 @@
+package crf.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for the tagging service: a parser producing
+ * {@link Map}s, {@link List}s, strings, doubles, booleans and
+ * <code>null</code>, and string quoting for writing responses.
+ */
+class Json
+{
+  private final String text;
+  private int pos;
+
+  private Json(String text)
+  {
+    this.text = text;
+  }
+
+  /** Parses one JSON value filling all of <code>text</code>. */
+  static Object parse(String text)
+  {
+    Json parser = new Json(text);
+    Object value = parser.value();
+    parser.skipSpace();
+    if (parser.pos < text.length())
+      throw parser.error("Trailing characters");
+    return value;
+  }
+
+  /** <code>s</code> as a JSON string literal. */
+  static String quote(String s)
+  {
+    StringBuilder out = new StringBuilder(s.length() + 2).append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"': out.append("\\\""); break;
+        case '\\': out.append("\\\\"); break;
+        case '\n': out.append("\\n"); break;
+        case '\r': out.append("\\r"); break;
+        case '\t': out.append("\\t"); break;
+        default:
+          if (c < 0x20)
+            out.append(String.format("\\u%04x", (int) c));
+          else
+            out.append(c);
+      }
+    }
+    return out.append('"').toString();
+  }
+
+  private IllegalArgumentException error(String message)
+  {
+    return new IllegalArgumentException(message + " at offset " + pos + " of JSON input");
+  }
+
+  private void skipSpace()
+  {
+    while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+      pos++;
+  }
+
+  private Object value()
+  {
+    skipSpace();
+    if (pos >= text.length())
+      throw error("Unexpected end");
+    char c = text.charAt(pos);
+    switch (c) {
+      case '{': return object();
+      case '[': return array();
+      case '"': return string();
+      case 't': return literal("true", Boolean.TRUE);
+      case 'f': return literal("false", Boolean.FALSE);
+      case 'n': return literal("null", null);
+      default:
+        if (c == '-' || (c >= '0' && c <= '9'))
+          return number();
+        throw error("Unexpected '" + c + "'");
+    }
+  }
+
+  private Object literal(String word, Object value)
+  {
+    if (!text.startsWith(word, pos))
+      throw error("Expected " + word);
+    pos += word.length();
+    return value;
+  }
+
+  private Double number()
+  {
+    int start = pos;
+    while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0)
+      pos++;
+    try {
+      return Double.valueOf(text.substring(start, pos));
+    } catch (NumberFormatException e) {
+      throw error("Bad number");
+    }
+  }
+
+  private String string()
+  {
+    pos++;
+    StringBuilder out = new StringBuilder();
+    while (true) {
+      if (pos >= text.length())
+        throw error("Unterminated string");
+      char c = text.charAt(pos++);
+      if (c == '"')
+        return out.toString();
+      if (c != '\\') {
+        out.append(c);
+        continue;
+      }
+      if (pos >= text.length())
+        throw error("Unterminated string");
+      c = text.charAt(pos++);
+      switch (c) {
+        case 'b': out.append('\b'); break;
+        case 'f': out.append('\f'); break;
+        case 'n': out.append('\n'); break;
+        case 'r': out.append('\r'); break;
+        case 't': out.append('\t'); break;
+        case 'u':
+          if (pos + 4 > text.length())
+            throw error("Bad escape");
+          try {
+            out.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+          } catch (NumberFormatException e) {
+            throw error("Bad escape");
+          }
+          pos += 4;
+          break;
+        default: out.append(c);
+      }
+    }
+  }
+
+  private List<Object> array()
+  {
+    pos++;
+    List<Object> list = new ArrayList<Object>();
+    skipSpace();
+    if (pos < text.length() && text.charAt(pos) == ']') {
+      pos++;
+      return list;
+    }
+    while (true) {
+      list.add(value());
+      skipSpace();
+      if (pos >= text.length())
+        throw error("Unterminated array");
+      char c = text.charAt(pos++);
+      if (c == ']')
+        return list;
+      if (c != ',')
+        throw error("Expected ',' or ']'");
+    }
+  }
+
+  private Map<String, Object> object()
+  {
+    pos++;
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    skipSpace();
+    if (pos < text.length() && text.charAt(pos) == '}') {
+      pos++;
+      return map;
+    }
+    while (true) {
+      skipSpace();
+      if (pos >= text.length() || text.charAt(pos) != '"')
+        throw error("Expected a key");
+      String key = string();
+      skipSpace();
+      if (pos >= text.length() || text.charAt(pos++) != ':')
+        throw error("Expected ':'");
+      map.put(key, value());
+      skipSpace();
+      if (pos >= text.length())
+        throw error("Unterminated object");
+      char c = text.charAt(pos++);
+      if (c == '}')
+        return map;
+      if (c != ',')
+        throw error("Expected ',' or '}'");
+    }
+  }
+}
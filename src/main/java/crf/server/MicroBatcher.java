@@ -0,0 +1,248 @@
+package crf.server;
+
+import crf.TaggerEngine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces the sentences of concurrent requests into micro-batches for a
+ * fixed pool of decoding threads.
+ * <p>
+ * Requests queue their sentences one by one. A dispatcher thread takes
+ * the first waiting sentence, then waits up to the batching delay for
+ * more, up to the batch size, and hands the batch to a decoding thread,
+ * which tags it in one go with its thread-local decoders, on the model
+ * current when the batch started (see {@link ModelHolder}) or the model
+ * each request asked for. Many small
+ * requests thus cost one hand-off per batch instead of one per request,
+ * and a large request is spread over several batches and threads. The
+ * calling thread blocks until all its sentences are tagged.
+ */
+class MicroBatcher
+{
+  /** The sentences of one request and their labels as they are filled in. */
+  private static class Request
+  {
+    final String[][] labels;
+    final AtomicInteger remaining;
+    final CountDownLatch done = new CountDownLatch(1);
+    volatile RuntimeException error;
+
+    Request(int size)
+    {
+      labels = new String[size][];
+      remaining = new AtomicInteger(size);
+    }
+
+    void finished()
+    {
+      if (remaining.decrementAndGet() == 0)
+        done.countDown();
+    }
+  }
+
+  private static class Item
+  {
+    final Request request;
+    final int index;
+    final String[][] tokens;
+    final TaggerEngine engine;
+
+    Item(Request request, int index, String[][] tokens, TaggerEngine engine)
+    {
+      this.request = request;
+      this.index = index;
+      this.tokens = tokens;
+      this.engine = engine;
+    }
+  }
+
+  private final ModelHolder models;
+  private final int batchSize;
+  private final long delayNanos;
+  private final LinkedBlockingQueue<Item> queue = new LinkedBlockingQueue<Item>();
+  private final ThreadPoolExecutor workers;
+  private final Thread dispatcher;
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong batched = new AtomicLong();
+  private volatile boolean running = true;
+
+  /**
+   * @param models the model sentences are tagged with unless a request
+   * names another; may be <code>null</code> if all do
+   * @param numThreads number of decoding threads
+   * @param batchSize most sentences per batch
+   * @param delayMillis longest a sentence waits for others to join its batch
+   */
+  MicroBatcher(ModelHolder models, int numThreads, int batchSize, long delayMillis)
+  {
+    if (numThreads < 1 || batchSize < 1 || delayMillis < 0)
+      throw new IllegalArgumentException("Bad batching parameters: " + numThreads + " threads, batch size "
+          + batchSize + ", delay " + delayMillis + " ms");
+    this.models = models;
+    this.batchSize = batchSize;
+    this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+    workers = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "crf-batch-" + count.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    dispatcher = new Thread(new Runnable() {
+      public void run() {
+        dispatch();
+      }
+    }, "crf-batcher");
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+  }
+
+  /**
+   * Tags <code>sentences</code>, blocking until all are done.
+   *
+   * @return the labels of each sentence, <code>null</code> for those the
+   * model cannot label
+   * @see crf.TaggerEngine#tag(String[][])
+   */
+  String[][] tag(List<String[][]> sentences) throws InterruptedException
+  {
+    return tag(sentences, null);
+  }
+
+  /**
+   * Tags <code>sentences</code> with <code>engine</code>, or the current
+   * model if it is <code>null</code>, blocking until all are done.
+   */
+  String[][] tag(List<String[][]> sentences, TaggerEngine engine) throws InterruptedException
+  {
+    if (engine == null && models == null)
+      throw new IllegalArgumentException("No default model");
+    if (!running)
+      throw new IllegalStateException("Batcher is shut down");
+    Request request = new Request(sentences.size());
+    if (sentences.isEmpty())
+      return request.labels;
+    for (int i = 0; i < sentences.size(); i++)
+      queue.add(new Item(request, i, sentences.get(i), engine));
+    while (!request.done.await(100, TimeUnit.MILLISECONDS))
+      if (!dispatcher.isAlive())
+        failQueued();
+    if (request.error != null)
+      throw request.error;
+    return request.labels;
+  }
+
+  private void dispatch()
+  {
+    while (running) {
+      Item first;
+      try {
+        first = queue.poll(100, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        break;
+      }
+      if (first == null)
+        continue;
+      final List<Item> batch = new ArrayList<Item>(batchSize);
+      batch.add(first);
+      long deadline = System.nanoTime() + delayNanos;
+      while (batch.size() < batchSize) {
+        queue.drainTo(batch, batchSize - batch.size());
+        long wait = deadline - System.nanoTime();
+        if (batch.size() >= batchSize || wait <= 0)
+          break;
+        Item next;
+        try {
+          next = queue.poll(wait, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+          next = null;
+          running = false;
+        }
+        if (next == null)
+          break;
+        batch.add(next);
+      }
+      batches.incrementAndGet();
+      batched.addAndGet(batch.size());
+      try {
+        workers.execute(new Runnable() {
+          public void run() {
+            decode(batch);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        fail(batch);
+      }
+    }
+    failQueued();
+  }
+
+  private void failQueued()
+  {
+    List<Item> left = new ArrayList<Item>();
+    queue.drainTo(left);
+    fail(left);
+  }
+
+  private static void fail(List<Item> items)
+  {
+    for (Item item : items) {
+      item.request.error = new IllegalStateException("Batcher is shut down");
+      item.request.finished();
+    }
+  }
+
+  private void decode(List<Item> batch)
+  {
+    ModelHolder.Lease lease = null;
+    try {
+      for (Item item : batch) {
+        try {
+          TaggerEngine engine = item.engine;
+          if (engine == null) {
+            if (lease == null)
+              lease = models.acquire();
+            engine = lease.engine();
+          }
+          item.request.labels[item.index] = engine.tag(item.tokens);
+        } catch (RuntimeException e) {
+          item.request.error = e;
+        }
+        item.request.finished();
+      }
+    } finally {
+      if (lease != null)
+        lease.release();
+    }
+  }
+
+  long batches() { return batches.get(); }
+
+  /** Mean number of sentences per batch so far. */
+  double meanBatchSize() { return batched.get() / (double) Math.max(1, batches.get()); }
+
+  /**
+   * Stops batching: sentences still queued, or in a batch not yet handed
+   * to a decoding thread, fail, and the decoding threads exit once the
+   * batches they were handed are done.
+   */
+  void shutdown()
+  {
+    running = false;
+    // Before waking the dispatcher, so the batch it is collecting is refused.
+    workers.shutdown();
+    dispatcher.interrupt();
+  }
+}
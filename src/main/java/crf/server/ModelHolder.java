@@ -0,0 +1,318 @@
+package crf.server;
+
+import cc.mallet.util.MalletLogger;
+import crf.TaggerEngine;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * Holds the current version of a model for a long-running process and
+ * replaces it without stopping: a reload loads and validates the model
+ * file on a background thread, then swaps it in atomically.
+ * <p>
+ * Decoding goes through {@link Lease}s. A lease pins the version that was
+ * current when it was taken, so decodes in flight during a swap finish on
+ * the old model; the old model is released once its last lease is, and
+ * new leases get the new one. Reloads are triggered by {@link #reload}
+ * or, with {@link #watch}, by the model file changing and then staying
+ * unchanged for one polling interval (so half-written files are not
+ * loaded). A model that fails to load or validate is not swapped in.
+ * <p>
+ * Each reload's time and the heap high-water mark while loading are
+ * logged and kept in {@link #statsJson}.
+ */
+public class ModelHolder
+{
+  private static Logger logger = MalletLogger.getLogger(ModelHolder.class.getName());
+
+  /** One loaded version of the model and the leases on it. */
+  private static class Version
+  {
+    final long generation;
+    volatile TaggerEngine engine;
+    final AtomicInteger leases = new AtomicInteger();
+    volatile boolean retired;
+    volatile long retiredAt;
+    final AtomicBoolean released = new AtomicBoolean();
+
+    Version(long generation, TaggerEngine engine)
+    {
+      this.generation = generation;
+      this.engine = engine;
+    }
+
+    /** Drops the model once it is retired and has no leases; returns whether this call did. */
+    boolean releaseIfDrained()
+    {
+      if (!retired || leases.get() > 0 || !released.compareAndSet(false, true))
+        return false;
+      engine = null;
+      logger.info(String.format(Locale.ROOT, "Model generation %d drained and released %.0f ms after it was replaced",
+          generation, (System.nanoTime() - retiredAt) / 1e6));
+      return true;
+    }
+  }
+
+  /**
+   * The right to decode with one version of the model until
+   * {@link #release}d. Not for sharing between threads.
+   */
+  public static class Lease
+  {
+    private final Version version;
+    private boolean released;
+
+    private Lease(Version version)
+    {
+      this.version = version;
+    }
+
+    public TaggerEngine engine() { return version.engine; }
+
+    /** The reload count of the version this lease pins; 0 for the first. */
+    public long generation() { return version.generation; }
+
+    public void release()
+    {
+      if (released)
+        return;
+      released = true;
+      version.leases.decrementAndGet();
+      version.releaseIfDrained();
+    }
+  }
+
+  private final File file;
+  private final AtomicReference<Version> current = new AtomicReference<Version>();
+  private final ScheduledExecutorService loader;
+  private final AtomicLong reloads = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private volatile double lastReloadMillis;
+  private volatile long peakHeapBytes;
+  private long lastStamp;
+  private long pendingStamp;
+
+  /** Loads the model in <code>file</code>, which may later be reloaded. */
+  public ModelHolder(File file) throws Exception
+  {
+    this.file = file;
+    this.loader = newLoader();
+    lastStamp = stamp();
+    current.set(new Version(0, load()));
+  }
+
+  /** Holds <code>engine</code> for good; there is no file to reload. */
+  public ModelHolder(TaggerEngine engine)
+  {
+    this.file = null;
+    this.loader = null;
+    current.set(new Version(0, engine));
+  }
+
+  private static ScheduledExecutorService newLoader()
+  {
+    return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "crf-reload");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Pins the current model until the lease is released; release it in a
+   * <code>finally</code> block.
+   */
+  public Lease acquire()
+  {
+    while (true) {
+      Version version = current.get();
+      version.leases.incrementAndGet();
+      // Only a version that was still current after the increment can
+      // rely on the swap seeing the lease.
+      if (current.get() == version)
+        return new Lease(version);
+      version.leases.decrementAndGet();
+      version.releaseIfDrained();
+    }
+  }
+
+  /** Tags with the current model; see {@link TaggerEngine#tag(String)}. */
+  public String[] tag(String sentence)
+  {
+    Lease lease = acquire();
+    try {
+      return lease.engine().tag(sentence);
+    } finally {
+      lease.release();
+    }
+  }
+
+  /** Tags with the current model; see {@link TaggerEngine#tag(String[][])}. */
+  public String[] tag(String[][] tokens)
+  {
+    Lease lease = acquire();
+    try {
+      return lease.engine().tag(tokens);
+    } finally {
+      lease.release();
+    }
+  }
+
+  /** The reload count of the current model; 0 for the first. */
+  public long generation() { return current.get().generation; }
+
+  public File getFile() { return file; }
+
+  /**
+   * Loads the model file again in the background and swaps it in if it
+   * loads and validates.
+   *
+   * @return whether the new model was swapped in
+   */
+  public Future<Boolean> reload()
+  {
+    if (loader == null)
+      throw new UnsupportedOperationException("This model was not loaded from a file");
+    return loader.submit(new Callable<Boolean>() {
+      public Boolean call() {
+        return reloadNow();
+      }
+    });
+  }
+
+  /**
+   * Checks the model file every <code>intervalSeconds</code> and reloads
+   * it once it has changed and then stayed the same for a whole interval.
+   */
+  public void watch(int intervalSeconds)
+  {
+    if (loader == null)
+      throw new UnsupportedOperationException("This model was not loaded from a file");
+    loader.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        poll();
+      }
+    }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  /** Stops watching and reloading; the current model stays usable. */
+  public void close()
+  {
+    if (loader != null)
+      loader.shutdownNow();
+  }
+
+  private long stamp()
+  {
+    return file.lastModified() * 31 + file.length();
+  }
+
+  /**
+   * One check of the model file, as {@link #watch} runs every interval:
+   * reloads it if it changed before the previous check and not since.
+   */
+  void poll()
+  {
+    long stamp = stamp();
+    if (stamp == lastStamp || file.length() == 0) {
+      pendingStamp = 0;
+      return;
+    }
+    if (stamp != pendingStamp) {
+      pendingStamp = stamp;
+      return;
+    }
+    pendingStamp = 0;
+    lastStamp = stamp;
+    reloadNow();
+  }
+
+  private boolean reloadNow()
+  {
+    long start = System.nanoTime();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+      if (pool.getType() == MemoryType.HEAP)
+        pool.resetPeakUsage();
+    lastStamp = stamp();
+    TaggerEngine engine;
+    try {
+      engine = load();
+    } catch (Throwable e) {
+      failures.incrementAndGet();
+      logger.warning("Reloading " + file + " failed; keeping model generation "
+          + generation() + ": " + e);
+      return false;
+    }
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+      if (pool.getType() == MemoryType.HEAP)
+        peak += pool.getPeakUsage().getUsed();
+    peakHeapBytes = Math.max(peakHeapBytes, peak);
+    lastReloadMillis = (System.nanoTime() - start) / 1e6;
+
+    Version next = new Version(reloads.incrementAndGet(), engine);
+    Version old = current.getAndSet(next);
+    old.retiredAt = System.nanoTime();
+    old.retired = true;
+    logger.info(String.format(Locale.ROOT,
+        "Swapped in model generation %d from %s: loaded and validated in %.0f ms, heap peak %.1f MB while loading;"
+        + " %d decodes still on generation %d",
+        next.generation, file, lastReloadMillis, peak / 1048576.0, old.leases.get(), old.generation));
+    old.releaseIfDrained();
+    return true;
+  }
+
+  /**
+   * Loads the model file and checks it can tag: it has states and labels,
+   * and labels a sentence of one token without features.
+   */
+  private TaggerEngine load() throws Exception
+  {
+    TaggerEngine engine = TaggerEngine.load(file);
+    prepare(engine);
+    if (engine.getModel().numStates() == 0 || engine.getModel().numLabels() == 0)
+      throw new IllegalStateException("Model has no states or labels");
+    if (engine.tag(new String[][] { new String[0] }) == null)
+      throw new IllegalStateException("Model cannot label a one-token sentence");
+    Version old = current.get();
+    TaggerEngine oldEngine = old == null ? null : old.engine;
+    if (oldEngine != null && oldEngine.getModel().numLabels() != engine.getModel().numLabels())
+      logger.warning("Reloaded model has " + engine.getModel().numLabels() + " labels, the previous one "
+          + oldEngine.getModel().numLabels());
+    return engine;
+  }
+
+  /**
+   * Called on every model loaded from the file before it is validated and
+   * used, for setting it up; does nothing by default. It may run during
+   * construction.
+   */
+  protected void prepare(TaggerEngine engine)
+  {
+  }
+
+  /** Reload counters as a JSON object. */
+  public String statsJson()
+  {
+    return String.format(Locale.ROOT, "{\"generation\":%d,\"reloads\":%d,\"failedReloads\":%d,"
+        + "\"lastReloadMillis\":%.1f,\"reloadHeapPeakMB\":%.1f}",
+        generation(), reloads.get(), failures.get(), lastReloadMillis, peakHeapBytes / 1048576.0);
+  }
+}
@@ -0,0 +1,315 @@
+package crf.server;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.util.MalletLogger;
+import crf.TaggerEngine;
+import crf.decode.CompiledCRF;
+import crf.lattice.EmissionKernel;
+import crf.lattice.MappedEmissionKernel;
+import crf.model.MappedAlphabet;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Loads models by name from a directory on demand and keeps as many as
+ * fit in a memory budget, for processes that use many models (one per
+ * infobox template, say) but need only some of them at a time.
+ * <p>
+ * Model <em>name</em> is read from the file <code>name</code>,
+ * <code>name.bin</code> or <code>name.crf</code> in the directory, in any
+ * format {@link TaggerEngine#load} reads. Each loaded model's footprint is
+ * estimated, on the heap (weights, feature map, alphabet) and off it
+ * (the memory-mapped parts of a binary model), and when the total goes
+ * over the budget the least recently used models are evicted. A model
+ * larger than the whole budget is still loaded, and evicts all others.
+ * <p>
+ * Threads asking for a model that is being loaded wait for that load
+ * instead of starting their own. An evicted model is only dropped from
+ * the registry: threads still tagging with it finish, and its memory is
+ * reclaimed once they are done with it. Hits, loads, shared loads,
+ * failures and evictions are counted in {@link #statsJson}.
+ */
+public class ModelRegistry
+{
+  private static Logger logger = MalletLogger.getLogger(ModelRegistry.class.getName());
+
+  /** Endings tried after the model name, in order. */
+  private static final String[] SUFFIXES = { "", ".bin", ".crf" };
+
+  private static class Entry
+  {
+    final TaggerEngine engine;
+    final long heapBytes;
+    final long mappedBytes;
+
+    Entry(TaggerEngine engine, long heapBytes, long mappedBytes)
+    {
+      this.engine = engine;
+      this.heapBytes = heapBytes;
+      this.mappedBytes = mappedBytes;
+    }
+
+    long bytes() { return heapBytes + mappedBytes; }
+  }
+
+  private final File directory;
+  private final long budgetBytes;
+  /** Loaded models, least recently used first; guarded by <code>this</code>. */
+  private final LinkedHashMap<String, Entry> loaded = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private final ConcurrentHashMap<String, FutureTask<Entry>> loading = new ConcurrentHashMap<String, FutureTask<Entry>>();
+  private long heapBytes;
+  private long mappedBytes;
+  private volatile boolean closed;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong loads = new AtomicLong();
+  private final AtomicLong sharedLoads = new AtomicLong();
+  private final AtomicLong failedLoads = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong loadNanos = new AtomicLong();
+
+  /**
+   * @param directory where the model files are
+   * @param budgetBytes most estimated bytes, on and off the heap, of the
+   * models kept loaded
+   */
+  public ModelRegistry(File directory, long budgetBytes)
+  {
+    if (!directory.isDirectory())
+      throw new IllegalArgumentException("Not a directory: " + directory);
+    if (budgetBytes <= 0)
+      throw new IllegalArgumentException("Memory budget must be positive: " + budgetBytes);
+    this.directory = directory;
+    this.budgetBytes = budgetBytes;
+  }
+
+  /**
+   * The model called <code>name</code>, loading it if it is not loaded.
+   *
+   * @throws FileNotFoundException if there is no such model
+   * @throws IllegalArgumentException if <code>name</code> is not a plain
+   * file name
+   * @throws IllegalStateException if the registry is closed
+   */
+  public TaggerEngine get(final String name) throws Exception
+  {
+    if (closed)
+      throw new IllegalStateException("The model registry is closed");
+    if (name.isEmpty() || name.startsWith(".") || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0)
+      throw new IllegalArgumentException("Bad model name: " + name);
+    TaggerEngine engine = lookup(name);
+    if (engine != null)
+      return engine;
+    FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>() {
+      public Entry call() throws Exception {
+        return load(name);
+      }
+    });
+    FutureTask<Entry> running = loading.putIfAbsent(name, task);
+    if (running != null) {
+      sharedLoads.incrementAndGet();
+      task = running;
+    }
+    else {
+      // Another thread may have finished loading it since the lookup.
+      engine = lookup(name);
+      if (engine != null) {
+        loading.remove(name, task);
+        return engine;
+      }
+      try {
+        task.run();
+      } finally {
+        loading.remove(name, task);
+      }
+    }
+    try {
+      return task.get().engine;
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception)
+        throw (Exception) e.getCause();
+      throw e;
+    }
+  }
+
+  private synchronized TaggerEngine lookup(String name)
+  {
+    Entry entry = loaded.get(name);
+    if (entry == null)
+      return null;
+    hits.incrementAndGet();
+    return entry.engine;
+  }
+
+  /** The file model <code>name</code> is read from, or <code>null</code> if there is none. */
+  protected File resolve(String name)
+  {
+    for (String suffix : SUFFIXES) {
+      File file = new File(directory, name + suffix);
+      if (file.isFile())
+        return file;
+    }
+    return null;
+  }
+
+  /**
+   * Called on every model loaded, before it is used, for setting it up;
+   * does nothing by default.
+   */
+  protected void prepare(TaggerEngine engine)
+  {
+  }
+
+  private Entry load(String name) throws Exception
+  {
+    File file = resolve(name);
+    if (file == null)
+      throw new FileNotFoundException("No model " + name + " in " + directory);
+    long start = System.nanoTime();
+    TaggerEngine engine;
+    try {
+      engine = TaggerEngine.load(file);
+      prepare(engine);
+    } catch (Exception e) {
+      failedLoads.incrementAndGet();
+      logger.warning("Loading model " + name + " from " + file + " failed: " + e);
+      throw e;
+    }
+    long nanos = System.nanoTime() - start;
+    loads.incrementAndGet();
+    loadNanos.addAndGet(nanos);
+    Entry entry = new Entry(engine, estimateHeapBytes(engine), estimateMappedBytes(engine));
+    List<String> evicted = new ArrayList<String>();
+    synchronized (this) {
+      if (closed)
+        return entry;
+      loaded.put(name, entry);
+      heapBytes += entry.heapBytes;
+      mappedBytes += entry.mappedBytes;
+      Iterator<Map.Entry<String, Entry>> eldest = loaded.entrySet().iterator();
+      while (heapBytes + mappedBytes > budgetBytes && loaded.size() > 1) {
+        Map.Entry<String, Entry> victim = eldest.next();
+        eldest.remove();
+        heapBytes -= victim.getValue().heapBytes;
+        mappedBytes -= victim.getValue().mappedBytes;
+        evicted.add(victim.getKey());
+      }
+    }
+    evictions.addAndGet(evicted.size());
+    logger.info(String.format(Locale.ROOT, "Loaded model %s in %.0f ms: about %.1f MB on the heap, %.1f MB mapped%s",
+        name, nanos / 1e6, entry.heapBytes / 1048576.0, entry.mappedBytes / 1048576.0,
+        evicted.isEmpty() ? "" : "; evicted " + evicted));
+    if (entry.bytes() > budgetBytes)
+      logger.warning(String.format(Locale.ROOT, "Model %s alone takes about %.1f MB, over the %.1f MB budget",
+          name, entry.bytes() / 1048576.0, budgetBytes / 1048576.0));
+    return entry;
+  }
+
+  /** Drops model <code>name</code> if it is loaded; returns whether it was. */
+  public boolean evict(String name)
+  {
+    Entry entry;
+    synchronized (this) {
+      entry = loaded.remove(name);
+      if (entry == null)
+        return false;
+      heapBytes -= entry.heapBytes;
+      mappedBytes -= entry.mappedBytes;
+    }
+    evictions.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Drops every loaded model and refuses further requests; models loading
+   * now are handed to the threads waiting for them but not kept. Threads
+   * still tagging with a model finish, as after an eviction.
+   */
+  public void close()
+  {
+    int dropped;
+    synchronized (this) {
+      closed = true;
+      dropped = loaded.size();
+      loaded.clear();
+      heapBytes = 0;
+      mappedBytes = 0;
+    }
+    logger.info("Closed the model registry, dropping " + dropped + " models");
+  }
+
+  /** The names of the loaded models, least recently used first. */
+  public synchronized List<String> loadedNames()
+  {
+    return new ArrayList<String>(loaded.keySet());
+  }
+
+  /** Estimated bytes of the loaded models, on and off the heap. */
+  public synchronized long usedBytes() { return heapBytes + mappedBytes; }
+
+  public long budgetBytes() { return budgetBytes; }
+
+  /**
+   * Estimated heap taken by a model: its emission weights and feature
+   * map, if they are not mapped, its transitions and its input alphabet's
+   * entries, at about 88 bytes of string and hash map overhead each.
+   */
+  static long estimateHeapBytes(TaggerEngine engine)
+  {
+    CompiledCRF model = engine.getModel();
+    EmissionKernel kernel = model.getEmissionKernel();
+    Alphabet features = engine.getPipe().getDataAlphabet();
+    long bytes = kernel.rowBytes() + 32L * model.numTransitions() + 16L * model.numWeights()
+        + 64L * model.numStates();
+    if (!(kernel instanceof MappedEmissionKernel) && features != null)
+      bytes += 4L * features.size();
+    if (features != null && !(features instanceof MappedAlphabet))
+      for (int i = 0; i < features.size(); i++)
+        bytes += 88 + features.lookupObject(i).toString().length();
+    return bytes;
+  }
+
+  /** Bytes of a model file memory-mapped by a binary model; 0 for other models. */
+  static long estimateMappedBytes(TaggerEngine engine)
+  {
+    EmissionKernel kernel = engine.getModel().getEmissionKernel();
+    Alphabet features = engine.getPipe().getDataAlphabet();
+    long bytes = 0;
+    if (kernel instanceof MappedEmissionKernel)
+      bytes += ((MappedEmissionKernel) kernel).mappedBytes();
+    if (features instanceof MappedAlphabet)
+      bytes += ((MappedAlphabet) features).mappedBytes();
+    return bytes;
+  }
+
+  /** Load, eviction and hit counters and memory use as a JSON object. */
+  public String statsJson()
+  {
+    int models;
+    long heap, mapped;
+    synchronized (this) {
+      models = loaded.size();
+      heap = heapBytes;
+      mapped = mappedBytes;
+    }
+    long requests = hits.get() + loads.get() + sharedLoads.get();
+    return String.format(Locale.ROOT, "{\"loadedModels\":%d,\"heapMB\":%.1f,\"mappedMB\":%.1f,\"budgetMB\":%.1f,"
+        + "\"hits\":%d,\"loads\":%d,\"sharedLoads\":%d,\"failedLoads\":%d,\"evictions\":%d,"
+        + "\"hitRate\":%.3f,\"meanLoadMillis\":%.1f}",
+        models, heap / 1048576.0, mapped / 1048576.0, budgetBytes / 1048576.0,
+        hits.get(), loads.get(), sharedLoads.get(), failedLoads.get(), evictions.get(),
+        hits.get() / (double) Math.max(1, requests), loadNanos.get() / 1e6 / Math.max(1, loads.get()));
+  }
+}
@@ -0,0 +1,94 @@
+package crf.server;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Request, throughput and latency counters of the tagging service.
+ * Latencies go into a histogram with four buckets per doubling from one
+ * microsecond, so percentiles are reported to within about 19%, without
+ * keeping samples or locking.
+ */
+class ServerStats
+{
+  private static final int BUCKETS_PER_DOUBLING = 4;
+  private static final int NUM_BUCKETS = 40 * BUCKETS_PER_DOUBLING;
+
+  private final long startNanos = System.nanoTime();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong sentences = new AtomicLong();
+  private final AtomicLong tokens = new AtomicLong();
+  private final AtomicLong latencyNanos = new AtomicLong();
+  private final AtomicLong maxLatencyNanos = new AtomicLong();
+  private final AtomicLongArray histogram = new AtomicLongArray(NUM_BUCKETS);
+
+  /** Records a tagging request answered successfully. */
+  void record(int numSentences, long numTokens, long nanos)
+  {
+    requests.incrementAndGet();
+    sentences.addAndGet(numSentences);
+    tokens.addAndGet(numTokens);
+    latencyNanos.addAndGet(nanos);
+    long max;
+    while (nanos > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, nanos))
+      ;
+    histogram.incrementAndGet(bucket(nanos));
+  }
+
+  /** Records a request answered with an error. */
+  void error()
+  {
+    errors.incrementAndGet();
+  }
+
+  private static int bucket(long nanos)
+  {
+    double micros = Math.max(1, nanos / 1000.0);
+    int b = (int) (Math.log(micros) / Math.log(2) * BUCKETS_PER_DOUBLING);
+    return Math.min(NUM_BUCKETS - 1, b);
+  }
+
+  /** Upper bound of bucket <code>b</code>, in milliseconds. */
+  private static double bucketLimitMillis(int b)
+  {
+    return Math.pow(2, (b + 1) / (double) BUCKETS_PER_DOUBLING) / 1000;
+  }
+
+  /** Latency below which fraction <code>p</code> of requests completed, in milliseconds. */
+  double percentileMillis(double p)
+  {
+    long total = 0;
+    long[] counts = new long[NUM_BUCKETS];
+    for (int b = 0; b < NUM_BUCKETS; b++)
+      total += counts[b] = histogram.get(b);
+    if (total == 0)
+      return 0;
+    long rank = (long) Math.ceil(p * total), seen = 0;
+    for (int b = 0; b < NUM_BUCKETS; b++) {
+      seen += counts[b];
+      if (seen >= rank)
+        return Math.min(bucketLimitMillis(b), maxLatencyNanos.get() / 1e6);
+    }
+    return maxLatencyNanos.get() / 1e6;
+  }
+
+  /**
+   * The counters as a JSON object, with the batcher's, the default
+   * model's and the registry's, which may be <code>null</code>.
+   */
+  String toJson(MicroBatcher batcher, ModelHolder models, ModelRegistry registry)
+  {
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    long n = requests.get();
+    return String.format(Locale.ROOT, "{\"uptimeSeconds\":%.1f,\"requests\":%d,\"errors\":%d,\"sentences\":%d,\"tokens\":%d,"
+        + "\"batches\":%d,\"meanBatchSize\":%.2f,\"sentencesPerSecond\":%.1f,\"tokensPerSecond\":%.1f,"
+        + "\"latencyMillis\":{\"mean\":%.3f,\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"max\":%.3f},\"model\":%s,\"registry\":%s}",
+        seconds, n, errors.get(), sentences.get(), tokens.get(),
+        batcher.batches(), batcher.meanBatchSize(), sentences.get() / seconds, tokens.get() / seconds,
+        latencyNanos.get() / 1e6 / Math.max(1, n), percentileMillis(0.5), percentileMillis(0.9),
+        percentileMillis(0.99), maxLatencyNanos.get() / 1e6,
+        models == null ? "null" : models.statsJson(), registry == null ? "null" : registry.statsJson());
+  }
+}
@@ -0,0 +1,377 @@
+package crf.server;
+
+import cc.mallet.util.MalletLogger;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import crf.TaggerEngine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Long-running HTTP tagging service over one {@link TaggerEngine}, on the
+ * JDK's built-in HTTP server, so the model is loaded once for any number
+ * of requests.
+ * <p>
+ * <code>POST /tag</code> takes sentences in one of two forms:
+ * <ul>
+ * <li>as text, the format read by {@link crf.Tagger} without labels: one
+ * token per line, its features separated by whitespace, and sentences
+ * separated by blank lines; the answer has one label per line and a blank
+ * line after each sentence, like the Tagger's output (sentences that
+ * cannot be labeled get no lines);</li>
+ * <li>with <code>Content-Type: application/json</code>, as
+ * <code>{"sentences": [...]}</code> (or the bare array), where each
+ * sentence is a string in the text form (holding one sentence, so no
+ * blank lines) or an array of tokens, and each
+ * token is a string of features separated by spaces or an array of
+ * features; the answer is <code>{"labels": [...]}</code>, one array of
+ * labels or <code>null</code> per sentence.</li>
+ * </ul>
+ * With a {@link ModelRegistry}, <code>POST /tag?model=NAME</code> tags
+ * with the registry's model <code>NAME</code>, loading it if need be,
+ * instead of the default model.
+ * <code>GET /stats</code> returns request, throughput, batching,
+ * latency, model reload and registry counters as JSON; <code>POST /reload</code>
+ * reloads the model file in the background and swaps it in without
+ * interrupting requests (see {@link ModelHolder}), answering once it is
+ * done; and <code>GET /health</code> answers <code>ok</code>.
+ * <p>
+ * Requests are handled on a pool of up to {@value #MAX_HANDLERS} threads,
+ * which mostly wait; their sentences are decoded in micro-batches by a
+ * {@link MicroBatcher} on a fixed number of decoding threads.
+ */
+public class TaggingServer
+{
+  private static Logger logger = MalletLogger.getLogger(TaggingServer.class.getName());
+
+  /** Most requests handled at once; beyond that, the accepting thread handles them itself. */
+  public static final int MAX_HANDLERS = 256;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final HttpServer server;
+  private final ThreadPoolExecutor handlers;
+  private final ModelHolder models;
+  private final ModelRegistry registry;
+  private final MicroBatcher batcher;
+  private final ServerStats stats = new ServerStats();
+
+  /**
+   * @param address where to listen; binding to a loopback address keeps
+   * the service local
+   * @param numThreads number of decoding threads
+   * @param batchSize most sentences decoded in one batch
+   * @param batchDelayMillis longest a sentence waits for others to join its batch
+   */
+  public TaggingServer(TaggerEngine engine, InetSocketAddress address, int numThreads,
+      int batchSize, long batchDelayMillis) throws IOException
+  {
+    this(new ModelHolder(engine), address, numThreads, batchSize, batchDelayMillis);
+  }
+
+  /**
+   * A server over the current model of <code>models</code>, which
+   * <code>POST /reload</code> reloads if it was loaded from a file.
+   *
+   * @see #TaggingServer(TaggerEngine, InetSocketAddress, int, int, long)
+   */
+  public TaggingServer(ModelHolder models, InetSocketAddress address, int numThreads,
+      int batchSize, long batchDelayMillis) throws IOException
+  {
+    this(models, null, address, numThreads, batchSize, batchDelayMillis);
+  }
+
+  /**
+   * A server over the current model of <code>models</code> and, for
+   * requests naming one, the models of <code>registry</code>. Either may
+   * be <code>null</code>, but not both; without <code>models</code>,
+   * requests must name a model.
+   *
+   * @see #TaggingServer(TaggerEngine, InetSocketAddress, int, int, long)
+   */
+  public TaggingServer(ModelHolder models, ModelRegistry registry, InetSocketAddress address, int numThreads,
+      int batchSize, long batchDelayMillis) throws IOException
+  {
+    if (models == null && registry == null)
+      throw new IllegalArgumentException("No models to serve");
+    this.models = models;
+    this.registry = registry;
+    batcher = new MicroBatcher(models, numThreads, batchSize, batchDelayMillis);
+    handlers = new ThreadPoolExecutor(0, MAX_HANDLERS, 60, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "crf-http-" + count.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      }
+    }, new ThreadPoolExecutor.CallerRunsPolicy());
+    server = HttpServer.create(address, 0);
+    server.setExecutor(handlers);
+    server.createContext("/tag", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        handleTag(exchange);
+      }
+    });
+    server.createContext("/stats", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        send(exchange, 200, "application/json", statsJson() + "\n");
+      }
+    });
+    server.createContext("/reload", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        handleReload(exchange);
+      }
+    });
+    server.createContext("/health", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        send(exchange, 200, "text/plain", "ok\n");
+      }
+    });
+  }
+
+  public void start()
+  {
+    server.start();
+    logger.info("Tagging service listening on " + getAddress());
+  }
+
+  /** The address the server listens on, with the actual port if it was given as 0. */
+  public InetSocketAddress getAddress() { return server.getAddress(); }
+
+  /** Stops accepting requests, waits up to <code>delaySeconds</code> for open ones, and stops decoding. */
+  public void stop(int delaySeconds)
+  {
+    server.stop(delaySeconds);
+    batcher.shutdown();
+    handlers.shutdown();
+    if (models != null)
+      models.close();
+    if (registry != null)
+      registry.close();
+    logger.info("Tagging service stopped: " + statsJson());
+  }
+
+  /** The service counters, as served at <code>/stats</code>. */
+  public String statsJson() { return stats.toJson(batcher, models, registry); }
+
+  private void handleTag(HttpExchange exchange) throws IOException
+  {
+    long start = System.nanoTime();
+    try {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        stats.error();
+        send(exchange, 405, "text/plain", "POST sentences to /tag\n");
+        return;
+      }
+      String body = new String(readAll(exchange.getRequestBody()), UTF8);
+      String type = exchange.getRequestHeaders().getFirst("Content-Type");
+      boolean json = type != null && type.toLowerCase().contains("json");
+      List<String[][]> sentences = json ? parseJson(body) : parseText(body);
+      String[][] labels = batcher.tag(sentences, engine(exchange));
+      long tokens = 0;
+      for (String[][] sentence : sentences)
+        tokens += sentence.length;
+      String answer = json ? toJson(labels) : toText(labels);
+      send(exchange, 200, json ? "application/json" : "text/plain", answer);
+      stats.record(sentences.size(), tokens, System.nanoTime() - start);
+    } catch (IllegalArgumentException e) {
+      stats.error();
+      send(exchange, 400, "text/plain", e.getMessage() + "\n");
+    } catch (FileNotFoundException e) {
+      stats.error();
+      send(exchange, 404, "text/plain", e.getMessage() + "\n");
+    } catch (InterruptedException e) {
+      stats.error();
+      send(exchange, 503, "text/plain", "Interrupted\n");
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      stats.error();
+      logger.warning("Tagging request failed: " + e);
+      send(exchange, 500, "text/plain", e + "\n");
+    }
+  }
+
+  /**
+   * The registry model named by the <code>model</code> query parameter,
+   * or <code>null</code> for the default model.
+   */
+  private TaggerEngine engine(HttpExchange exchange) throws Exception
+  {
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query != null)
+      for (String parameter : query.split("&"))
+        if (parameter.startsWith("model=")) {
+          if (registry == null)
+            throw new IllegalArgumentException("This server has no model registry");
+          return registry.get(URLDecoder.decode(parameter.substring(6), "UTF-8"));
+        }
+    if (models == null)
+      throw new IllegalArgumentException("Name a model with ?model=NAME");
+    return null;
+  }
+
+  private void handleReload(HttpExchange exchange) throws IOException
+  {
+    if (!"POST".equals(exchange.getRequestMethod())) {
+      send(exchange, 405, "text/plain", "POST to /reload\n");
+      return;
+    }
+    if (models == null || models.getFile() == null) {
+      send(exchange, 409, "text/plain", "The model was not loaded from a file\n");
+      return;
+    }
+    try {
+      boolean swapped = models.reload().get();
+      send(exchange, swapped ? 200 : 500, "application/json", models.statsJson() + "\n");
+    } catch (InterruptedException e) {
+      send(exchange, 503, "text/plain", "Interrupted\n");
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      send(exchange, 500, "text/plain", e.getCause() + "\n");
+    }
+  }
+
+  /** Sentences in the Tagger's input format, without labels. */
+  static List<String[][]> parseText(String body)
+  {
+    List<String[][]> sentences = new ArrayList<String[][]>();
+    List<String[]> tokens = new ArrayList<String[]>();
+    for (String line : body.split("\r?\n", -1)) {
+      String trimmed = line.trim();
+      if (trimmed.isEmpty()) {
+        if (!tokens.isEmpty())
+          sentences.add(tokens.toArray(new String[tokens.size()][]));
+        tokens.clear();
+      }
+      else
+        tokens.add(trimmed.split("\\s+"));
+    }
+    if (!tokens.isEmpty())
+      sentences.add(tokens.toArray(new String[tokens.size()][]));
+    return sentences;
+  }
+
+  static List<String[][]> parseJson(String body)
+  {
+    Object value = Json.parse(body);
+    if (value instanceof Map)
+      value = ((Map<?, ?>) value).get("sentences");
+    if (!(value instanceof List))
+      throw new IllegalArgumentException("Expected {\"sentences\": [...]} or an array of sentences");
+    List<String[][]> sentences = new ArrayList<String[][]>();
+    for (Object sentence : (List<?>) value) {
+      if (sentence instanceof String) {
+        List<String[][]> parsed = parseText((String) sentence);
+        if (parsed.size() > 1)
+          throw new IllegalArgumentException("A sentence string holds " + parsed.size()
+              + " blank-line separated sentences; send each as its own array element");
+        sentences.add(parsed.isEmpty() ? new String[0][] : parsed.get(0));
+      }
+      else if (sentence instanceof List) {
+        List<?> tokens = (List<?>) sentence;
+        String[][] features = new String[tokens.size()][];
+        for (int t = 0; t < features.length; t++)
+          features[t] = token(tokens.get(t));
+        sentences.add(features);
+      }
+      else
+        throw new IllegalArgumentException("A sentence must be a string or an array of tokens, not " + sentence);
+    }
+    return sentences;
+  }
+
+  private static String[] token(Object token)
+  {
+    if (token instanceof String)
+      return ((String) token).trim().split("\\s+");
+    if (token instanceof List) {
+      List<?> list = (List<?>) token;
+      String[] features = new String[list.size()];
+      for (int f = 0; f < features.length; f++) {
+        if (!(list.get(f) instanceof String))
+          throw new IllegalArgumentException("A feature must be a string, not " + list.get(f));
+        features[f] = (String) list.get(f);
+      }
+      return features;
+    }
+    throw new IllegalArgumentException("A token must be a string or an array of features, not " + token);
+  }
+
+  static String toText(String[][] labels)
+  {
+    StringBuilder out = new StringBuilder();
+    for (String[] sentence : labels) {
+      if (sentence == null)
+        continue;
+      for (String label : sentence)
+        out.append(label).append('\n');
+      out.append('\n');
+    }
+    return out.toString();
+  }
+
+  static String toJson(String[][] labels)
+  {
+    StringBuilder out = new StringBuilder("{\"labels\":[");
+    for (int i = 0; i < labels.length; i++) {
+      if (i > 0)
+        out.append(',');
+      if (labels[i] == null) {
+        out.append("null");
+        continue;
+      }
+      out.append('[');
+      for (int t = 0; t < labels[i].length; t++) {
+        if (t > 0)
+          out.append(',');
+        out.append(Json.quote(labels[i][t]));
+      }
+      out.append(']');
+    }
+    return out.append("]}\n").toString();
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = in.read(buffer)) > 0)
+      bytes.write(buffer, 0, n);
+    in.close();
+    return bytes.toByteArray();
+  }
+
+  private static void send(HttpExchange exchange, int status, String type, String body) throws IOException
+  {
+    byte[] bytes = body.getBytes(UTF8);
+    exchange.getResponseHeaders().set("Content-Type", type + "; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+      exchange.close();
+    }
+  }
+}
@@ -0,0 +1,371 @@
+package crf.train;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.Transducer;
+import cc.mallet.optimize.Optimizable;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.FeatureVectorSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.MatrixOps;
+import cc.mallet.types.Sequence;
+import cc.mallet.util.MalletLogger;
+import crf.lattice.EmissionCache;
+import crf.lattice.EmissionKernel;
+import crf.lattice.SumLatticeBuffers;
+import crf.lattice.TransitionTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Label log-likelihood of a CRF, computed in parallel over length-bucketed
+ * work units.
+ * <p>
+ * Computes the same value and gradient as Mallet's
+ * <code>CRFOptimizableByLabelLikelihood</code> with a Gaussian prior, but
+ * instead of giving each thread one contiguous slice of the training list
+ * (as <code>CRFTrainerByThreadedLabelLikelihood</code> does) it sorts the
+ * instances into {@link LengthBuckets} and lets the threads pull units off a
+ * shared cursor until none are left. Each thread keeps its own expectation
+ * accumulator and {@link SumLatticeBuffers}, sized to the largest bucket it
+ * has seen, so lattices are not reallocated per sentence. Tokens are
+ * scored through a shared {@link EmissionKernel}, refreshed with the
+ * current weights before each pass. Instance weights of the training list
+ * are honored in both the value and the gradient.
+ */
+public class CRFOptimizableByBucketedLabelLikelihood implements Optimizable.ByGradientValue
+{
+  private static Logger logger =
+    MalletLogger.getLogger(CRFOptimizableByBucketedLabelLikelihood.class.getName());
+
+  static final int UNITS_PER_THREAD = 8;
+
+  private final CRF crf;
+  private final InstanceList trainingSet;
+  private final int numThreads;
+  private final TransitionTable table;
+  private final EmissionKernel kernel;
+  private final LengthBuckets buckets;
+  private final int[][] targets;
+  private final double[] instanceWeights;
+  private final ExecutorService executor;
+  private final Worker[] workers;
+
+  private final CRF.Factors constraints;
+  private final CRF.Factors expectations;
+  private double gaussianPriorVariance = 1.0;
+
+  private double cachedValue = -123456789;
+  private double[] cachedGradient;
+  private int cachedValueWeightsStamp = -1;
+  private int cachedGradientWeightsStamp = -1;
+  private long lastPassNanos;
+
+  public CRFOptimizableByBucketedLabelLikelihood(CRF crf, InstanceList trainingSet, int numThreads)
+  {
+    this.crf = crf;
+    this.trainingSet = trainingSet;
+    this.numThreads = numThreads;
+    this.table = new TransitionTable(crf);
+    this.kernel = EmissionKernel.create(crf.getParameters(), crf.getInputAlphabet().size(), true);
+    this.buckets = new LengthBuckets(trainingSet, UNITS_PER_THREAD, numThreads);
+    this.cachedGradient = new double[crf.getParameters().getNumFactors()];
+    this.constraints = new CRF.Factors(crf);
+    this.expectations = new CRF.Factors(crf);
+
+    Alphabet outputAlphabet = crf.getOutputAlphabet();
+    targets = new int[trainingSet.size()][];
+    instanceWeights = new double[trainingSet.size()];
+    for (int i = 0; i < trainingSet.size(); i++) {
+      Instance instance = trainingSet.get(i);
+      Sequence output = (Sequence) instance.getTarget();
+      targets[i] = new int[output.size()];
+      for (int t = 0; t < output.size(); t++)
+        targets[i][t] = outputAlphabet.lookupIndex(output.get(t), false);
+      instanceWeights[i] = trainingSet.getInstanceWeight(instance);
+    }
+
+    executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "crf-bucketed-" + count.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    workers = new Worker[numThreads];
+    for (int i = 0; i < numThreads; i++)
+      workers[i] = new Worker(i);
+
+    logger.info("Bucketed " + trainingSet.size() + " instances (" + buckets.totalTokens()
+        + " tokens) into " + buckets.numBuckets() + " length buckets and "
+        + buckets.units().size() + " work units for " + numThreads + " threads");
+    gatherConstraints();
+  }
+
+  public void setGaussianPriorVariance(double variance) { gaussianPriorVariance = variance; }
+
+  public double getGaussianPriorVariance() { return gaussianPriorVariance; }
+
+  public InstanceList getTrainingSet() { return trainingSet; }
+
+  /**
+   * Caches the weight-set scores of up to <code>capacity</code> distinct
+   * tokens within each pass, so repeated tokens across the training set
+   * are scored once per pass; 0 turns caching off. The cache is emptied
+   * whenever the weights are re-read.
+   */
+  public void setEmissionCacheSize(int capacity)
+  {
+    kernel.setCache(capacity > 0 ? new EmissionCache(capacity, kernel.numWeights()) : null);
+  }
+
+  public void shutdown() { executor.shutdown(); }
+
+  protected void gatherConstraints()
+  {
+    assert (constraints.structureMatches(crf.getParameters()));
+    constraints.zero();
+    run(true);
+    constraints.assertNotNaNOrInfinite();
+  }
+
+  /**
+   * Sums the per-thread results of one parallel pass into
+   * {@link #constraints} or {@link #expectations}.
+   *
+   * @return the summed log-likelihood (meaningful for expectations only)
+   */
+  private double run(boolean constrained)
+  {
+    CRF.Factors into = constrained ? constraints : expectations;
+    kernel.refresh(crf.getParameters());
+    AtomicInteger cursor = new AtomicInteger();
+    List<Future<Double>> futures = new ArrayList<Future<Double>>(numThreads);
+    long start = System.nanoTime();
+    for (Worker worker : workers)
+      futures.add(executor.submit(worker.pass(cursor, constrained)));
+    double value = 0;
+    int numInfinite = 0;
+    try {
+      for (int i = 0; i < numThreads; i++) {
+        value += futures.get(i).get();
+        numInfinite += workers[i].infinite;
+        into.plusEquals(workers[i].accumulator, 1.0);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while computing the label likelihood", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Label likelihood computation failed", e.getCause());
+    }
+    if (numInfinite > 0)
+      logger.warning(numInfinite + " instances have infinite weight and were skipped");
+    lastPassNanos = System.nanoTime() - start;
+    logger.info(utilizationReport());
+    if (kernel.getCache() != null)
+      logger.info(kernel.getCache().report());
+    return value;
+  }
+
+  /**
+   * Describes, for the last parallel pass, how busy each thread was over
+   * the wall-clock time of the pass and how much work it took.
+   */
+  public String utilizationReport()
+  {
+    StringBuilder buf = new StringBuilder("Thread utilization:");
+    for (Worker worker : workers)
+      buf.append(String.format(" [%d] %.1f%% %d units %d tokens",
+          worker.id, 100.0 * worker.busyNanos / Math.max(1, lastPassNanos),
+          worker.units, worker.tokens));
+    return buf.toString();
+  }
+
+  private double getExpectationValue()
+  {
+    assert (expectations.structureMatches(crf.getParameters()));
+    expectations.zero();
+    double value = run(false);
+    expectations.assertNotNaNOrInfinite();
+    return value;
+  }
+
+  public double getValue()
+  {
+    if (crf.getWeightsValueChangeStamp() != cachedValueWeightsStamp) {
+      cachedValueWeightsStamp = crf.getWeightsValueChangeStamp();
+      long startingTime = System.currentTimeMillis();
+      cachedValue = getExpectationValue();
+      cachedValue += crf.getParameters().gaussianPrior(gaussianPriorVariance);
+      assert (!(Double.isNaN(cachedValue) || Double.isInfinite(cachedValue)))
+          : "Label likelihood is NaN/Infinite";
+      logger.info("getValue() (loglikelihood, optimizable by bucketed label likelihood) = " + cachedValue);
+      logger.fine("Inference milliseconds = " + (System.currentTimeMillis() - startingTime));
+    }
+    return cachedValue;
+  }
+
+  public void getValueGradient(double[] buffer)
+  {
+    if (cachedGradientWeightsStamp != crf.getWeightsValueChangeStamp()) {
+      cachedGradientWeightsStamp = crf.getWeightsValueChangeStamp();
+      getValue();
+      expectations.plusEquals(constraints, -1.0);
+      expectations.plusEqualsGaussianPriorGradient(crf.getParameters(), -gaussianPriorVariance);
+      expectations.assertNotNaNOrInfinite();
+      expectations.getParameters(cachedGradient);
+      MatrixOps.timesEquals(cachedGradient, -1.0);
+    }
+    System.arraycopy(cachedGradient, 0, buffer, 0, cachedGradient.length);
+  }
+
+  public int getNumParameters() { return crf.getParameters().getNumFactors(); }
+
+  public void getParameters(double[] buffer) { crf.getParameters().getParameters(buffer); }
+
+  public double getParameter(int index) { return crf.getParameters().getParameter(index); }
+
+  public void setParameters(double[] buff)
+  {
+    crf.getParameters().setParameters(buff);
+    crf.weightsValueChanged();
+  }
+
+  public void setParameter(int index, double value)
+  {
+    crf.getParameters().setParameter(index, value);
+    crf.weightsValueChanged();
+  }
+
+  /** Per-thread lattice buffers, accumulator and utilization counters. */
+  private class Worker
+  {
+    final int id;
+    final SumLatticeBuffers lattice;
+    final CRF.Factors accumulator;
+    final double[] initialWeights;
+    final double[] finalWeights;
+    final double[] weightCounts;
+    long busyNanos;
+    long tokens;
+    int units;
+    int infinite;
+
+    Worker(int id)
+    {
+      this.id = id;
+      this.lattice = new SumLatticeBuffers(table);
+      this.accumulator = new CRF.Factors(crf);
+      this.initialWeights = new double[table.numStates()];
+      this.finalWeights = new double[table.numStates()];
+      this.weightCounts = new double[table.numWeights()];
+    }
+
+    Callable<Double> pass(final AtomicInteger cursor, final boolean constrained)
+    {
+      return new Callable<Double>() {
+        public Double call() {
+          accumulator.zero();
+          busyNanos = tokens = units = infinite = 0;
+          for (int s = 0; s < table.numStates(); s++) {
+            initialWeights[s] = crf.getState(s).getInitialWeight();
+            finalWeights[s] = crf.getState(s).getFinalWeight();
+          }
+          List<LengthBuckets.Unit> all = buckets.units();
+          int[] order = buckets.order();
+          double value = 0;
+          int u;
+          while ((u = cursor.getAndIncrement()) < all.size()) {
+            long start = System.nanoTime();
+            LengthBuckets.Unit unit = all.get(u);
+            lattice.ensureCapacity(unit.maxLength);
+            for (int k = unit.start; k < unit.end; k++)
+              value += instance(order[k], constrained);
+            busyNanos += System.nanoTime() - start;
+            tokens += unit.tokens;
+            units++;
+          }
+          return value;
+        }
+      };
+    }
+
+    /**
+     * Adds one instance's (weighted) transition counts to the accumulator.
+     * The unconstrained pass returns the instance's weighted log-likelihood,
+     * which needs the constrained total weight as well.
+     */
+    private double instance(int index, boolean constrained)
+    {
+      Instance instance = trainingSet.get(index);
+      FeatureVectorSequence input = (FeatureVectorSequence) instance.getData();
+      int length = input.size();
+      double instanceWeight = instanceWeights[index];
+      int[] labels = targets[index];
+      CRF.Factors parameters = crf.getParameters();
+      lattice.reset(length);
+      double[] scores = lattice.scores();
+      for (int t = 0; t < length; t++)
+        table.score(kernel, input.get(t), lattice.weightScores(), scores, t * table.numTransitions());
+
+      double labeledWeight = constrained ? 0 : lattice.forward(initialWeights, finalWeights, labels);
+      if (Double.isInfinite(labeledWeight)) {
+        infinite++;
+        return 0;
+      }
+      int[] constraint = constrained ? labels : null;
+      double total = lattice.forward(initialWeights, finalWeights, constraint);
+      if (Double.isInfinite(total)) {
+        infinite++;
+        return 0;
+      }
+      lattice.backward(finalWeights, constraint);
+
+      int numStates = table.numStates();
+      boolean[] frozen = parameters.weightsFrozen;
+      for (int s = 0; s < numStates; s++) {
+        accumulator.initialWeights[s] +=
+            instanceWeight * Math.exp(lattice.alpha(0, s) + lattice.beta(0, s) - total);
+        accumulator.finalWeights[s] +=
+            instanceWeight * Math.exp(lattice.alpha(length, s) + finalWeights[s] - total);
+      }
+      for (int t = 0; t < length; t++) {
+        Arrays.fill(weightCounts, 0);
+        for (int s = 0; s < numStates; s++) {
+          if (lattice.alpha(t, s) == Transducer.IMPOSSIBLE_WEIGHT)
+            continue;
+          for (int tr = table.transitionStart(s); tr < table.transitionStart(s + 1); tr++) {
+            if (constraint != null && table.label(tr) != constraint[t])
+              continue;
+            double p = Math.exp(lattice.transitionWeight(t, s, tr) - total);
+            if (p == 0)
+              continue;
+            for (int r = table.weightsStart(tr); r < table.weightsStart(tr + 1); r++)
+              weightCounts[table.weightsIndex(r)] += p;
+          }
+        }
+        FeatureVector fv = input.get(t);
+        for (int wi = 0; wi < weightCounts.length; wi++) {
+          if (weightCounts[wi] == 0 || frozen[wi])
+            continue;
+          double count = instanceWeight * weightCounts[wi];
+          accumulator.weights[wi].plusEqualsSparse(fv, count);
+          accumulator.defaultWeights[wi] += count;
+        }
+      }
+      return constrained ? 0 : instanceWeight * (labeledWeight - total);
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package crf.train;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.Transducer;
+import cc.mallet.fst.TransducerTrainer;
+import cc.mallet.optimize.LimitedMemoryBFGS;
+import cc.mallet.optimize.Optimizer;
+import cc.mallet.types.InstanceList;
+import cc.mallet.util.MalletLogger;
+
+import java.util.logging.Logger;
+
+/**
+ * Multi-threaded CRF trainer that maximizes label likelihood with
+ * L-BFGS over {@link CRFOptimizableByBucketedLabelLikelihood}.
+ * <p>
+ * A drop-in alternative to Mallet's
+ * <code>CRFTrainerByThreadedLabelLikelihood</code> with the same knobs;
+ * call {@link #shutdown()} when done to release the worker threads.
+ */
+public class CRFTrainerByBucketedLabelLikelihood extends TransducerTrainer
+    implements TransducerTrainer.ByOptimization
+{
+  private static Logger logger =
+    MalletLogger.getLogger(CRFTrainerByBucketedLabelLikelihood.class.getName());
+
+  private final CRF crf;
+  private final int numThreads;
+  private boolean useSparseWeights = true;
+  private boolean useSomeUnsupportedTrick = true;
+  private double gaussianPriorVariance = 1.0;
+  private int emissionCacheSize = 0;
+  private boolean converged = false;
+  private int iterationCount = 0;
+  private CRFOptimizableByBucketedLabelLikelihood optimizable;
+  private Optimizer optimizer;
+  private int cachedWeightsStructureStamp = -1;
+
+  public CRFTrainerByBucketedLabelLikelihood(CRF crf, int numThreads)
+  {
+    this.crf = crf;
+    this.numThreads = numThreads;
+  }
+
+  public Transducer getTransducer() { return crf; }
+
+  public CRF getCRF() { return crf; }
+
+  public Optimizer getOptimizer() { return optimizer; }
+
+  public boolean isConverged() { return converged; }
+
+  public boolean isFinishedTraining() { return converged; }
+
+  public int getIteration() { return iterationCount; }
+
+  public void setGaussianPriorVariance(double p) { gaussianPriorVariance = p; }
+
+  public double getGaussianPriorVariance() { return gaussianPriorVariance; }
+
+  public void setUseSparseWeights(boolean b) { useSparseWeights = b; }
+
+  public boolean getUseSparseWeights() { return useSparseWeights; }
+
+  public void setUseSomeUnsupportedTrick(boolean b) { useSomeUnsupportedTrick = b; }
+
+  /** @see CRFOptimizableByBucketedLabelLikelihood#setEmissionCacheSize */
+  public void setEmissionCacheSize(int capacity)
+  {
+    emissionCacheSize = capacity;
+    if (optimizable != null)
+      optimizable.setEmissionCacheSize(capacity);
+  }
+
+  public void shutdown()
+  {
+    if (optimizable != null)
+      optimizable.shutdown();
+  }
+
+  public CRFOptimizableByBucketedLabelLikelihood getOptimizableCRF(InstanceList trainingSet)
+  {
+    if (cachedWeightsStructureStamp != crf.getWeightsStructureChangeStamp()) {
+      if (useSparseWeights)
+        crf.setWeightsDimensionAsIn(trainingSet, useSomeUnsupportedTrick);
+      else
+        crf.setWeightsDimensionDensely();
+      shutdown();
+      optimizable = null;
+      cachedWeightsStructureStamp = crf.getWeightsStructureChangeStamp();
+    }
+    if (optimizable == null || optimizable.getTrainingSet() != trainingSet) {
+      shutdown();
+      optimizable = new CRFOptimizableByBucketedLabelLikelihood(crf, trainingSet, numThreads);
+      optimizable.setGaussianPriorVariance(gaussianPriorVariance);
+      optimizable.setEmissionCacheSize(emissionCacheSize);
+      optimizer = null;
+    }
+    return optimizable;
+  }
+
+  public Optimizer getOptimizer(InstanceList trainingSet)
+  {
+    getOptimizableCRF(trainingSet);
+    if (optimizer == null || optimizable != optimizer.getOptimizable())
+      optimizer = new LimitedMemoryBFGS(optimizable);
+    return optimizer;
+  }
+
+  public boolean train(InstanceList trainingSet, int numIterations)
+  {
+    if (numIterations <= 0)
+      return false;
+    assert (trainingSet.size() > 0);
+    getOptimizer(trainingSet);
+    logger.info("CRF about to train with " + numIterations + " iterations");
+    for (int i = 0; i < numIterations; i++) {
+      try {
+        converged = optimizer.optimize(1);
+        iterationCount++;
+        logger.info("CRF finished one iteration of maximizer, i=" + i);
+        runEvaluators();
+      } catch (IllegalArgumentException e) {
+        e.printStackTrace();
+        logger.info("Catching exception; saying converged.");
+        converged = true;
+      } catch (Exception e) {
+        e.printStackTrace();
+        logger.info("Catching exception; saying converged.");
+        converged = true;
+      }
+      if (converged) {
+        logger.info("CRF training has converged, i=" + i);
+        break;
+      }
+    }
+    return converged;
+  }
+}
@@ -0,0 +1,120 @@
+package crf.train;
+
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.FeatureVectorSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.util.MalletLogger;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Collapses exact-duplicate labeled sequences into single weighted
+ * instances.
+ * <p>
+ * Two instances are duplicates when their {@link FeatureVectorSequence}s
+ * have the same features (and values) at every position and their target
+ * {@link FeatureSequence}s have the same labels. The survivor carries the
+ * sum of the duplicates' instance weights. Mallet's label-likelihood
+ * optimizables and {@link CRFOptimizableByBucketedLabelLikelihood} scale
+ * each instance's log-likelihood and expected counts by its weight, so the
+ * training objective and gradient are unchanged while forward-backward runs
+ * once per distinct sentence.
+ */
+public class InstanceDeduplicator
+{
+  private static Logger logger =
+    MalletLogger.getLogger(InstanceDeduplicator.class.getName());
+
+  private InstanceDeduplicator()
+  {
+  }
+
+  /**
+   * @param instances piped instances with <code>FeatureVectorSequence</code>
+   * data and <code>FeatureSequence</code> (e.g. <code>LabelSequence</code>)
+   * targets
+   * @return a list with the same pipe holding one weighted instance per
+   * distinct sequence, in order of first occurrence
+   */
+  public static InstanceList collapse(InstanceList instances)
+  {
+    Map<Key, Integer> firstIndex = new LinkedHashMap<Key, Integer>();
+    double[] weights = new double[instances.size()];
+    for (int i = 0; i < instances.size(); i++) {
+      Instance instance = instances.get(i);
+      Key key = new Key(instance);
+      Integer first = firstIndex.get(key);
+      if (first == null) {
+        firstIndex.put(key, i);
+        first = i;
+      }
+      weights[first] += instances.getInstanceWeight(instance);
+    }
+
+    InstanceList collapsed = instances.cloneEmpty();
+    for (Integer i : firstIndex.values())
+      collapsed.add(instances.get(i), weights[i]);
+    logger.info("Collapsed " + instances.size() + " training instances into "
+        + collapsed.size() + " distinct weighted instances (duplication factor "
+        + String.format("%.2f", instances.size() / (double) Math.max(1, collapsed.size())) + ")");
+    return collapsed;
+  }
+
+  /** Hashes and compares an instance by its feature and label sequences. */
+  private static class Key
+  {
+    private final FeatureVectorSequence input;
+    private final int[] labels;
+    private final int hash;
+
+    Key(Instance instance)
+    {
+      input = (FeatureVectorSequence) instance.getData();
+      FeatureSequence target = (FeatureSequence) instance.getTarget();
+      labels = Arrays.copyOf(target.getFeatures(), target.size());
+      int h = Arrays.hashCode(labels);
+      for (int t = 0; t < input.size(); t++) {
+        FeatureVector fv = input.get(t);
+        for (int loc = 0; loc < fv.numLocations(); loc++) {
+          h = 31 * h + fv.indexAtLocation(loc);
+          long bits = Double.doubleToLongBits(fv.valueAtLocation(loc));
+          h = 31 * h + (int) (bits ^ (bits >>> 32));
+        }
+        h = 31 * h + fv.numLocations();
+      }
+      hash = h;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof Key))
+        return false;
+      Key other = (Key) o;
+      if (hash != other.hash || input.size() != other.input.size()
+          || !Arrays.equals(labels, other.labels))
+        return false;
+      for (int t = 0; t < input.size(); t++) {
+        FeatureVector a = input.get(t), b = other.input.get(t);
+        if (a.numLocations() != b.numLocations())
+          return false;
+        for (int loc = 0; loc < a.numLocations(); loc++)
+          if (a.indexAtLocation(loc) != b.indexAtLocation(loc)
+              || a.valueAtLocation(loc) != b.valueAtLocation(loc))
+            return false;
+      }
+      return true;
+    }
+  }
+}
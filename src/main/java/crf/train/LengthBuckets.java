@@ -0,0 +1,114 @@
+package crf.train;
+
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Groups the instances of an {@link InstanceList} by sequence length and
+ * cuts them into work units for dynamic scheduling.
+ * <p>
+ * Lengths are bucketed by powers of two (1, 2, 3-4, 5-8, ...). Units never
+ * cross a bucket, hold roughly the same number of tokens, and are ordered
+ * longest bucket first, so the threads that pull them off a shared cursor
+ * start on the expensive sentences and finish together on the cheap ones
+ * (longest-processing-time-first scheduling).
+ */
+public class LengthBuckets
+{
+  /** A contiguous run of {@link #order()} entries sharing one length bucket. */
+  public static class Unit
+  {
+    public final int start;
+    public final int end;
+    /** Longest sequence in the unit; lattice buffers are sized to this. */
+    public final int maxLength;
+    public final long tokens;
+
+    Unit(int start, int end, int maxLength, long tokens)
+    {
+      this.start = start;
+      this.end = end;
+      this.maxLength = maxLength;
+      this.tokens = tokens;
+    }
+  }
+
+  private final int[] order;
+  private final int[] lengths;
+  private final List<Unit> units = new ArrayList<Unit>();
+  private final long totalTokens;
+  private final int numBuckets;
+
+  /**
+   * @param instances instances whose data are {@link Sequence}s
+   * @param unitsPerThread how many units each thread should get on average;
+   * more units balance better but synchronize more often
+   * @param numThreads number of worker threads
+   */
+  public LengthBuckets(InstanceList instances, int unitsPerThread, int numThreads)
+  {
+    int n = instances.size();
+    lengths = new int[n];
+    Integer[] sorted = new Integer[n];
+    long total = 0;
+    for (int i = 0; i < n; i++) {
+      lengths[i] = ((Sequence) instances.get(i).getData()).size();
+      total += lengths[i];
+      sorted[i] = i;
+    }
+    totalTokens = total;
+    Arrays.sort(sorted, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return lengths[b] - lengths[a];
+      }
+    });
+    order = new int[n];
+    for (int i = 0; i < n; i++)
+      order[i] = sorted[i];
+
+    long targetTokens = Math.max(1, total / Math.max(1, (long) unitsPerThread * numThreads));
+    int buckets = 0;
+    int i = 0;
+    while (i < n) {
+      int bucket = bucketOf(lengths[order[i]]);
+      buckets++;
+      int unitStart = i;
+      long unitTokens = 0;
+      while (i < n && bucketOf(lengths[order[i]]) == bucket) {
+        unitTokens += lengths[order[i]];
+        i++;
+        if (unitTokens >= targetTokens) {
+          units.add(new Unit(unitStart, i, lengths[order[unitStart]], unitTokens));
+          unitStart = i;
+          unitTokens = 0;
+        }
+      }
+      if (unitStart < i)
+        units.add(new Unit(unitStart, i, lengths[order[unitStart]], unitTokens));
+    }
+    numBuckets = buckets;
+  }
+
+  static int bucketOf(int length)
+  {
+    return length <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(length - 1);
+  }
+
+  /** Instance indices sorted by decreasing length. */
+  public int[] order() { return order; }
+
+  public int length(int instance) { return lengths[instance]; }
+
+  public List<Unit> units() { return units; }
+
+  public long totalTokens() { return totalTokens; }
+
+  public int numBuckets() { return numBuckets; }
+
+  public int maxLength() { return order.length == 0 ? 0 : lengths[order[0]]; }
+}
@@ -0,0 +1,93 @@
+package crf.wiki;
+
+import cc.mallet.types.Instance;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The sentences of one article, tokenized, and optionally the features
+ * and labels of their tokens.
+ */
+public class Article
+{
+  private final WikiPage page;
+  private final String[][] sentences;
+  private final String[][][] features;
+  private final String[][] labels;
+
+  /**
+   * @param sentences the tokens of each sentence
+   * @param features the feature rows of each sentence, or <code>null</code>
+   */
+  public Article(WikiPage page, String[][] sentences, String[][][] features)
+  {
+    this(page, sentences, features, null);
+  }
+
+  /**
+   * @param sentences the tokens of each sentence
+   * @param features the feature rows of each sentence, or <code>null</code>
+   * @param labels the labels of each sentence's tokens, or <code>null</code>
+   */
+  public Article(WikiPage page, String[][] sentences, String[][][] features, String[][] labels)
+  {
+    this.page = page;
+    this.sentences = sentences;
+    this.features = features;
+    this.labels = labels;
+  }
+
+  public WikiPage getPage() { return page; }
+
+  public String getTitle() { return page.getTitle(); }
+
+  /** The tokens of each sentence. */
+  public String[][] getSentences() { return sentences; }
+
+  /** The feature rows of each sentence's tokens, or <code>null</code> if they were not computed. */
+  public String[][][] getFeatures() { return features; }
+
+  /** The labels of each sentence's tokens, or <code>null</code> if the sentences are unlabeled. */
+  public String[][] getLabels() { return labels; }
+
+  /**
+   * One unlabeled instance per sentence of <code>articles</code>, for a
+   * {@link crf.features.SimpleTaggerSentence2FeatureVectorSequence} pipe:
+   * the data is the sentence's feature rows, the name
+   * <code>title#n</code> for the <em>n</em>th sentence of article
+   * <code>title</code>, and the source its tokens. The articles must have
+   * features.
+   */
+  public static Iterator<Instance> instances(final Iterator<Article> articles)
+  {
+    return new Iterator<Instance>() {
+      private Article article;
+      private int sentence;
+
+      public boolean hasNext()
+      {
+        while ((article == null || sentence == article.sentences.length) && articles.hasNext()) {
+          article = articles.next();
+          sentence = 0;
+          if (article.features == null)
+            throw new IllegalStateException("Article " + article.getTitle() + " has no features");
+        }
+        return article != null && sentence < article.sentences.length;
+      }
+
+      public Instance next()
+      {
+        if (!hasNext())
+          throw new NoSuchElementException();
+        int s = sentence++;
+        return new Instance(article.features[s], null, article.getTitle() + "#" + s, article.sentences[s]);
+      }
+
+      public void remove()
+      {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+}
@@ -0,0 +1,60 @@
+package crf.wiki;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The pipeline stage that turns an article's wikitext into tokenized
+ * sentences: {@link WikitextStripper}, then {@link SentenceSplitter},
+ * then {@link Tokenizer}, then optionally {@link TokenFeatures}. Pages
+ * that are not articles, and articles without sentences, are skipped.
+ */
+public class ArticleSentences implements DumpPipeline.Stage<Article>
+{
+  private final WikitextStripper stripper = new WikitextStripper();
+  private final SentenceSplitter splitter = new SentenceSplitter();
+  private final Tokenizer tokenizer = new Tokenizer();
+  private final TokenFeatures features;
+  private final int maxTokens;
+
+  /** Tokenizes sentences without computing features. */
+  public ArticleSentences()
+  {
+    this(null, 256);
+  }
+
+  /**
+   * @param features how token features are computed, or <code>null</code>
+   * for tokens only
+   * @param maxTokens longest sentence kept, in tokens; longer ones are
+   * usually lists or tables that lost their markup
+   */
+  public ArticleSentences(TokenFeatures features, int maxTokens)
+  {
+    this.features = features;
+    this.maxTokens = maxTokens;
+  }
+
+  public Article apply(WikiPage page)
+  {
+    if (!page.isArticle())
+      return null;
+    List<String> sentences = splitter.split(stripper.strip(page.getText()));
+    List<String[]> tokenized = new ArrayList<String[]>(sentences.size());
+    for (String sentence : sentences) {
+      String[] tokens = tokenizer.tokenize(sentence);
+      if (tokens.length > 0 && tokens.length <= maxTokens)
+        tokenized.add(tokens);
+    }
+    if (tokenized.isEmpty())
+      return null;
+    String[][] tokens = tokenized.toArray(new String[tokenized.size()][]);
+    String[][][] rows = null;
+    if (features != null) {
+      rows = new String[tokens.length][][];
+      for (int s = 0; s < tokens.length; s++)
+        rows[s] = features.features(tokens[s]);
+    }
+    return new Article(page, tokens, rows);
+  }
+}
@@ -0,0 +1,191 @@
+package crf.wiki;
+
+import crf.output.OutputBuffer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Labels article sentences with the article's own infobox values, to make
+ * training data for attribute extraction without annotating by hand.
+ * <p>
+ * As a pipeline stage, each article's infobox values are parsed with
+ * {@link InfoboxParser}, turned into token sequences with
+ * {@link ValueNormalizer} and compiled into one {@link ValueMatcher}; each
+ * of its sentences is then labeled <code>B-</code>/<code>I-</code> and the
+ * attribute name where a value occurs, <code>O</code> elsewhere.
+ * Sentences without a match are dropped, but for a fraction of them kept
+ * as negative examples. Attributes that are not prose, such as images and
+ * websites, are ignored, as are positional parameters.
+ * <p>
+ * The main method writes the sentences of a whole dump in the format
+ * <code>crf.Tagger --train</code> reads: one line per token holding the
+ * token and its label, or with <code>features</code> the token's feature
+ * row (see {@link TokenFeatures}) and then its label, and a blank line
+ * after each sentence. Articles are processed in parallel, and at most a
+ * fixed window of them is held in memory at once.
+ */
+public class DistantSupervision implements DumpPipeline.Stage<Article>
+{
+  /** Attributes whose values rarely appear in the prose. */
+  static final Set<String> IGNORED_ATTRIBUTES = new HashSet<String>(Arrays.asList(
+      "image", "image_size", "imagesize", "image_upright", "image_caption", "caption", "alt", "logo",
+      "logo_size", "logo_caption", "signature", "signature_alt", "website", "url", "homepage", "map",
+      "map_caption", "pushpin_map", "coordinates", "coords", "module", "embed", "footnotes", "notes",
+      "width", "height", "size", "onlysourced", "bgcolour", "colour", "color", "misc"));
+
+  private final ArticleSentences sentences;
+  private final ValueNormalizer normalizer = new ValueNormalizer();
+  private final TokenFeatures features;
+  private final double negativeRate;
+
+  /**
+   * @param features how token features are computed, or <code>null</code>
+   * to keep only the tokens
+   * @param maxTokens longest sentence kept, in tokens
+   * @param negativeRate fraction of sentences without a match to keep,
+   * from 0 to 1; which ones depends only on the article and sentence, so
+   * runs are repeatable
+   */
+  public DistantSupervision(TokenFeatures features, int maxTokens, double negativeRate)
+  {
+    this.sentences = new ArticleSentences(null, maxTokens);
+    this.features = features;
+    this.negativeRate = negativeRate;
+  }
+
+  public Article apply(WikiPage page)
+  {
+    if (!page.isArticle() || !InfoboxParser.mayHaveInfobox(page.getText()))
+      return null;
+    ValueMatcher matcher = matcher(new InfoboxParser().parse(page.getTitle(), page.getText()));
+    if (matcher == null)
+      return null;
+    Article article = sentences.apply(page);
+    if (article == null)
+      return null;
+    String[][] tokens = article.getSentences();
+    List<String[]> kept = new ArrayList<String[]>();
+    List<String[]> keptLabels = new ArrayList<String[]>();
+    for (int s = 0; s < tokens.length; s++) {
+      String[] labels = new String[tokens[s].length];
+      if (matcher.label(tokens[s], labels) > 0 || negative(page.getTitle(), s)) {
+        kept.add(tokens[s]);
+        keptLabels.add(labels);
+      }
+    }
+    if (kept.isEmpty())
+      return null;
+    String[][] rows = kept.toArray(new String[kept.size()][]);
+    String[][][] featureRows = null;
+    if (features != null) {
+      featureRows = new String[rows.length][][];
+      for (int s = 0; s < rows.length; s++)
+        featureRows[s] = features.features(rows[s]);
+    }
+    return new Article(page, rows, featureRows, keptLabels.toArray(new String[rows.length][]));
+  }
+
+  /** The matcher for the values of <code>records</code>, or <code>null</code> if there are none. */
+  private ValueMatcher matcher(List<InfoboxRecord> records)
+  {
+    ValueMatcher matcher = new ValueMatcher();
+    for (InfoboxRecord record : records) {
+      String attribute = labelName(record.getAttribute());
+      if (attribute == null)
+        continue;
+      for (String[] value : normalizer.candidates(record.getValue()))
+        matcher.add(value, attribute);
+    }
+    if (matcher.isEmpty())
+      return null;
+    matcher.build();
+    return matcher;
+  }
+
+  /**
+   * The attribute as a label name, lowercase with underscores for spaces,
+   * or <code>null</code> if it is ignored.
+   */
+  static String labelName(String attribute)
+  {
+    StringBuilder name = new StringBuilder(attribute.length());
+    for (int i = 0; i < attribute.length(); i++) {
+      char c = attribute.charAt(i);
+      name.append(Character.isWhitespace(c) ? '_' : Character.toLowerCase(c));
+    }
+    String label = name.toString();
+    if (label.length() == 0 || Character.isDigit(label.charAt(0)) || IGNORED_ATTRIBUTES.contains(label))
+      return null;
+    return label;
+  }
+
+  private boolean negative(String title, int sentence)
+  {
+    if (negativeRate <= 0)
+      return false;
+    long h = (title.hashCode() * 31L + sentence) * 0x9E3779B97F4A7C15L;
+    return (h >>> 11) * 0x1.0p-53 < negativeRate;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 2 || args.length > 5)
+      throw new IllegalArgumentException("Usage: DistantSupervision dump-file[.bz2|.gz] output-file[.gz]"
+          + " [threads [negative-rate [tokens|features]]]");
+    int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+    double negativeRate = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+    boolean withFeatures = args.length > 4 && "features".equals(args[4]);
+    File output = new File(args[1]);
+    OutputStream stream = new FileOutputStream(output);
+    if (output.getName().endsWith(".gz"))
+      stream = new BufferedOutputStream(new GZIPOutputStream(stream, 1 << 16), 1 << 16);
+    OutputBuffer out = new OutputBuffer(stream);
+
+    long start = System.nanoTime();
+    long articles = 0, sentences = 0, tokens = 0, spans = 0;
+    DumpReader reader = DumpReader.open(new File(args[0]));
+    DumpPipeline<Article> pipeline = null;
+    try {
+      pipeline = new DumpPipeline<Article>(reader,
+          new DistantSupervision(withFeatures ? new TokenFeatures() : null, 256, negativeRate), numThreads);
+      while (pipeline.hasNext()) {
+        Article article = pipeline.next();
+        articles++;
+        String[][] rows = article.getSentences();
+        String[][] labels = article.getLabels();
+        for (int s = 0; s < rows.length; s++) {
+          for (int t = 0; t < rows[s].length; t++) {
+            if (withFeatures)
+              for (String feature : article.getFeatures()[s][t])
+                out.putUtf8(feature).put((byte) ' ');
+            else
+              out.putUtf8(rows[s][t]).put((byte) ' ');
+            out.putUtf8(labels[s][t]).put((byte) '\n');
+            if (labels[s][t].startsWith("B-"))
+              spans++;
+          }
+          out.put((byte) '\n');
+          sentences++;
+          tokens += rows[s].length;
+        }
+      }
+    } finally {
+      if (pipeline != null)
+        pipeline.close();
+      reader.close();
+      out.close();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%d pages, %d articles, %d sentences, %d tokens, %d values in %.1f s (%.0f pages/s) on %d threads%n",
+        reader.pagesRead(), articles, sentences, tokens, spans, seconds, reader.pagesRead() / seconds, numThreads);
+  }
+}
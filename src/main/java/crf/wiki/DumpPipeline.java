@@ -0,0 +1,73 @@
+package crf.wiki;
+
+import crf.decode.CloseableIterator;
+import crf.decode.OrderedPool;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Runs a per-page {@link Stage} over a stream of dump pages on a pool of
+ * threads and hands the results back in dump order, skipping pages the
+ * stage returns <code>null</code> for.
+ * <p>
+ * The pages go through an {@link OrderedPool}, as sentences do in
+ * {@link crf.decode.ParallelDecoder}: at most <code>window</code> pages
+ * are in flight at once, and the window is topped up from the input as
+ * results are consumed, so memory stays bounded however long the dump
+ * is. Pages are read on the consuming thread.
+ */
+public class DumpPipeline<T> implements CloseableIterator<T>
+{
+  /** Work done on one page; must be safe to call from several threads. */
+  public interface Stage<T> extends OrderedPool.Task<WikiPage, T>
+  {
+    /** The result for <code>page</code>, or <code>null</code> to skip it. */
+    T apply(WikiPage page);
+  }
+
+  private final OrderedPool<WikiPage, T> pool;
+  private T next;
+
+  /** A pipeline with a window of 16 pages per thread. */
+  public DumpPipeline(Iterator<WikiPage> pages, Stage<T> stage, int numThreads)
+  {
+    this(pages, stage, numThreads, 16 * numThreads);
+  }
+
+  /**
+   * @param window most pages read ahead of the consumer
+   */
+  public DumpPipeline(Iterator<WikiPage> pages, Stage<T> stage, int numThreads, int window)
+  {
+    pool = new OrderedPool<WikiPage, T>(pages, stage, numThreads, window, "crf-wiki");
+  }
+
+  public boolean hasNext()
+  {
+    while (next == null && pool.hasNext())
+      next = pool.next();
+    return next != null;
+  }
+
+  public T next()
+  {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    T result = next;
+    next = null;
+    return result;
+  }
+
+  public void remove()
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  /** Stops the threads; results not yet consumed are dropped. */
+  public void close()
+  {
+    next = null;
+    pool.close();
+  }
+}
@@ -0,0 +1,203 @@
+package crf.wiki;
+
+import cc.mallet.util.MalletLogger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streams the pages of a Wikipedia XML dump (<code>pages-articles</code>
+ * or similar) with StAX, one page in memory at a time, so any dump size
+ * takes the same memory. Only the page title, id, namespace, redirect
+ * flag and the text of its (last) revision are kept.
+ * <p>
+ * {@link #open} reads plain, gzipped (<code>.gz</code>) and bzip2ed
+ * (<code>.bz2</code>) dumps. The JDK has no bzip2 decoder, so bzip2 dumps
+ * are decompressed by an external <code>lbzip2</code>, <code>pbzip2</code>
+ * or <code>bzip2</code> process (the first on the path, overridden by
+ * the <code>crf.bzip2</code> system property), which also takes
+ * decompression off the parsing thread.
+ */
+public class DumpReader implements Iterator<WikiPage>, Closeable
+{
+  private static Logger logger = MalletLogger.getLogger(DumpReader.class.getName());
+
+  private static final String[] BZIP2_COMMANDS = { "lbzip2", "pbzip2", "bzip2" };
+
+  private final InputStream in;
+  private final XMLStreamReader xml;
+  private WikiPage next;
+  private long pages;
+
+  /** Reads a dump from <code>in</code>, which is closed with the reader. */
+  public DumpReader(InputStream in) throws XMLStreamException
+  {
+    this.in = in;
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    // The JDK parser caps the total size of text it reads by default,
+    // which a full dump exceeds.
+    for (String limit : new String[] { "totalEntitySizeLimit", "maxGeneralEntitySizeLimit",
+        "entityExpansionLimit", "maxElementDepth" })
+      try {
+        factory.setProperty("http://www.oracle.com/xml/jaxp/properties/" + limit, 0);
+      } catch (IllegalArgumentException e) {
+        // Not the JDK parser; it has no such limits.
+      }
+    xml = factory.createXMLStreamReader(in, "UTF-8");
+  }
+
+  /** Opens a dump file, decompressing it by its name's ending. */
+  public static DumpReader open(File file) throws IOException, XMLStreamException
+  {
+    String name = file.getName();
+    InputStream in;
+    if (name.endsWith(".bz2"))
+      in = bunzip2(file);
+    else if (name.endsWith(".gz"))
+      in = new GZIPInputStream(new FileInputStream(file), 1 << 16);
+    else
+      in = new FileInputStream(file);
+    return new DumpReader(new BufferedInputStream(in, 1 << 16));
+  }
+
+  private static InputStream bunzip2(File file) throws IOException
+  {
+    String command = System.getProperty("crf.bzip2");
+    if (command == null)
+      command = onPath(BZIP2_COMMANDS);
+    if (command == null)
+      throw new IOException("Reading " + file + " needs lbzip2, pbzip2 or bzip2 on the path");
+    final Process process = new ProcessBuilder(command, "-dc", file.getPath())
+        .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    process.getOutputStream().close();
+    logger.info("Decompressing " + file + " with " + command);
+    return new FilterInputStream(process.getInputStream()) {
+      @Override
+      public void close() throws IOException
+      {
+        super.close();
+        process.destroy();
+      }
+    };
+  }
+
+  private static String onPath(String[] commands)
+  {
+    String path = System.getenv("PATH");
+    if (path == null)
+      return null;
+    for (String command : commands)
+      for (String dir : path.split(File.pathSeparator))
+        if (new File(dir, command).canExecute())
+          return command;
+    return null;
+  }
+
+  public boolean hasNext()
+  {
+    if (next == null)
+      next = readPage();
+    return next != null;
+  }
+
+  public WikiPage next()
+  {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    WikiPage page = next;
+    next = null;
+    return page;
+  }
+
+  public void remove()
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  /** Pages read so far. */
+  public long pagesRead() { return pages; }
+
+  /** The next page, or <code>null</code> at the end of the dump. */
+  private WikiPage readPage()
+  {
+    try {
+      while (xml.hasNext())
+        if (xml.next() == XMLStreamConstants.START_ELEMENT && "page".equals(xml.getLocalName())) {
+          pages++;
+          return page();
+        }
+      return null;
+    } catch (XMLStreamException e) {
+      throw new IllegalStateException("Malformed dump after " + pages + " pages", e);
+    }
+  }
+
+  /** Reads the rest of a <code>page</code> element. */
+  private WikiPage page() throws XMLStreamException
+  {
+    long id = -1;
+    String title = "";
+    int namespace = 0;
+    boolean redirect = false;
+    String text = "";
+    int depth = 1;
+    boolean inRevision = false;
+    while (depth > 0) {
+      int event = xml.next();
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+        if ("revision".equals(xml.getLocalName()))
+          inRevision = false;
+        continue;
+      }
+      if (event != XMLStreamConstants.START_ELEMENT)
+        continue;
+      String name = xml.getLocalName();
+      if (depth == 1 && "title".equals(name))
+        title = xml.getElementText();
+      else if (depth == 1 && "ns".equals(name))
+        namespace = Integer.parseInt(xml.getElementText().trim());
+      else if (depth == 1 && "id".equals(name))
+        id = Long.parseLong(xml.getElementText().trim());
+      else if (depth == 1 && "redirect".equals(name)) {
+        redirect = true;
+        depth++;
+      }
+      else if (inRevision && "text".equals(name))
+        text = xml.getElementText();
+      else {
+        if ("revision".equals(name))
+          inRevision = true;
+        depth++;
+      }
+      // getElementText consumes the end tag, so the depth is unchanged.
+    }
+    return new WikiPage(id, title, namespace, redirect, text);
+  }
+
+  public void close() throws IOException
+  {
+    try {
+      xml.close();
+    } catch (XMLStreamException e) {
+      // The stream is closed below either way.
+    }
+    in.close();
+  }
+}
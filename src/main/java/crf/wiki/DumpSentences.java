@@ -0,0 +1,69 @@
+package crf.wiki;
+
+import crf.output.OutputBuffer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Converts a Wikipedia XML dump to the input format of {@link crf.Tagger}:
+ * one line per token holding its features (see {@link TokenFeatures}),
+ * and a blank line after each sentence; or, with <code>tokens</code>, one
+ * token per line. Articles are processed in parallel and written in dump
+ * order.
+ */
+public class DumpSentences
+{
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 2 || args.length > 4)
+      throw new IllegalArgumentException(
+          "Usage: DumpSentences dump-file[.bz2|.gz] output-file[.gz] [threads [features|tokens]]");
+    int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+    boolean tokensOnly = args.length > 3 && "tokens".equals(args[3]);
+    File output = new File(args[1]);
+    OutputStream stream = new FileOutputStream(output);
+    if (output.getName().endsWith(".gz"))
+      stream = new BufferedOutputStream(new GZIPOutputStream(stream, 1 << 16), 1 << 16);
+    OutputBuffer out = new OutputBuffer(stream);
+
+    long start = System.nanoTime();
+    long articles = 0, sentences = 0, tokens = 0;
+    DumpReader reader = DumpReader.open(new File(args[0]));
+    try {
+      DumpPipeline<Article> pipeline = new DumpPipeline<Article>(reader,
+          new ArticleSentences(tokensOnly ? null : new TokenFeatures(), 256), numThreads);
+      while (pipeline.hasNext()) {
+        Article article = pipeline.next();
+        articles++;
+        String[][] rows = article.getSentences();
+        for (int s = 0; s < rows.length; s++) {
+          String[][] features = tokensOnly ? null : article.getFeatures()[s];
+          for (int t = 0; t < rows[s].length; t++) {
+            if (tokensOnly)
+              out.putUtf8(rows[s][t]);
+            else
+              for (int f = 0; f < features[t].length; f++) {
+                if (f > 0)
+                  out.put((byte) ' ');
+                out.putUtf8(features[t][f]);
+              }
+            out.put((byte) '\n');
+          }
+          out.put((byte) '\n');
+          sentences++;
+          tokens += rows[s].length;
+        }
+      }
+    } finally {
+      reader.close();
+      out.close();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%d pages, %d articles, %d sentences, %d tokens in %.1f s (%.0f pages/s) on %d threads%n",
+        reader.pagesRead(), articles, sentences, tokens, seconds, reader.pagesRead() / seconds, numThreads);
+  }
+}
@@ -0,0 +1,84 @@
+package crf.wiki;
+
+import crf.output.OutputBuffer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Extracts the infobox attributes of every article in a Wikipedia XML
+ * dump to a tab-separated file of <code>page template attribute
+ * value</code> lines, in dump order, parsing pages in parallel with
+ * {@link InfoboxParser}. Tabs, newlines and backslashes in the fields are
+ * written as <code>\t</code>, <code>\n</code> and <code>\\</code>.
+ */
+public class InfoboxExtractor
+{
+  /** The pipeline stage that parses the infoboxes of each article that has any. */
+  public static class Stage implements DumpPipeline.Stage<List<InfoboxRecord>>
+  {
+    public List<InfoboxRecord> apply(WikiPage page)
+    {
+      if (!page.isArticle() || !InfoboxParser.mayHaveInfobox(page.getText()))
+        return null;
+      List<InfoboxRecord> records = new InfoboxParser().parse(page.getTitle(), page.getText());
+      return records.isEmpty() ? null : records;
+    }
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 2 || args.length > 3)
+      throw new IllegalArgumentException(
+          "Usage: InfoboxExtractor dump-file[.bz2|.gz] output-file[.gz] [threads]");
+    int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+    File output = new File(args[1]);
+    OutputStream stream = new FileOutputStream(output);
+    if (output.getName().endsWith(".gz"))
+      stream = new BufferedOutputStream(new GZIPOutputStream(stream, 1 << 16), 1 << 16);
+    OutputBuffer out = new OutputBuffer(stream);
+
+    long start = System.nanoTime();
+    long pages = 0, records = 0;
+    DumpReader reader = DumpReader.open(new File(args[0]));
+    try {
+      DumpPipeline<List<InfoboxRecord>> pipeline =
+        new DumpPipeline<List<InfoboxRecord>>(reader, new Stage(), numThreads);
+      while (pipeline.hasNext()) {
+        pages++;
+        for (InfoboxRecord record : pipeline.next()) {
+          putField(out, record.getPage()).put((byte) '\t');
+          putField(out, record.getTemplate()).put((byte) '\t');
+          putField(out, record.getAttribute()).put((byte) '\t');
+          putField(out, record.getValue()).put((byte) '\n');
+          records++;
+        }
+      }
+    } finally {
+      reader.close();
+      out.close();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%d pages, %d with infoboxes, %d attributes in %.1f s (%.0f pages/s) on %d threads%n",
+        reader.pagesRead(), pages, records, seconds, reader.pagesRead() / seconds, numThreads);
+  }
+
+  private static OutputBuffer putField(OutputBuffer out, String field) throws IOException
+  {
+    int from = 0;
+    for (int i = 0; i < field.length(); i++) {
+      char c = field.charAt(i);
+      char escaped = c == '\t' ? 't' : c == '\n' ? 'n' : c == '\r' ? 'r' : c == '\\' ? '\\' : 0;
+      if (escaped != 0) {
+        out.putUtf8(field.subSequence(from, i)).put((byte) '\\').put((byte) escaped);
+        from = i + 1;
+      }
+    }
+    return from == 0 ? out.putUtf8(field) : out.putUtf8(field.subSequence(from, field.length()));
+  }
+}
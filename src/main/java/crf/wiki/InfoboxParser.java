@@ -0,0 +1,277 @@
+package crf.wiki;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the infobox templates in a page's wikitext and reports each of
+ * their non-empty attributes as a <code>(page, template, attribute,
+ * value)</code> record.
+ * <p>
+ * A hand-written scanner: a page is scanned once for <code>{{</code>,
+ * and only infoboxes, templates whose name starts with
+ * <code>Infobox</code>, are parsed. Their parameters are split at the bars
+ * outside nested templates and links, so values keep links
+ * (<code>[[a|b]]</code>) and templates (<code>{{birth date|1901|5|14}}</code>)
+ * whole; comments, <code>&lt;ref&gt;</code> references and
+ * <code>&lt;nowiki&gt;</code> sections are skipped when splitting and left
+ * out of values. Infoboxes nested in another's values are reported too.
+ * Template names are lowercased with runs of spaces and underscores
+ * collapsed, since MediaWiki treats those spellings alike. Strings are
+ * only created for the records reported. A parser is not thread-safe;
+ * it is cheap to make one per page or per thread.
+ */
+public class InfoboxParser
+{
+  /** Receives the attributes found. */
+  public interface Handler
+  {
+    void attribute(String page, String template, String attribute, String value);
+  }
+
+  private static final String INFOBOX = "infobox";
+
+  /** Ranges of the current parameter to leave out of its value, as start, end pairs. */
+  private int[] skipped = new int[16];
+  private int numSkipped;
+
+  /** Whether <code>text</code> may hold an infobox; cheaper than parsing it. */
+  public static boolean mayHaveInfobox(String text)
+  {
+    int i = -1;
+    while ((i = text.indexOf("{{", i + 1)) >= 0) {
+      int j = i + 2;
+      while (j < text.length() && Character.isWhitespace(text.charAt(j)))
+        j++;
+      if (text.regionMatches(true, j, INFOBOX, 0, INFOBOX.length()))
+        return true;
+    }
+    return false;
+  }
+
+  /** The records of the infoboxes of <code>text</code>. */
+  public List<InfoboxRecord> parse(String page, String text)
+  {
+    final List<InfoboxRecord> records = new ArrayList<InfoboxRecord>();
+    parse(page, text, new Handler() {
+      public void attribute(String page, String template, String attribute, String value) {
+        records.add(new InfoboxRecord(page, template, attribute, value));
+      }
+    });
+    return records;
+  }
+
+  /** Reports the attributes of the infoboxes of <code>text</code> to <code>handler</code>. */
+  public void parse(String page, String text, Handler handler)
+  {
+    int n = text.length();
+    int i = 0;
+    while ((i = text.indexOf("{{", i)) >= 0) {
+      int nameStart = i + 2;
+      while (nameStart < n && Character.isWhitespace(text.charAt(nameStart)))
+        nameStart++;
+      if (text.regionMatches(true, nameStart, "template:", 0, 9))
+        nameStart += 9;
+      if (text.regionMatches(true, nameStart, INFOBOX, 0, INFOBOX.length()))
+        infobox(page, text, nameStart, handler);
+      // Go on inside this template too, for nested infoboxes.
+      i += 2;
+    }
+  }
+
+  /** Parses the infobox whose name starts at <code>nameStart</code>. */
+  private void infobox(String page, String text, int nameStart, Handler handler)
+  {
+    int n = text.length();
+    int nameEnd = nameStart;
+    while (nameEnd < n && text.charAt(nameEnd) != '|' && text.charAt(nameEnd) != '\n'
+        && !text.startsWith("}}", nameEnd) && !text.startsWith("<!--", nameEnd))
+      nameEnd++;
+    String template = normalizeName(text, nameStart, nameEnd);
+    int i = nameEnd;
+    // Skip to the first bar, past any comment after the name.
+    while (i < n && text.charAt(i) != '|') {
+      if (text.startsWith("}}", i))
+        return;
+      if (text.startsWith("<!--", i))
+        i = skipComment(text, i);
+      else
+        i++;
+    }
+    int partStart = ++i, equals = -1, templates = 0, links = 0, positional = 0;
+    numSkipped = 0;
+    while (i < n) {
+      char c = text.charAt(i);
+      if (c == '<') {
+        int end = skipMarkup(text, i);
+        if (end > i) {
+          addSkipped(i, end);
+          i = end;
+          continue;
+        }
+      }
+      else if (c == '{' && i + 1 < n && text.charAt(i + 1) == '{') {
+        templates++;
+        i += 2;
+        continue;
+      }
+      else if (c == '}' && i + 1 < n && text.charAt(i + 1) == '}') {
+        if (templates == 0) {
+          positional = part(page, template, text, partStart, equals, i, positional, handler);
+          return;
+        }
+        templates--;
+        i += 2;
+        continue;
+      }
+      else if (c == '[' && i + 1 < n && text.charAt(i + 1) == '[') {
+        links++;
+        i += 2;
+        continue;
+      }
+      else if (c == ']' && i + 1 < n && text.charAt(i + 1) == ']' && links > 0) {
+        links--;
+        i += 2;
+        continue;
+      }
+      else if (templates == 0 && links == 0) {
+        if (c == '|') {
+          positional = part(page, template, text, partStart, equals, i, positional, handler);
+          partStart = i + 1;
+          equals = -1;
+          numSkipped = 0;
+        }
+        else if (c == '=' && equals < 0)
+          equals = i;
+      }
+      i++;
+    }
+  }
+
+  /**
+   * Reports the parameter in <code>[start, end)</code>; returns the
+   * number of positional parameters seen so far.
+   */
+  private int part(String page, String template, String text, int start, int equals, int end,
+      int positional, Handler handler)
+  {
+    String attribute;
+    int valueStart;
+    if (equals < 0) {
+      attribute = Integer.toString(++positional);
+      valueStart = start;
+    }
+    else {
+      attribute = trimmed(text, start, equals);
+      valueStart = equals + 1;
+    }
+    String value = value(text, valueStart, end);
+    if (attribute.length() > 0 && value.length() > 0)
+      handler.attribute(page, template, attribute, value);
+    return positional;
+  }
+
+  /** The text of <code>[from, to)</code> without the skipped ranges, trimmed. */
+  private String value(String text, int from, int to)
+  {
+    int k = 0;
+    while (k < numSkipped && skipped[2 * k + 1] <= from)
+      k++;
+    if (k == numSkipped)
+      return trimmed(text, from, to);
+    StringBuilder value = new StringBuilder(to - from);
+    int i = from;
+    for (; k < numSkipped && skipped[2 * k] < to; k++) {
+      if (skipped[2 * k] > i)
+        value.append(text, i, skipped[2 * k]);
+      i = Math.max(i, skipped[2 * k + 1]);
+    }
+    if (i < to)
+      value.append(text, i, to);
+    return value.toString().trim();
+  }
+
+  private void addSkipped(int start, int end)
+  {
+    if (2 * numSkipped + 2 > skipped.length) {
+      int[] grown = new int[2 * skipped.length];
+      System.arraycopy(skipped, 0, grown, 0, skipped.length);
+      skipped = grown;
+    }
+    skipped[2 * numSkipped] = start;
+    skipped[2 * numSkipped + 1] = end;
+    numSkipped++;
+  }
+
+  private static String trimmed(String text, int from, int to)
+  {
+    while (from < to && Character.isWhitespace(text.charAt(from)))
+      from++;
+    while (to > from && Character.isWhitespace(text.charAt(to - 1)))
+      to--;
+    return text.substring(from, to);
+  }
+
+  private static String normalizeName(String text, int from, int to)
+  {
+    StringBuilder name = new StringBuilder(to - from);
+    boolean space = false;
+    for (int i = from; i < to; i++) {
+      char c = text.charAt(i);
+      if (c == '_' || Character.isWhitespace(c))
+        space = name.length() > 0;
+      else {
+        if (space)
+          name.append(' ');
+        space = false;
+        name.append(Character.toLowerCase(c));
+      }
+    }
+    return name.toString();
+  }
+
+  private static int skipComment(String text, int i)
+  {
+    int end = text.indexOf("-->", i + 4);
+    return end < 0 ? text.length() : end + 3;
+  }
+
+  /**
+   * The end of the comment, reference or nowiki section at <code>i</code>,
+   * or <code>i</code> if there is none.
+   */
+  private static int skipMarkup(String text, int i)
+  {
+    if (text.startsWith("<!--", i))
+      return skipComment(text, i);
+    String tag;
+    if (text.regionMatches(true, i, "<ref", 0, 4))
+      tag = "ref";
+    else if (text.regionMatches(true, i, "<nowiki", 0, 7))
+      tag = "nowiki";
+    else
+      return i;
+    int nameEnd = i + 1 + tag.length();
+    if (nameEnd < text.length() && Character.isLetterOrDigit(text.charAt(nameEnd)))
+      return i;
+    int gt = text.indexOf('>', nameEnd);
+    if (gt < 0)
+      return i;
+    if (text.charAt(gt - 1) == '/')
+      return gt + 1;
+    int close = indexOfIgnoreCase(text, "</" + tag, gt + 1);
+    if (close < 0)
+      return gt + 1;
+    int closeEnd = text.indexOf('>', close);
+    return closeEnd < 0 ? text.length() : closeEnd + 1;
+  }
+
+  private static int indexOfIgnoreCase(String text, String target, int from)
+  {
+    char first = target.charAt(0);
+    for (int i = text.indexOf(first, from); i >= 0; i = text.indexOf(first, i + 1))
+      if (text.regionMatches(true, i, target, 0, target.length()))
+        return i;
+    return -1;
+  }
+}
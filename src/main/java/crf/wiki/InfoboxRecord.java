@@ -0,0 +1,36 @@
+package crf.wiki;
+
+/**
+ * One attribute of an infobox: the page it is on, the infobox template's
+ * normalized name, the attribute name and its value as wikitext.
+ */
+public class InfoboxRecord
+{
+  private final String page;
+  private final String template;
+  private final String attribute;
+  private final String value;
+
+  public InfoboxRecord(String page, String template, String attribute, String value)
+  {
+    this.page = page;
+    this.template = template;
+    this.attribute = attribute;
+    this.value = value;
+  }
+
+  public String getPage() { return page; }
+
+  /** The template name, lowercased, such as <code>infobox person</code>. */
+  public String getTemplate() { return template; }
+
+  public String getAttribute() { return attribute; }
+
+  /** The value as wikitext, without comments and references. */
+  public String getValue() { return value; }
+
+  public String toString()
+  {
+    return page + "\t" + template + "\t" + attribute + "\t" + value;
+  }
+}
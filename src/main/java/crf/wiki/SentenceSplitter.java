@@ -0,0 +1,111 @@
+package crf.wiki;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Splits plain text into sentences by rule: a sentence ends at a line
+ * break, or at <code>.</code>, <code>!</code> or <code>?</code> (with any
+ * closing quotes and brackets) followed by white space and a capital,
+ * digit, quote or bracket, unless the period ends an abbreviation or an
+ * initial.
+ */
+public class SentenceSplitter
+{
+  /** Abbreviations, lowercase and without their period, that rarely end a sentence. */
+  static final Set<String> ABBREVIATIONS = new HashSet<String>(Arrays.asList(
+      "mr", "mrs", "ms", "dr", "prof", "sr", "jr", "st", "mt", "ft", "fr", "rev", "gen", "col", "lt",
+      "capt", "sgt", "gov", "sen", "rep", "pres", "hon", "no", "nos", "vol", "vols", "pp", "p", "ed", "eds",
+      "est", "approx", "ca", "c", "cf", "vs", "etc", "e.g", "i.e", "al", "inc", "ltd", "co", "corp",
+      "jan", "feb", "mar", "apr", "jun", "jul", "aug", "sep", "sept", "oct", "nov", "dec",
+      "u.s", "u.k", "u.n", "d.c", "a.d", "b.c", "op", "fig", "ch", "sec", "art", "dept", "univ"));
+
+  /** Sentences shorter than this many characters are dropped. */
+  private final int minLength;
+
+  public SentenceSplitter()
+  {
+    this(2);
+  }
+
+  public SentenceSplitter(int minLength)
+  {
+    this.minLength = minLength;
+  }
+
+  public List<String> split(String text)
+  {
+    List<String> sentences = new ArrayList<String>();
+    split(text, sentences);
+    return sentences;
+  }
+
+  /** Adds the sentences of <code>text</code> to <code>sentences</code>. */
+  public void split(String text, List<String> sentences)
+  {
+    int start = 0, n = text.length();
+    for (int i = 0; i < n; i++) {
+      char c = text.charAt(i);
+      if (c == '\n') {
+        add(text, start, i, sentences);
+        start = i + 1;
+      }
+      else if (c == '.' || c == '!' || c == '?') {
+        int end = i + 1;
+        while (end < n && isCloser(text.charAt(end)))
+          end++;
+        if (end >= n || !Character.isWhitespace(text.charAt(end)) || text.charAt(end) == '\n')
+          continue;
+        int next = end;
+        while (next < n && text.charAt(next) == ' ')
+          next++;
+        if (next < n && !startsSentence(text.charAt(next)))
+          continue;
+        if (c == '.' && isAbbreviation(text, start, i))
+          continue;
+        add(text, start, end, sentences);
+        start = end;
+        i = end - 1;
+      }
+    }
+    add(text, start, n, sentences);
+  }
+
+  private static boolean isCloser(char c)
+  {
+    return c == '"' || c == '\'' || c == ')' || c == ']' || c == '\u201d' || c == '\u2019' || c == '\u00bb';
+  }
+
+  private static boolean startsSentence(char c)
+  {
+    return Character.isUpperCase(c) || Character.isDigit(c) || c == '"' || c == '\'' || c == '('
+        || c == '[' || c == '\u201c' || c == '\u2018' || c == '\u00ab' || c == '\n';
+  }
+
+  /** Whether the word before the period at <code>dot</code> is an abbreviation or an initial. */
+  private static boolean isAbbreviation(String text, int start, int dot)
+  {
+    int w = dot;
+    while (w > start && !Character.isWhitespace(text.charAt(w - 1)) && text.charAt(w - 1) != '(')
+      w--;
+    int length = dot - w;
+    if (length == 0)
+      return false;
+    if (length == 1 && Character.isUpperCase(text.charAt(w)))
+      return true;
+    return ABBREVIATIONS.contains(text.substring(w, dot).toLowerCase());
+  }
+
+  private void add(String text, int from, int to, List<String> sentences)
+  {
+    while (from < to && Character.isWhitespace(text.charAt(from)))
+      from++;
+    while (to > from && Character.isWhitespace(text.charAt(to - 1)))
+      to--;
+    if (to - from >= minLength)
+      sentences.add(text.substring(from, to));
+  }
+}
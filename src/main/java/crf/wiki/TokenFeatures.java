@@ -0,0 +1,69 @@
+package crf.wiki;
+
+/**
+ * The features of each token of a tokenized sentence, in the form
+ * {@link crf.features.SimpleTaggerSentence2FeatureVectorSequence} reads:
+ * one row of feature names per token.
+ * <p>
+ * By default a token's row is the token itself, its shape
+ * (<code>CAPITALIZED</code>, <code>ALLCAPS</code>, <code>LOWERCASE</code>,
+ * <code>NUMBER</code>, <code>PUNCTUATION</code> or <code>MIXED</code>),
+ * <code>W=</code> its lowercased form, <code>S=</code> its last two
+ * characters and <code>P=</code> and <code>N=</code> the previous and
+ * next tokens lowercased. Override {@link #features(String[], int)} to
+ * match the features a model was trained with.
+ */
+public class TokenFeatures
+{
+  public String[][] features(String[] tokens)
+  {
+    String[][] rows = new String[tokens.length][];
+    for (int t = 0; t < tokens.length; t++)
+      rows[t] = features(tokens, t);
+    return rows;
+  }
+
+  /** The features of token <code>t</code> of <code>tokens</code>. */
+  public String[] features(String[] tokens, int t)
+  {
+    String token = tokens[t];
+    String lower = token.toLowerCase();
+    boolean first = t == 0, last = t == tokens.length - 1;
+    String[] row = new String[4 + (first ? 0 : 1) + (last ? 0 : 1)];
+    int f = 0;
+    row[f++] = token;
+    row[f++] = shape(token);
+    row[f++] = "W=" + lower;
+    row[f++] = "S=" + (lower.length() > 2 ? lower.substring(lower.length() - 2) : lower);
+    if (!first)
+      row[f++] = "P=" + tokens[t - 1].toLowerCase();
+    if (!last)
+      row[f++] = "N=" + tokens[t + 1].toLowerCase();
+    return row;
+  }
+
+  static String shape(String token)
+  {
+    int upper = 0, lower = 0, digits = 0;
+    for (int i = 0; i < token.length(); i++) {
+      char c = token.charAt(i);
+      if (Character.isUpperCase(c))
+        upper++;
+      else if (Character.isLowerCase(c))
+        lower++;
+      else if (Character.isDigit(c))
+        digits++;
+    }
+    if (upper + lower + digits == 0)
+      return "PUNCTUATION";
+    if (digits > 0 && upper + lower == 0)
+      return "NUMBER";
+    if (digits == 0 && lower == 0)
+      return "ALLCAPS";
+    if (digits == 0 && upper == 0)
+      return "LOWERCASE";
+    if (digits == 0 && upper == 1 && Character.isUpperCase(token.charAt(0)))
+      return "CAPITALIZED";
+    return "MIXED";
+  }
+}
@@ -0,0 +1,89 @@
+package crf.wiki;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a sentence into word and punctuation tokens.
+ * <p>
+ * A word is a run of letters, digits and marks, which may also take in
+ * an apostrophe or hyphen between letters (<code>O'Brien</code>,
+ * <code>well-known</code>), a period or comma between digits
+ * (<code>1,234.5</code>), and the periods of abbreviations and initialisms
+ * (<code>Dr.</code>, <code>U.S.</code>). Every other character that is not
+ * white space is a token of its own.
+ */
+public class Tokenizer
+{
+  public String[] tokenize(String sentence)
+  {
+    List<String> tokens = new ArrayList<String>();
+    tokenize(sentence, tokens);
+    return tokens.toArray(new String[tokens.size()]);
+  }
+
+  /** Adds the tokens of <code>sentence</code> to <code>tokens</code>. */
+  public void tokenize(String sentence, List<String> tokens)
+  {
+    int n = sentence.length();
+    int i = 0;
+    while (i < n) {
+      char c = sentence.charAt(i);
+      if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+        i++;
+        continue;
+      }
+      if (!isWordChar(c)) {
+        int end = Character.isHighSurrogate(c) && i + 1 < n ? i + 2 : i + 1;
+        tokens.add(sentence.substring(i, end));
+        i = end;
+        continue;
+      }
+      int start = i;
+      i++;
+      while (i < n) {
+        char d = sentence.charAt(i);
+        if (isWordChar(d))
+          i++;
+        else if (i + 1 < n && joins(sentence.charAt(i - 1), d, sentence.charAt(i + 1)))
+          i += 2;
+        else
+          break;
+      }
+      // Abbreviations and initialisms keep their final period.
+      if (i < n && sentence.charAt(i) == '.') {
+        String word = sentence.substring(start, i);
+        if (SentenceSplitter.ABBREVIATIONS.contains(word.toLowerCase())
+            || (word.indexOf('.') > 0 && word.length() <= 8)
+            || (word.length() == 1 && Character.isUpperCase(word.charAt(0))))
+          i++;
+      }
+      tokens.add(sentence.substring(start, i));
+    }
+  }
+
+  private static boolean isWordChar(char c)
+  {
+    return Character.isLetterOrDigit(c) || Character.getType(c) == Character.NON_SPACING_MARK
+        || Character.getType(c) == Character.COMBINING_SPACING_MARK;
+  }
+
+  /** Whether <code>d</code> joins <code>before</code> and <code>after</code> into one word. */
+  private static boolean joins(char before, char d, char after)
+  {
+    switch (d) {
+    case '\'':
+    case '\u2019':
+    case '-':
+      return Character.isLetter(before) && Character.isLetter(after);
+    case '.':
+      return Character.isLetterOrDigit(before) && Character.isLetterOrDigit(after)
+          && Character.isDigit(before) == Character.isDigit(after)
+          && (Character.isDigit(before) || Character.isUpperCase(before));
+    case ',':
+      return Character.isDigit(before) && Character.isDigit(after);
+    default:
+      return false;
+    }
+  }
+}
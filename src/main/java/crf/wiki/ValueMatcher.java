@@ -0,0 +1,245 @@
+package crf.wiki;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds occurrences of many token sequences in a sentence at once, with
+ * an Aho-Corasick automaton over tokens, and labels them
+ * <code>B-</code>/<code>I-</code> with the name of the attribute each
+ * sequence belongs to.
+ * <p>
+ * Tokens are compared lowercased. Where matches overlap, the leftmost
+ * wins, then the longest. A sequence added under two different names is
+ * ambiguous and is never labeled. Add every sequence, then call
+ * {@link #build()} once; after that {@link #label(String[], String[])}
+ * may be called from any number of threads.
+ */
+public class ValueMatcher
+{
+  private static final int AMBIGUOUS = -2;
+
+  private final Map<String, Integer> tokenIds = new HashMap<String, Integer>();
+  private final Map<String, Integer> nameIds = new HashMap<String, Integer>();
+  private String[] beginLabels = new String[4];
+  private String[] insideLabels = new String[4];
+
+  // The trie: per node its parent, the token leading to it, its depth,
+  // the name of the sequence ending there (-1 if none), its failure link
+  // and the nearest node on its failure chain that ends a sequence.
+  private int numNodes = 1;
+  private int[] parent = new int[64];
+  private int[] token = new int[64];
+  private int[] depth = new int[64];
+  private int[] name = filled(64);
+  private int[] fail;
+  private int[] output;
+
+  // Edges, as an open-addressing table from (node, token) to child.
+  private long[] edgeKeys = emptyKeys(128);
+  private int[] edgeValues = new int[128];
+  private int numEdges;
+
+  private boolean built;
+
+  /** Adds the sequence <code>tokens</code>, labeled <code>attribute</code>. */
+  public void add(String[] tokens, String attribute)
+  {
+    if (built)
+      throw new IllegalStateException("The matcher is already built");
+    if (tokens.length == 0)
+      return;
+    Integer id = nameIds.get(attribute);
+    if (id == null) {
+      id = nameIds.size();
+      nameIds.put(attribute, id);
+      if (id == beginLabels.length) {
+        beginLabels = Arrays.copyOf(beginLabels, 2 * id);
+        insideLabels = Arrays.copyOf(insideLabels, 2 * id);
+      }
+      beginLabels[id] = "B-" + attribute;
+      insideLabels[id] = "I-" + attribute;
+    }
+    int node = 0;
+    for (String t : tokens) {
+      String lower = t.toLowerCase();
+      Integer tokenId = tokenIds.get(lower);
+      if (tokenId == null) {
+        tokenId = tokenIds.size();
+        tokenIds.put(lower, tokenId);
+      }
+      int child = child(node, tokenId);
+      if (child < 0) {
+        child = addNode(node, tokenId);
+        putEdge(node, tokenId, child);
+      }
+      node = child;
+    }
+    if (name[node] == -1)
+      name[node] = id;
+    else if (name[node] != id)
+      name[node] = AMBIGUOUS;
+  }
+
+  /** Whether no sequence was added. */
+  public boolean isEmpty()
+  {
+    return numNodes == 1;
+  }
+
+  /** Computes the failure links; call after the last {@link #add(String[], String)}. */
+  public void build()
+  {
+    fail = new int[numNodes];
+    output = filled(numNodes);
+    // Nodes in order of depth, so a node's failure link is set before its children's.
+    int maxDepth = 0;
+    for (int v = 0; v < numNodes; v++)
+      maxDepth = Math.max(maxDepth, depth[v]);
+    int[] start = new int[maxDepth + 2];
+    for (int v = 0; v < numNodes; v++)
+      start[depth[v] + 1]++;
+    for (int d = 1; d < start.length; d++)
+      start[d] += start[d - 1];
+    int[] order = new int[numNodes];
+    for (int v = 0; v < numNodes; v++)
+      order[start[depth[v]]++] = v;
+    for (int k = 1; k < numNodes; k++) {
+      int v = order[k];
+      int p = parent[v];
+      if (p != 0) {
+        int f = fail[p];
+        int next;
+        while ((next = child(f, token[v])) < 0 && f != 0)
+          f = fail[f];
+        fail[v] = next >= 0 ? next : 0;
+      }
+      int f = fail[v];
+      output[v] = name[f] != -1 ? f : output[f];
+    }
+    built = true;
+  }
+
+  /**
+   * Sets <code>labels[t]</code> to the label of token <code>t</code> of
+   * <code>tokens</code>: <code>B-</code> or <code>I-</code> and the
+   * attribute for tokens of a match, <code>O</code> for the rest.
+   *
+   * @return the number of matches labeled
+   */
+  public int label(String[] tokens, String[] labels)
+  {
+    if (!built)
+      throw new IllegalStateException("The matcher is not built");
+    int n = tokens.length;
+    // The longest match starting at each token, and its name.
+    int[] longest = new int[n];
+    int[] longestName = new int[n];
+    int state = 0;
+    for (int t = 0; t < n; t++) {
+      Integer id = tokenIds.get(tokens[t].toLowerCase());
+      if (id == null) {
+        state = 0;
+        continue;
+      }
+      int next;
+      while ((next = child(state, id)) < 0 && state != 0)
+        state = fail[state];
+      state = next >= 0 ? next : 0;
+      for (int v = name[state] != -1 ? state : output[state]; v > 0; v = output[v]) {
+        int s = t - depth[v] + 1;
+        if (depth[v] > longest[s]) {
+          longest[s] = depth[v];
+          longestName[s] = name[v];
+        }
+      }
+    }
+    int matches = 0;
+    int t = 0;
+    while (t < n) {
+      if (longest[t] > 0 && longestName[t] != AMBIGUOUS) {
+        int id = longestName[t];
+        labels[t] = beginLabels[id];
+        for (int i = 1; i < longest[t]; i++)
+          labels[t + i] = insideLabels[id];
+        t += longest[t];
+        matches++;
+      }
+      else
+        labels[t++] = "O";
+    }
+    return matches;
+  }
+
+  private int addNode(int p, int tokenId)
+  {
+    if (numNodes == parent.length) {
+      int size = 2 * numNodes;
+      parent = Arrays.copyOf(parent, size);
+      token = Arrays.copyOf(token, size);
+      depth = Arrays.copyOf(depth, size);
+      name = Arrays.copyOf(name, size);
+      Arrays.fill(name, numNodes, size, -1);
+    }
+    int v = numNodes++;
+    parent[v] = p;
+    token[v] = tokenId;
+    depth[v] = depth[p] + 1;
+    return v;
+  }
+
+  private int child(int node, int tokenId)
+  {
+    long key = ((long) node << 32) | tokenId;
+    int mask = edgeKeys.length - 1;
+    for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+      if (edgeKeys[i] == key)
+        return edgeValues[i];
+      if (edgeKeys[i] == -1)
+        return -1;
+    }
+  }
+
+  private void putEdge(int node, int tokenId, int child)
+  {
+    if (2 * (numEdges + 1) > edgeKeys.length) {
+      long[] keys = edgeKeys;
+      int[] values = edgeValues;
+      edgeKeys = emptyKeys(2 * keys.length);
+      edgeValues = new int[2 * keys.length];
+      numEdges = 0;
+      for (int i = 0; i < keys.length; i++)
+        if (keys[i] != -1)
+          putEdge((int) (keys[i] >>> 32), (int) keys[i], values[i]);
+    }
+    long key = ((long) node << 32) | tokenId;
+    int mask = edgeKeys.length - 1;
+    int i = hash(key) & mask;
+    while (edgeKeys[i] != -1)
+      i = (i + 1) & mask;
+    edgeKeys[i] = key;
+    edgeValues[i] = child;
+    numEdges++;
+  }
+
+  private static int hash(long key)
+  {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private static long[] emptyKeys(int size)
+  {
+    long[] keys = new long[size];
+    Arrays.fill(keys, -1);
+    return keys;
+  }
+
+  private static int[] filled(int size)
+  {
+    int[] a = new int[size];
+    Arrays.fill(a, -1);
+    return a;
+  }
+}
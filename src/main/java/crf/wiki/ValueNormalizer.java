@@ -0,0 +1,213 @@
+package crf.wiki;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns an infobox value's wikitext into the token sequences it is likely
+ * to appear as in the article's prose.
+ * <p>
+ * A few common templates are rendered first: date templates
+ * (<code>{{birth date|1901|5|14}}</code>) as both <code>14 May 1901</code>
+ * and <code>May 14, 1901</code>, list templates (<code>plainlist</code>,
+ * <code>hlist</code>, <code>ubl</code>, ...) as their items, and
+ * <code>marriage</code> as the spouse's name; other templates are
+ * dropped. Line breaks become item separators and the rest is stripped
+ * with {@link WikitextStripper}, so <code>[[Boston]], [[United
+ * States|U.S.]]</code> becomes <code>Boston, U.S.</code>. Each item is
+ * a candidate, and so is each comma-separated part of one. Candidates
+ * that are only punctuation, or a single character, are left out, as are
+ * those longer than {@link #MAX_TOKENS} tokens.
+ */
+public class ValueNormalizer
+{
+  public static final int MAX_TOKENS = 12;
+
+  private static final String[] MONTHS = { "January", "February", "March", "April", "May", "June",
+      "July", "August", "September", "October", "November", "December" };
+
+  private final WikitextStripper stripper = new WikitextStripper();
+  private final Tokenizer tokenizer = new Tokenizer();
+
+  /** The token sequences for <code>value</code>. */
+  public List<String[]> candidates(String value)
+  {
+    List<String[]> candidates = new ArrayList<String[]>();
+    StringBuilder expanded = new StringBuilder(value.length());
+    expand(value, expanded);
+    String text = stripper.strip(expanded.toString());
+    List<String> items = new ArrayList<String>();
+    for (String item : text.split("\n")) {
+      item = item.trim();
+      if (item.length() > 0)
+        items.add(item);
+    }
+    for (String item : items) {
+      add(item, candidates);
+      if (item.indexOf(',') >= 0 || item.indexOf(';') >= 0)
+        for (String part : item.split("[,;]"))
+          add(part, candidates);
+    }
+    return candidates;
+  }
+
+  private void add(String text, List<String[]> candidates)
+  {
+    String[] tokens = tokenizer.tokenize(text);
+    if (tokens.length == 0 || tokens.length > MAX_TOKENS)
+      return;
+    if (tokens.length == 1 && tokens[0].length() < 2)
+      return;
+    boolean word = false;
+    for (String t : tokens)
+      word |= Character.isLetterOrDigit(t.charAt(0));
+    if (word)
+      candidates.add(tokens);
+  }
+
+  /**
+   * Appends <code>value</code> to <code>out</code> with its templates
+   * rendered and its line breaks as newlines.
+   */
+  private void expand(String value, StringBuilder out)
+  {
+    int n = value.length();
+    int i = 0;
+    while (i < n) {
+      char c = value.charAt(i);
+      if (c == '{' && i + 1 < n && value.charAt(i + 1) == '{') {
+        int end = templateEnd(value, i);
+        if (end < 0)
+          break;
+        template(value.substring(i + 2, end - 2), out);
+        i = end;
+      }
+      else if (c == '<' && value.regionMatches(true, i + 1, "br", 0, 2)) {
+        int gt = value.indexOf('>', i);
+        out.append('\n');
+        i = gt < 0 ? n : gt + 1;
+      }
+      else {
+        out.append(c);
+        i++;
+      }
+    }
+  }
+
+  private void template(String body, StringBuilder out)
+  {
+    List<String> params = split(body);
+    String name = params.get(0).trim().toLowerCase().replace('_', ' ');
+    if (name.endsWith("date") || name.endsWith("date and age") || name.equals("dob")) {
+      date(params, out);
+    }
+    else if (name.equals("plainlist") || name.equals("plain list") || name.equals("flatlist")
+        || name.equals("flat list") || name.equals("hlist") || name.equals("ubl")
+        || name.equals("unbulleted list") || name.equals("bulleted list") || name.equals("ublist")) {
+      out.append('\n');
+      for (int k = 1; k < params.size(); k++) {
+        String param = params.get(k);
+        if (param.indexOf('=') >= 0 && param.indexOf('=') < firstMarkup(param))
+          continue;
+        // Items of plainlist and flatlist are bulleted lines.
+        for (String line : param.split("\n")) {
+          line = line.trim();
+          while (line.startsWith("*") || line.startsWith("#"))
+            line = line.substring(1);
+          expand(line, out);
+          out.append('\n');
+        }
+      }
+    }
+    else if ((name.equals("marriage") || name.equals("married")) && params.size() > 1) {
+      expand(params.get(1), out);
+    }
+  }
+
+  /** Renders the first year, month and day parameters in both orders. */
+  private static void date(List<String> params, StringBuilder out)
+  {
+    int[] ymd = new int[3];
+    int found = 0;
+    for (int k = 1; k < params.size() && found < 3; k++) {
+      String p = params.get(k).trim();
+      if (p.indexOf('=') >= 0)
+        continue;
+      try {
+        ymd[found++] = Integer.parseInt(p);
+      } catch (NumberFormatException e) {
+        return;
+      }
+    }
+    if (found == 0)
+      return;
+    if (found < 3 || ymd[1] < 1 || ymd[1] > 12) {
+      out.append(ymd[0]);
+      return;
+    }
+    String month = MONTHS[ymd[1] - 1];
+    out.append('\n').append(ymd[2]).append(' ').append(month).append(' ').append(ymd[0])
+      .append('\n').append(month).append(' ').append(ymd[2]).append(", ").append(ymd[0]).append('\n');
+  }
+
+  /** Splits a template body at the bars outside nested templates and links. */
+  private static List<String> split(String body)
+  {
+    List<String> parts = new ArrayList<String>();
+    int templates = 0, links = 0, start = 0;
+    for (int i = 0; i < body.length(); i++) {
+      char c = body.charAt(i);
+      if (c == '{' && body.startsWith("{{", i)) {
+        templates++;
+        i++;
+      }
+      else if (c == '}' && body.startsWith("}}", i) && templates > 0) {
+        templates--;
+        i++;
+      }
+      else if (c == '[' && body.startsWith("[[", i)) {
+        links++;
+        i++;
+      }
+      else if (c == ']' && body.startsWith("]]", i) && links > 0) {
+        links--;
+        i++;
+      }
+      else if (c == '|' && templates == 0 && links == 0) {
+        parts.add(body.substring(start, i));
+        start = i + 1;
+      }
+    }
+    parts.add(body.substring(start));
+    return parts;
+  }
+
+  /** The end of the template at <code>i</code>, after its closing braces, or -1 if it is not closed. */
+  private static int templateEnd(String s, int i)
+  {
+    int depth = 0;
+    int n = s.length();
+    while (i < n) {
+      if (s.startsWith("{{", i)) {
+        depth++;
+        i += 2;
+      }
+      else if (s.startsWith("}}", i)) {
+        i += 2;
+        if (--depth == 0)
+          return i;
+      }
+      else
+        i++;
+    }
+    return -1;
+  }
+
+  private static int firstMarkup(String s)
+  {
+    int i = 0;
+    while (i < s.length() && "[{<".indexOf(s.charAt(i)) < 0)
+      i++;
+    return i;
+  }
+}
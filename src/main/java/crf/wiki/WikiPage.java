@@ -0,0 +1,40 @@
+package crf.wiki;
+
+/**
+ * One page of a Wikipedia XML dump: its latest revision's wikitext and
+ * the metadata needed to pick articles.
+ */
+public class WikiPage
+{
+  private final long id;
+  private final String title;
+  private final int namespace;
+  private final boolean redirect;
+  private final String text;
+
+  public WikiPage(long id, String title, int namespace, boolean redirect, String text)
+  {
+    this.id = id;
+    this.title = title;
+    this.namespace = namespace;
+    this.redirect = redirect;
+    this.text = text;
+  }
+
+  public long getId() { return id; }
+
+  public String getTitle() { return title; }
+
+  /** The namespace number; 0 for articles. */
+  public int getNamespace() { return namespace; }
+
+  public boolean isRedirect() { return redirect; }
+
+  /** The wikitext, empty if the dump had none. */
+  public String getText() { return text; }
+
+  /** Whether this is an article: in the main namespace and not a redirect. */
+  public boolean isArticle() { return namespace == 0 && !redirect; }
+
+  public String toString() { return title; }
+}
@@ -0,0 +1,327 @@
+package crf.wiki;
+
+/**
+ * Turns wikitext into plain text in one pass, keeping the prose and
+ * dropping markup.
+ * <p>
+ * Templates (nested or not), tables, references, comments, magic words,
+ * headings, horizontal rules and the content of non-prose tags (math,
+ * code, galleries, ...) are dropped. Links are replaced by their label,
+ * or their target if they have none; file, image, category and
+ * interlanguage links are dropped. External links keep their label only.
+ * Bold and italic quotes, list markers and other HTML tags are removed,
+ * and common character entities decoded. Paragraphs and list items come
+ * out on separate lines.
+ */
+public class WikitextStripper
+{
+  /** Tags whose content is not prose. */
+  private static final String[] DROPPED_TAGS = { "ref", "math", "gallery", "timeline", "syntaxhighlight",
+      "source", "score", "pre", "code", "imagemap", "chem", "ce", "hiero", "graph", "templatedata",
+      "mapframe", "maplink", "references", "table", "sup", "sub" };
+
+  /** Link prefixes (namespaces) whose links are not prose. */
+  private static final String[] DROPPED_LINKS = { "file:", "image:", "category:", "media:", "wikipedia:",
+      "wp:", "help:", "template:", "portal:", "special:", "wikt:", "s:", "commons:" };
+
+  /** Strips <code>wikitext</code> to plain text. */
+  public String strip(String wikitext)
+  {
+    StringBuilder out = new StringBuilder(wikitext.length() / 2);
+    strip(wikitext, 0, wikitext.length(), out);
+    return out.toString();
+  }
+
+  private void strip(String s, int from, int to, StringBuilder out)
+  {
+    int i = from;
+    boolean lineStart = true;
+    while (i < to) {
+      char c = s.charAt(i);
+      if (lineStart) {
+        lineStart = false;
+        int end = lineEnd(s, i, to);
+        if (c == '=') {
+          // A heading; it is not part of a sentence.
+          i = end;
+          continue;
+        }
+        if (s.startsWith("----", i)) {
+          i = end;
+          continue;
+        }
+        if (c == '{' && i + 1 < to && s.charAt(i + 1) == '|') {
+          i = skipTable(s, i, to);
+          continue;
+        }
+        if (c == '*' || c == '#' || c == ':' || c == ';') {
+          while (i < to && "*#:;".indexOf(s.charAt(i)) >= 0)
+            i++;
+          while (i < to && s.charAt(i) == ' ')
+            i++;
+          continue;
+        }
+      }
+      switch (c) {
+      case '\n':
+        newline(out);
+        lineStart = true;
+        i++;
+        continue;
+      case '{':
+        if (i + 1 < to && s.charAt(i + 1) == '{') {
+          i = skipBalanced(s, i, to, '{', '}');
+          continue;
+        }
+        break;
+      case '[':
+        if (i + 1 < to && s.charAt(i + 1) == '[') {
+          i = link(s, i, to, out);
+          continue;
+        }
+        int label = externalLink(s, i, to);
+        if (label >= 0) {
+          int close = s.indexOf(']', label);
+          if (close < 0 || close > to)
+            close = to;
+          strip(s, label, close, out);
+          i = Math.min(to, close + 1);
+          continue;
+        }
+        break;
+      case '<':
+        int next = tag(s, i, to);
+        if (next > i) {
+          i = next;
+          continue;
+        }
+        break;
+      case '\'':
+        if (i + 1 < to && s.charAt(i + 1) == '\'') {
+          while (i < to && s.charAt(i) == '\'')
+            i++;
+          continue;
+        }
+        break;
+      case '&':
+        int semi = entity(s, i, to, out);
+        if (semi > i) {
+          i = semi;
+          continue;
+        }
+        break;
+      case '_':
+        if (s.startsWith("__", i)) {
+          int j = i + 2;
+          while (j < to && Character.isUpperCase(s.charAt(j)))
+            j++;
+          if (j > i + 2 && s.startsWith("__", j)) {
+            i = j + 2;
+            continue;
+          }
+        }
+        break;
+      }
+      out.append(c);
+      i++;
+    }
+  }
+
+  private static int lineEnd(String s, int i, int to)
+  {
+    int end = s.indexOf('\n', i);
+    return end < 0 || end > to ? to : end;
+  }
+
+  /** Ends the current line unless it is empty, dropping trailing spaces. */
+  private static void newline(StringBuilder out)
+  {
+    int n = out.length();
+    while (n > 0 && out.charAt(n - 1) == ' ')
+      n--;
+    out.setLength(n);
+    if (n > 0 && out.charAt(n - 1) != '\n')
+      out.append('\n');
+  }
+
+  /** The position after the balanced run of <code>open</code>/<code>close</code> pairs starting at <code>i</code>. */
+  private static int skipBalanced(String s, int i, int to, char open, char close)
+  {
+    int depth = 0;
+    while (i < to) {
+      char c = s.charAt(i);
+      if (c == open && i + 1 < to && s.charAt(i + 1) == open) {
+        depth++;
+        i += 2;
+      }
+      else if (c == close && i + 1 < to && s.charAt(i + 1) == close) {
+        depth--;
+        i += 2;
+        if (depth == 0)
+          return i;
+      }
+      else if (c == '<' && s.startsWith("<!--", i)) {
+        int end = s.indexOf("-->", i + 4);
+        i = end < 0 || end > to ? to : end + 3;
+      }
+      else
+        i++;
+    }
+    return to;
+  }
+
+  /** The position after the (possibly nested) table starting at <code>i</code>. */
+  private static int skipTable(String s, int i, int to)
+  {
+    int depth = 0;
+    while (i < to) {
+      int end = lineEnd(s, i, to);
+      int j = i;
+      while (j < end && (s.charAt(j) == ' ' || s.charAt(j) == '\t'))
+        j++;
+      if (s.startsWith("{|", j))
+        depth++;
+      else if (s.startsWith("|}", j) && --depth == 0)
+        return end;
+      i = end + 1;
+    }
+    return to;
+  }
+
+  /** Writes the label of the internal link at <code>i</code> and returns the position after it. */
+  private int link(String s, int i, int to, StringBuilder out)
+  {
+    int end = skipBalanced(s, i, to, '[', ']');
+    int inner = i + 2, innerEnd = end - 2;
+    if (innerEnd <= inner)
+      return end;
+    // The label follows the last top-level bar.
+    int bar = -1, depth = 0;
+    for (int j = inner; j < innerEnd; j++) {
+      char c = s.charAt(j);
+      if ((c == '[' || c == '{') && j + 1 < innerEnd && s.charAt(j + 1) == c) {
+        depth++;
+        j++;
+      }
+      else if ((c == ']' || c == '}') && j + 1 < innerEnd && s.charAt(j + 1) == c) {
+        depth--;
+        j++;
+      }
+      else if (c == '|' && depth == 0)
+        bar = j;
+    }
+    int targetEnd = bar < 0 ? innerEnd : s.indexOf('|', inner);
+    int colon = s.indexOf(':', inner);
+    if (colon > inner && colon < targetEnd) {
+      // A leading colon makes a link to a file or category an ordinary one.
+      if (s.charAt(inner) != ':') {
+        String prefix = s.substring(inner, colon + 1).trim();
+        for (String dropped : DROPPED_LINKS)
+          if (prefix.equalsIgnoreCase(dropped))
+            return end;
+        // Interlanguage links: a short lowercase language code.
+        if (prefix.length() <= 4 && prefix.matches("[a-z\\-]+:"))
+          return end;
+      }
+    }
+    if (bar < 0) {
+      int start = s.charAt(inner) == ':' ? inner + 1 : inner;
+      int hash = s.indexOf('#', start);
+      if (hash <= start || hash >= innerEnd)
+        hash = innerEnd;
+      strip(s, start, hash, out);
+    }
+    else
+      strip(s, bar + 1, innerEnd, out);
+    return end;
+  }
+
+  /** The start of the label of the external link at <code>i</code>, or -1 if there is none. */
+  private static int externalLink(String s, int i, int to)
+  {
+    int j = i + 1;
+    if (!(s.startsWith("http://", j) || s.startsWith("https://", j) || s.startsWith("//", j)
+        || s.startsWith("ftp://", j) || s.startsWith("mailto:", j)))
+      return -1;
+    while (j < to && s.charAt(j) != ' ' && s.charAt(j) != ']' && s.charAt(j) != '\n')
+      j++;
+    return j < to && s.charAt(j) == ' ' ? j + 1 : j;
+  }
+
+  /**
+   * Skips the comment or tag at <code>i</code>, with its content if it is
+   * not prose; returns <code>i</code> if there is none.
+   */
+  private static int tag(String s, int i, int to)
+  {
+    if (s.startsWith("<!--", i)) {
+      int end = s.indexOf("-->", i + 4);
+      return end < 0 || end > to ? to : end + 3;
+    }
+    int j = i + 1;
+    boolean closing = j < to && s.charAt(j) == '/';
+    if (closing)
+      j++;
+    int nameStart = j;
+    while (j < to && Character.isLetterOrDigit(s.charAt(j)))
+      j++;
+    if (j == nameStart)
+      return i;
+    int gt = s.indexOf('>', j);
+    if (gt < 0 || gt >= to)
+      return i;
+    String name = s.substring(nameStart, j).toLowerCase();
+    if (!closing && s.charAt(gt - 1) != '/')
+      for (String dropped : DROPPED_TAGS)
+        if (dropped.equals(name)) {
+          int close = indexOfIgnoreCase(s, "</" + name, gt + 1, to);
+          if (close < 0)
+            return gt + 1;
+          int closeEnd = s.indexOf('>', close);
+          return closeEnd < 0 || closeEnd >= to ? to : closeEnd + 1;
+        }
+    return gt + 1;
+  }
+
+  private static int indexOfIgnoreCase(String s, String target, int from, int to)
+  {
+    for (int i = from; i + target.length() <= to; i++)
+      if (s.regionMatches(true, i, target, 0, target.length()))
+        return i;
+    return -1;
+  }
+
+  /** Writes the character entity at <code>i</code>; returns <code>i</code> if there is none. */
+  private static int entity(String s, int i, int to, StringBuilder out)
+  {
+    int semi = s.indexOf(';', i);
+    if (semi < 0 || semi >= to || semi - i > 10)
+      return i;
+    String name = s.substring(i + 1, semi);
+    if (name.startsWith("#")) {
+      try {
+        int cp = name.startsWith("#x") || name.startsWith("#X")
+          ? Integer.parseInt(name.substring(2), 16) : Integer.parseInt(name.substring(1));
+        out.appendCodePoint(Character.isValidCodePoint(cp) ? cp : ' ');
+        return semi + 1;
+      } catch (NumberFormatException e) {
+        return i;
+      }
+    }
+    String value = null;
+    if ("amp".equals(name)) value = "&";
+    else if ("lt".equals(name)) value = "<";
+    else if ("gt".equals(name)) value = ">";
+    else if ("quot".equals(name)) value = "\"";
+    else if ("apos".equals(name)) value = "'";
+    else if ("nbsp".equals(name) || "thinsp".equals(name) || "ensp".equals(name) || "emsp".equals(name)) value = " ";
+    else if ("ndash".equals(name)) value = "\u2013";
+    else if ("mdash".equals(name)) value = "\u2014";
+    else if ("minus".equals(name)) value = "\u2212";
+    else if ("times".equals(name)) value = "\u00d7";
+    if (value == null)
+      return i;
+    out.append(value);
+    return semi + 1;
+  }
+}
@@ -23,6 +23,9 @@ import cc.mallet.share.mccallum.ner.TokenSequenceDocHeader;
 import cc.mallet.types.Alphabet;
 import cc.mallet.types.InstanceList;
 import cc.mallet.util.CommandOption;
+import crf.eval.DecodeCache;
+import crf.eval.ParallelEvaluator;
+import crf.eval.ViterbiOutputWriter;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -293,13 +296,18 @@ public class TUI
 
 		System.out.println("Training on "+trainingData.size()+" training instances, "+
 											 testingData.size()+" testing instances...");
-		MultiSegmentationEvaluator eval =
-			new MultiSegmentationEvaluator (new InstanceList[] {trainingData, testingData},
+		// eval and vw share one decoding of each instance per iteration
+		DecodeCache decodes = new DecodeCache (Runtime.getRuntime().availableProcessors());
+		ParallelEvaluator eval =
+			new ParallelEvaluator (new InstanceList[] {trainingData, testingData},
 					new String[] {"Training", "Testing"},
 					new String[] {"B-PER", "B-LOC", "B-ORG", "B-MISC"},
-					new String[] {"I-PER", "I-LOC", "I-ORG", "I-MISC"});
-		ViterbiWriter vw = new ViterbiWriter (viterbiFilePrefixOption.value,
-				new InstanceList[] {trainingData, testingData}, new String[] {"Training", "Testing"});
+					new String[] {"I-PER", "I-LOC", "I-ORG", "I-MISC"},
+					Runtime.getRuntime().availableProcessors());
+		eval.useCache (decodes);
+		ViterbiOutputWriter vw = new ViterbiOutputWriter (viterbiFilePrefixOption.value,
+				new InstanceList[] {trainingData, testingData}, new String[] {"Training", "Testing"},
+				decodes);
 			
 		if (useFeatureInductionOption.value) {
 			if (clusterFeatureInductionOption.value)
@@ -327,6 +335,7 @@ public class TUI
 			eval.evaluate(crft);
 			vw.evaluate(crft);
 		}
+		vw.close();
 	}
 
 	
@@ -0,0 +1,129 @@
+package crf;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.CRFTrainerByLabelLikelihood;
+import cc.mallet.fst.Transducer;
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.iterator.ArrayIterator;
+import cc.mallet.types.InstanceList;
+import crf.features.SimpleTaggerSentence2FeatureVectorSequence;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Small CRFs trained on generated sentences in the format read by
+ * {@link Tagger}, for tests that compare this package's decoders and
+ * trainers with Mallet's.
+ */
+public class TestModels
+{
+  private static final String[] PEOPLE = { "carol", "king", "ada", "lovelace", "alan", "turing" };
+  private static final String[] PLACES = { "paris", "london", "new", "york", "berlin" };
+  private static final String[] WORDS = { "the", "studied", "in", "at", "was", "born", "and", "king", "new" };
+
+  private static CRF firstOrder, secondOrder;
+
+  /**
+   * <code>n</code> labeled sentences of people (<code>B-per</code>,
+   * <code>I-per</code>), places (<code>B-loc</code>, <code>I-loc</code>)
+   * and other words (<code>O</code>), whose features overlap enough that
+   * a model is unsure of some tokens.
+   */
+  public static String[] sentences(int n, long seed)
+  {
+    Random random = new Random(seed);
+    String[] sentences = new String[n];
+    for (int i = 0; i < n; i++) {
+      StringBuilder text = new StringBuilder();
+      int length = 3 + random.nextInt(10);
+      for (int t = 0; t < length; ) {
+        int kind = random.nextInt(4);
+        String[] words = kind == 0 ? PEOPLE : kind == 1 ? PLACES : WORDS;
+        int span = kind < 2 ? 1 + random.nextInt(2) : 1;
+        for (int j = 0; j < span && t < length; j++, t++) {
+          String word = words[random.nextInt(words.length)];
+          String label = kind == 2 || kind == 3 ? "O" : (j == 0 ? "B-" : "I-") + (kind == 0 ? "per" : "loc");
+          text.append(word).append(' ').append("W=").append(word)
+              .append(' ').append("S=").append(word.substring(word.length() - 2));
+          if (random.nextInt(3) == 0)
+            text.append(' ').append("NOISE").append(random.nextInt(4));
+          if (kind < 2 && random.nextInt(4) != 0)
+            text.append(' ').append("CAPITALIZED");
+          text.append(' ').append(label).append('\n');
+        }
+      }
+      sentences[i] = text.toString();
+    }
+    return sentences;
+  }
+
+  /** Pipes labeled sentences through a new {@link SimpleTaggerSentence2FeatureVectorSequence}. */
+  public static InstanceList instances(String[] sentences)
+  {
+    Pipe pipe = new SimpleTaggerSentence2FeatureVectorSequence();
+    pipe.setTargetProcessing(true);
+    InstanceList data = new InstanceList(pipe);
+    data.addThruPipe(new ArrayIterator(sentences));
+    return data;
+  }
+
+  /** Pipes more labeled sentences through the pipe of <code>like</code>. */
+  public static InstanceList instances(InstanceList like, String[] sentences)
+  {
+    InstanceList data = new InstanceList(like.getPipe());
+    data.addThruPipe(new ArrayIterator(sentences));
+    return data;
+  }
+
+  /** Pipes more labeled sentences through the input pipe of <code>crf</code>. */
+  public static InstanceList instances(CRF crf, String[] sentences)
+  {
+    InstanceList data = new InstanceList(crf.getInputPipe());
+    data.addThruPipe(new ArrayIterator(sentences));
+    return data;
+  }
+
+  /**
+   * A first-order CRF trained once per test run on 150 sentences for 15
+   * iterations. Tests share it, so they must not change its weights.
+   */
+  public static synchronized CRF firstOrder()
+  {
+    if (firstOrder == null)
+      firstOrder = train(instances(sentences(150, 1)), new int[] {1}, 15);
+    return firstOrder;
+  }
+
+  /**
+   * A CRF of orders 0, 1 and 2 trained once per test run on 150
+   * sentences for 10 iterations. Tests share it, so they must not change
+   * its weights.
+   */
+  public static synchronized CRF secondOrder()
+  {
+    if (secondOrder == null)
+      secondOrder = train(instances(sentences(150, 3)), new int[] {0, 1, 2}, 10);
+    return secondOrder;
+  }
+
+  /**
+   * A CRF over the labels of <code>data</code> with Markov orders
+   * <code>orders</code> and no <code>O</code> to <code>I-</code>
+   * transitions, built as {@link Tagger} builds one, trained for
+   * <code>iterations</code> iterations.
+   */
+  public static CRF train(InstanceList data, int[] orders, int iterations)
+  {
+    CRF crf = new CRF(data.getPipe(), (Pipe) null);
+    String start = crf.addOrderNStates(data, orders, null, "O", Pattern.compile("O,I-.*"),
+        Pattern.compile(".*"), true);
+    for (int i = 0; i < crf.numStates(); i++)
+      crf.getState(i).setInitialWeight(Transducer.IMPOSSIBLE_WEIGHT);
+    crf.getState(start).setInitialWeight(0.0);
+    CRFTrainerByLabelLikelihood trainer = new CRFTrainerByLabelLikelihood(crf);
+    trainer.setGaussianPriorVariance(10.0);
+    trainer.train(data, iterations);
+    return crf;
+  }
+}
@@ -0,0 +1,63 @@
+package crf.decode;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import crf.TestModels;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChunkedDecoderTest
+{
+  /** Sentences joined into sequences of about a thousand tokens. */
+  private static String[] joined(int n, long seed)
+  {
+    String[] sentences = TestModels.sentences(120 * n, seed);
+    String[] sequences = new String[n];
+    for (int i = 0; i < n; i++) {
+      StringBuilder text = new StringBuilder();
+      for (int j = 0; j < 120; j++)
+        text.append(sentences[120 * i + j]);
+      sequences[i] = text.toString();
+    }
+    return sequences;
+  }
+
+  /** Stitched windows give the full Viterbi path without falling back to it. */
+  private static void assertSameAsFull(CRF crf, InstanceList data, int numThreads)
+  {
+    CompiledCRF model = new CompiledCRF(crf);
+    ViterbiDecoder full = model.newViterbiDecoder();
+    ChunkedDecoder chunked = new ChunkedDecoder(model, 64, 8, numThreads);
+    for (int i = 0; i < data.size(); i++) {
+      Sequence input = (Sequence) data.get(i).getData();
+      assertEquals("path for sequence " + i, full.decode(input).toString(), chunked.decode(input).toString());
+    }
+    assertEquals(chunked.report(), 0, chunked.fallbacks());
+  }
+
+  @Test
+  public void firstOrderSameAsFull()
+  {
+    CRF crf = TestModels.firstOrder();
+    InstanceList testing = TestModels.instances(crf, joined(6, 10));
+    assertSameAsFull(crf, testing, 1);
+    assertSameAsFull(crf, testing, 3);
+  }
+
+  @Test
+  public void secondOrderSameAsFull()
+  {
+    CRF crf = TestModels.secondOrder();
+    assertSameAsFull(crf, TestModels.instances(crf, joined(6, 11)), 3);
+  }
+
+  /** Sequences no longer than a chunk are decoded whole. */
+  @Test
+  public void shortSequencesSameAsFull()
+  {
+    CRF crf = TestModels.firstOrder();
+    assertSameAsFull(crf, TestModels.instances(crf, TestModels.sentences(50, 12)), 2);
+  }
+}
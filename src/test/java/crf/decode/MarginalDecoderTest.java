@@ -0,0 +1,72 @@
+package crf.decode;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.SumLatticeDefault;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import crf.TestModels;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MarginalDecoderTest
+{
+  /**
+   * Every transition into a state carries the state's last label, so a
+   * label's posterior at token <code>t</code> is the gamma probability of
+   * the states ending in it at position <code>t + 1</code>.
+   */
+  private static void assertSameAsSumLattice(CRF crf, InstanceList data)
+  {
+    MarginalDecoder decoder = new CompiledCRF(crf).newMarginalDecoder();
+    Alphabet labels = crf.getOutputAlphabet();
+    for (int i = 0; i < data.size(); i++) {
+      Sequence input = (Sequence) data.get(i).getData();
+      decoder.decode(input, new int[input.size()]);
+      SumLatticeDefault lattice = new SumLatticeDefault(crf, input, null, null, false);
+      for (int t = 0; t < input.size(); t++) {
+        for (int label = 0; label < labels.size(); label++) {
+          double expected = 0;
+          for (int s = 0; s < crf.numStates(); s++) {
+            String name = crf.getState(s).getName();
+            if (name.substring(name.lastIndexOf(',') + 1).equals(labels.lookupObject(label)))
+              expected += lattice.getGammaProbability(t + 1, crf.getState(s));
+          }
+          assertEquals("sentence " + i + " token " + t + " label " + labels.lookupObject(label),
+              expected, decoder.posterior(t, label), 1e-9);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void firstOrderSameAsSumLattice()
+  {
+    CRF crf = TestModels.firstOrder();
+    assertSameAsSumLattice(crf, TestModels.instances(crf, TestModels.sentences(40, 7)));
+  }
+
+  @Test
+  public void secondOrderSameAsSumLattice()
+  {
+    CRF crf = TestModels.secondOrder();
+    assertSameAsSumLattice(crf, TestModels.instances(crf, TestModels.sentences(40, 8)));
+  }
+
+  /** A one-token span is as likely as its token's label. */
+  @Test
+  public void singleTokenSpanIsPosterior()
+  {
+    CRF crf = TestModels.firstOrder();
+    InstanceList testing = TestModels.instances(crf, TestModels.sentences(20, 9));
+    MarginalDecoder decoder = new CompiledCRF(crf).newMarginalDecoder();
+    for (int i = 0; i < testing.size(); i++) {
+      Sequence input = (Sequence) testing.get(i).getData();
+      int[] labels = new int[input.size()];
+      decoder.decode(input, labels);
+      for (int t = 0; t < labels.length; t++)
+        assertEquals(decoder.posterior(t, labels[t]), decoder.spanConfidence(labels, t, t + 1), 1e-9);
+    }
+  }
+}
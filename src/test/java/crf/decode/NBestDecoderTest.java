@@ -0,0 +1,46 @@
+package crf.decode;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.MaxLatticeDefault;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import crf.TestModels;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class NBestDecoderTest
+{
+  private static void assertSameAsMallet(CRF crf, InstanceList data, int k)
+  {
+    NBestDecoder decoder = new CompiledCRF(crf).newNBestDecoder(0, 0);
+    for (int i = 0; i < data.size(); i++) {
+      Sequence input = (Sequence) data.get(i).getData();
+      List<Sequence<Object>> expected = new MaxLatticeDefault(crf, input, null).bestOutputSequences(k);
+      Sequence[] actual = decoder.decodeSequences(input, k);
+      assertEquals("answers for sentence " + i, expected.size(), actual.length);
+      for (int a = 0; a < actual.length; a++)
+        assertEquals("answer " + a + " for sentence " + i, expected.get(a).toString(), actual[a].toString());
+    }
+  }
+
+  @Test
+  public void firstOrderSameAsMaxLattice()
+  {
+    CRF crf = TestModels.firstOrder();
+    InstanceList testing = TestModels.instances(crf, TestModels.sentences(40, 2));
+    for (int k : new int[] {1, 3, 20})
+      assertSameAsMallet(crf, testing, k);
+  }
+
+  /** Many answers against a small frontier bound, on a lattice with more states. */
+  @Test
+  public void secondOrderSameAsMaxLattice()
+  {
+    CRF crf = TestModels.secondOrder();
+    InstanceList testing = TestModels.instances(crf, TestModels.sentences(20, 4));
+    assertSameAsMallet(crf, testing, 50);
+  }
+}
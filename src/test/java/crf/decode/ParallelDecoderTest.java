@@ -0,0 +1,104 @@
+package crf.decode;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import cc.mallet.types.TokenSequence;
+import crf.TestModels;
+import crf.lattice.EmissionCache;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelDecoderTest
+{
+  private CRF crf;
+  private List<Sequence> inputs;
+
+  @Before
+  public void pipe()
+  {
+    crf = TestModels.firstOrder();
+    InstanceList testing = TestModels.instances(crf, TestModels.sentences(400, 15));
+    inputs = new ArrayList<Sequence>();
+    for (int i = 0; i < testing.size(); i++)
+      inputs.add((Sequence) testing.get(i).getData());
+  }
+
+  /** Waits a while for the pool's threads to exit. */
+  private static boolean decodingThreadsExit() throws InterruptedException
+  {
+    for (int tries = 0; tries < 100; tries++) {
+      boolean alive = false;
+      for (Thread thread : Thread.getAllStackTraces().keySet())
+        alive |= thread.isAlive() && thread.getName().startsWith("crf-decode-");
+      if (!alive)
+        return true;
+      Thread.sleep(50);
+    }
+    return false;
+  }
+
+  @Test
+  public void answersInInputOrder()
+  {
+    ViterbiDecoder decoder = new CompiledCRF(crf).newViterbiDecoder();
+    CloseableIterator<Sequence[]> answers = new ParallelDecoder(crf, 1, 3, 8, 0, Double.POSITIVE_INFINITY)
+        .decode(inputs.iterator());
+    for (Sequence input : inputs)
+      assertEquals(decoder.decode(input).toString(), answers.next()[0].toString());
+    assertFalse(answers.hasNext());
+  }
+
+  /** The cache belongs to the decoder; the shared model keeps none. */
+  @Test
+  public void emissionCacheLeavesModelAlone()
+  {
+    CompiledCRF compiled = new CompiledCRF(crf);
+    ViterbiDecoder decoder = compiled.newViterbiDecoder();
+    ParallelDecoder cached = new ParallelDecoder(compiled, 1, 3, 0, Double.POSITIVE_INFINITY);
+    EmissionCache cache = cached.useEmissionCache(1000);
+    CloseableIterator<Sequence[]> answers = cached.decode(inputs.iterator());
+    for (Sequence input : inputs)
+      assertEquals(decoder.decode(input).toString(), answers.next()[0].toString());
+    assertNull(compiled.getEmissionKernel().getCache());
+    assertTrue(cache.hits() > 0);
+  }
+
+  @Test
+  public void closeStopsThreads() throws InterruptedException
+  {
+    CloseableIterator<Sequence[]> answers = new ParallelDecoder(crf, 1, 3, 8, 0, Double.POSITIVE_INFINITY)
+        .decode(inputs.iterator());
+    answers.next();
+    answers.close();
+    assertFalse(answers.hasNext());
+    assertTrue(decodingThreadsExit());
+  }
+
+  @Test
+  public void failureStopsThreads() throws InterruptedException
+  {
+    List<Sequence> broken = new ArrayList<Sequence>(inputs);
+    broken.add(1, new TokenSequence(new Object[] {"not", "features"}));
+    CloseableIterator<Sequence[]> answers = new ParallelDecoder(crf, 1, 3, 8, 0, Double.POSITIVE_INFINITY)
+        .decode(broken.iterator());
+    answers.next();
+    try {
+      answers.next();
+      fail("decoded a token sequence");
+    } catch (RuntimeException e) {
+      // expected
+    }
+    assertFalse(answers.hasNext());
+    assertTrue(decodingThreadsExit());
+  }
+}
@@ -0,0 +1,38 @@
+package crf.decode;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.MaxLatticeDefault;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import crf.TestModels;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ViterbiDecoderTest
+{
+  private static void assertSameAsTransduce(CRF crf, InstanceList data)
+  {
+    ViterbiDecoder decoder = new CompiledCRF(crf).newViterbiDecoder();
+    for (int i = 0; i < data.size(); i++) {
+      Sequence input = (Sequence) data.get(i).getData();
+      assertEquals("path for sentence " + i, crf.transduce(input).toString(), decoder.decode(input).toString());
+      double expected = new MaxLatticeDefault(crf, input, null).bestWeight();
+      assertEquals("weight for sentence " + i, expected, decoder.bestWeight(), 1e-9 * Math.max(1, Math.abs(expected)));
+    }
+  }
+
+  @Test
+  public void firstOrderSameAsTransduce()
+  {
+    CRF crf = TestModels.firstOrder();
+    assertSameAsTransduce(crf, TestModels.instances(crf, TestModels.sentences(100, 5)));
+  }
+
+  @Test
+  public void secondOrderSameAsTransduce()
+  {
+    CRF crf = TestModels.secondOrder();
+    assertSameAsTransduce(crf, TestModels.instances(crf, TestModels.sentences(100, 6)));
+  }
+}
@@ -0,0 +1,67 @@
+package crf.eval;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.NoopTransducerTrainer;
+import cc.mallet.fst.TransducerTrainer;
+import cc.mallet.fst.ViterbiWriter;
+import cc.mallet.types.InstanceList;
+import crf.TestModels;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertTrue;
+
+public class ViterbiOutputWriterTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static byte[] read(InputStream in) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1 << 16];
+    try {
+      for (int n; (n = in.read(buffer)) > 0; )
+        bytes.write(buffer, 0, n);
+    } finally {
+      in.close();
+    }
+    return bytes.toByteArray();
+  }
+
+  @Test
+  public void sameBytesAsViterbiWriter() throws IOException
+  {
+    CRF crf = TestModels.secondOrder();
+    InstanceList[] lists = { TestModels.instances(crf, TestModels.sentences(60, 14)),
+        TestModels.instances(crf, TestModels.sentences(60, 16)) };
+    String[] descriptions = { "validation", "testing" };
+    String prefix = folder.getRoot().getPath() + File.separator;
+    TransducerTrainer tt = new NoopTransducerTrainer(crf);
+
+    ViterbiWriter mallet = new ViterbiWriter(prefix + "mallet-", lists, descriptions);
+    ViterbiOutputWriter writer = new ViterbiOutputWriter(prefix, lists, descriptions, new DecodeCache(2));
+    for (int i = 0; i < lists.length; i++) {
+      mallet.evaluateInstanceList(tt, lists[i], descriptions[i]);
+      writer.evaluateInstanceList(tt, lists[i], descriptions[i]);
+    }
+    writer.close();
+
+    for (String description : descriptions) {
+      String name = description + tt.getIteration() + ".viterbi";
+      byte[] expected = read(new FileInputStream(prefix + "mallet-" + name));
+      byte[] actual = read(new GZIPInputStream(new FileInputStream(prefix + name + ".gz")));
+      assertTrue(expected.length > 0);
+      assertTrue(description, Arrays.equals(expected, actual));
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package crf.filter;
+
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.iterator.ArrayIterator;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import crf.features.SimpleTaggerSentence2FeatureVectorSequence;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SentenceFilterTest
+{
+  private Pipe pipe;
+  private SentenceFilter filter;
+
+  @Before
+  public void train()
+  {
+    pipe = new SimpleTaggerSentence2FeatureVectorSequence();
+    pipe.setTargetProcessing(true);
+    InstanceList training = new InstanceList(pipe);
+    String[] sentences = new String[40];
+    for (int i = 0; i < sentences.length; i++)
+      sentences[i] = i % 3 == 0
+        ? "Carol CAP W=carol B-name\nKing CAP W=king I-name\nsang LOW W=sang O\n"
+        : "the LOW W=the O\nsong LOW W=song S=ng O\nended LOW W=ended" + (i % 5) + " O\n";
+    training.addThruPipe(new ArrayIterator(sentences));
+    filter = SentenceFilter.train(training, "O", 0.99, 5, 1);
+    pipe.getDataAlphabet().stopGrowth();
+  }
+
+  private Sequence piped(String text, boolean labeled)
+  {
+    pipe.setTargetProcessing(labeled);
+    return (Sequence) pipe.instanceFrom(new Instance(text, null, null, null)).getData();
+  }
+
+  /** Duplicate fields, unknown names and doubled spaces score as featurizing keeps them. */
+  @Test
+  public void textScoresAsItsFeatureVectors()
+  {
+    String[] texts = {
+      "Carol CAP CAP W=carol W=carol unseen B-name\nKing CAP W=king W=carol I-name\n",
+      "the  LOW W=the W=the O\nsong LOW LOW never-seen S=ng O  \nended W=ended3 O\n",
+      "nothing known here O\n",
+    };
+    for (String text : texts) {
+      assertEquals(text, filter.probability(piped(text, true)), filter.probability(text, true), 1e-12);
+      String unlabeled = text.replaceAll(" \\S+ *\n", "\n");
+      assertEquals(unlabeled, filter.probability(piped(unlabeled, false)),
+          filter.probability(unlabeled, false), 1e-12);
+    }
+  }
+
+  @Test
+  public void rowsScoreAsTheirFeatureVectors()
+  {
+    String[][] rows = { {"Carol", "CAP", "CAP", "W=carol", "unseen", "B-name"}, {"King", "W=king", "I-name"} };
+    assertEquals(filter.probability(piped("Carol CAP CAP W=carol unseen B-name\nKing W=king I-name\n", true)),
+        filter.probability(rows, true), 1e-12);
+  }
+
+  @Test
+  public void keptInputScoresAsBeforePiping()
+  {
+    String text = "Carol CAP CAP W=carol unseen B-name\nsang LOW W=sang O\n";
+    pipe.setTargetProcessing(true);
+    InstanceList data = new InstanceList(pipe);
+    Iterator<Instance> raw = Arrays.asList(new Instance(text, null, null, null)).iterator();
+    data.addThruPipe(SentenceFilter.keepInput(raw));
+    assertTrue(data.get(0).getData() instanceof Sequence);
+    assertEquals(filter.probability(text, true), filter.probability(data.get(0), true), 0);
+  }
+
+  @Test
+  public void selectionHoldsOnlySkippedSentencesNotYetTaken()
+  {
+    String name = "Carol CAP W=carol\nKing CAP W=king\nsang LOW W=sang\n";
+    String none = "the LOW W=the\nsong LOW W=song S=ng\nended LOW W=ended1\n";
+    filter.setThreshold(0.5);
+    assertTrue(filter.accepts(new Instance(name, null, null, null), false));
+    assertTrue(!filter.accepts(new Instance(none, null, null, null), false));
+    String[] texts = { none, none, name, none, name, none };
+    Instance[] raw = new Instance[texts.length];
+    for (int i = 0; i < texts.length; i++)
+      raw[i] = new Instance(texts[i], null, "s" + i, null);
+    SentenceFilter.Selection selection = new SentenceFilter.Selection(filter, Arrays.asList(raw).iterator(), false);
+    assertTrue(selection.next() == raw[2]);
+    assertTrue(selection.pollSkipped() == raw[0]);
+    assertTrue(selection.pollSkipped() == raw[1]);
+    assertTrue(selection.pollSkipped() == null);
+    assertTrue(selection.next() == raw[4]);
+    assertTrue(selection.pollSkipped() == raw[3]);
+    assertTrue(!selection.hasNext());
+    assertTrue(selection.pollSkipped() == raw[5]);
+    assertTrue(selection.pollSkipped() == null);
+    assertEquals(6, selection.size());
+    assertEquals(4, selection.numSkipped());
+  }
+}
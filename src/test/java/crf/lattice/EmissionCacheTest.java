@@ -0,0 +1,52 @@
+package crf.lattice;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureVector;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EmissionCacheTest
+{
+  private static Alphabet alphabet()
+  {
+    Alphabet alphabet = new Alphabet();
+    for (String name : new String[] {"a", "b", "c", "d"})
+      alphabet.lookupIndex(name);
+    return alphabet;
+  }
+
+  @Test
+  public void sparseVectorsMatchByIndexAndValue()
+  {
+    Alphabet alphabet = alphabet();
+    EmissionCache cache = new EmissionCache(8, 2);
+    double[] scores = {1.5, -2};
+    cache.put(new FeatureVector(alphabet, new int[] {0, 2}, new double[] {1, 0.5}), scores);
+    double[] out = new double[2];
+    assertTrue(cache.get(new FeatureVector(alphabet, new int[] {0, 2}, new double[] {1, 0.5}), out));
+    assertArrayEquals(scores, out, 0);
+    assertFalse(cache.get(new FeatureVector(alphabet, new int[] {0, 2}, new double[] {1, 0.25}), out));
+    assertFalse(cache.get(new FeatureVector(alphabet, new int[] {0, 2}), out));
+  }
+
+  /** Dense vectors have no index array; their locations are their indices. */
+  @Test
+  public void denseVectorsAreCached()
+  {
+    Alphabet alphabet = alphabet();
+    EmissionCache cache = new EmissionCache(8, 2);
+    double[] scores = {0.25, 3};
+    FeatureVector dense = new FeatureVector(alphabet, new double[] {1, 0, 0.5, 0});
+    assertEquals(null, dense.getIndices());
+    cache.put(dense, scores);
+    double[] out = new double[2];
+    assertTrue(cache.get(new FeatureVector(alphabet, new double[] {1, 0, 0.5, 0}), out));
+    assertArrayEquals(scores, out, 0);
+    assertFalse(cache.get(new FeatureVector(alphabet, new double[] {1, 0, 0.5, 1}), out));
+    assertEquals(1, cache.size());
+  }
+}
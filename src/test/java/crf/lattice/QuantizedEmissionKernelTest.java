@@ -0,0 +1,100 @@
+package crf.lattice;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import crf.TestModels;
+import crf.decode.CompiledCRF;
+import crf.decode.ViterbiDecoder;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class QuantizedEmissionKernelTest
+{
+  private InstanceList training;
+  private CRF crf;
+  private CompiledCRF exact;
+
+  @Before
+  public void train()
+  {
+    training = TestModels.instances(TestModels.sentences(150, 1));
+    crf = TestModels.train(training, new int[] {1}, 15);
+    exact = new CompiledCRF(crf);
+  }
+
+  /** INT8 rounds to half a step of the row's scale, FLOAT16 to half a unit in the 11th bit. */
+  @Test
+  public void weightsWithinRoundingError()
+  {
+    EmissionKernel dense = exact.getEmissionKernel();
+    EmissionKernel int8 = exact.quantize(QuantizedEmissionKernel.Precision.INT8).getEmissionKernel();
+    EmissionKernel half = exact.quantize(QuantizedEmissionKernel.Precision.FLOAT16).getEmissionKernel();
+    assertTrue(dense.numRows() > 0);
+    for (int row = 0; row < dense.numRows(); row++) {
+      double max = 0;
+      for (int w = 0; w < dense.numWeights(); w++)
+        max = Math.max(max, Math.abs(dense.weight(row, w)));
+      for (int w = 0; w < dense.numWeights(); w++) {
+        double weight = dense.weight(row, w);
+        assertEquals(weight, int8.weight(row, w), max / 254 * (1 + 1e-6));
+        assertEquals(weight, half.weight(row, w), Math.abs(weight) / 2048 + 1e-7);
+      }
+    }
+  }
+
+  @Test
+  public void decodingAgreesWithDoubleWeights()
+  {
+    InstanceList testing = TestModels.instances(training, TestModels.sentences(200, 13));
+    for (QuantizedEmissionKernel.Precision precision : QuantizedEmissionKernel.Precision.values()) {
+      ViterbiDecoder full = exact.newViterbiDecoder();
+      ViterbiDecoder quantized = exact.quantize(precision).newViterbiDecoder();
+      int tokens = 0, agreed = 0;
+      for (int i = 0; i < testing.size(); i++) {
+        Sequence input = (Sequence) testing.get(i).getData();
+        Sequence expected = full.decode(input), actual = quantized.decode(input);
+        for (int t = 0; t < expected.size(); t++, tokens++)
+          if (expected.get(t).equals(actual.get(t)))
+            agreed++;
+      }
+      assertTrue(precision + " agreed on " + agreed + " of " + tokens + " tokens", agreed >= 0.99 * tokens);
+    }
+  }
+
+  @Test
+  public void rejectsInfiniteFeatureWeights()
+  {
+    crf.getParameters().weights[0].setValueAtLocation(0, Double.POSITIVE_INFINITY);
+    CompiledCRF infinite = new CompiledCRF(crf);
+    for (QuantizedEmissionKernel.Precision precision : QuantizedEmissionKernel.Precision.values()) {
+      try {
+        infinite.quantize(precision);
+        fail(precision + " quantized an infinite weight");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  /** 1e5 fits INT8's row scale but would become an infinite half float. */
+  @Test
+  public void rejectsWeightsBeyondTheHalfFloatRange()
+  {
+    crf.getParameters().weights[0].setValueAtLocation(0, -1e5);
+    CompiledCRF large = new CompiledCRF(crf);
+    large.quantize(QuantizedEmissionKernel.Precision.INT8);
+    try {
+      large.quantize(QuantizedEmissionKernel.Precision.FLOAT16);
+      fail("FLOAT16 quantized -1e5");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    crf.getParameters().weights[0].setValueAtLocation(0, -65504);
+    new CompiledCRF(crf).quantize(QuantizedEmissionKernel.Precision.FLOAT16);
+  }
+}
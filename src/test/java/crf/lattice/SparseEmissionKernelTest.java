@@ -0,0 +1,129 @@
+package crf.lattice;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.FeatureVectorSequence;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.SparseVector;
+import crf.TestModels;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SparseEmissionKernelTest
+{
+  private InstanceList training;
+  private CRF crf;
+
+  @Before
+  public void train()
+  {
+    training = TestModels.instances(TestModels.sentences(100, 3));
+    crf = TestModels.train(training, new int[] {1}, 10);
+  }
+
+  private static SparseEmissionKernel sparse(CRF.Factors parameters, int numFeatures, boolean keepZeroRows)
+  {
+    return new SparseEmissionKernel(parameters, EmissionKernel.rowMap(parameters, numFeatures, keepZeroRows));
+  }
+
+  private void assertSameScores(EmissionKernel expected, EmissionKernel actual)
+  {
+    int n = expected.numWeights();
+    double[] a = new double[n], b = new double[n];
+    for (int i = 0; i < training.size(); i++) {
+      FeatureVectorSequence input = (FeatureVectorSequence) training.get(i).getData();
+      for (int t = 0; t < input.size(); t++) {
+        FeatureVector fv = input.get(t);
+        expected.score(fv, a);
+        actual.score(fv, b);
+        int[] rowsA = new int[fv.numLocations()], rowsB = new int[fv.numLocations()];
+        double[] valuesA = new double[fv.numLocations()], valuesB = new double[fv.numLocations()];
+        int na = expected.gatherRows(fv, rowsA, valuesA), nb = actual.gatherRows(fv, rowsB, valuesB);
+        assertEquals(na, nb);
+        for (int w = 0; w < n; w++) {
+          assertEquals(Double.doubleToLongBits(a[w]), Double.doubleToLongBits(b[w]));
+          assertEquals(Double.doubleToLongBits(expected.weightScore(w, rowsA, valuesA, na)),
+              Double.doubleToLongBits(actual.weightScore(w, rowsB, valuesB, nb)));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void agreesWithDenseRowsBitForBit()
+  {
+    CRF.Factors parameters = crf.getParameters();
+    EmissionKernel dense = new EmissionKernel(parameters, crf.getInputAlphabet().size(), false);
+    SparseEmissionKernel sparse = sparse(parameters, crf.getInputAlphabet().size(), false);
+    assertEquals(dense.numRows(), sparse.numRows());
+    for (int row = 0; row < dense.numRows(); row++)
+      for (int w = 0; w < dense.numWeights(); w++)
+        assertEquals(dense.weight(row, w), sparse.weight(row, w), 0);
+    assertSameScores(dense, sparse);
+  }
+
+  @Test
+  public void refreshesLikeDenseRows()
+  {
+    CRF.Factors parameters = crf.getParameters();
+    EmissionKernel dense = new EmissionKernel(parameters, crf.getInputAlphabet().size(), true);
+    SparseEmissionKernel sparse = sparse(parameters, crf.getInputAlphabet().size(), true);
+    for (SparseVector weights : parameters.weights)
+      for (int loc = 0; loc < weights.numLocations(); loc++)
+        weights.setValueAtLocation(loc, weights.valueAtLocation(loc) * 0.5 - 0.25);
+    parameters.defaultWeights[0] += 1;
+    dense.refresh(parameters);
+    sparse.refresh(parameters);
+    assertSameScores(dense, sparse);
+  }
+
+  @Test
+  public void createKeepsSmallDenseModelsDense()
+  {
+    EmissionKernel kernel = EmissionKernel.create(crf.getParameters(), crf.getInputAlphabet().size(), false);
+    assertTrue(!(kernel instanceof SparseEmissionKernel));
+  }
+
+  /** 600,000 features in 3,700 weight sets: 2.2 billion dense entries, but 600,000 stored. */
+  @Test
+  public void createStoresRowsTooLargeForAnArraySparsely()
+  {
+    int numWeights = 3700, perWeights = 163;
+    CRF.Factors parameters = new CRF.Factors();
+    parameters.weights = new SparseVector[numWeights];
+    parameters.defaultWeights = new double[numWeights];
+    for (int w = 0; w < numWeights; w++) {
+      int[] indices = new int[perWeights];
+      double[] values = new double[perWeights];
+      for (int i = 0; i < perWeights; i++) {
+        indices[i] = w * perWeights + i;
+        values[i] = w + 1;
+      }
+      parameters.weights[w] = new SparseVector(indices, values, false, false, false);
+    }
+    int numFeatures = numWeights * perWeights;
+    try {
+      new EmissionKernel(parameters, numFeatures, false);
+      fail("dense rows of 2.2 billion entries");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    EmissionKernel kernel = EmissionKernel.create(parameters, numFeatures, false);
+    assertTrue(kernel instanceof SparseEmissionKernel);
+    assertEquals(numFeatures, kernel.numRows());
+    assertEquals(numFeatures, ((SparseEmissionKernel) kernel).numEntries());
+
+    FeatureVector fv = new FeatureVector(crf.getInputAlphabet(),
+        new int[] {5, 200 * perWeights + 7, numFeatures - 1}, new double[] {1, 2, 1});
+    double[] out = new double[numWeights];
+    kernel.score(fv, out);
+    assertEquals(1, out[0], 0);
+    assertEquals(2 * 201, out[200], 0);
+    assertEquals(numWeights, out[numWeights - 1], 0);
+    assertEquals(0, out[1], 0);
+  }
+}
@@ -0,0 +1,96 @@
+package crf.output;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.ArraySequence;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import crf.TestModels;
+import crf.decode.CompiledCRF;
+import crf.decode.MarginalDecoder;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BinaryTagWriterTest
+{
+  private static Sequence labels(String... labels)
+  {
+    return new ArraySequence<String>(labels);
+  }
+
+  private static Sequence input(int n)
+  {
+    return new ArraySequence<Object>(new Object[n]);
+  }
+
+  @Test
+  public void readsBackLabelsAndNBestAnswers() throws Exception
+  {
+    Alphabet alphabet = new Alphabet();
+    for (String label : new String[] {"O", "B-name", "I-name", "B-caf\u00e9"})
+      alphabet.lookupIndex(label);
+    // More than 127 labels make some ids two-byte varints.
+    for (int i = 0; i < 200; i++)
+      alphabet.lookupIndex("L" + i);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BinaryTagWriter writer = new BinaryTagWriter(new OutputBuffer(bytes), alphabet);
+    writer.write(0, input(3), new Sequence[] { labels("B-name", "I-name", "O") });
+    writer.write(1, input(2), null);
+    writer.write(2, input(2), new Sequence[] { labels("B-caf\u00e9", "L199"), labels("O", "L5") });
+    writer.write(3, input(2), new Sequence[] { labels("O") });
+    writer.write(4, input(0), new Sequence[] { labels() });
+    writer.close();
+
+    BinaryTagWriter.Reader reader = new BinaryTagWriter.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+    assertEquals(204, reader.getLabels().length);
+    assertEquals("B-caf\u00e9", reader.getLabels()[3]);
+    assertArrayEquals(new String[][] { {"B-name", "I-name", "O"} }, reader.next());
+    assertNull(reader.posteriors());
+    assertEquals("failed", 0, reader.next().length);
+    assertArrayEquals(new String[][] { {"B-caf\u00e9", "L199"}, {"O", "L5"} }, reader.next());
+    assertEquals("answer shorter than the input", 0, reader.next().length);
+    assertArrayEquals(new String[][] { {} }, reader.next());
+    assertNull(reader.next());
+    reader.close();
+  }
+
+  @Test
+  public void readsBackMarginals() throws Exception
+  {
+    InstanceList data = TestModels.instances(TestModels.sentences(60, 21));
+    CRF crf = TestModels.train(data, new int[] {1}, 5);
+    MarginalDecoder decoder = new CompiledCRF(crf).newMarginalDecoder();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BinaryTagWriter writer = new BinaryTagWriter(new OutputBuffer(bytes), crf.getOutputAlphabet());
+    MarginalDecoder.Result[] results = new MarginalDecoder.Result[5];
+    for (int i = 0; i < results.length; i++) {
+      Sequence input = (Sequence) data.get(i).getData();
+      results[i] = decoder.decodeMarginals(input, "O");
+      writer.writeMarginals(i, input, results[i]);
+    }
+    writer.writeMarginals(results.length, input(3), null);
+    writer.close();
+
+    BinaryTagWriter.Reader reader = new BinaryTagWriter.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+    for (MarginalDecoder.Result result : results) {
+      String[][] answers = reader.next();
+      assertEquals(1, answers.length);
+      assertEquals(result.output.size(), answers[0].length);
+      for (int j = 0; j < answers[0].length; j++) {
+        assertEquals(result.output.get(j).toString(), answers[0][j]);
+        assertEquals((float) result.posteriors[j], reader.posteriors()[j], 0);
+        assertEquals((float) result.spanConfidences[j], reader.confidences()[j], 0);
+      }
+    }
+    assertEquals(0, reader.next().length);
+    assertNull(reader.posteriors());
+    assertNull(reader.next());
+    reader.close();
+  }
+}
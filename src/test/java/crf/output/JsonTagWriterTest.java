@@ -0,0 +1,52 @@
+package crf.output;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.ArraySequence;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Sequence;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class JsonTagWriterTest
+{
+  @Test
+  public void quotesSpecialCharacters()
+  {
+    assertEquals("\"a\\\"b\\\\c\"", JsonTagWriter.quote("a\"b\\c"));
+    assertEquals("\"\\u0009\\u000a\\u0000\\u001f\"", JsonTagWriter.quote("\t\n\u0000\u001f"));
+    assertEquals("\"caf\u00e9 \u2013 /\"", JsonTagWriter.quote("caf\u00e9 \u2013 /"));
+  }
+
+  @Test
+  public void writesEscapedLabelsAndFeaturesAndNullForFailures() throws Exception
+  {
+    Alphabet labels = new Alphabet();
+    labels.lookupIndex("O");
+    labels.lookupIndex("B-\"quoted\"");
+    labels.lookupIndex("I-back\\slash\ttab");
+    Alphabet features = new Alphabet();
+    features.lookupIndex("W=\"x\"");
+    features.lookupIndex("W=\n");
+    Sequence input = new ArraySequence<FeatureVector>(new FeatureVector[] {
+        new FeatureVector(features, new int[] {0}), new FeatureVector(features, new int[] {0, 1}) });
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    JsonTagWriter writer = new JsonTagWriter(new OutputBuffer(bytes), labels, true);
+    writer.write(0, input, new Sequence[] {
+        new ArraySequence<String>(new String[] {"B-\"quoted\"", "I-back\\slash\ttab"}),
+        new ArraySequence<String>(new String[] {"O", "O"}) });
+    writer.write(1, input, null);
+    writer.write(2, input, new Sequence[] { new ArraySequence<String>(new String[] {"O"}) });
+    writer.writeMarginals(3, input, null);
+    writer.close();
+    String features01 = ",\"features\":[[\"W=\\\"x\\\"\"],[\"W=\\\"x\\\"\",\"W=\\u000a\"]]}\n";
+    assertEquals("{\"sentence\":0,\"labels\":[\"B-\\\"quoted\\\"\",\"I-back\\\\slash\\u0009tab\"],"
+        + "\"alternatives\":[[\"O\",\"O\"]]" + features01
+        + "{\"sentence\":1,\"labels\":null" + features01
+        + "{\"sentence\":2,\"labels\":null" + features01
+        + "{\"sentence\":3,\"labels\":null" + features01,
+        bytes.toString("UTF-8"));
+  }
+}
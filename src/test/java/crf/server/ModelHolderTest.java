@@ -0,0 +1,145 @@
+package crf.server;
+
+import cc.mallet.fst.CRF;
+import crf.TaggerEngine;
+import crf.TestModels;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ModelHolderTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private CRF crf;
+  private File file;
+
+  @Before
+  public void writeModel() throws Exception
+  {
+    crf = TestModels.train(TestModels.instances(TestModels.sentences(60, 5)), new int[] {1}, 5);
+    file = folder.newFile("model.crf");
+    write(file, 1000);
+  }
+
+  /** Writes the model, with its modification time set to <code>seconds</code>. */
+  private void write(File file, long seconds) throws Exception
+  {
+    ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+    try {
+      out.writeObject(crf);
+    } finally {
+      out.close();
+    }
+    assertTrue(file.setLastModified(seconds * 1000));
+  }
+
+  @Test
+  public void leaseFinishesOnTheGenerationItPinned() throws Exception
+  {
+    ModelHolder holder = new ModelHolder(file);
+    try {
+      ModelHolder.Lease old = holder.acquire();
+      TaggerEngine oldEngine = old.engine();
+      assertTrue(holder.reload().get());
+      assertEquals(1, holder.generation());
+      assertEquals(0, old.generation());
+      assertTrue(old.engine() == oldEngine);
+      assertNotNull(oldEngine.tag("carol W=carol S=ol\n"));
+
+      ModelHolder.Lease fresh = holder.acquire();
+      assertEquals(1, fresh.generation());
+      assertTrue(fresh.engine() != oldEngine);
+      fresh.release();
+
+      old.release();
+      assertNull("released after its last lease", old.engine());
+      old.release();
+    } finally {
+      holder.close();
+    }
+  }
+
+  @Test
+  public void failedReloadKeepsTheCurrentGeneration() throws Exception
+  {
+    ModelHolder holder = new ModelHolder(file);
+    try {
+      TaggerEngine engine = holder.acquire().engine();
+      OutputStream out = new FileOutputStream(file);
+      out.write("not a model".getBytes("UTF-8"));
+      out.close();
+      assertFalse(holder.reload().get());
+      assertEquals(0, holder.generation());
+      ModelHolder.Lease lease = holder.acquire();
+      assertTrue(lease.engine() == engine);
+      lease.release();
+      assertTrue(holder.statsJson(), holder.statsJson().contains("\"reloads\":0,\"failedReloads\":1"));
+    } finally {
+      holder.close();
+    }
+  }
+
+  @Test
+  public void invalidReloadKeepsTheCurrentGeneration() throws Exception
+  {
+    final boolean[] invalid = new boolean[1];
+    ModelHolder holder = new ModelHolder(file) {
+      @Override
+      protected void prepare(TaggerEngine engine)
+      {
+        if (invalid[0])
+          throw new IllegalStateException("invalid");
+      }
+    };
+    try {
+      invalid[0] = true;
+      assertFalse(holder.reload().get());
+      assertEquals(0, holder.generation());
+      assertTrue(holder.statsJson(), holder.statsJson().contains("\"failedReloads\":1"));
+      invalid[0] = false;
+      assertTrue(holder.reload().get());
+      assertEquals(1, holder.generation());
+      assertTrue(holder.statsJson(), holder.statsJson().contains("\"reloads\":1,\"failedReloads\":1"));
+    } finally {
+      holder.close();
+    }
+  }
+
+  /** A file is loaded only once it stayed unchanged for a whole interval. */
+  @Test
+  public void pollWaitsForTheFileToSettle() throws Exception
+  {
+    ModelHolder holder = new ModelHolder(file);
+    try {
+      holder.poll();
+      assertEquals("unchanged", 0, holder.generation());
+
+      write(file, 2000);
+      holder.poll();
+      assertEquals("changed within the last interval", 0, holder.generation());
+      write(file, 3000);
+      holder.poll();
+      assertEquals("changed again", 0, holder.generation());
+      holder.poll();
+      assertEquals(1, holder.generation());
+      holder.poll();
+      assertEquals(1, holder.generation());
+    } finally {
+      holder.close();
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package crf.server;
+
+import cc.mallet.fst.CRF;
+import crf.TaggerEngine;
+import crf.TestModels;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ModelRegistryTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File directory;
+
+  @Before
+  public void writeModels() throws Exception
+  {
+    CRF crf = TestModels.train(TestModels.instances(TestModels.sentences(60, 7)), new int[] {1}, 3);
+    directory = folder.newFolder("models");
+    for (String name : new String[] {"a", "b.crf", "c.bin"}) {
+      ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(new File(directory, name)));
+      try {
+        out.writeObject(crf);
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  /** Bytes one of the models is estimated to take. */
+  private long modelBytes() throws Exception
+  {
+    ModelRegistry registry = new ModelRegistry(directory, Long.MAX_VALUE);
+    registry.get("a");
+    return registry.usedBytes();
+  }
+
+  @Test
+  public void evictsTheLeastRecentlyUsedOverBudget() throws Exception
+  {
+    long bytes = modelBytes();
+    assertTrue(bytes > 0);
+    ModelRegistry registry = new ModelRegistry(directory, 2 * bytes + bytes / 2);
+    TaggerEngine a = registry.get("a");
+    registry.get("b");
+    assertTrue(registry.get("a") == a);
+    assertEquals(Arrays.asList("b", "a"), registry.loadedNames());
+    registry.get("c");
+    assertEquals(Arrays.asList("a", "c"), registry.loadedNames());
+    assertEquals(2 * bytes, registry.usedBytes());
+    assertTrue(registry.usedBytes() <= registry.budgetBytes());
+    String stats = registry.statsJson();
+    assertTrue(stats, stats.contains("\"hits\":1,\"loads\":3,\"sharedLoads\":0,\"failedLoads\":0,\"evictions\":1"));
+
+    // A model over the whole budget is still loaded, alone.
+    ModelRegistry small = new ModelRegistry(directory, 1);
+    small.get("a");
+    small.get("b");
+    assertEquals(Arrays.asList("b"), small.loadedNames());
+  }
+
+  @Test
+  public void concurrentRequestsShareOneLoad() throws Exception
+  {
+    final CountDownLatch loading = new CountDownLatch(1), waiting = new CountDownLatch(1);
+    final ModelRegistry registry = new ModelRegistry(directory, Long.MAX_VALUE) {
+      @Override
+      protected void prepare(TaggerEngine engine)
+      {
+        loading.countDown();
+        try {
+          waiting.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    Callable<TaggerEngine> get = new Callable<TaggerEngine>() {
+      public TaggerEngine call() throws Exception {
+        return registry.get("a");
+      }
+    };
+    ExecutorService threads = Executors.newFixedThreadPool(2);
+    try {
+      Future<TaggerEngine> first = threads.submit(get);
+      assertTrue(loading.await(10, TimeUnit.SECONDS));
+      Future<TaggerEngine> second = threads.submit(get);
+      // Let the second request reach the load in progress before it ends.
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (!registry.statsJson().contains("\"sharedLoads\":1") && System.nanoTime() < deadline)
+        Thread.sleep(5);
+      waiting.countDown();
+      assertTrue(first.get() == second.get());
+    } finally {
+      threads.shutdownNow();
+    }
+    String stats = registry.statsJson();
+    assertTrue(stats, stats.contains("\"loads\":1,\"sharedLoads\":1"));
+  }
+
+  @Test(expected = FileNotFoundException.class)
+  public void missingModelIsNotFound() throws Exception
+  {
+    new ModelRegistry(directory, Long.MAX_VALUE).get("missing");
+  }
+
+  @Test
+  public void rejectsNamesOutsideTheDirectory() throws Exception
+  {
+    ModelRegistry registry = new ModelRegistry(directory, Long.MAX_VALUE);
+    for (String name : new String[] {"../a", "models/a", "..\\a", ".hidden", "", "."}) {
+      try {
+        registry.get(name);
+        fail("accepted " + name);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void closeDropsTheModels() throws Exception
+  {
+    ModelRegistry registry = new ModelRegistry(directory, Long.MAX_VALUE);
+    registry.get("a");
+    registry.get("b");
+    registry.close();
+    assertEquals(0, registry.loadedNames().size());
+    assertEquals(0, registry.usedBytes());
+    try {
+      registry.get("a");
+      fail("served a model after close");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+}
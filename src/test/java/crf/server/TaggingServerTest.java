@@ -0,0 +1,160 @@
+package crf.server;
+
+import cc.mallet.fst.CRF;
+import crf.TaggerEngine;
+import crf.TestModels;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TaggingServerTest
+{
+  @Test
+  public void jsonGivesOneSentencePerEntry()
+  {
+    List<String[][]> sentences = TaggingServer.parseJson(
+        "{\"sentences\": [\"Carol CAP\\nKing CAP\\n\", [\"sang LOW\"], \"\"]}");
+    assertEquals(3, sentences.size());
+    assertEquals(2, sentences.get(0).length);
+    assertEquals("CAP", sentences.get(0)[1][1]);
+    assertEquals(1, sentences.get(1).length);
+    assertEquals(0, sentences.get(2).length);
+  }
+
+  /** Splitting would leave more answers than entries. */
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsSeveralSentencesInOneString()
+  {
+    TaggingServer.parseJson("[\"Carol CAP\\n\\nsang LOW\\n\"]");
+  }
+
+  /** The sentences without their labels, in the Tagger's input format. */
+  private static String[] unlabeled(String[] sentences)
+  {
+    String[] texts = new String[sentences.length];
+    for (int i = 0; i < sentences.length; i++)
+      texts[i] = sentences[i].replaceAll(" \\S+\n", "\n");
+    return texts;
+  }
+
+  private static String request(URL url, String method, String type, String body) throws Exception
+  {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod(method);
+    if (body != null) {
+      connection.setDoOutput(true);
+      connection.setRequestProperty("Content-Type", type);
+      OutputStream out = connection.getOutputStream();
+      out.write(body.getBytes("UTF-8"));
+      out.close();
+    }
+    assertEquals(200, connection.getResponseCode());
+    InputStream in = connection.getInputStream();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int n; (n = in.read(buffer)) > 0; )
+      bytes.write(buffer, 0, n);
+    in.close();
+    return bytes.toString("UTF-8");
+  }
+
+  @Test
+  public void tagsTextAndJsonLikeTheEngine() throws Exception
+  {
+    CRF crf = TestModels.train(TestModels.instances(TestModels.sentences(80, 11)), new int[] {1}, 5);
+    TaggerEngine engine = new TaggerEngine(crf);
+    String[] sentences = unlabeled(TestModels.sentences(6, 12));
+    StringBuilder expectedText = new StringBuilder(), text = new StringBuilder();
+    List<String> expectedJson = new ArrayList<String>();
+    StringBuilder json = new StringBuilder("{\"sentences\": [");
+    for (int i = 0; i < sentences.length; i++) {
+      String[] labels = engine.tag(sentences[i]);
+      for (String label : labels)
+        expectedText.append(label).append('\n');
+      expectedText.append('\n');
+      expectedJson.add("[\"" + join(labels, "\",\"") + "\"]");
+      text.append(sentences[i]).append('\n');
+      json.append(i > 0 ? ", " : "").append('"').append(sentences[i].replace("\n", "\\n")).append('"');
+    }
+    json.append("]}");
+
+    TaggingServer server = new TaggingServer(engine, new InetSocketAddress("127.0.0.1", 0), 2, 4, 1);
+    server.start();
+    try {
+      String base = "http://127.0.0.1:" + server.getAddress().getPort();
+      assertEquals(expectedText.toString(),
+          request(new URL(base + "/tag"), "POST", "text/plain", text.toString()));
+      assertEquals("{\"labels\":[" + join(expectedJson.toArray(new String[0]), ",") + "]}\n",
+          request(new URL(base + "/tag"), "POST", "application/json", json.toString()));
+
+      // Requests are counted after their answer is sent.
+      String stats = request(new URL(base + "/stats"), "GET", null, null);
+      for (int i = 0; i < 100 && !stats.contains("\"requests\":2,"); i++) {
+        Thread.sleep(20);
+        stats = request(new URL(base + "/stats"), "GET", null, null);
+      }
+      assertTrue(stats, stats.contains("\"requests\":2,\"errors\":0,\"sentences\":" + 2 * sentences.length + ","));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  private static String join(String[] parts, String separator)
+  {
+    StringBuilder s = new StringBuilder();
+    for (int i = 0; i < parts.length; i++)
+      s.append(i > 0 ? separator : "").append(parts[i]);
+    return s.toString();
+  }
+
+  /** A request waiting for its batch to fill fails at shutdown instead of waiting forever. */
+  @Test
+  public void shutdownFailsQueuedRequests() throws Exception
+  {
+    CRF crf = TestModels.train(TestModels.instances(TestModels.sentences(40, 13)), new int[] {1}, 2);
+    final MicroBatcher batcher = new MicroBatcher(new ModelHolder(new TaggerEngine(crf)), 1, 100, 60000);
+    final List<String[][]> sentences = TaggingServer.parseText(unlabeled(TestModels.sentences(1, 14))[0]);
+    ExecutorService caller = Executors.newSingleThreadExecutor();
+    try {
+      Future<String[][]> queued = caller.submit(new Callable<String[][]>() {
+        public String[][] call() throws Exception {
+          return batcher.tag(sentences);
+        }
+      });
+      // Let the dispatcher take the sentence and start waiting for a full batch.
+      Thread.sleep(200);
+      batcher.shutdown();
+      try {
+        queued.get(5, TimeUnit.SECONDS);
+        fail("tagged after shutdown");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause().toString(), e.getCause() instanceof IllegalStateException);
+      }
+      try {
+        batcher.tag(sentences);
+        fail("accepted a request after shutdown");
+      } catch (IllegalStateException e) {
+        // expected
+      }
+    } finally {
+      caller.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package crf.train;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.CRFOptimizableByLabelLikelihood;
+import cc.mallet.optimize.Optimizable;
+import cc.mallet.types.InstanceList;
+import crf.TestModels;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InstanceDeduplicatorTest
+{
+  private InstanceList data;
+  private InstanceList collapsed;
+  private CRF crf;
+
+  /** Each of 30 distinct sentences appears one to four times, interleaved. */
+  @Before
+  public void train()
+  {
+    String[] distinct = TestModels.sentences(30, 7);
+    String[] sentences = new String[75];
+    for (int i = 0; i < sentences.length; i++)
+      sentences[i] = distinct[(i * 7) % distinct.length];
+    data = TestModels.instances(sentences);
+    crf = TestModels.train(data, new int[] {1}, 5);
+    collapsed = InstanceDeduplicator.collapse(data);
+  }
+
+  @Test
+  public void keepsOneWeightedInstancePerDistinctSentence()
+  {
+    assertEquals(30, collapsed.size());
+    double total = 0;
+    for (int i = 0; i < collapsed.size(); i++)
+      total += collapsed.getInstanceWeight(i);
+    assertEquals(data.size(), total, 0);
+  }
+
+  @Test
+  public void malletLikelihoodIsUnchanged()
+  {
+    assertSameObjective(new CRFOptimizableByLabelLikelihood(crf, data),
+        new CRFOptimizableByLabelLikelihood(crf, collapsed));
+  }
+
+  @Test
+  public void bucketedLikelihoodIsUnchanged()
+  {
+    CRFOptimizableByBucketedLabelLikelihood all = new CRFOptimizableByBucketedLabelLikelihood(crf, data, 2);
+    CRFOptimizableByBucketedLabelLikelihood distinct =
+      new CRFOptimizableByBucketedLabelLikelihood(crf, collapsed, 2);
+    try {
+      assertSameObjective(all, distinct);
+    } finally {
+      all.shutdown();
+      distinct.shutdown();
+    }
+  }
+
+  private void assertSameObjective(Optimizable.ByGradientValue all, Optimizable.ByGradientValue distinct)
+  {
+    double value = all.getValue();
+    assertEquals(value, distinct.getValue(), 1e-9 * Math.abs(value));
+    double[] expected = new double[all.getNumParameters()];
+    double[] actual = new double[distinct.getNumParameters()];
+    all.getValueGradient(expected);
+    distinct.getValueGradient(actual);
+    assertTrue(expected.length > 0);
+    for (int i = 0; i < expected.length; i++)
+      assertEquals("parameter " + i, expected[i], actual[i], 1e-9 * Math.max(1, Math.abs(expected[i])));
+  }
+}
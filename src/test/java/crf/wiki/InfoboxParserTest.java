@@ -0,0 +1,93 @@
+package crf.wiki;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InfoboxParserTest
+{
+  /** The records of <code>text</code> as <code>template|attribute=value</code>. */
+  private static List<String> parse(String text)
+  {
+    List<String> records = new ArrayList<String>();
+    for (InfoboxRecord record : new InfoboxParser().parse("Page", text)) {
+      assertEquals("Page", record.getPage());
+      records.add(record.getTemplate() + "|" + record.getAttribute() + "=" + record.getValue());
+    }
+    return records;
+  }
+
+  @Test
+  public void keepsNestedTemplatesAndLinksWithBarsWhole()
+  {
+    assertEquals(Arrays.asList(
+        "infobox person|name=Ada Lovelace",
+        "infobox person|birth_date={{birth date|1815|12|10}}",
+        "infobox person|birth_place=[[London|London, England]]",
+        "infobox person|spouse={{marriage|[[William King-Noel|William]]|1835}}"),
+        parse("Intro {{Infobox person\n| name = Ada Lovelace\n| birth_date = {{birth date|1815|12|10}}\n"
+            + "| birth_place = [[London|London, England]]\n"
+            + "| spouse = {{marriage|[[William King-Noel|William]]|1835}}\n| image = \n}} text"));
+  }
+
+  @Test
+  public void leavesReferencesCommentsAndNowikiOutOfValues()
+  {
+    assertEquals(Arrays.asList(
+        "infobox city|population=140,000",
+        "infobox city|area=51.6 km2",
+        "infobox city|motto=a b",
+        "infobox city|mayor=Alec"),
+        parse("{{Infobox city <!-- name | ignored -->\n"
+            + "|population=140,000<ref name=\"c\">{{cite web|url=x|title=y}}</ref>\n"
+            + "|area=51.6<!-- | old: 50 --> km2<ref name=\"c\"/>\n"
+            + "|motto=a <nowiki>|</nowiki>b\n"
+            + "|mayor=<REF>x|y</REF>Alec}}"));
+  }
+
+  @Test
+  public void normalizesTemplateNames()
+  {
+    assertEquals(Arrays.asList("infobox football club|a=1", "infobox football club|b=2"),
+        parse("{{Template:Infobox_Football__club|a=1}}{{ infobox  football_club\n|b=2}}"));
+  }
+
+  @Test
+  public void numbersPositionalParameters()
+  {
+    assertEquals(Arrays.asList("infobox x|1=first", "infobox x|key=value", "infobox x|2=second"),
+        parse("{{Infobox x|first|key=value|second| }}"));
+  }
+
+  @Test
+  public void reportsInfoboxesNestedInValues()
+  {
+    assertEquals(Arrays.asList(
+        "infobox officeholder|name=Ann",
+        "infobox officeholder|module={{Infobox military person|branch=Navy}}",
+        "infobox military person|branch=Navy"),
+        parse("{{Infobox officeholder|name=Ann|module={{Infobox military person|branch=Navy}}}}"));
+  }
+
+  @Test
+  public void unterminatedInfoboxKeepsItsFinishedParameters()
+  {
+    assertEquals(Arrays.asList("infobox x|a=1", "infobox x|b=2"),
+        parse("{{Infobox x|a=1|b=2|c=never closed"));
+    assertEquals(Arrays.<String>asList(), parse("{{Infobox x"));
+  }
+
+  @Test
+  public void ignoresOtherTemplates()
+  {
+    assertEquals(Arrays.<String>asList(), parse("{{Navbox|c=3}}{{cite|a=1}}{{Taxobox|b=2}}"));
+    assertTrue(InfoboxParser.mayHaveInfobox("x {{ infobox y}}"));
+    assertFalse(InfoboxParser.mayHaveInfobox("x {{Navbox|infobox=y}}"));
+  }
+}
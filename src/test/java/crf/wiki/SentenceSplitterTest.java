@@ -0,0 +1,46 @@
+package crf.wiki;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class SentenceSplitterTest
+{
+  private final SentenceSplitter splitter = new SentenceSplitter();
+
+  @Test
+  public void splitsAtSentenceEnds()
+  {
+    assertEquals(Arrays.asList("Bern is a city.", "Is it big?", "Not really!", "\"It is old.\"",
+        "(So is Basel.)", "1848 was a year."),
+        splitter.split("Bern is a city. Is it big? Not really! \"It is old.\" (So is Basel.) 1848 was a year."));
+  }
+
+  @Test
+  public void splitsAtLineBreaks()
+  {
+    assertEquals(Arrays.asList("First line", "second line."), splitter.split("First line\n\nsecond line.\n"));
+  }
+
+  @Test
+  public void keepsAbbreviationsAndInitials()
+  {
+    assertEquals(Arrays.asList("Dr. Smith met J. R. Tolkien in Jan. 1950, i.e. late.", "Then he left."),
+        splitter.split("Dr. Smith met J. R. Tolkien in Jan. 1950, i.e. late. Then he left."));
+  }
+
+  @Test
+  public void needsACapitalAfterThePeriod()
+  {
+    assertEquals(Arrays.asList("It costs 3.5 francs. or so, they say."),
+        splitter.split("It costs 3.5 francs. or so, they say."));
+  }
+
+  @Test
+  public void dropsShortSentences()
+  {
+    assertEquals(Arrays.asList("A long one."), new SentenceSplitter(5).split("A long one.\nOk.\n"));
+  }
+}
@@ -0,0 +1,88 @@
+package crf.wiki;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class ValueMatcherTest
+{
+  private static String[] tokens(String text) { return text.split(" "); }
+
+  private static String labels(ValueMatcher matcher, String sentence, int expectedMatches)
+  {
+    String[] tokens = tokens(sentence);
+    String[] labels = new String[tokens.length];
+    assertEquals(expectedMatches, matcher.label(tokens, labels));
+    return Arrays.toString(labels);
+  }
+
+  @Test
+  public void labelsEveryOccurrenceIgnoringCase()
+  {
+    ValueMatcher matcher = new ValueMatcher();
+    matcher.add(tokens("New York City"), "birth_place");
+    matcher.add(tokens("Yale"), "alma_mater");
+    matcher.build();
+    assertEquals("[O, O, B-birth_place, I-birth_place, I-birth_place, O, B-alma_mater, O]",
+        labels(matcher, "Born in new york City , yale grad", 2));
+    assertEquals("[B-alma_mater, O, B-alma_mater]", labels(matcher, "Yale and YALE", 2));
+  }
+
+  @Test
+  public void leftmostThenLongestMatchWins()
+  {
+    ValueMatcher matcher = new ValueMatcher();
+    matcher.add(tokens("New York"), "state");
+    matcher.add(tokens("New York City"), "city");
+    matcher.add(tokens("York City Hall"), "building");
+    matcher.add(tokens("City Hall"), "office");
+    matcher.build();
+    assertEquals("[B-city, I-city, I-city, O]", labels(matcher, "New York City Hall", 1));
+    assertEquals("[O, B-building, I-building, I-building]", labels(matcher, "old York City Hall", 1));
+    assertEquals("[B-state, I-state, O, B-office, I-office]", labels(matcher, "New York , City Hall", 2));
+  }
+
+  /** Failure links find a match that starts inside a failed longer one. */
+  @Test
+  public void findsMatchesOverlappingAFailedPrefix()
+  {
+    ValueMatcher matcher = new ValueMatcher();
+    matcher.add(tokens("a b c d"), "long");
+    matcher.add(tokens("b c"), "short");
+    matcher.build();
+    assertEquals("[B-long, I-long, I-long, I-long]", labels(matcher, "a b c d", 1));
+    assertEquals("[O, B-short, I-short, O]", labels(matcher, "a b c x", 1));
+  }
+
+  @Test
+  public void sequencesUnderTwoNamesAreNotLabeled()
+  {
+    ValueMatcher matcher = new ValueMatcher();
+    matcher.add(tokens("1901"), "birth_date");
+    matcher.add(tokens("1901"), "years_active");
+    matcher.add(tokens("Boston"), "birth_place");
+    matcher.add(tokens("Boston"), "birth_place");
+    matcher.build();
+    assertEquals("[O, O, B-birth_place]", labels(matcher, "1901 in Boston", 1));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void mustBeBuiltBeforeLabeling()
+  {
+    ValueMatcher matcher = new ValueMatcher();
+    matcher.add(tokens("x"), "a");
+    matcher.label(tokens("x"), new String[1]);
+  }
+
+  @Test
+  public void growsPastItsInitialTables()
+  {
+    ValueMatcher matcher = new ValueMatcher();
+    for (int i = 0; i < 500; i++)
+      matcher.add(tokens("value " + i + " end"), "a" + (i % 7));
+    matcher.build();
+    assertEquals("[O, B-a2, I-a2, I-a2]", labels(matcher, "the value 457 end", 1));
+  }
+}
@@ -0,0 +1,66 @@
+package crf.wiki;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ValueNormalizerTest
+{
+  private final ValueNormalizer normalizer = new ValueNormalizer();
+
+  private List<String> candidates(String value)
+  {
+    List<String> joined = new ArrayList<String>();
+    for (String[] tokens : normalizer.candidates(value)) {
+      StringBuilder s = new StringBuilder();
+      for (String t : tokens)
+        s.append(s.length() > 0 ? " " : "").append(t);
+      joined.add(s.toString());
+    }
+    return joined;
+  }
+
+  @Test
+  public void stripsLinksAndSplitsAtCommas()
+  {
+    assertEquals(Arrays.asList("Boston , U.S.", "Boston", "U.S."),
+        candidates("[[Boston]], [[United States|U.S.]]"));
+  }
+
+  @Test
+  public void rendersDatesInBothOrders()
+  {
+    assertEquals(Arrays.asList("14 May 1901", "May 14 , 1901", "May 14", "1901"),
+        candidates("{{birth date|1901|5|14|df=y}}"));
+    assertEquals(Arrays.asList("1901"), candidates("{{Death_date and age|1901}}"));
+  }
+
+  @Test
+  public void rendersListItemsAndLineBreaks()
+  {
+    assertEquals(Arrays.asList("Actor", "singer"), candidates("{{hlist|Actor|singer|class=x}}"));
+    assertEquals(Arrays.asList("Jazz", "Blues"), candidates("{{Plainlist|\n* [[Jazz]]\n* Blues\n}}"));
+    assertEquals(Arrays.asList("Paris", "Lyon"), candidates("Paris<br/>Lyon"));
+  }
+
+  @Test
+  public void rendersTheSpouseOfAMarriage()
+  {
+    assertEquals(Arrays.asList("Jane Doe"), candidates("{{marriage|[[Jane Doe]]|1990}}"));
+  }
+
+  @Test
+  public void dropsOtherTemplatesAndUselessCandidates()
+  {
+    assertEquals(Arrays.asList("Bern"), candidates("Bern{{citation needed|date=May 2020}}<ref>x</ref>"));
+    assertEquals(Arrays.<String>asList(), candidates("x{{flagicon|CH}}"));
+    assertEquals(Arrays.asList("x , -"), candidates("x, -"));
+    assertEquals(Arrays.<String>asList(), candidates("- ; ..."));
+    assertEquals(Arrays.<String>asList(),
+        candidates("one two three four five six seven eight nine ten eleven twelve thirteen"));
+  }
+}
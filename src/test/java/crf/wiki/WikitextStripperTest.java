@@ -0,0 +1,59 @@
+package crf.wiki;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class WikitextStripperTest
+{
+  private final WikitextStripper stripper = new WikitextStripper();
+
+  @Test
+  public void keepsLinkLabelsAndTargets()
+  {
+    assertEquals("Bern is the capital of Switzerland.",
+        stripper.strip("[[Bern]] is the [[Capital city|capital]] of [[Switzerland]]."));
+    assertEquals("See Paris and Lyon.", stripper.strip("See [[Paris#Name]] and [[:Lyon]]."));
+    assertEquals("Read the report.",
+        stripper.strip("Read [http://example.org/r.pdf the report]."));
+  }
+
+  @Test
+  public void dropsNonProseLinks()
+  {
+    assertEquals("A city.", stripper.strip(
+        "[[File:Bern.jpg|thumb|The [[Aare]] in Bern]]A city.[[Category:Cities]][[de:Bern]]"));
+  }
+
+  @Test
+  public void dropsTemplatesTablesAndHeadings()
+  {
+    assertEquals("Before.\nAfter.", stripper.strip(
+        "{{Infobox city|name={{lang|de|Bern}}|note=a }}Before.\n"
+        + "== History ==\n"
+        + "{|\n| cell\n{|\n| inner\n|}\n| more\n|}\n"
+        + "----\n"
+        + "After."));
+  }
+
+  @Test
+  public void dropsReferencesCommentsAndMagicWords()
+  {
+    assertEquals("Bern has 140,000 people.", stripper.strip(
+        "__NOTOC__Bern has<ref name=\"c\">{{cite web|url=x}}</ref> 140,000<!-- 2020 --> people.<ref name=\"c\"/>"));
+    assertEquals("x = y holds.", stripper.strip("x = y<math>\\alpha</math> holds."));
+  }
+
+  @Test
+  public void removesFormattingAndDecodesEntities()
+  {
+    assertEquals("Bold and italic text, 5 km\u2013long & wide.", stripper.strip(
+        "'''Bold''' and ''italic'' <span class=\"x\">text</span>, 5&nbsp;km&ndash;long &amp; wide."));
+  }
+
+  @Test
+  public void putsListItemsOnTheirOwnLines()
+  {
+    assertEquals("Items:\none\ntwo\nthree", stripper.strip("Items:\n* one\n** two  \n\n# three"));
+  }
+}